@@ -0,0 +1,136 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.io.buffer;
+
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import io.crums.io.store.table.order.RowOrder;
+
+/**
+ * A <tt>SortedBlock</tt> that also keeps the {@linkplain RowOrder#keyPrefix(ByteBuffer)
+ * key prefix} of each of its cells in a flat <tt>long[]</tt> array. Binary searches
+ * first narrow the range to the cells whose prefix ties with the key's, comparing only
+ * <tt>long</tt>s; the full row order is then consulted only among the ties (if any).
+ * <p>
+ * The prefixes are not maintained automatically: since the block's contents are modified
+ * thru its {@linkplain #buffer() buffer}, the user must {@linkplain #loadPrefixes(int)
+ * load} the prefixes of the cells searched after each modification. Searches beyond
+ * the loaded cells fall back to the ordinary (cell-by-cell) search.
+ * </p>
+ *
+ * @author Babak
+ */
+public class PrefixedSortedBlock extends SortedBlock {
+
+  private final RowOrder rowOrder;
+  private final long[] prefixes;
+  private int prefixCount;
+
+
+  /**
+   * Creates a new instance over the given <tt>block</tt>, assumed to contain cells
+   * in sorted <tt>order</tt>. No prefixes are loaded.
+   *
+   * @param order
+   *        non-<tt>null</tt>, and must {@linkplain RowOrder#hasKeyPrefix() support}
+   *        key prefixes
+   *
+   * @see SortedBlock#SortedBlock(ByteBuffer, int, java.util.Comparator, boolean)
+   */
+  public PrefixedSortedBlock(
+      ByteBuffer block, int cellByteWidth, RowOrder order, boolean readOnlyCells) {
+
+    super(block, cellByteWidth, order, readOnlyCells);
+    if (order == null)
+      throw new IllegalArgumentException("null order");
+    if (!order.hasKeyPrefix())
+      throw new IllegalArgumentException("key prefixes not supported by " + order);
+    this.rowOrder = order;
+    this.prefixes = new long[cellCount()];
+  }
+
+
+  /**
+   * Loads the key prefixes of the first <tt>count</tt> cells. Invoke this after
+   * modifying the block's contents.
+   */
+  public void loadPrefixes(int count) {
+    if (count < 0 || count > prefixes.length)
+      throw new IllegalArgumentException("count: " + count);
+    for (int index = 0; index < count; ++index)
+      prefixes[index] = rowOrder.keyPrefix(cells[index]);
+    prefixCount = count;
+  }
+
+
+  /**
+   * Returns the number of cells whose prefixes are loaded.
+   */
+  public final int getPrefixCount() {
+    return prefixCount;
+  }
+
+
+  /**
+   * Invalidates the loaded prefixes. Searches fall back to the ordinary search until
+   * they're {@linkplain #loadPrefixes(int) reloaded}.
+   */
+  public void clearPrefixes() {
+    prefixCount = 0;
+  }
+
+
+  @Override
+  public int binarySearch(ByteBuffer key) {
+    return binarySearch(key, 0, cellCount());
+  }
+
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * If the prefixes of the searched cells are loaded, then the search proceeds by
+   * prefix first.
+   * </p>
+   */
+  @Override
+  public int binarySearch(ByteBuffer key, int fromIndex, int toIndex) {
+    if (toIndex > prefixCount || fromIndex >= toIndex)
+      return super.binarySearch(key, fromIndex, toIndex);
+
+    final long prefix = rowOrder.keyPrefix(key);
+    final int lo = lowerBound(prefix, fromIndex, toIndex);
+    if (lo == toIndex || prefixes[lo] != prefix)
+      return -lo - 1;
+    final int hi = prefix == Long.MAX_VALUE ? toIndex : lowerBound(prefix + 1, lo, toIndex);
+    if (hi - lo == 1) {
+      int comp = rowOrder.compareRows(cells[lo], key);
+      if (comp == 0)
+        return lo;
+      return comp < 0 ? -(lo + 1) - 1 : -lo - 1;
+    }
+    return Arrays.binarySearch(cells, lo, hi, key, rowOrder);
+  }
+
+
+  /**
+   * Returns the index of the first cell in the given range whose prefix is not less
+   * than the given <tt>prefix</tt>; <tt>toIndex</tt>, if none. The loop has no
+   * data-dependent branches (the conditional compiles to a conditional move).
+   */
+  private int lowerBound(long prefix, int fromIndex, int toIndex) {
+    final long[] prefixes = this.prefixes;
+    int base = fromIndex;
+    int count = toIndex - fromIndex;
+    while (count > 1) {
+      int half = count >>> 1;
+      base = prefixes[base + half - 1] < prefix ? base + half : base;
+      count -= half;
+    }
+    return prefixes[base] < prefix ? base + 1 : base;
+  }
+
+}
@@ -45,5 +45,33 @@ public class SortedViewBlock extends SortedBlock {
       }
     }
   }
+  
+  
+  /**
+   * Writes the sorted cells, skipping all but the last of each run of cells that
+   * compare equal. Since the sort is stable, the cell written is the one that came
+   * last in the unsorted block.
+   * 
+   * @return the number of cells written
+   */
+  public int writeDistinctCells(GatheringByteChannel file) throws IOException {
+    synchronized (cells) {
+      ByteBuffer[] distinct = new ByteBuffer[cells.length];
+      int count = 0;
+      for (int index = 0; index < cells.length; ++index) {
+        if (index + 1 < cells.length && order().compare(cells[index], cells[index + 1]) == 0)
+          continue;
+        distinct[count++] = cells[index];
+      }
+      if (count < distinct.length)
+        distinct = Arrays.copyOf(distinct, count);
+      try {
+        ChannelUtils.writeRemaining(file, distinct);
+      } finally {
+        BufferUtils.clearAll(distinct);
+      }
+      return count;
+    }
+  }
 
 }
@@ -8,7 +8,6 @@ import java.io.IOException;
 import java.nio.channels.FileChannel;
 
 import io.crums.io.store.table.SortedTable;
-import io.crums.io.store.table.TableSet;
 import io.crums.io.store.table.order.RowOrder;
 
 /**
@@ -49,6 +48,15 @@ public class SidTable extends SortedTable {
     this.id = id;
   }
   
+  /**
+   * Returns a new reference counted view of this instance, with the same ID.
+   * The caller agrees to close it when done.
+   */
+  @Override
+  public SidTable clone() {
+    return new SidTable(this, id);
+  }
+
   /**
    * Returns the table's ID.
    */
@@ -67,30 +75,4 @@ public class SidTable extends SortedTable {
     return Long.toString(id);
   }
 
-  
-
-  /**
-   * Returns the same searcher. Reminder: <em>no concurrent access!</em>.
-   * @return
-   * @throws IOException
-   */
-  public Searcher getSearcher() throws IOException {
-    if (searcher == null) {
-      long byteSize = getRowCount() * getRowWidth();
-      int rowsInBuffer;
-      // if the table size is <= 16k, load it all into memory
-      if (byteSize <= 2 * TableSet.DEFAULT_SEARCH_BUFFER_SIZE)
-        rowsInBuffer = (int) getRowCount();
-      else
-        rowsInBuffer = TableSet.DEFAULT_SEARCH_BUFFER_SIZE / getRowWidth();
-      rowsInBuffer = Math.max(rowsInBuffer, 8);
-      searcher = newSearcher(rowsInBuffer);
-    }
-    return searcher;
-  }
-  
-  private Searcher searcher;
-  
-  
-
 }
@@ -8,9 +8,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
-import io.crums.io.store.table.SortedTable;
 import io.crums.io.store.table.TableSetD;
-import io.crums.io.store.table.SortedTable.Searcher;
 import io.crums.io.store.table.del.DeleteCodec;
 import io.crums.io.store.table.order.RowOrder;
 import io.crums.util.CollectionUtils;
@@ -34,12 +32,6 @@ public class SidTableSet extends TableSetD {
   }
 
 
-  @Override
-  protected Searcher getSearcher(SortedTable table) throws IOException {
-    return ((SidTable) table).getSearcher();
-  }
-
-
   /**
    * Constructs an instance with a singleton table.
    */
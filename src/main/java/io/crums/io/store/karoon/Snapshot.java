@@ -0,0 +1,224 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.io.store.karoon;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import io.crums.io.Releaseable;
+import io.crums.io.store.karoon.merge.TableRegistry;
+import io.crums.io.store.table.iter.Direction;
+import io.crums.io.store.table.iter.MergeRowIterator;
+import io.crums.io.store.table.iter.RowIterator;
+import io.crums.io.store.table.order.RowOrder;
+import io.crums.util.TaskStack;
+
+/**
+ * A consistent view of a {@linkplain TStore}'s state: the write-ahead memtable,
+ * the full (immutable) memtables waiting to be flushed, the back set of sorted tables,
+ * and the commit record that describes them. These are published together thru a
+ * single volatile reference, so a reader that {@linkplain #acquire() acquire}s an
+ * instance sees them as of the same moment without taking a lock.
+ * <p>
+ * Instances are reference counted. The store holds one reference on behalf of the
+ * current (latest) snapshot; each reader holds another for the duration of its read.
+ * When a snapshot is superseded the store drops its reference, and whoever releases
+ * the last reference unpins the snapshot's tables from the {@linkplain TableRegistry}.
+ * The table instances themselves are shared across snapshots: the store closes (and
+ * deletes) a table merged away in the meantime only once it's no longer pinned.
+ * </p>
+ *
+ * @author Babak
+ */
+final class Snapshot {
+
+  private final static Logger LOG = Logger.getLogger(Snapshot.class.getName());
+
+  private final WriteAheadTableBuilder memtable;
+  private final List<WriteAheadTableBuilder> frozen;
+  private final SidTableSet tableSet;
+  private final CommitRecord commit;
+  private final Releaseable pin;
+
+  /**
+   * Starts at 1: the publisher's reference. Once this drops to zero, it stays there.
+   */
+  private final AtomicInteger refs = new AtomicInteger(1);
+
+  private final AtomicBoolean retired = new AtomicBoolean();
+
+
+  /**
+   * @param memtable the write-ahead table (shared with other snapshots)
+   * @param frozen   the immutable memtables not yet flushed, oldest first
+   *                 (shared with other snapshots)
+   * @param tableSet the back set (its tables are shared with other snapshots)
+   * @param commit   the commit record describing the <tt>tableSet</tt>
+   * @param pin      pins the <tt>tableSet</tt>'s tables in the registry (owned by this instance)
+   */
+  Snapshot(
+      WriteAheadTableBuilder memtable, List<WriteAheadTableBuilder> frozen,
+      SidTableSet tableSet, CommitRecord commit, Releaseable pin) {
+
+    this.memtable = memtable;
+    this.frozen = frozen.isEmpty() ?
+        Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(frozen));
+    this.tableSet = tableSet;
+    this.commit = commit;
+    this.pin = pin;
+
+    if (memtable == null)
+      throw new IllegalArgumentException("null memtable");
+    if (tableSet == null)
+      throw new IllegalArgumentException("null tableSet");
+    if (commit == null)
+      throw new IllegalArgumentException("null commit");
+    if (pin == null)
+      throw new IllegalArgumentException("null pin");
+  }
+
+
+  /**
+   * Returns the write-ahead table. Unlike the other members of the snapshot, this one
+   * is live: it changes as rows are written to the store.
+   */
+  WriteAheadTableBuilder memtable() {
+    return memtable;
+  }
+
+
+  /**
+   * Returns the immutable memtables that are not yet flushed to the back set,
+   * oldest first. Their rows are newer than those in the back set, but older than
+   * those in the {@linkplain #memtable() memtable}.
+   */
+  List<WriteAheadTableBuilder> frozen() {
+    return frozen;
+  }
+
+
+  /**
+   * Returns the row with the given <tt>key</tt> in the immutable memtables
+   * (the newest one, if it occurs in more than one); <tt>null</tt>, if not found.
+   */
+  ByteBuffer frozenRow(ByteBuffer key) {
+    for (int index = frozen.size(); index-- > 0; ) {
+      ByteBuffer row = frozen.get(index).getRow(key);
+      if (row != null)
+        return row;
+    }
+    return null;
+  }
+
+
+  /**
+   * Returns the row with the given <tt>key</tt> in memory (in either the memtable,
+   * or the immutable ones); <tt>null</tt>, if not found.
+   */
+  ByteBuffer memRow(ByteBuffer key) {
+    ByteBuffer row = memtable.getRow(key);
+    return row == null ? frozenRow(key) : row;
+  }
+
+
+  /**
+   * Returns an iterator over the rows in memory (in either the memtable, or the
+   * immutable ones), newer rows taking precedence.
+   */
+  RowIterator memIterator(ByteBuffer key, Direction direction, boolean includeKey, RowOrder order)
+      throws IOException {
+    RowIterator iter = memtable.iterator(key, direction, includeKey);
+    if (frozen.isEmpty())
+      return iter;
+    List<RowIterator> subs = new ArrayList<>(frozen.size() + 1);
+    for (WriteAheadTableBuilder table : frozen)
+      subs.add(table.iterator(key, direction, includeKey));
+    subs.add(iter);
+    return new MergeRowIterator(subs, order);
+  }
+
+
+  SidTableSet tableSet() {
+    return tableSet;
+  }
+
+
+  CommitRecord commit() {
+    return commit;
+  }
+
+
+  /**
+   * Attempts to acquire a reference to this instance. On success, the caller
+   * agrees to eventually {@linkplain #release() release} it.
+   *
+   * @return <tt>false</tt>, if the instance is already disposed (in which
+   *         case the store has already published a newer one)
+   */
+  boolean acquire() {
+    while (true) {
+      int count = refs.get();
+      if (count == 0)
+        return false;
+      if (refs.compareAndSet(count, count + 1))
+        return true;
+    }
+  }
+
+
+  /**
+   * Releases a reference. When the last reference is released, the instance's
+   * tables are unpinned from the registry. Releasing an already
+   * disposed instance is a no-op (this only happens on reads after the store
+   * is closed).
+   */
+  void release() {
+    while (true) {
+      int count = refs.get();
+      if (count == 0)
+        return;
+      if (refs.compareAndSet(count, count - 1)) {
+        if (count == 1)
+          dispose();
+        return;
+      }
+    }
+  }
+
+
+  /**
+   * Releases the publisher's reference without unpinning the tables in the
+   * registry; instead, the tables are closed once the last reader is done.
+   * Invoked on closing the store: the tables of the last commit are still live.
+   * Idempotent.
+   */
+  void retire() {
+    if (retired.compareAndSet(false, true))
+      release();
+  }
+
+
+  private void dispose() {
+    TaskStack closer = new TaskStack(LOG);
+    if (retired.get())
+      closer.pushClose(tableSet);
+    else
+      closer.pushClose(pin);
+    closer.close();
+  }
+
+
+  @Override
+  public String toString() {
+    return "[" + commit.getId() + ":" + tableSet + (frozen.isEmpty() ? "" : "+" + frozen.size()) + "]";
+  }
+
+}
@@ -4,51 +4,104 @@
 package io.crums.io.store.karoon;
 
 
-import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
 
 import io.crums.io.FileUtils;
 import io.crums.io.IoStateException;
 import io.crums.io.buffer.Covenant;
+import io.crums.io.channels.ChannelUtils;
+import io.crums.io.store.NotSortedException;
 import io.crums.io.store.karoon.merge.MergePolicy;
+import io.crums.io.store.karoon.merge.MergeRateLimiter;
 import io.crums.io.store.karoon.merge.TableLifecycleListener;
 import io.crums.io.store.karoon.merge.TableMergeEngine;
 import io.crums.io.store.karoon.merge.TableRegistry;
 import io.crums.io.store.ks.CachingKeystone;
 import io.crums.io.store.ks.Keystone;
+import io.crums.io.store.table.BloomFilter;
+import io.crums.io.store.table.FenceIndex;
 import io.crums.io.store.table.SortedTable;
 import io.crums.io.store.table.TableSet;
 import io.crums.io.store.table.del.DeleteCodec;
 import io.crums.io.store.table.iter.Direction;
+import io.crums.io.store.table.iter.MergeRowIterator;
 import io.crums.io.store.table.iter.RowIterator;
 import io.crums.io.store.table.iter.TableSetIterator;
 import io.crums.io.store.table.order.RowOrder;
 import io.crums.math.stats.MovingAverage;
 import io.crums.util.TaskStack;
+import io.crums.util.cc.FixedPriorityThreadFactory;
+import io.crums.util.cc.MemoryBudget;
 import io.crums.util.cc.throt.FuzzySpeed;
 import io.crums.util.cc.throt.FuzzyThrottler;
 
 /**
- * Single thread (but fail safe) access to a logical, sorted table on disk.
+ * Thread-safe access to a logical, sorted table on disk.
  * This is implemented as a stack of sorted tables. The tables are write-once.
  * Behind the scenes, there are typically 2 background threads merging tables
  * into bigger ones: one for merging young tables, another for merging more
  * mature ones. The design is inspired by how Apache Lucene merges tables--except
  * here the data model is a good deal simpler so we are able to pull off a live
  * view.
+ * <h4>Reads</h4>
+ * <p>
+ * Reads don't take any locks. The in-memory write-ahead table, the stack of sorted
+ * tables, and the commit record describing them are published together as a
+ * reference counted {@linkplain Snapshot snapshot} thru a single volatile field.
+ * A reader pins the current snapshot for the duration of its read, so readers run in
+ * parallel with each other, with writers, and with merges. Table instances are shared
+ * across snapshots (so their {@linkplain SortedTable#searcherPool() searcher pools}
+ * stay warm); a table merged away is closed and deleted only after the last snapshot
+ * using it is released. Writes are still serialized.
+ * </p><p>
+ * If the row order supports {@linkplain RowOrder#hasKeyHash() key hashing}, each
+ * sorted table has a Bloom filter (stored beside it, in a <tt>.bflt</tt> file), so
+ * that a lookup typically searches only the table that contains the key.
+ * See {@linkplain TStoreConfig#getBloomFilterBitsPerKey()}.
+ * </p>
  * <h4>Write-ahead Log</h4>
  * <p>
- * A <em>frontier</em> unsorted table serves as a write-ahead log. This is kept small
- * enough so that it can fit (in sorted order) in memory.
+ * A <em>frontier</em> {@linkplain WalSegment WAL segment} of unsorted rows serves as
+ * a write-ahead log. This is kept small enough so that it can fit (in sorted order)
+ * in memory.
+ * </p><p>
+ * When the write-ahead table fills up, it becomes immutable and is swapped for a fresh
+ * one right away; a background thread then flushes it to a sorted table. Until it's
+ * flushed, reads consult it alongside the live write-ahead table. Writers only wait
+ * on the flusher if there are already {@linkplain MergePolicy#getMaxImmutableMemtables()
+ * too many} immutable tables queued.
+ * </p><p>
+ * How often the write-ahead table is forced to the device is governed by
+ * {@linkplain TStoreConfig#getWalDurability()}: with group commit, concurrent writers
+ * share a single force.
+ * </p><p>
+ * Bulk loads may skip the write-ahead log altogether: an externally built sorted table
+ * can be {@linkplain #ingest(File) ingested} as is.
  * </p>
  * <h4>Automatic Throttling</h4>
  * <p>
@@ -65,6 +118,15 @@ import io.crums.util.cc.throt.FuzzyThrottler;
  * the backing-tables-count near {@linkplain  MergePolicy#getEngineOverheatTableCount()}.
  * </p><p>
  * There's no throttling on the reads: the read path is "naturally" throttled.
+ * </p><p>
+ * Beyond the young generation, tables are merged size-tiered (write-optimized) by
+ * default, or leveled (read-optimized): see {@linkplain MergePolicy#getCompactionStyle()}.
+ * </p><p>
+ * Merge I/O, in turn, may be rate limited (see {@linkplain
+ * MergePolicy#getMergeBytesPerSecond()}), so that merges don't starve the foreground
+ * of disk bandwidth. If the rate is {@linkplain MergePolicy#isMergeRateAutoTuned()
+ * auto-tuned}, then read latency is measured and the rate is adjusted as commits are
+ * published.
  * </p>
  * <h4>TODO</h4>
  * <p>
@@ -101,9 +163,18 @@ public class TStore implements TableStore {
       processMerged(srcIds, result);
     }
     
+    public void tablesMerged(List<Long> srcIds, List<SidTable> results) throws IOException {
+      processMerged(srcIds, results);
+    }
+    
+    public boolean tableMoved(long tableId, long anchorId) throws IOException {
+      return processMoved(tableId, anchorId);
+    }
+    
     public void discardTable(long tableId) {
       File tableFile = getSortedTablePath(tableId);
       discardFile(tableFile);
+      discardBloomFilter(tableId);
     }
     
     public TStore store() {
@@ -122,12 +193,13 @@ public class TStore implements TableStore {
     private CommitRecord commit;
     
     LoadMeter() {
-      commit = currentCommit;
+      commit = getCurrentCommit();
       tableCount = new MovingAverage(10, commit.getTableIds().size());
     }
     
     
     public synchronized void update() {
+      CommitRecord currentCommit = getCurrentCommit();
       if (commit != currentCommit) {
         commit = currentCommit;
         tableCount.observe(commit.getTableIds().size());
@@ -251,6 +323,48 @@ public class TStore implements TableStore {
     
   }
   
+  
+  /**
+   * Feeds the merge rate limiter's {@linkplain MergeRateLimiter#tune(double, double)
+   * auto-tuning}: measures foreground read latency, and periodically reports it along
+   * with the merge debt (the table count relative to the overheat count).
+   */
+  private class MergeRateTuner {
+    
+    private final static long TUNE_INTERVAL_NANOS = 250_000_000L;
+    
+    private final MergeRateLimiter limiter;
+    private final LongAdder latencySum = new LongAdder();
+    private final LongAdder latencyCount = new LongAdder();
+    private long lastTuned = System.nanoTime();
+    
+    MergeRateTuner(MergeRateLimiter limiter) {
+      this.limiter = limiter;
+    }
+    
+    void observeRead(long nanos) {
+      latencySum.add(nanos);
+      latencyCount.increment();
+    }
+    
+    /**
+     * Invoked with the <tt>backSetLock</tt> held.
+     */
+    void update() {
+      long now = System.nanoTime();
+      if (now - lastTuned < TUNE_INTERVAL_NANOS)
+        return;
+      lastTuned = now;
+      long count = latencyCount.sumThenReset();
+      long sum = latencySum.sumThenReset();
+      double latency = count == 0 ? 0 : ((double) sum) / count;
+      double debt =
+          ((double) getCurrentCommit().getTableIds().size()) /
+          config.getMergePolicy().getEngineOverheatTableCount();
+      limiter.tune(debt, latency);
+    }
+  }
+  
   protected final static Logger LOG = Logger.getLogger(TStore.class.getName());
   private final static long INIT_COUNTER_VALUE = 0L;
   
@@ -262,6 +376,7 @@ public class TStore implements TableStore {
   public final static String TABLE_PREFIX = "T";
   public final static String SORTED_TABLE_EXT = "stbl";
   public final static String UNSORTED_TABLE_EXT = "utbl";
+  public final static String BLOOM_FILTER_EXT = BloomFilter.FILE_EXT;
   
   
   
@@ -272,7 +387,14 @@ public class TStore implements TableStore {
   
   
   private final TaskStack closer = new TaskStack(LOG);
-  private final Object apiLock = new Object();
+  /**
+   * Writers to the memtable hold the read lock (so they proceed in parallel);
+   * rotating the memtable (and other operations that must be exclusive of
+   * writers) hold the write lock. Acquired before the <tt>backSetLock</tt>.
+   */
+  private final ReentrantReadWriteLock memtableLock = new ReentrantReadWriteLock();
+  private final Lock writersLock = memtableLock.readLock();
+  private final Lock exclusiveLock = memtableLock.writeLock();
   private final Object backSetLock = new Object();
   
   private final TStoreConfig config;
@@ -286,12 +408,70 @@ public class TStore implements TableStore {
   private final TableRegistry tableRegistry;
   
   
-  private WriteAheadTableBuilder writeAhead;
-  private SidTableSet activeTableSet;
-  private volatile CommitRecord currentCommit;
+  /**
+   * The current snapshot. Only replaced while holding the <tt>backSetLock</tt>;
+   * its memtable, only while also holding the <tt>exclusiveLock</tt>.
+   */
+  private volatile Snapshot snapshot;
+  
+  /**
+   * The open table instances, keyed by ID. A table is closed (and removed) once its
+   * reference count in the registry drops to zero.
+   */
+  private final Map<Long, SidTable> openTables = new ConcurrentHashMap<>();
+  
+  /**
+   * The first and last rows of the open tables, keyed by ID.
+   * 
+   * @see #getTableKeyRange(long)
+   */
+  private final Map<Long, ByteBuffer[]> keyRanges = new ConcurrentHashMap<>();
+  
+  /**
+   * Bounds the memory retained by the tables' searcher pools.
+   */
+  private final MemoryBudget searcherBudget;
+  
+  /**
+   * Shared by all the tables' Bloom filters.
+   */
+  private final BloomFilter.Stats bloomFilterStats = new BloomFilter.Stats();
+  
+  /**
+   * Bounds the off-heap memory occupied by the tables' fence indexes.
+   */
+  private final MemoryBudget fenceIndexBudget;
   
   private final Object commitWatch = new Object();
   
+  /**
+   * Flushes immutable memtables, oldest first, one at a time.
+   */
+  private final ExecutorService flusher;
+  
+  /**
+   * Notified whenever an immutable memtable is flushed (or fails to be).
+   */
+  private final Object flushWatch = new Object();
+  
+  private volatile IOException flushFailure;
+  
+  /**
+   * Syncs the WAL at a fixed period, if the WAL durability is
+   * {@linkplain WalDurability.Mode#PERIODIC periodic}; <tt>null</tt>, otherwise.
+   */
+  private final ScheduledExecutorService walSyncer;
+  
+  /**
+   * Auto-tunes the merge I/O rate, if so configured; <tt>null</tt>, otherwise.
+   */
+  private final MergeRateTuner mergeRateTuner;
+  
+  /**
+   * Time spent on startup replaying the write-ahead logs.
+   */
+  private final long walRecoveryNanos;
+  
   
   public TStore(TStoreConfig config, boolean create) throws IOException {
     if (config == null)
@@ -301,6 +481,8 @@ public class TStore implements TableStore {
       throw new IllegalArgumentException("attempt to create a read read-only instance");
     
     this.config = config;
+    this.searcherBudget = new MemoryBudget(config.getSearchBufferBudget());
+    this.fenceIndexBudget = new MemoryBudget(config.getFenceIndexBudget());
     boolean failed = true;
     try {
       if (create)
@@ -333,17 +515,19 @@ public class TStore implements TableStore {
       
 
 
-      this.currentCommit = loadCommitRecord(commitNumber.get());
-      this.activeTableSet = load(currentCommit);
-      this.loadMeter = new LoadMeter();
-      this.throttle = new FuzzyThrottler(loadMeter);
+      CommitRecord currentCommit = loadCommitRecord(commitNumber.get());
       
       {
         TableLifecycleListener lifecycleListener = new TableLifecycleListener() {
           @Override
           public void released(long tableId) {
+            SidTable table = openTables.remove(tableId);
+            keyRanges.remove(tableId);
+            if (table != null)
+              new TaskStack(LOG).pushClose(table).close();
             File tableFile = getSortedTablePath(tableId);
             discardFile(tableFile);
+            discardBloomFilter(tableId);
           }
           @Override
           public void inited(long tableId) {
@@ -353,34 +537,88 @@ public class TStore implements TableStore {
         this.tableRegistry = new TableRegistry(lifecycleListener);
       }
       
-      // find the last working (unsorted) table, if any..
-      long walTableId = walTableNumber.get();
-      File writeAheadFile = getWriteAheadPath(walTableId);
-      if (writeAheadFile.exists()) {
+      // recover the write-ahead tables not yet flushed, if any..
+      // (the last one is the live write-ahead table; the others
+      // were full, queued to be flushed)
+      List<WriteAheadTableBuilder> frozen = new ArrayList<>();
+      final long walTableId = walTableNumber.get();
+      
+      try (TaskStack closeOnFail = new TaskStack(LOG)) {
+        WriteAheadTableBuilder writeAhead = null;
+        long recoveryNanos = 0;
+        for (long walId : listWriteAheadIds()) {
+          File writeAheadFile = getWriteAheadPath(walId);
+          // TODO: there might be a race with the merger thread
+          //       i.e. we haven't yet ensured the merger thread could not have merged walId
+          //       away before the last instance was abnormally shutdown
+          if (currentCommit.getTableIds().contains(walId)) {
+            LOG.warning("Recovering from abnormal shutdown..");
+            discardFile(writeAheadFile);
+            continue;
+          }
+          WriteAheadTableBuilder wal = new WriteAheadTableBuilder(
+              config.getRowWidth(), config.getRowOrder(), writeAheadFile,
+              config.getWalDurability());
+          closeOnFail.pushClose(wal);
+          recoveryNanos += wal.getRecoveryNanos();
+          // the flush (if any) didn't make it into a commit
+          FileUtils.delete(getSortedTablePath(walId));
+          FileUtils.delete(getBloomFilterPath(walId));
+          if (walId == walTableId)
+            writeAhead = wal;
+          else if (wal.isEmpty()) {
+            wal.close();
+            discardFile(writeAheadFile);
+          } else {
+            wal.close();
+            frozen.add(wal);
+          }
+        }
         
-        // TODO: there might be a race with the merger thread
-        //       i.e. we haven't yet ensured the merger thread could not have merged walTableId
-        //       away before the last instance was abnormally shutdown
-        if (currentCommit.getTableIds().contains(walTableId)) {
-          LOG.warning("Recovering from abnormal shutdown..");
-          discardFile(writeAheadFile);
-        } else {
-          writeAhead = new WriteAheadTableBuilder(
-              config.getRowWidth(), config.getRowOrder(), writeAheadFile);
-          // 
-          File sortedTableFile = getSortedTablePath(walTableId);
-          FileUtils.delete(sortedTableFile);
+        if (writeAhead == null) {
+          writeAhead = newWriteAhead();
+          closeOnFail.pushClose(writeAhead);
         }
+        
+        List<Long> tableIds = currentCommit.getTableIds();
+        SidTable[] tables = new SidTable[tableIds.size()];
+        for (int i = 0; i < tables.length; ++i) {
+          long tableId = tableIds.get(i);
+          tables[i] = openTable(getSortedTablePath(tableId, true), tableId);
+          closeOnFail.pushClose(tables[i]);
+        }
+        this.snapshot = newSnapshot(writeAhead, frozen, tables, currentCommit);
+        this.walRecoveryNanos = recoveryNanos;
+        closeOnFail.clear();
       }
       
-      if (writeAhead == null) {
-        setNextWriteAhead();
-      }
+      this.loadMeter = new LoadMeter();
+      this.throttle = new FuzzyThrottler(loadMeter);
       
       this.tableMergeEngine = new TableMergeEngine(new TmeContext(), config.getMergeThreadPool());
       closer.pushClose(tableMergeEngine);
+      MergeRateLimiter rateLimiter = tableMergeEngine.getRateLimiter();
+      this.mergeRateTuner =
+          rateLimiter != null && rateLimiter.isAutoTuned() ?
+              new MergeRateTuner(rateLimiter) : null;
       tableMergeEngine.start();
       
+      this.flusher = Executors.newSingleThreadExecutor(
+          new FixedPriorityThreadFactory(Thread.NORM_PRIORITY));
+      closer.pushRun(flusher::shutdown);
+      for (int count = frozen.size(); count-- > 0; )
+        flusher.execute(this::flushFrozen);
+      
+      WalDurability durability = config.getWalDurability();
+      if (durability.mode() == WalDurability.Mode.PERIODIC && !config.isReadOnly()) {
+        this.walSyncer = Executors.newSingleThreadScheduledExecutor(
+            new FixedPriorityThreadFactory(Thread.NORM_PRIORITY));
+        closer.pushRun(walSyncer::shutdown);
+        long period = durability.periodMillis();
+        walSyncer.scheduleWithFixedDelay(this::syncWal, period, period, TimeUnit.MILLISECONDS);
+      } else
+        this.walSyncer = null;
+      
       failed = false;
       
     } finally {
@@ -392,13 +630,235 @@ public class TStore implements TableStore {
   }
   
   
-  private void setNextWriteAhead() throws IOException {
+  /**
+   * Returns the IDs of the write-ahead table files in the root directory, in ascending order.
+   */
+  private List<Long> listWriteAheadIds() {
+    String ext = "." + UNSORTED_TABLE_EXT;
+    List<Long> ids = new ArrayList<>();
+    for (File file : config.getRootDir().listFiles()) {
+      String name = file.getName();
+      if (name.startsWith(TABLE_PREFIX) && name.endsWith(ext))
+        ids.add(deriveFileId(TABLE_PREFIX, UNSORTED_TABLE_EXT, file));
+    }
+    ids.sort(null);
+    return ids;
+  }
+  
+  
+  private WriteAheadTableBuilder newWriteAhead() throws IOException {
     long walTableId = tableCounter.increment(1);
     File writeAheadFile = getWriteAheadPath(walTableId);
     FileUtils.assertDoesntExist(writeAheadFile);
-    writeAhead = new WriteAheadTableBuilder(
-        config.getRowWidth(), config.getRowOrder(), writeAheadFile);
+    WriteAheadTableBuilder writeAhead = new WriteAheadTableBuilder(
+        config.getRowWidth(), config.getRowOrder(), writeAheadFile,
+        config.getWalDurability());
     walTableNumber.set(walTableId);
+    return writeAhead;
+  }
+  
+  
+  /**
+   * Returns the current snapshot, acquired. The caller agrees to {@linkplain
+   * Snapshot#release() release} it when done. If the store is closed, the
+   * last snapshot is returned, unacquired (reads against its memtable still
+   * work, but not those against its closed tables).
+   */
+  private Snapshot acquireSnapshot() {
+    while (true) {
+      Snapshot snap = snapshot;
+      // a failed acquisition on the current snapshot means the store is closed.
+      // (a snapshot is only otherwise disposed after it's superseded)
+      if (snap.acquire() || snap == snapshot)
+        return snap;
+    }
+  }
+  
+  
+  /**
+   * Publishes the given <tt>next</tt> snapshot and releases the store's reference
+   * to the current one. Invoked with the <tt>backSetLock</tt> held.
+   */
+  private void publish(Snapshot next) {
+    Snapshot prev = snapshot;
+    snapshot = next;
+    prev.release();
+    loadMeter.update();
+    throttle.updateThrottle();
+    if (mergeRateTuner != null)
+      mergeRateTuner.update();
+    notifyNewCommit();
+  }
+  
+  
+  /**
+   * Creates and returns a new snapshot over the given (open, registered) <tt>tables</tt>,
+   * pinning them in the registry.
+   */
+  private Snapshot newSnapshot(
+      WriteAheadTableBuilder memtable, List<WriteAheadTableBuilder> frozen,
+      SidTable[] tables, CommitRecord commit) throws IOException {
+    
+    SidTableSet tableSet = tables.length == 0 ?
+        new SidTableSet(
+            config.getRowOrder(), config.getRowWidth(), config.getDeleteCodec(), commit.getId()) :
+        new SidTableSet(tables, config.getDeleteCodec(), commit.getId());
+    return new Snapshot(
+        memtable, frozen, tableSet, commit, tableRegistry.pin(commit.getTableIds()));
+  }
+  
+  
+  /**
+   * Loads the given table and registers it in the {@linkplain #openTables}.
+   */
+  private SidTable openTable(File tableFile, long tableId) throws IOException {
+    return registerTable(loadSortedTable(tableFile, tableId));
+  }
+  
+  
+  /**
+   * Registers the given table in the {@linkplain #openTables}, first attaching its
+   * Bloom filter, if it doesn't already have one.
+   */
+  private SidTable registerTable(SidTable table) throws IOException {
+    return registerTable(table, null);
+  }
+  
+  
+  /**
+   * Registers the given table, with its already known key range (if not <tt>null</tt>).
+   * 
+   * @see #registerTable(SidTable)
+   */
+  private SidTable registerTable(SidTable table, ByteBuffer[] keyRange) throws IOException {
+    table.setSearcherBudget(searcherBudget);
+    if (config.isMappedReads() && !table.isMapped())
+      table.mapRows();
+    else if (config.getBlockCache() != null && table.getBlockCache() == null)
+      table.setBlockCache(config.getBlockCache());
+    if (table.getFenceIndex() == null)
+      indexTable(table);
+    if (getBloomFilterBitsPerKey() > 0) {
+      BloomFilter filter = table.getBloomFilter();
+      if (filter == null) {
+        filter = loadBloomFilter(table);
+        table.setBloomFilter(filter);
+      }
+      filter.setStats(bloomFilterStats);
+    }
+    if (!table.isEmpty())
+      keyRanges.put(table.id(), keyRange == null ? readKeyRange(table) : keyRange);
+    openTables.put(table.id(), table);
+    return table;
+  }
+  
+  
+  private ByteBuffer[] readKeyRange(SidTable table) throws IOException {
+    final int rowWidth = config.getRowWidth();
+    ByteBuffer first = ByteBuffer.allocate(rowWidth);
+    ByteBuffer last = ByteBuffer.allocate(rowWidth);
+    table.read(0, first);
+    table.read(table.getRowCount() - 1, last);
+    return new ByteBuffer[] {
+        first.flip().asReadOnlyBuffer(),
+        last.flip().asReadOnlyBuffer() };
+  }
+  
+  
+  /**
+   * Returns the first and last rows of the given committed table, or <tt>null</tt>
+   * if the table is not (or no longer) open. The returned buffers are read-only.
+   */
+  public ByteBuffer[] getTableKeyRange(long tableId) {
+    ByteBuffer[] range = keyRanges.get(tableId);
+    return range == null ? null : range.clone();
+  }
+  
+  
+  /**
+   * Loads the given table's Bloom filter from its file. If the file is missing
+   * (or unreadable) the filter is rebuilt by scanning the table and written back.
+   */
+  private BloomFilter loadBloomFilter(SidTable table) throws IOException {
+    File filterFile = getBloomFilterPath(table.id());
+    if (filterFile.exists()) {
+      try {
+        return BloomFilter.load(filterFile);
+      } catch (IOException iox) {
+        LOG.warning("Rebuilding bloom filter for table " + table + ": " + iox.getMessage());
+      }
+    }
+    BloomFilter filter = BloomFilter.build(table, getBloomFilterBitsPerKey());
+    if (!config.isReadOnly())
+      filter.writeTo(filterFile);
+    return filter;
+  }
+  
+  
+  /**
+   * Attaches a fence index to the given table, if it's big enough to benefit and
+   * if there's room in the budget.
+   */
+  private void indexTable(SidTable table) throws IOException {
+    if (table.getRowCount() > 2 * fenceStride())
+      table.setFenceIndex(FenceIndex.build(table, fenceStride(), fenceIndexBudget));
+  }
+  
+  
+  private int fenceStride() {
+    return FenceIndex.defaultStride(config.getRowWidth());
+  }
+  
+  
+  /**
+   * Returns the budget for the tables' fence indexes.
+   * 
+   * @see TStoreConfig#getFenceIndexBudget()
+   */
+  public MemoryBudget getFenceIndexBudget() {
+    return fenceIndexBudget;
+  }
+  
+  
+  private void discardBloomFilter(long tableId) {
+    File filterFile = getBloomFilterPath(tableId);
+    if (filterFile.exists())
+      discardFile(filterFile);
+  }
+  
+  
+  private File getBloomFilterPath(long tableId) {
+    return new File(
+        config.getRootDir(),
+        TABLE_PREFIX + tableId + "." + BLOOM_FILTER_EXT);
+  }
+  
+  
+  /**
+   * Returns the number of bits per key in the tables' Bloom filters; zero, if the
+   * tables have no filters.
+   * 
+   * @see TStoreConfig#getBloomFilterBitsPerKey()
+   */
+  public int getBloomFilterBitsPerKey() {
+    return config.getRowOrder().hasKeyHash() ? config.getBloomFilterBitsPerKey() : 0;
+  }
+  
+  
+  /**
+   * Returns the time (in milliseconds) spent on startup replaying the write-ahead
+   * logs not yet flushed (zero, if there were none).
+   */
+  public long getWalRecoveryMillis() {
+    return walRecoveryNanos / 1_000_000;
+  }
+  
+  
+  /**
+   * Returns the lookup counters shared by the tables' Bloom filters.
+   */
+  public BloomFilter.Stats getBloomFilterStats() {
+    return bloomFilterStats;
   }
 
   
@@ -428,16 +888,18 @@ public class TStore implements TableStore {
   
   @Override
   public ByteBuffer getRow(ByteBuffer key) throws IOException {
+    final long start = mergeRateTuner == null ? 0 : System.nanoTime();
     ByteBuffer row;
-    synchronized (apiLock) {
-      row = writeAhead.getRow(key);
-      
-      if (row == null) {
-        synchronized (backSetLock) {
-          row = activeTableSet().getRow(key);
-        }
-      }
+    Snapshot snap = acquireSnapshot();
+    try {
+      row = snap.memRow(key);
+      if (row == null)
+        row = snap.tableSet().getRow(key);
+    } finally {
+      snap.release();
     }
+    if (mergeRateTuner != null)
+      mergeRateTuner.observeRead(System.nanoTime() - start);
     
     if (row != null && hasDc() && config.getDeleteCodec().isDeleted(row))
       return null;
@@ -446,6 +908,52 @@ public class TStore implements TableStore {
   }
   
   
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The keys are resolved together: first against the write-ahead tables in memory, then the
+   * remaining ones against each sorted table in a single, ordered pass (see
+   * {@linkplain TableSet#getRows(ByteBuffer[], ByteBuffer, BitSet)}).
+   * </p>
+   */
+  @Override
+  public ByteBuffer getRows(List<ByteBuffer> keys) throws IOException {
+    final ByteBuffer[] sorted = TableStore.sortKeys(keys, config.getRowOrder());
+    final int rowWidth = config.getRowWidth();
+    ByteBuffer rows = ByteBuffer.allocate(sorted.length * rowWidth);
+    BitSet found = new BitSet(sorted.length);
+
+    Snapshot snap = acquireSnapshot();
+    try {
+      for (int k = 0; k < sorted.length; ++k) {
+        ByteBuffer row = snap.memRow(sorted[k]);
+        if (row != null) {
+          rows.position(k * rowWidth);
+          rows.put(row.duplicate());
+          found.set(k);
+        }
+      }
+      snap.tableSet().getRows(sorted, rows, found);
+    } finally {
+      snap.release();
+    }
+
+    // pack the rows found (and not deleted) at the front of the buffer
+    rows.clear();
+    ByteBuffer row = rows.duplicate();
+    for (int k = found.nextSetBit(0); k != -1; k = found.nextSetBit(k + 1)) {
+      row.limit((k + 1) * rowWidth).position(k * rowWidth);
+      if (hasDc() && config.getDeleteCodec().isDeleted(row.slice()))
+        continue;
+      if (rows.position() != row.position())
+        rows.put(row);
+      else
+        rows.position(rows.position() + rowWidth);
+    }
+    return rows.flip();
+  }
+
+
   private boolean hasDc() {
     return config.getDeleteCodec() != null;
   }
@@ -458,30 +966,31 @@ public class TStore implements TableStore {
     ByteBuffer war; // row from write-ahead table
     ByteBuffer sr;  // row from sorted-table set
     
-    synchronized (apiLock) {
+    Snapshot snap = acquireSnapshot();
+    try {
       
-      RowIterator walIterator = writeAhead.iterator(key, direction, includeKey);
+      RowIterator walIterator =
+          snap.memIterator(key, direction, includeKey, config.getRowOrder());
       war = walIterator.next();
       
-      synchronized (backSetLock) {
-        
-        TableSetIterator iter = activeTableSet().iterator();
-        iter.init(key, direction);
-        
+      TableSetIterator iter = snap.tableSet().iterator();
+      iter.init(key, direction);
+      
+      sr = iter.next();
+      if (sr != null && !includeKey && config.getRowOrder().compare(key, sr) == 0)
         sr = iter.next();
-        if (sr != null && !includeKey && config.getRowOrder().compare(key, sr) == 0)
-          sr = iter.next();
-        
-        
-        if (hasDc()) {
-          while (war != null && config.getDeleteCodec().isDeleted(war)) {
-            if (sr != null && config.getRowOrder().compare(war, sr) == 0)
-              sr = iter.next();
-            war = walIterator.next();
-          }
+      
+      
+      if (hasDc()) {
+        while (war != null && config.getDeleteCodec().isDeleted(war)) {
+          if (sr != null && config.getRowOrder().compare(war, sr) == 0)
+            sr = iter.next();
+          war = walIterator.next();
         }
       }
       
+    } finally {
+      snap.release();
     }
     
     if (war == null)
@@ -492,6 +1001,107 @@ public class TStore implements TableStore {
       return direction.effectiveComp(config.getRowOrder().compare(war, sr)) > 0 ? sr : war;
   }
 
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The returned cursor merges the live write-ahead tables in memory with the back set of
+   * sorted tables as of the time of this invocation: the back set's tables are
+   * pinned (they're neither closed nor deleted) until the cursor is exhausted or closed.
+   * </p>
+   */
+  @Override
+  public TableCursor scan(ByteBuffer fromKey, ByteBuffer toKey, Direction direction) throws IOException {
+    if (direction == null)
+      throw new IllegalArgumentException("null direction");
+    if (fromKey == null || !fromKey.hasRemaining())
+      throw new IllegalArgumentException("fromKey: " + fromKey);
+    return new ScanCursor(fromKey, toKey, direction);
+  }
+
+
+  private class ScanCursor extends TableCursor {
+
+    private final ByteBuffer toKey;
+    private final Direction direction;
+    private Snapshot snap;
+    private RowIterator merged;
+    private boolean open = true;
+
+    ScanCursor(ByteBuffer fromKey, ByteBuffer toKey, Direction direction) throws IOException {
+      this.toKey = toKey == null ? null : ByteBuffer.allocate(toKey.remaining()).put(toKey.duplicate()).flip();
+      this.direction = direction;
+      this.snap = acquireSnapshot();
+      boolean failed = true;
+      try {
+        TableSetIterator tableIter = snap.tableSet().iterator();
+        tableIter.setPrefetcher(config.getScanPrefetcher());
+        tableIter.init(fromKey, direction);
+        RowIterator walIter = snap.memIterator(fromKey, direction, true, config.getRowOrder());
+        // the write-ahead rows take precedence
+        List<RowIterator> subs = new ArrayList<>(2);
+        subs.add(tableIter);
+        subs.add(walIter);
+        this.merged = new MergeRowIterator(subs, config.getRowOrder());
+        failed = false;
+      } finally {
+        if (failed)
+          close();
+      }
+    }
+
+    @Override
+    public Direction getDirection() {
+      return direction;
+    }
+
+    @Override
+    public int getRowWidth() {
+      return config.getRowWidth();
+    }
+
+    @Override
+    public ByteBuffer next() throws IOException {
+      if (!open)
+        throw new IllegalStateException("closed: " + this);
+      if (merged == null)
+        return null;
+
+      ByteBuffer row;
+      if (hasDc())
+        while ((row = merged.next()) != null && config.getDeleteCodec().isDeleted(row));
+      else
+        row = merged.next();
+
+      if (row != null && toKey != null &&
+          direction.effectiveComp(config.getRowOrder().compare(row, toKey)) >= 0)
+        row = null;
+
+      if (row == null)
+        releaseSnapshot();
+      return row;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public void close() {
+      open = false;
+      releaseSnapshot();
+    }
+
+    private void releaseSnapshot() {
+      merged = null;
+      if (snap != null) {
+        snap.release();
+        snap = null;
+      }
+    }
+  }
+
   
   @Override
   public void deleteRow(ByteBuffer key) throws IOException {
@@ -504,33 +1114,48 @@ public class TStore implements TableStore {
     if (!hasDc())
       throw new UnsupportedOperationException("append/overwrite-only table");
 
-    synchronized (apiLock) {
+    // (removing a row from the memtable must be exclusive of other writers)
+    exclusiveLock.lock();
+    try {
       
       if (checkExists) {
         
-        ByteBuffer row = writeAhead.getRow(key);
-        
-        // if the row is already tombstoned, return right away
-        if (row != null && config.getDeleteCodec().isDeleted(row))
-          return;
-        
-        ByteBuffer backRow = activeTableSet().getRow(key);
-        if (backRow == null || config.getDeleteCodec().isDeleted(backRow)) {
+        Snapshot snap = acquireSnapshot();
+        try {
+          
+          ByteBuffer frozenRow = snap.frozenRow(key);
+          ByteBuffer row = snap.memtable().getRow(key);
+          if (row == null)
+            row = frozenRow;
           
-          if (row != null) {
-            // the wal contains this key, but the backset doesn't..
-            // remove the in-memory row, but write a tombstone to the wal
-            config.getDeleteCodec().markDeleted(key);
-            writeAhead.writeAheadButRemove(key);
+          // if the row is already tombstoned, return right away
+          if (row != null && config.getDeleteCodec().isDeleted(row))
+            return;
+          
+          ByteBuffer backRow = snap.tableSet().getRow(key);
+          if (backRow == null || config.getDeleteCodec().isDeleted(backRow)) {
+            
+            if (row == null)
+              return;
             
+            if (frozenRow == null) {
+              // the wal contains this key, but the backset doesn't..
+              // remove the in-memory row, but write a tombstone to the wal
+              config.getDeleteCodec().markDeleted(key);
+              snap.memtable().writeAheadButRemove(key);
+              return;
+            }
+            // o.w. an immutable memtable contains it: tombstone it (below)
           }
-          
-          return;
+        } finally {
+          snap.release();
         }
       } // if (checkExists) {
       
       config.getDeleteCodec().markDeleted(key);
       setRow(key);
+    } finally {
+      exclusiveLock.unlock();
     }
   }
   
@@ -551,73 +1176,464 @@ public class TStore implements TableStore {
   
 
   
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Concurrent invocations (of this and {@linkplain #setRows(ByteBuffer, Covenant)
+   * setRows}) proceed in parallel.
+   * </p>
+   */
   @Override
   public void setRow(ByteBuffer row, Covenant promise) throws IOException {
-    synchronized (apiLock) {
-      writeAhead.putRow(row, promise);
-      manageWriteAhead();
+    writersLock.lock();
+    try {
+      snapshot.memtable().putRow(row, promise);
+    } finally {
+      writersLock.unlock();
     }
+    manageWriteAhead();
   }
   
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Concurrent invocations (of this and {@linkplain #setRow(ByteBuffer, Covenant)
+   * setRow}) proceed in parallel.
+   * </p>
+   */
   @Override
   public void setRows(ByteBuffer rows, Covenant promise) throws IOException {
-    synchronized (apiLock) {
-      writeAhead.putRows(rows, promise);
-      manageWriteAhead();
+    writersLock.lock();
+    try {
+      snapshot.memtable().putRows(rows, promise);
+    } finally {
+      writersLock.unlock();
     }
+    manageWriteAhead();
+  }
+  
+  
+  /**
+   * The buffer size used to check an {@linkplain #ingest(File) ingested} table's order.
+   */
+  private final static int INGEST_CHECK_BUFFER_SIZE = 1024 * 1024;
+  
+  
+  /**
+   * Adds an externally built sorted table to the store, bypassing the write-ahead log
+   * (and the generations of merges rows written thru it would go thru). The file must
+   * be a headerless table of rows of the store's {@linkplain TStoreConfig#getRowWidth()
+   * width}, strictly increasing in the store's {@linkplain TStoreConfig#getRowOrder()
+   * order}. The order is checked first.
+   * <p>
+   * The ingested rows override any written before this method is invoked: pending
+   * writes are first flushed, then the table is committed on top of the stack. (Writers
+   * wait for this.) Thereafter, the merge engine treats it like any other table.
+   * </p><p>
+   * <em>Ownership of the file passes to the store.</em> It's moved into the store
+   * directory under a new table ID (a rename, if on the same file system). If the
+   * table is not committed, then the file is moved back to its original path; if
+   * that fails too, where the file was left is logged (as severe).
+   * </p>
+   * 
+   * @param sortedTable
+   *        the table file. On return it no longer exists at this path.
+   * @return the ingested table's ID
+   * 
+   * @throws NotSortedException
+   *         if the file's rows are not in strictly increasing order
+   * @throws IllegalStateException
+   *         if the store is read-only, or closed
+   */
+  public long ingest(File sortedTable) throws IOException {
+    FileUtils.assertFile(sortedTable);
+    if (config.isReadOnly())
+      throw new IllegalStateException("read-only: " + this);
+    if (!isOpen())
+      throw new IllegalStateException("closed: " + this);
+    final int rowWidth = config.getRowWidth();
+    if (sortedTable.length() == 0 || sortedTable.length() % rowWidth != 0)
+      throw new IllegalArgumentException(
+          "file size " + sortedTable.length() + " not a (positive) multiple of row width " +
+          rowWidth + ": " + sortedTable);
+    
+    final ByteBuffer[] keyRange = checkOrder(sortedTable);
+    
+    final long tableId = tableCounter.increment(1);
+    final File tableFile = getSortedTablePath(tableId, false);
+    Files.move(sortedTable.toPath(), tableFile.toPath());
+    
+    commitIngested(tableFile, tableId, keyRange, sortedTable);
+    this.tableMergeEngine.notifyFreshMeat();
+    return tableId;
   }
   
+  
+  /**
+   * Checks the rows in the given file are in strictly increasing order.
+   * 
+   * @return the first and last rows (read-only)
+   * @throws NotSortedException
+   *         if they're not
+   */
+  private ByteBuffer[] checkOrder(File file) throws IOException {
+    final RowOrder order = config.getRowOrder();
+    final int rowWidth = config.getRowWidth();
+    final int bufferRows = Math.max(1, INGEST_CHECK_BUFFER_SIZE / rowWidth);
+    ByteBuffer buffer = ByteBuffer.allocate(bufferRows * rowWidth);
+    ByteBuffer prev = ByteBuffer.allocate(rowWidth);
+    ByteBuffer row = ByteBuffer.allocate(rowWidth);
+    ByteBuffer cell = buffer.duplicate();
+    ByteBuffer firstRow = null;
+    boolean first = true;
+    long rowNumber = 0;
+    try (FileChannel ch = new RandomAccessFile(file, "r").getChannel()) {
+      final long size = ch.size();
+      for (long offset = 0; offset < size; ) {
+        buffer.clear();
+        if (size - offset < buffer.capacity())
+          buffer.limit((int) (size - offset));
+        ChannelUtils.readRemaining(ch, offset, buffer);
+        offset += buffer.position();
+        buffer.flip();
+        for (int pos = 0; pos < buffer.limit(); pos += rowWidth, ++rowNumber) {
+          cell.limit(pos + rowWidth).position(pos);
+          row.clear();
+          row.put(cell).flip();
+          if (!first && order.compareRows(prev, row) >= 0)
+            throw new NotSortedException(
+                "row [" + rowNumber + "] out of order in " + file);
+          if (first)
+            firstRow = ByteBuffer.allocate(rowWidth).put(row).flip().asReadOnlyBuffer();
+          first = false;
+          row.rewind();
+          ByteBuffer swap = prev;
+          prev = row;
+          row = swap;
+        }
+      }
+    }
+    return new ByteBuffer[] { firstRow, prev.asReadOnlyBuffer() };
+  }
+  
+  
+  /**
+   * Flushes the write-ahead table and any immutable ones queued. Invoked with
+   * the <tt>exclusiveLock</tt> held (so there are no concurrent writes).
+   */
+  private void flushAll() throws IOException {
+    if (isOpen() && !snapshot.memtable().isEmpty())
+      freezeWriteAhead();
+    while (isOpen() && !snapshot.frozen().isEmpty())
+      awaitFlush(flusher.submit(this::flushFrozen));
+  }
+  
+  
+  /**
+   * Commits the given ingested table file on top of the stack. The table is indexed,
+   * and its Bloom filter built, before any lock is taken; pending writes are then
+   * flushed under the <tt>exclusiveLock</tt>, and the commit itself is made under the
+   * <tt>backSetLock</tt>. If not committed, the file is moved back to its
+   * <tt>source</tt> path.
+   * 
+   * @param keyRange
+   *        the table's first and last rows
+   * @param source
+   *        the path the file was moved from
+   */
+  private void commitIngested(
+      File tableFile, long tableId, ByteBuffer[] keyRange, File source) throws IOException {
+    boolean committed = false;
+    SidTable table = null;
+    try {
+      table = loadSortedTable(tableFile, tableId);
+      indexTable(table);
+      if (getBloomFilterBitsPerKey() > 0) {
+        BloomFilter filter = BloomFilter.build(table, getBloomFilterBitsPerKey());
+        filter.writeTo(getBloomFilterPath(tableId));
+        table.setBloomFilter(filter);
+      }
+      
+      exclusiveLock.lock();
+      try {
+        flushAll();
+        synchronized (backSetLock) {
+          if (!isOpen())
+            throw new IllegalStateException("closed: " + this);
+          final Snapshot current = snapshot;
+          List<SidTable> tables = current.tableSet().sidTables();
+          List<Long> tableIds = new ArrayList<>(tables.size() + 1);
+          for (int i = 0; i < tables.size(); ++i)
+            tableIds.add(tables.get(i).id());
+          tableIds.add(tableId);
+          final long prevCommitId = commitNumber.get();
+          final long commitId = prevCommitId + 1;
+          File file = getCommitPath(commitId);
+          CommitRecord newCommitRecord = CommitRecord.create(file, tableIds, commitId);
+          // all-or-nothing commit
+          commitNumber.set(commitId);
+          committed = true;
+          if (prevCommitId != INIT_COUNTER_VALUE)
+            discardFile(getCommitPath(prevCommitId));
+          
+          SidTable[] newActiveTables = tables.toArray(new SidTable[tables.size() + 1]);
+          newActiveTables[tables.size()] = registerTable(table, keyRange);
+          publish(newSnapshot(
+              current.memtable(), current.frozen(), newActiveTables, newCommitRecord));
+        }
+      } finally {
+        exclusiveLock.unlock();
+      }
+    } finally {
+      if (!committed) {
+        if (table != null)
+          table.close();
+        discardBloomFilter(tableId);
+        restoreIngested(tableFile, source);
+      }
+    }
+  }
+  
+  
+  /**
+   * Moves an uncommitted ingested table file back to where it came from. If that
+   * fails, the file is left in place (it's not in any commit, so it's ignored on
+   * restart), and the failure is logged. Doesn't throw: invoked while the
+   * failure to commit is propagating.
+   */
+  private void restoreIngested(File tableFile, File source) {
+    try {
+      Files.move(tableFile.toPath(), source.toPath());
+    } catch (IOException iox) {
+      LOG.severe(
+          "failed to restore uncommitted ingested table " + source +
+          "; it was left at " + tableFile + ": " + iox);
+    }
+  }
+  
+  
+  private boolean walFull() throws IOException {
+    return
+        snapshot.memtable().getWalSize() >=
+        config.getMergePolicy().getWriteAheadFlushTrigger();
+  }
 
   
   
   /**
-   * The <tt>apiLock</tt> is already held.
+   * Swaps the write-ahead table for a fresh one, if it's full, and queues the full
+   * one to be flushed in the background. This is the only point writers stop for:
+   * the swap itself is exclusive of writers. If there are already too many full
+   * tables queued, then writers wait for the background flusher to catch up.
    */
   private void manageWriteAhead() throws IOException {
-    if (writeAhead.getWalSize() < config.getMergePolicy().getWriteAheadFlushTrigger())
+    if (!walFull())
       return;
     
+    final int maxQueued = config.getMergePolicy().getMaxImmutableMemtables();
+    final int limit = Math.max(1, maxQueued);
+    boolean frozen = false;
+    while (!frozen) {
+      awaitFlushQueue(limit);
+      exclusiveLock.lock();
+      try {
+        // another writer may have beaten us to it
+        if (!isOpen() || !walFull())
+          return;
+        if (snapshot.frozen().size() < limit) {
+          freezeWriteAhead();
+          frozen = true;
+        }
+      } finally {
+        exclusiveLock.unlock();
+      }
+    }
+    
+    Future<?> flush = flusher.submit(this::flushFrozen);
+    if (maxQueued == 0)
+      awaitFlush(flush);
+    
+    throttle.throttledTicker().tick();
+  }
+  
+  
+  /**
+   * Waits until there are fewer than <tt>limit</tt> immutable memtables queued.
+   */
+  private void awaitFlushQueue(int limit) throws IOException {
+    synchronized (flushWatch) {
+      while (isOpen() && snapshot.frozen().size() >= limit) {
+        if (flushFailure != null)
+          throw new IoStateException("background flush failed: " + flushFailure, flushFailure);
+        try {
+          flushWatch.wait();
+        } catch (InterruptedException ix) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("interrupted waiting on flusher: " + this);
+        }
+      }
+    }
+  }
+  
+  
+  private void awaitFlush(Future<?> flush) throws IOException {
+    try {
+      flush.get();
+    } catch (InterruptedException ix) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted waiting on flusher: " + this);
+    } catch (ExecutionException ex) {
+      throw new IoStateException("flush failed: " + ex.getCause(), ex.getCause());
+    }
+    IOException failure = flushFailure;
+    if (failure != null)
+      throw new IoStateException("background flush failed: " + failure, failure);
+  }
+  
+  
+  /**
+   * Makes the write-ahead table immutable and publishes a fresh one in its place.
+   * The <tt>exclusiveLock</tt> is already held.
+   */
+  private void freezeWriteAhead() throws IOException {
     synchronized (backSetLock) {
+      final Snapshot current = snapshot;
+      final WriteAheadTableBuilder writeAhead = current.memtable();
       long walId = deriveFileId(
           TABLE_PREFIX, UNSORTED_TABLE_EXT, writeAhead.getWriteAheadFile());
       if (walId != walTableNumber.get())
         throw new IoStateException(
             "assertion failure. expected walId " + walId + "; actual was " + walTableNumber.get());
-      File sortedWalFile = getSortedTablePath(walId, false);
-      FileChannel ch = new FileOutputStream(sortedWalFile).getChannel();
+      // create the fresh write-ahead table first: if that fails, the
+      // current one is left open (and live)
+      final WriteAheadTableBuilder next = newWriteAhead();
+      Snapshot nextSnap = null;
       try {
-        writeAhead.flush(ch);
-      } finally {
-        ch.close();
+        List<WriteAheadTableBuilder> frozen = new ArrayList<>(current.frozen());
+        frozen.add(writeAhead);
+        List<SidTable> tables = current.tableSet().sidTables();
+        nextSnap = newSnapshot(
+            next, frozen, tables.toArray(new SidTable[tables.size()]), current.commit());
+        // (the closed write-ahead table retains its rows)
+        writeAhead.close();
+      } catch (IOException | RuntimeException x) {
+        if (nextSnap != null)
+          nextSnap.release();
+        walTableNumber.set(walId);
+        new TaskStack(LOG).pushClose(next).close();
+        discardFile(next.getWriteAheadFile());
+        throw x;
       }
-      writeAhead.close();
-      List<SidTable> tables = activeTableSet().sidTables();
-      SidTable[] newActiveTables = new SidTable[tables.size() + 1];
-      List<Long> tableIds = new ArrayList<>(tables.size() + 1);
-      for (int i = 0; i < tables.size(); ++i) {
-        SidTable table = tables.get(i);
-        tableIds.add(table.id());
-        newActiveTables[i] = table;
+      publish(nextSnap);
+    }
+  }
+  
+  
+  /**
+   * Makes the writes to the current WAL durable. Runs on the {@linkplain #walSyncer}.
+   * (Rotated WALs are synced when they're closed.)
+   */
+  private void syncWal() {
+    writersLock.lock();
+    try {
+      if (isOpen())
+        snapshot.memtable().sync();
+    } catch (Exception x) {
+      LOG.warning(this + ": periodic WAL sync failed: " + x);
+    } finally {
+      writersLock.unlock();
+    }
+  }
+  
+  
+  /**
+   * Flushes the oldest immutable memtable. Runs on the flusher thread.
+   */
+  private void flushFrozen() {
+    try {
+      flushOldestFrozen();
+    } catch (Exception x) {
+      LOG.severe(this + ": background flush failed: " + x);
+      flushFailure = x instanceof IOException ? (IOException) x : new IOException(x);
+    } finally {
+      synchronized (flushWatch) {
+        flushWatch.notifyAll();
       }
-      tableIds.add(walId);
-      final long prevCommitId = commitNumber.get();
-      final long commitId = prevCommitId + 1;
-      File file = getCommitPath(commitId);
-      CommitRecord newCommitRecord = CommitRecord.create(file, tableIds, commitId);
-      // all-or-nothing commit
-      commitNumber.set(commitId);
-      // committed
-      discardFile(writeAhead.getWriteAheadFile());
-      if (prevCommitId != INIT_COUNTER_VALUE)
-        discardFile(getCommitPath(prevCommitId));
-      
-      newActiveTables[tables.size()] = loadSortedTable(sortedWalFile, walId);
-      activeTableSet(new SidTableSet(newActiveTables, config.getDeleteCodec(), commitId));
-      setCurrentCommit(newCommitRecord);
-      setNextWriteAhead();
     }
     this.tableMergeEngine.notifyFreshMeat();
-    throttle.throttledTicker().tick();
+  }
+  
+  
+  private void flushOldestFrozen() throws IOException {
+    if (!isOpen() || flushFailure != null)
+      return;
+    final List<WriteAheadTableBuilder> queue = snapshot.frozen();
+    if (queue.isEmpty())
+      return;
+    
+    // (the immutable memtable is only ever removed from the queue by this thread)
+    final WriteAheadTableBuilder writeAhead = queue.get(0);
+    final long walId = deriveFileId(
+        TABLE_PREFIX, UNSORTED_TABLE_EXT, writeAhead.getWriteAheadFile());
+    
+    // sort it to disk (and index it) before taking the lock
+    File sortedWalFile = getSortedTablePath(walId, false);
+    FileChannel ch = new FileOutputStream(sortedWalFile).getChannel();
+    try {
+      writeAhead.flush(ch);
+    } finally {
+      ch.close();
+    }
+    BloomFilter walFilter = null;
+    if (getBloomFilterBitsPerKey() > 0) {
+      walFilter = writeAhead.newBloomFilter(getBloomFilterBitsPerKey());
+      walFilter.writeTo(getBloomFilterPath(walId));
+    }
+    SidTable walTable = loadSortedTable(sortedWalFile, walId);
+    boolean committed = false;
+    try {
+      walTable.setBloomFilter(walFilter);
+      if (writeAhead.getRowCount() > 2 * fenceStride())
+        walTable.setFenceIndex(writeAhead.newFenceIndex(fenceStride(), fenceIndexBudget));
+      
+      synchronized (backSetLock) {
+        if (!isOpen())
+          return;
+        final Snapshot current = snapshot;
+        final List<WriteAheadTableBuilder> frozen = current.frozen();
+        if (frozen.isEmpty() || frozen.get(0) != writeAhead)
+          throw new IoStateException(
+              "assertion failure. expected " + writeAhead.getWriteAheadFile() +
+              " at head of flush queue; actual was " + frozen);
+        
+        List<SidTable> tables = current.tableSet().sidTables();
+        List<Long> tableIds = new ArrayList<>(tables.size() + 1);
+        for (int i = 0; i < tables.size(); ++i)
+          tableIds.add(tables.get(i).id());
+        tableIds.add(walId);
+        final long prevCommitId = commitNumber.get();
+        final long commitId = prevCommitId + 1;
+        File file = getCommitPath(commitId);
+        CommitRecord newCommitRecord = CommitRecord.create(file, tableIds, commitId);
+        // all-or-nothing commit
+        commitNumber.set(commitId);
+        committed = true;
+        discardFile(writeAhead.getWriteAheadFile());
+        if (prevCommitId != INIT_COUNTER_VALUE)
+          discardFile(getCommitPath(prevCommitId));
+        
+        SidTable[] newActiveTables = tables.toArray(new SidTable[tables.size() + 1]);
+        newActiveTables[tables.size()] = registerTable(walTable);
+        // readers still using the current snapshot, see the flushed table
+        // in memory (it retains its rows) and the old back set
+        publish(newSnapshot(
+            current.memtable(), frozen.subList(1, frozen.size()),
+            newActiveTables, newCommitRecord));
+      }
+    } finally {
+      if (!committed)
+        walTable.close();
+    }
   }
   
   
@@ -639,19 +1655,6 @@ public class TStore implements TableStore {
     }
   }
   
-  private SidTableSet activeTableSet() {
-    synchronized (backSetLock) {
-      return activeTableSet;
-    }
-  }
-  
-  private void activeTableSet(SidTableSet tableSet) {
-    synchronized (backSetLock) {
-      this.activeTableSet = tableSet;
-    }
-  }
-  
-  
   private long deriveFileId(String prefix, String ext, File file) {
     String fname = file.getName();
     int idStartOffset = prefix.length();
@@ -759,7 +1762,7 @@ public class TStore implements TableStore {
    * Returns the commit record of the current back set.
    */
   public CommitRecord getCurrentCommit() {
-    return currentCommit;
+    return snapshot.commit();
   }
 
 
@@ -773,13 +1776,19 @@ public class TStore implements TableStore {
    */
   public SidTable loadSortedTable(long tableId) throws IOException {
     File tableFile = getSortedTablePath(tableId, true);
-    return loadSortedTable(tableFile, tableId);
+    SidTable table = loadSortedTable(tableFile, tableId);
+    // share the open instance's bloom filter, if any
+    SidTable open = openTables.get(tableId);
+    if (open != null)
+      table.setBloomFilter(open.getBloomFilter());
+    return table;
   }
   
   
   /**
    * Loads and returns the {@linkplain SortedTable} (a <tt>SidTable</tt>) in read-only mode.
-   * Invoked by {@linkplain #loadSortedTable(long)}.
+   * Invoked by {@linkplain #loadSortedTable(long)}. The base implementation memory-maps
+   * the table, if so {@linkplain TStoreConfig#isMappedReads() configured}.
    */
   protected SidTable loadSortedTable(File tableFile, long id) throws IOException {
     @SuppressWarnings("resource")
@@ -790,7 +1799,16 @@ public class TStore implements TableStore {
     // SidTable table = new SidTable(ch, 0, config.getRowWidth(), config.getRowOrder(), id);
     // return table.sliceTable(0, table.getRowCount());
     
-    return new SidTable(ch, 0, config.getRowWidth(), config.getRowOrder(), id);
+    SidTable table = new SidTable(ch, 0, config.getRowWidth(), config.getRowOrder(), id);
+    if (config.isMappedReads()) {
+      try {
+        table.mapRows();
+      } catch (IOException iox) {
+        table.close();
+        throw iox;
+      }
+    }
+    return table;
   }
 
 
@@ -804,18 +1822,24 @@ public class TStore implements TableStore {
 
   @Override
   public void close() {
-    synchronized (apiLock) {
+    exclusiveLock.lock();
+    try {
       synchronized (backSetLock) {
         if (isOpen()) {
           // FIXME: following is buggy (doesn't quite work)
           // ignoring: was a nice-to-have ..
 //          commitWriteAheadOnClose();
-          Closeable activeSet = activeTableSet();
-          if (activeSet != null)
-            closer.pushClose(activeTableSet());
+          Snapshot snap = snapshot;
+          if (snap != null) {
+            closer.pushClose(snap.memtable());
+            // the tables are closed once in-flight readers (if any) are done
+            closer.pushRun(snap::retire);
+          }
           closer.close();
         }
       }
+    } finally {
+      exclusiveLock.unlock();
     }
     boolean finished;
     if (tableMergeEngine == null)
@@ -828,6 +1852,14 @@ public class TStore implements TableStore {
         finished = false;
       }
     
+    if (finished && flusher != null)
+      try {
+        finished = flusher.awaitTermination(3, TimeUnit.SECONDS);
+      } catch (InterruptedException rx) {
+        LOG.warning("interrupted on flusher.awaitTermination(3, TimeUnit.SECONDS). Ignoring..");
+        finished = false;
+      }
+    
     if (finished)
       LOG.info(this + ": [STOPPED]");
   }
@@ -841,80 +1873,191 @@ public class TStore implements TableStore {
   
   
   protected void processMerged(List<Long> srcIds, SidTable result) throws IOException {
+    if (result == null)
+      throw new IllegalArgumentException("null result");
+    processMerged(srcIds, Collections.singletonList(result));
+  }
+  
+  
+  /**
+   * Commits a trivial move: the given table is moved down the table stack to just above
+   * the given anchor table. No table is rewritten. This only changes the tables'
+   * relative precedence if the table overlaps one it moves past: in that case (which
+   * the caller has presumably ruled out, but which a concurrent commit may have brought
+   * about) nothing is done.
+   * 
+   * @param tableId   the table moved
+   * @param anchorId  the table moved to just above; must be below <tt>tableId</tt>
+   * 
+   * @return <tt>true</tt>, if committed; <tt>false</tt>, if the tables are no longer
+   *         committed, or if the table overlaps one it would move past
+   * 
+   * @see io.crums.io.store.karoon.merge.LevelInfo.Move
+   */
+  protected boolean processMoved(long tableId, long anchorId) throws IOException {
+    if (tableId == anchorId)
+      throw new IllegalArgumentException("tableId = anchorId = " + tableId);
+    
+    final RowOrder order = config.getRowOrder();
+    CommitRecord preMoveCommit;
+    synchronized (backSetLock) {
+      if (!isOpen())
+        return false;
+      
+      final Snapshot current = snapshot;
+      preMoveCommit = current.commit();
+      final List<Long> tableIds = preMoveCommit.getTableIds();
+      final int tableOff = tableIds.indexOf(tableId);
+      final int anchorOff = tableIds.indexOf(anchorId);
+      if (tableOff == -1 || anchorOff == -1)
+        return false;
+      if (anchorOff > tableOff)
+        throw new IllegalArgumentException(
+            "anchor " + anchorId + " above table " + tableId + "; currentCommit=" + preMoveCommit);
+      if (anchorOff == tableOff - 1)
+        return true;
+      
+      ByteBuffer[] range = getTableKeyRange(tableId);
+      if (range == null)
+        return false;
+      for (int index = anchorOff + 1; index < tableOff; ++index) {
+        ByteBuffer[] other = getTableKeyRange(tableIds.get(index));
+        if (other == null ||
+            order.compare(range[0], other[1]) <= 0 && order.compare(other[0], range[1]) <= 0)
+          return false;
+      }
+      
+      final List<SidTable> preMoveStack = current.tableSet().sidTables();
+      ArrayList<SidTable> postMoveStack = new ArrayList<>(preMoveStack);
+      SidTable moved = postMoveStack.remove(tableOff);
+      postMoveStack.add(anchorOff + 1, moved);
+      
+      final long postCommitId = commitNumber.get() + 1;
+      List<Long> postMoveIds = new ArrayList<>(postMoveStack.size());
+      for (SidTable table : postMoveStack)
+        postMoveIds.add(table.id());
+      
+      CommitRecord postCommitRecord =
+          CommitRecord.create(getCommitPath(postCommitId), postMoveIds, postCommitId);
+      
+      // commit
+      commitNumber.set(postCommitId);
+      publish(newSnapshot(
+          current.memtable(), current.frozen(),
+          postMoveStack.toArray(new SidTable[postMoveStack.size()]),
+          postCommitRecord));
+    }
+    
+    if (preMoveCommit.getFile() != null)
+      discardFile(preMoveCommit.getFile());
+    return true;
+  }
+  
+  
+  /**
+   * Commits the results of a merge. The results replace the sources in the table stack,
+   * at the position of the first (lowest) source. The sources needn't be contiguous
+   * in the stack (as with {@linkplain
+   * io.crums.io.store.karoon.merge.CompactionStyle#LEVELED leveled} merges), but they
+   * must appear in the given order.
+   * 
+   * @param srcIds  the source table IDs, in increasing order of precedence
+   * @param results the output tables (with non-overlapping key ranges, if more than one)
+   */
+  protected void processMerged(List<Long> srcIds, List<SidTable> results) throws IOException {
     // check args..
     // failure here represents a bug, but we still want to fail fast
     if (srcIds == null || srcIds.size() < 2)
       throw new IllegalArgumentException("srcIds: " + srcIds);
-    if (result == null)
-      throw new IllegalArgumentException("null result");
-    if (!result.isOpen())
-      throw new IllegalArgumentException("result not open");
+    if (results == null || results.isEmpty())
+      throw new IllegalArgumentException("results: " + results);
+    for (SidTable result : results)
+      if (!result.isOpen())
+        throw new IllegalArgumentException("result not open: " + result);
     
     // it's theoretically possible that 2 or more tables cancel each other out perfectly
     // Rather than handle this case, we'll just wait until until the condition changes..
-    if (result.getRowCount() == 0) {
+    // (An empty result can only be the first: split outputs are only added as needed.)
+    if (results.get(0).getRowCount() == 0) {
       LOG.warning("Discarding empty merge result. This should be a rare corner case. srcIds=" + srcIds);
-      result.close();
+      new TaskStack(LOG).pushClose(results).close();
       return;
     }
     
-    TaskStack closer = new TaskStack();
     boolean failed = true;
     CommitRecord preMergeCommit;
     try {
+      // index the results before taking the lock
+      for (SidTable result : results)
+        indexTable(result);
       synchronized (backSetLock) {
         if (!isOpen())
           return;
         
-        preMergeCommit = getCurrentCommit();
+        final Snapshot current = snapshot;
+        preMergeCommit = current.commit();
         final List<Long> tableIds = preMergeCommit.getTableIds();
-        if (tableIds.contains(result.id()))
-          throw new IllegalArgumentException("result=" + result + ", currentCommit=" + preMergeCommit);
+        for (SidTable result : results)
+          if (tableIds.contains(result.id()))
+            throw new IllegalArgumentException("result=" + result + ", currentCommit=" + preMergeCommit);
         
+        // sanity check the sources are in the stack, in order
         final int insertionOff = tableIds.indexOf(srcIds.get(0));
+        {
+          int lastOff = insertionOff;
+          for (int i = 1; i < srcIds.size() && lastOff != -1; ++i) {
+            int off = tableIds.indexOf(srcIds.get(i));
+            lastOff = off > lastOff ? off : -1;
+          }
+          if (insertionOff == -1 || lastOff == -1)
+            throw new IllegalArgumentException("srcIds=" + srcIds + "; currentCommit=" + preMergeCommit);
+        }
         
-        // sanity check
-        if (insertionOff == -1 ||
-            insertionOff + srcIds.size() > tableIds.size() ||
-            !tableIds.subList(insertionOff, srcIds.size() + insertionOff).equals(srcIds))
-          throw new IllegalArgumentException("srcIds=" + srcIds + "; currentCommit=" + preMergeCommit);
-
-        SidTable[] postMergeStack = new SidTable[tableIds.size() - srcIds.size() + 1];
-        final List<SidTable> preMergeStack = activeTableSet().sidTables();
-        
-        int index = 0;
+        SidTable[] postMergeStack = new SidTable[tableIds.size() - srcIds.size() + results.size()];
+        final List<SidTable> preMergeStack = current.tableSet().sidTables();
+        final HashSet<Long> srcIdSet = new HashSet<>(srcIds);
         
-        while (index < insertionOff) {
-          postMergeStack[index] = preMergeStack.get(index);
-          ++index;
+        // the sources are closed (and deleted) once the last snapshot using
+        // them is released
+        int j = 0;
+        for (int index = 0; index < preMergeStack.size(); ++index) {
+          if (index == insertionOff)
+            for (SidTable result : results)
+              postMergeStack[j++] = result;
+          SidTable table = preMergeStack.get(index);
+          if (!srcIdSet.contains(table.id()))
+            postMergeStack[j++] = table;
         }
-        postMergeStack[index] = result;
-        while (index < insertionOff + srcIds.size())
-          closer.pushClose(preMergeStack.get(index++));
-        for (int j = insertionOff; ++j < postMergeStack.length; )
-          postMergeStack[j] = preMergeStack.get(index++);
         
         final long postCommitId = commitNumber.get() + 1;
         
-        SidTableSet postMergeTableSet =
-            new SidTableSet(postMergeStack, config.getDeleteCodec(), postCommitId);
+        List<Long> postMergeIds = new ArrayList<>(postMergeStack.length);
+        for (SidTable table : postMergeStack)
+          postMergeIds.add(table.id());
+        
+        for (SidTable result : results) {
+          BloomFilter resultFilter = result.getBloomFilter();
+          if (resultFilter != null)
+            resultFilter.writeTo(getBloomFilterPath(result.id()));
+        }
         
         File commitFile = getCommitPath(postCommitId);
         
         CommitRecord postCommitRecord =
-            CommitRecord.create(commitFile, postMergeTableSet.getTableIds(), postCommitId);
+            CommitRecord.create(commitFile, postMergeIds, postCommitId);
         
         // commit
         commitNumber.set(postCommitId);
-        activeTableSet(postMergeTableSet);
-        setCurrentCommit(postCommitRecord);
+        for (SidTable result : results)
+          registerTable(result);
+        publish(newSnapshot(
+            current.memtable(), current.frozen(), postMergeStack, postCommitRecord));
       } // synchronized (backSetLock) { .. }
       
       failed = false;
     } finally {
       if (failed)
-        closer.clear().pushClose(result);
-      closer.close();
+        new TaskStack(LOG).pushClose(results).close();
     }
     
     // if we get this far we haven't failed
@@ -934,22 +2077,15 @@ public class TStore implements TableStore {
     }
   }
   
-  private void setCurrentCommit(CommitRecord newCommitRecord) {
-    currentCommit = newCommitRecord;
-    loadMeter.update();
-    throttle.updateThrottle();
-    notifyNewCommit();
-  }
-  
   public void waitForCommitChange(long commitId) throws InterruptedException {
     waitForCommitChange(commitId, Long.MAX_VALUE);
   }
   
   public void waitForCommitChange(long commitId, long timeOutMillis) throws InterruptedException {
-    if (currentCommit.getId() != commitId)
+    if (getCurrentCommit().getId() != commitId)
       return;
     synchronized (commitWatch) {
-      if (currentCommit.getId() == commitId)
+      if (getCurrentCommit().getId() == commitId)
         commitWatch.wait(timeOutMillis);
     }
   }
@@ -958,10 +2094,11 @@ public class TStore implements TableStore {
   
   @Override
   public String toString() {
-    CommitRecord c = currentCommit;
+    Snapshot snap = snapshot;
     StringBuilder string = new StringBuilder()
       .append('[').append(name());
-    if (c != null) {
+    if (snap != null) {
+      CommitRecord c = snap.commit();
       string.append(':').append(c.getId()).append(':').append(c.getTableIds());
     }
     return string.append(']').toString();
@@ -4,9 +4,13 @@
 package io.crums.io.store.karoon;
 
 import java.io.File;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 
 import io.crums.io.store.karoon.merge.MergePolicy;
+import io.crums.io.store.karoon.merge.MergeScheduler;
+import io.crums.io.store.table.BlockCache;
+import io.crums.io.store.table.BloomFilter;
 import io.crums.io.store.table.del.DeleteCodec;
 import io.crums.io.store.table.order.RowOrder;
 
@@ -16,6 +20,16 @@ import io.crums.io.store.table.order.RowOrder;
  */
 public class TStoreConfig {
   
+  /**
+   * Default {@linkplain #getSearchBufferBudget() search buffer budget}: 8 MB.
+   */
+  public final static long DEFAULT_SEARCH_BUFFER_BUDGET = 8 * 1024 * 1024;
+  
+  /**
+   * Default {@linkplain #getFenceIndexBudget() fence index budget}: 32 MB.
+   */
+  public final static long DEFAULT_FENCE_INDEX_BUDGET = 32 * 1024 * 1024;
+  
   private final RowOrder rowOrder;
   private final int rowWidth;
   private final DeleteCodec deleteCodec;
@@ -23,6 +37,14 @@ public class TStoreConfig {
   private final MergePolicy policy;
   private final ExecutorService mergeThreadPool;
   private final boolean readOnly;
+  private final long searchBufferBudget;
+  private final int bloomFilterBitsPerKey;
+  private final long fenceIndexBudget;
+  private final boolean mappedReads;
+  private final BlockCache blockCache;
+  private final WalDurability walDurability;
+  private final MergeScheduler mergeScheduler;
+  private final Executor scanPrefetcher;
   
   
   public TStoreConfig(
@@ -34,13 +56,33 @@ public class TStoreConfig {
       ExecutorService mergeThreadPool,
       boolean readOnly)
       throws IllegalArgumentException {
-    this.rowOrder = rowOrder;
-    this.rowWidth = rowWidth;
-    this.deleteCodec = deleteCodec;
-    this.rootDir = rootDir;
-    this.policy = policy;
-    this.mergeThreadPool = mergeThreadPool;
-    this.readOnly = readOnly;
+    this(new Builder()
+        .setRowOrder(rowOrder)
+        .setRowWidth(rowWidth)
+        .setDeleteCodec(deleteCodec)
+        .setRootDir(rootDir)
+        .setMergePolicy(policy)
+        .setMergeThreadPool(mergeThreadPool)
+        .setReadOnly(readOnly));
+  }
+  
+  
+  private TStoreConfig(Builder builder) throws IllegalArgumentException {
+    this.rowOrder = builder.rowOrder;
+    this.rowWidth = builder.rowWidth;
+    this.deleteCodec = builder.deleteCodec;
+    this.rootDir = builder.rootDir;
+    this.policy = builder.policy;
+    this.mergeThreadPool = builder.mergeThreadPool;
+    this.readOnly = builder.readOnly;
+    this.searchBufferBudget = builder.searchBufferBudget;
+    this.bloomFilterBitsPerKey = builder.bloomFilterBitsPerKey;
+    this.fenceIndexBudget = builder.fenceIndexBudget;
+    this.mappedReads = builder.mappedReads;
+    this.blockCache = builder.blockCache;
+    this.walDurability = builder.walDurability;
+    this.mergeScheduler = builder.mergeScheduler;
+    this.scanPrefetcher = builder.scanPrefetcher;
     
     if (rowOrder == null)
       throw new IllegalArgumentException("null rowOrder");
@@ -50,6 +92,14 @@ public class TStoreConfig {
       throw new IllegalArgumentException("null rootDir");
     if (policy == null)
       throw new IllegalArgumentException("null policy");
+    if (searchBufferBudget < 0)
+      throw new IllegalArgumentException("searchBufferBudget: " + searchBufferBudget);
+    if (bloomFilterBitsPerKey < 0)
+      throw new IllegalArgumentException("bloomFilterBitsPerKey: " + bloomFilterBitsPerKey);
+    if (fenceIndexBudget < 0)
+      throw new IllegalArgumentException("fenceIndexBudget: " + fenceIndexBudget);
+    if (walDurability == null)
+      throw new IllegalArgumentException("null walDurability");
   }
   
   
@@ -93,6 +143,98 @@ public class TStoreConfig {
   public final boolean isReadOnly() {
     return readOnly;
   }
+  
+  
+  /**
+   * Returns the maximum number of bytes the store's tables' pooled searchers may retain
+   * across all tables. Searchers needed beyond this budget are allocated per lookup.
+   * 
+   * @see io.crums.io.store.table.SortedTable#searcherPool()
+   */
+  public final long getSearchBufferBudget() {
+    return searchBufferBudget;
+  }
+  
+  
+  /**
+   * Returns the number of bits per key in the tables' Bloom filters. Zero means no
+   * filters. Defaults to {@linkplain BloomFilter#DEFAULT_BITS_PER_KEY}. Filters are
+   * only built if the {@linkplain #getRowOrder() row order} supports {@linkplain
+   * RowOrder#hasKeyHash() key hashing}.
+   */
+  public final int getBloomFilterBitsPerKey() {
+    return bloomFilterBitsPerKey;
+  }
+  
+  
+  /**
+   * Returns the maximum number of (off-heap) bytes the store's tables' {@linkplain
+   * io.crums.io.store.table.FenceIndex fence indexes} may occupy across all tables.
+   * Tables that don't fit in the budget are searched by bisecting the file. Zero
+   * means no indexes.
+   */
+  public final long getFenceIndexBudget() {
+    return fenceIndexBudget;
+  }
+  
+  
+  /**
+   * Determines whether the store's (immutable) sorted tables are {@linkplain
+   * io.crums.io.store.table.Table#mapRows() memory-mapped}. Defaults to <tt>false</tt>.
+   */
+  public final boolean isMappedReads() {
+    return mappedReads;
+  }
+  
+  
+  /**
+   * Returns the optional block cache the store's sorted tables read thru. A single
+   * instance is meant to be shared by many stores. (Mapped tables don't use it.)
+   * 
+   * @return possibly <tt>null</tt>
+   */
+  public final BlockCache getBlockCache() {
+    return blockCache;
+  }
+  
+  
+  /**
+   * Returns when writes to the write-ahead log are made durable. Defaults to
+   * {@linkplain WalDurability#PER_WRITE}.
+   */
+  public final WalDurability getWalDurability() {
+    return walDurability;
+  }
+  
+  
+  /**
+   * Returns the optional scheduler the store's merges are run on. A single instance
+   * (e.g. the {@linkplain MergeScheduler#shared() shared} one) is meant to be shared by
+   * many stores, so as to limit the number of merges running in the process. If
+   * <tt>null</tt> (the default), the store runs its merges on its own threads
+   * (see {@linkplain #getMergeThreadPool()}).
+   * 
+   * @return possibly <tt>null</tt>
+   */
+  public final MergeScheduler getMergeScheduler() {
+    return mergeScheduler;
+  }
+  
+  
+  /**
+   * Returns the optional executor {@linkplain TStore#scan(java.nio.ByteBuffer,
+   * java.nio.ByteBuffer, io.crums.io.store.table.iter.Direction) scans} prefetch
+   * their tables' read-ahead windows on. With it, a scan keeps reads to all its tables
+   * in flight, instead of stalling on each table's in turn. A single instance (with a
+   * few threads) may be shared by many stores. If <tt>null</tt> (the default), scans
+   * don't prefetch.
+   * 
+   * @return possibly <tt>null</tt>
+   * @see io.crums.io.store.table.merge.BaseMergeSource#setPrefetcher(Executor)
+   */
+  public final Executor getScanPrefetcher() {
+    return scanPrefetcher;
+  }
 
 
 
@@ -105,6 +247,14 @@ public class TStoreConfig {
     builder.append(", rootDir=").append(rootDir);
     builder.append(", policy=").append(policy);
     builder.append(", mergeThreadPool=").append(mergeThreadPool);
+    builder.append(", searchBufferBudget=").append(searchBufferBudget);
+    builder.append(", bloomFilterBitsPerKey=").append(bloomFilterBitsPerKey);
+    builder.append(", fenceIndexBudget=").append(fenceIndexBudget);
+    builder.append(", mappedReads=").append(mappedReads);
+    builder.append(", blockCache=").append(blockCache);
+    builder.append(", walDurability=").append(walDurability);
+    builder.append(", mergeScheduler=").append(mergeScheduler);
+    builder.append(", scanPrefetcher=").append(scanPrefetcher);
     builder.append("]");
     return builder.toString();
   }
@@ -130,6 +280,14 @@ public class TStoreConfig {
     private MergePolicy policy;
     private ExecutorService mergeThreadPool;
     private boolean readOnly;
+    private long searchBufferBudget = DEFAULT_SEARCH_BUFFER_BUDGET;
+    private int bloomFilterBitsPerKey = BloomFilter.DEFAULT_BITS_PER_KEY;
+    private long fenceIndexBudget = DEFAULT_FENCE_INDEX_BUDGET;
+    private boolean mappedReads;
+    private BlockCache blockCache;
+    private WalDurability walDurability = WalDurability.PER_WRITE;
+    private MergeScheduler mergeScheduler;
+    private Executor scanPrefetcher;
     
     
     public Builder load(TStoreConfig config) {
@@ -139,6 +297,14 @@ public class TStoreConfig {
       setRootDir(config.getRootDir());
       setMergePolicy(config.getMergePolicy());
       setMergeThreadPool(config.getMergeThreadPool());
+      setSearchBufferBudget(config.getSearchBufferBudget());
+      setBloomFilterBitsPerKey(config.getBloomFilterBitsPerKey());
+      setFenceIndexBudget(config.getFenceIndexBudget());
+      setMappedReads(config.isMappedReads());
+      setBlockCache(config.getBlockCache());
+      setWalDurability(config.getWalDurability());
+      setMergeScheduler(config.getMergeScheduler());
+      setScanPrefetcher(config.getScanPrefetcher());
       return this;
     }
     
@@ -200,8 +366,104 @@ public class TStoreConfig {
       return readOnly;
     }
     
+    public long getSearchBufferBudget() {
+      return searchBufferBudget;
+    }
+    
+    /**
+     * @see TStoreConfig#getSearchBufferBudget()
+     */
+    public Builder setSearchBufferBudget(long bytes) {
+      this.searchBufferBudget = bytes;
+      return this;
+    }
+    
+    public int getBloomFilterBitsPerKey() {
+      return bloomFilterBitsPerKey;
+    }
+    
+    /**
+     * @see TStoreConfig#getBloomFilterBitsPerKey()
+     */
+    public Builder setBloomFilterBitsPerKey(int bitsPerKey) {
+      this.bloomFilterBitsPerKey = bitsPerKey;
+      return this;
+    }
+    
+    public long getFenceIndexBudget() {
+      return fenceIndexBudget;
+    }
+    
+    /**
+     * @see TStoreConfig#getFenceIndexBudget()
+     */
+    public Builder setFenceIndexBudget(long bytes) {
+      this.fenceIndexBudget = bytes;
+      return this;
+    }
+    
+    public boolean isMappedReads() {
+      return mappedReads;
+    }
+    
+    /**
+     * @see TStoreConfig#isMappedReads()
+     */
+    public Builder setMappedReads(boolean mappedReads) {
+      this.mappedReads = mappedReads;
+      return this;
+    }
+    
+    public BlockCache getBlockCache() {
+      return blockCache;
+    }
+    
+    /**
+     * @see TStoreConfig#getBlockCache()
+     */
+    public Builder setBlockCache(BlockCache blockCache) {
+      this.blockCache = blockCache;
+      return this;
+    }
+    
+    public WalDurability getWalDurability() {
+      return walDurability;
+    }
+    
+    /**
+     * @see TStoreConfig#getWalDurability()
+     */
+    public Builder setWalDurability(WalDurability walDurability) {
+      this.walDurability = walDurability;
+      return this;
+    }
+    
+    public MergeScheduler getMergeScheduler() {
+      return mergeScheduler;
+    }
+    
+    /**
+     * @see TStoreConfig#getMergeScheduler()
+     */
+    public Builder setMergeScheduler(MergeScheduler mergeScheduler) {
+      this.mergeScheduler = mergeScheduler;
+      return this;
+    }
+    
+    public Executor getScanPrefetcher() {
+      return scanPrefetcher;
+    }
+    
+    /**
+     * @see TStoreConfig#getScanPrefetcher()
+     */
+    public Builder setScanPrefetcher(Executor scanPrefetcher) {
+      this.scanPrefetcher = scanPrefetcher;
+      return this;
+    }
+    
     public TStoreConfig toConfig() throws IllegalArgumentException {
-      return new TStoreConfig(rowOrder, rowWidth, deleteCodec, rootDir, policy, mergeThreadPool, readOnly);
+      return new TStoreConfig(this);
     }
     
   }
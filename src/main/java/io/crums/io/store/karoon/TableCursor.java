@@ -0,0 +1,31 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.io.store.karoon;
+
+
+import io.crums.io.Releaseable;
+import io.crums.io.store.table.iter.RowIterator;
+
+/**
+ * A range scan over a {@linkplain TableStore}. Returned by {@linkplain
+ * TableStore#scan(java.nio.ByteBuffer, java.nio.ByteBuffer, io.crums.io.store.table.iter.Direction)
+ * TableStore.scan(..)}, an instance holds on to the resources it needs (a consistent
+ * view of the store's tables, and a position in each) until it's either exhausted or
+ * {@linkplain #close() close}d. So the caller should close it, if it doesn't read it to
+ * the end.
+ * <p>
+ * Instances are not safe under concurrent access.
+ * </p>
+ *
+ * @author Babak
+ */
+public abstract class TableCursor extends RowIterator implements Releaseable {
+
+  /**
+   * Determines whether the instance is open. An instance is open until it's closed.
+   * (An exhausted instance releases its resources, but remains open.)
+   */
+  public abstract boolean isOpen();
+
+}
@@ -7,6 +7,8 @@ package io.crums.io.store.karoon;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channel;
+import java.util.Arrays;
+import java.util.List;
 
 import io.crums.io.buffer.Covenant;
 import io.crums.io.store.Sorted;
@@ -50,7 +52,49 @@ public interface TableStore extends Channel, Sorted {
    * Returns the row with the given matching <tt>key</tt>; or <tt>null</tt>, if not found.
    */
   ByteBuffer getRow(ByteBuffer key) throws IOException;
-  
+
+
+  /**
+   * Returns the rows matching the given <tt>keys</tt> in one contiguous buffer.
+   * The rows are returned in row order (not the order of the keys); keys with no matching
+   * row (and duplicate keys) contribute no rows. The base implementation just invokes
+   * {@linkplain #getRow(ByteBuffer)} for each key; implementations that can
+   * resolve the keys together should override it.
+   *
+   * @param keys the keys, in any order
+   *
+   * @return a buffer of <em>n</em> &times; {@linkplain #rowWidth()} remaining bytes,
+   *         <em>n</em> being the number of matching rows
+   */
+  default ByteBuffer getRows(List<ByteBuffer> keys) throws IOException {
+    ByteBuffer[] sorted = sortKeys(keys, rowOrder());
+    ByteBuffer rows = ByteBuffer.allocate(sorted.length * rowWidth());
+    for (ByteBuffer key : sorted) {
+      ByteBuffer row = getRow(key);
+      if (row != null)
+        rows.put(row);
+    }
+    return rows.flip();
+  }
+
+
+  /**
+   * Returns the given <tt>keys</tt> sorted in the given <tt>order</tt>, with duplicates removed.
+   * The input list is not modified.
+   */
+  static ByteBuffer[] sortKeys(List<ByteBuffer> keys, RowOrder order) {
+    if (keys == null)
+      throw new IllegalArgumentException("null keys");
+    ByteBuffer[] sorted = keys.toArray(new ByteBuffer[keys.size()]);
+    Arrays.sort(sorted, order);
+    int count = 0;
+    for (int i = 0; i < sorted.length; ++i) {
+      if (count == 0 || order.compare(sorted[count - 1], sorted[i]) != 0)
+        sorted[count++] = sorted[i];
+    }
+    return count == sorted.length ? sorted : Arrays.copyOf(sorted, count);
+  }
+
 
   /**
    * Searches and returns the next row starting from the given <tt>key</tt>.
@@ -59,6 +103,23 @@ public interface TableStore extends Channel, Sorted {
    */
   ByteBuffer nextRow(ByteBuffer key, Direction direction, boolean includeKey) throws IOException;
 
+
+  /**
+   * Returns a cursor over the rows starting from <tt>fromKey</tt> (inclusive) up to
+   * <tt>toKey</tt> (exclusive) in the given <tt>direction</tt>. Unlike successive
+   * {@linkplain #nextRow(ByteBuffer, Direction, boolean) nextRow} invocations, the returned
+   * cursor keeps its position in the underlying tables from one row to the next.
+   *
+   * @param fromKey   the key the scan starts at (inclusive)
+   * @param toKey     the key the scan ends at (exclusive). If <tt>null</tt>, then the scan
+   *                  runs to the end (or beginning, if in {@linkplain Direction#REVERSE
+   *                  reverse}) of the table.
+   * @param direction the direction of the scan
+   *
+   * @return a cursor the caller agrees to close, if it doesn't read it to the end
+   */
+  TableCursor scan(ByteBuffer fromKey, ByteBuffer toKey, Direction direction) throws IOException;
+
   /**
    * Inserts or updates the given <tt>row</tt> with no promise/covenant. Shorthand for
    * {@linkplain #setRow(ByteBuffer, Covenant) setRow(row, Covenant.NONE)}
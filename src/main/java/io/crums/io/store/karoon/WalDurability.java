@@ -0,0 +1,105 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.io.store.karoon;
+
+
+/**
+ * Determines when a write to a {@linkplain TStore}'s write-ahead log (WAL) is made
+ * durable (forced to the storage device). Durability costs throughput: each force
+ * is a round trip to the device. In every mode, the WAL is forced when it's rotated
+ * (or the store is closed).
+ *
+ * @see TStoreConfig#getWalDurability()
+ * @author Babak
+ */
+public final class WalDurability {
+
+  public enum Mode {
+    /**
+     * The WAL is only forced when it's rotated. A crash loses the writes since.
+     */
+    NONE,
+    /**
+     * The WAL is forced in the background at a fixed period. A crash loses
+     * at most about a period's worth of writes.
+     */
+    PERIODIC,
+    /**
+     * Group commit. Concurrent writes are batched and the batch is forced once;
+     * each writer returns once its batch is durable.
+     */
+    PER_BATCH,
+    /**
+     * Each write forces the WAL before returning.
+     */
+    PER_WRITE
+  }
+
+
+  public final static WalDurability NONE = new WalDurability(Mode.NONE, 0);
+
+  public final static WalDurability PER_BATCH = new WalDurability(Mode.PER_BATCH, 0);
+
+  public final static WalDurability PER_WRITE = new WalDurability(Mode.PER_WRITE, 0);
+
+
+  /**
+   * Returns a {@linkplain Mode#PERIODIC periodic} instance.
+   *
+   * @param millis the period in milliseconds (&ge; 1)
+   */
+  public static WalDurability periodic(long millis) {
+    if (millis < 1)
+      throw new IllegalArgumentException("millis: " + millis);
+    return new WalDurability(Mode.PERIODIC, millis);
+  }
+
+
+  private final Mode mode;
+  private final long periodMillis;
+
+
+  private WalDurability(Mode mode, long periodMillis) {
+    this.mode = mode;
+    this.periodMillis = periodMillis;
+  }
+
+
+  public Mode mode() {
+    return mode;
+  }
+
+
+  /**
+   * Returns the period in milliseconds, if the mode is {@linkplain Mode#PERIODIC
+   * periodic}; zero, otherwise.
+   */
+  public long periodMillis() {
+    return periodMillis;
+  }
+
+
+  @Override
+  public boolean equals(Object o) {
+    if (o == this)
+      return true;
+    else if (!(o instanceof WalDurability))
+      return false;
+    WalDurability other = (WalDurability) o;
+    return mode == other.mode && periodMillis == other.periodMillis;
+  }
+
+
+  @Override
+  public int hashCode() {
+    return mode.hashCode() ^ Long.hashCode(periodMillis);
+  }
+
+
+  @Override
+  public String toString() {
+    return mode == Mode.PERIODIC ? mode + "(" + periodMillis + "ms)" : mode.toString();
+  }
+
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.io.store.karoon;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+import io.crums.io.channels.ChannelUtils;
+
+/**
+ * A write-ahead log (WAL) file made of checksummed frames. Each frame holds
+ * a batch of rows written together, so appending a batch costs a single write
+ * (there is no row count to maintain). On recovery, frames are read up to the first
+ * incomplete (torn) or corrupted frame; the file is truncated there.
+ *
+ * <h3>Format</h3>
+ * <p>
+ * The file begins with a {@linkplain #HEADER_SIZE 16 byte} header: an 8 byte magic
+ * number, followed by the 4 byte format version and the 4 byte row width. Frames
+ * follow. A frame has a {@linkplain #FRAME_HEADER_SIZE 16 byte} header: the 4 byte
+ * length of its rows (in bytes), the 4 byte CRC32C checksum of the remainder of the
+ * frame, and the 8 byte sequence number of its first row. The rows follow.
+ * </p>
+ * <h3>Concurrent Writers</h3>
+ * <p>
+ * Space for each frame is reserved atomically, so concurrent writers write their
+ * frames in parallel. Frames are therefore not necessarily in sequence number order.
+ * </p>
+ *
+ * @author Babak
+ */
+public class WalSegment implements Channel {
+
+  private final static Logger LOG = Logger.getLogger(WalSegment.class.getName());
+
+  /**
+   * "WALSEGMT" in ASCII.
+   */
+  public final static long MAGIC = 0x57414c5345474d54L;
+
+  public final static int VERSION = 1;
+
+  public final static int HEADER_SIZE = 16;
+
+  public final static int FRAME_HEADER_SIZE = 16;
+
+
+  /**
+   * A recovered frame.
+   */
+  public final static class Frame {
+
+    private final long firstSeq;
+    private final ByteBuffer rows;
+
+    private Frame(long firstSeq, ByteBuffer rows) {
+      this.firstSeq = firstSeq;
+      this.rows = rows;
+    }
+
+    /**
+     * Returns the sequence number of the first row.
+     */
+    public long firstSeq() {
+      return firstSeq;
+    }
+
+    /**
+     * Returns the rows (a read-only view).
+     */
+    public ByteBuffer rows() {
+      return rows.asReadOnlyBuffer();
+    }
+  }
+
+
+  /**
+   * Frames up to this size are staged in a per-thread buffer.
+   */
+  private final static int MAX_CACHED_FRAME = 64 * 1024;
+
+  private final static ThreadLocal<ByteBuffer> FRAME_BUFFER = new ThreadLocal<>();
+
+  private final FileChannel file;
+  private final int rowWidth;
+  private final AtomicLong nextOffset;
+
+
+  private WalSegment(FileChannel file, int rowWidth, long size) {
+    this.file = file;
+    this.rowWidth = rowWidth;
+    this.nextOffset = new AtomicLong(size);
+  }
+
+
+  /**
+   * Writes a new segment header to the given (empty) file and returns the instance.
+   * The header is forced to the device.
+   */
+  public static WalSegment newInstance(FileChannel file, int rowWidth) throws IOException {
+    checkArgs(file, rowWidth);
+    if (file.size() != 0)
+      file.truncate(0);
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putLong(MAGIC).putInt(VERSION).putInt(rowWidth).flip();
+    ChannelUtils.writeRemaining(file, 0, header);
+    file.force(true);
+    return new WalSegment(file, rowWidth, HEADER_SIZE);
+  }
+
+
+  /**
+   * Loads an existing segment, reading its frames up to the first torn one; the file
+   * is truncated there, so that new frames follow the last good one.
+   *
+   * @param frames the recovered frames are added here, in file order
+   */
+  public static WalSegment loadInstance(FileChannel file, int rowWidth, List<Frame> frames)
+      throws IOException {
+    checkArgs(file, rowWidth);
+    if (frames == null)
+      throw new IllegalArgumentException("null frames");
+    long size = file.size();
+    if (size > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("WAL segment too large: " + size);
+    if (size < HEADER_SIZE)
+      throw new IllegalArgumentException("not a WAL segment (size " + size + ")");
+
+    ByteBuffer contents = ByteBuffer.allocate((int) size);
+    ChannelUtils.readRemaining(file, 0, contents).flip();
+    if (contents.getLong() != MAGIC)
+      throw new IllegalArgumentException("not a WAL segment (magic mismatch)");
+    int version = contents.getInt();
+    if (version != VERSION)
+      throw new IllegalArgumentException("unsupported WAL segment version: " + version);
+    int width = contents.getInt();
+    if (width != rowWidth)
+      throw new IllegalArgumentException(
+          "row width mismatch: expected " + rowWidth + "; actual was " + width);
+
+    CRC32C crc = new CRC32C();
+    int goodSize = HEADER_SIZE;
+    while (contents.remaining() >= FRAME_HEADER_SIZE) {
+      int pos = contents.position();
+      int length = contents.getInt(pos);
+      int checksum = contents.getInt(pos + 4);
+      if (length <= 0 || length % rowWidth != 0 ||
+          length > contents.remaining() - FRAME_HEADER_SIZE)
+        break;
+      int end = pos + FRAME_HEADER_SIZE + length;
+      contents.position(pos + 8).limit(end);
+      crc.reset();
+      crc.update(contents);
+      contents.limit((int) size);
+      if ((int) crc.getValue() != checksum)
+        break;
+      long firstSeq = contents.getLong(pos + 8);
+      contents.position(pos + FRAME_HEADER_SIZE).limit(end);
+      frames.add(new Frame(firstSeq, contents.slice()));
+      contents.position(end).limit((int) size);
+      goodSize = end;
+    }
+
+    if (goodSize < size) {
+      LOG.warning(
+          "truncating torn WAL tail: " + (size - goodSize) + " bytes at offset " + goodSize);
+      file.truncate(goodSize);
+      file.force(true);
+    }
+    return new WalSegment(file, rowWidth, goodSize);
+  }
+
+
+  /**
+   * Determines whether the given file begins with a WAL segment header. (A file that
+   * doesn't may be a legacy, row-count-prefixed WAL.)
+   */
+  public static boolean isSegment(FileChannel file) throws IOException {
+    if (file.size() < 8)
+      return false;
+    ByteBuffer magic = ByteBuffer.allocate(8);
+    ChannelUtils.readRemaining(file, 0, magic).flip();
+    return magic.getLong() == MAGIC;
+  }
+
+
+  private static void checkArgs(FileChannel file, int rowWidth) {
+    if (file == null)
+      throw new IllegalArgumentException("null file");
+    if (rowWidth < 1)
+      throw new IllegalArgumentException("rowWidth: " + rowWidth);
+  }
+
+
+  public final int getRowWidth() {
+    return rowWidth;
+  }
+
+
+  /**
+   * Writes the given rows in a new frame, with a single write. The frame is not
+   * forced to the device.
+   *
+   * @param firstSeq the sequence number of the first row
+   * @param rows one or more rows. The buffer's position is not modified.
+   *
+   * @return the frame's end offset in the file. The frame begins at the
+   *         returned value less its {@linkplain #frameSize(int) size}.
+   */
+  public long write(long firstSeq, ByteBuffer rows) throws IOException {
+    int length = rows.remaining();
+    if (length == 0 || length % rowWidth != 0)
+      throw new IllegalArgumentException("rows remaining: " + length);
+
+    int frameSize = frameSize(length);
+    ByteBuffer frame = FRAME_BUFFER.get();
+    if (frame == null || frame.capacity() < frameSize) {
+      if (frameSize > MAX_CACHED_FRAME) {
+        frame = ByteBuffer.allocate(frameSize);
+      } else {
+        frame = ByteBuffer.allocateDirect(Math.max(frameSize, 4096));
+        FRAME_BUFFER.set(frame);
+      }
+    }
+    frame.clear().limit(frameSize);
+    frame.putInt(length).putInt(0).putLong(firstSeq).put(rows.duplicate());
+
+    CRC32C crc = new CRC32C();
+    frame.position(8);
+    crc.update(frame);
+    frame.putInt(4, (int) crc.getValue()).rewind();
+
+    long offset = nextOffset.getAndAdd(frameSize);
+    ChannelUtils.writeRemaining(file, offset, frame);
+    return offset + frameSize;
+  }
+
+
+  /**
+   * Returns the number of bytes a frame with the given number of row bytes takes.
+   */
+  public static int frameSize(int rowBytes) {
+    return FRAME_HEADER_SIZE + rowBytes;
+  }
+
+
+  /**
+   * Returns the file offset past the last reserved frame.
+   */
+  public long size() {
+    return nextOffset.get();
+  }
+
+
+  /**
+   * Forces the frames written so far to the device.
+   */
+  public void force() throws IOException {
+    file.force(false);
+  }
+
+
+  @Override
+  public boolean isOpen() {
+    return file.isOpen();
+  }
+
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+}
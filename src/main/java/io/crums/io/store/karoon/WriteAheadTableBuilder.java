@@ -5,18 +5,53 @@ package io.crums.io.store.karoon;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channel;
 import java.nio.channels.FileChannel;
 import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
+import io.crums.io.IoStateException;
 import io.crums.io.store.table.SortedTableBuilder;
 import io.crums.io.store.table.Table;
 import io.crums.io.store.table.order.RowOrder;
 
 /**
+ * A {@linkplain SortedTableBuilder} backed by a write-ahead log (WAL). The WAL is a
+ * {@linkplain WalSegment} file: each batch of rows is appended as a single
+ * checksummed frame.
+ * 
+ * <h3>Concurrent Writers</h3>
+ * <p>
+ * Frames are tagged with the sequence number of their first row (its slot number in
+ * the builder's arena, offset by the highest sequence number recovered). Since slots
+ * and frame space are both reserved atomically, concurrent writers append to the WAL
+ * in parallel; on recovery, frames are replayed in sequence number order. Only the
+ * contiguous run of completed frames is ever made durable, so a frame written past a
+ * write still in progress isn't recovered until that write completes.
+ * </p>
+ * <h3>Durability</h3>
+ * <p>
+ * The WAL is only forced as the instance's {@linkplain WalDurability durability} mode
+ * dictates, and on {@linkplain #close() close}. In {@linkplain WalDurability.Mode#PER_BATCH
+ * group commit} mode, one writer forces the WAL on behalf of all the writes completed
+ * when it started, while the others wait on it. In the synchronous modes, a row is
+ * durable before it's visible.
+ * </p><p>
+ * If a WAL write fails, then the instance refuses further writes (for the rows
+ * after the failed write would not be recoverable).
+ * </p><p>
+ * A WAL in the legacy (row-count-prefixed table) format is converted on load.
+ * </p>
  * 
  * @author Babak
  */
@@ -25,57 +60,304 @@ public class WriteAheadTableBuilder extends SortedTableBuilder implements Channe
   private final static Logger LOG = Logger.getLogger(WriteAheadTableBuilder.class.getName());
   
   private final File writeAheadFile;
-  private final Table writeAheadTable;
+  private final WalSegment segment;
+  private final WalDurability durability;
+  
+  /**
+   * Added to a row's slot number to get its sequence number in the WAL.
+   */
+  private final long seqBase;
+  
+  /**
+   * Completed frame writes past {@linkplain #writtenOffset}, keyed by start offset.
+   * Values are end offsets. Guarded by itself.
+   */
+  private final Map<Long, Long> pendingWrites = new HashMap<>();
+  
+  /**
+   * The end offset of the contiguous run of completed frame writes.
+   * Guarded by <tt>pendingWrites</tt>.
+   */
+  private long writtenOffset;
+  
+  /**
+   * The number of row bytes written to the WAL. Guarded by <tt>pendingWrites</tt>.
+   */
+  private long walBytes;
+  
+  private final Object syncLock = new Object();
+  /**
+   * The WAL offset made durable by group commits. Guarded by <tt>syncLock</tt>.
+   */
+  private long durableOffset;
+  /**
+   * Whether a group commit is in progress. Guarded by <tt>syncLock</tt>.
+   */
+  private boolean syncing;
+  
+  private volatile IOException walFailure;
+  
+  /**
+   * The time it took to load and replay the WAL (zero, if there was nothing to replay).
+   */
+  private long recoveryNanos;
+
 
+  /**
+   * Creates an instance with {@linkplain WalDurability#PER_WRITE} durability.
+   */
   public WriteAheadTableBuilder(
       int rowWidth, RowOrder order, File writeAheadFile)
           throws IOException {
+    this(rowWidth, order, writeAheadFile, WalDurability.PER_WRITE);
+  }
+
+  /**
+   * Creates a new instance, or if the <tt>writeAheadFile</tt> exists, loads its rows.
+   * 
+   * @param durability determines when writes are made durable
+   */
+  public WriteAheadTableBuilder(
+      int rowWidth, RowOrder order, File writeAheadFile, WalDurability durability)
+          throws IOException {
     super(rowWidth, order);
     this.writeAheadFile = writeAheadFile;
+    this.durability = durability;
     if (writeAheadFile == null)
       throw new IllegalArgumentException("null writeAheadFile");
+    if (durability == null)
+      throw new IllegalArgumentException("null durability");
+    
     boolean recover = writeAheadFile.exists();
-    @SuppressWarnings("resource")
-    FileChannel tableChannel = new RandomAccessFile(writeAheadFile, "rw").getChannel();
+    FileChannel walChannel = openChannel();
     boolean bail = true;
     try {
-      if (recover) {
-        this.writeAheadTable = Table.loadInstance(tableChannel, rowWidth);
-        long writeAheadRowCount = writeAheadTable.getRowCount();
-        if (writeAheadRowCount > 0) {
-          LOG.info("loading uncommitted updates from WAL " + writeAheadFile.getPath());
-          ByteBuffer rows = allocateRows((int) writeAheadRowCount);
-          rows.clear();
-          writeAheadTable.read(0, rows);
-          rows.flip();
-          final int finalLimit = rows.limit();
-          rows = rows.asReadOnlyBuffer();
-          int pos = 0;
-          int limit = pos + getRowWidth();
-          
-          while (pos < finalLimit) {
-            rows.position(pos).limit(limit);
-            overwrite(rows.slice());
-            pos = limit;
-            limit += getRowWidth();
-          }
+      if (recover && walChannel.size() >= WalSegment.HEADER_SIZE) {
+        long start = System.nanoTime();
+        if (!WalSegment.isSegment(walChannel))
+          walChannel = convertLegacy(walChannel);
+        List<WalSegment.Frame> frames = new ArrayList<>();
+        this.segment = WalSegment.loadInstance(walChannel, rowWidth, frames);
+        this.seqBase = replay(frames);
+        if (!frames.isEmpty()) {
+          this.recoveryNanos = System.nanoTime() - start;
+          LOG.info(
+              "loaded " + getRowCount() + " uncommitted rows from WAL " +
+              writeAheadFile.getPath() + " in " + (recoveryNanos / 1_000_000) + " ms");
         }
       } else {
-        this.writeAheadTable = Table.newEmptyInstance(tableChannel, rowWidth);
+        // (a file shorter than the header is a segment torn at creation)
+        this.segment = WalSegment.newInstance(walChannel, rowWidth);
+        this.seqBase = 0;
       }
+      this.writtenOffset = this.durableOffset = segment.size();
       bail = false;
     } finally {
       if (bail)
-        // we're bailing.. so close the write-ahead table before throwing the wrench
-        tableChannel.close();
+        // we're bailing.. so close the WAL before throwing the wrench
+        walChannel.close();
+    }
+  }
+  
+  
+  @SuppressWarnings("resource")
+  private FileChannel openChannel() throws IOException {
+    return new RandomAccessFile(writeAheadFile, "rw").getChannel();
+  }
+  
+  
+  /**
+   * Replays the given recovered frames and returns the sequence number base for new
+   * rows. The frames are copied into the arena in sequence number order, then linked
+   * in bulk (so that the last write to a key wins).
+   */
+  private long replay(List<WalSegment.Frame> frames) {
+    if (frames.isEmpty())
+      return 0;
+    WalSegment.Frame[] sorted = frames.toArray(new WalSegment.Frame[frames.size()]);
+    Arrays.parallelSort(sorted, (a, b) -> Long.compare(a.firstSeq(), b.firstSeq()));
+    final int rowWidth = getRowWidth();
+    long endSeq = 0;
+    for (WalSegment.Frame frame : sorted) {
+      ByteBuffer rows = frame.rows();
+      walBytes += rows.remaining();
+      endSeq = Math.max(endSeq, frame.firstSeq() + rows.remaining() / rowWidth);
+      copyIn(rows);
     }
+    linkAll();
+    return endSeq;
   }
+  
+  
+  /**
+   * Converts the legacy WAL (an unsorted {@linkplain Table}) to a single-framed
+   * {@linkplain WalSegment} and returns a channel to the converted file. The
+   * conversion is atomic.
+   */
+  private FileChannel convertLegacy(FileChannel legacyChannel) throws IOException {
+    LOG.info("converting legacy WAL " + writeAheadFile.getPath());
+    Table legacy = Table.loadInstance(legacyChannel, getRowWidth());
+    ByteBuffer rows;
+    try {
+      rows = allocateRows((int) legacy.getRowCount());
+      rows.clear();
+      legacy.read(0, rows);
+      rows.flip();
+    } finally {
+      legacy.close();
+    }
+    File tmp = new File(writeAheadFile.getPath() + ".tmp");
+    try (WalSegment converted = WalSegment.newInstance(
+        new RandomAccessFile(tmp, "rw").getChannel(), getRowWidth())) {
+      if (rows.hasRemaining())
+        converted.write(0, rows);
+      converted.force();
+    }
+    Files.move(
+        tmp.toPath(), writeAheadFile.toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return openChannel();
+  }
+  
 
   @Override
-  protected void preInsertion(ByteBuffer rows) throws IOException {
-    rows.mark();
-    writeAheadTable.append(rows);
-    rows.reset();
+  protected void preInsertion(ByteBuffer rows, int firstSlot) throws IOException {
+    writeAhead(rows, firstSlot);
+  }
+  
+  
+  private void writeAhead(ByteBuffer rows, long firstSlot) throws IOException {
+    if (walFailure != null)
+      throw new IoStateException("WAL failed on an earlier write: " + walFailure, walFailure);
+    final int rowBytes = rows.remaining();
+    final long endOffset;
+    try {
+      endOffset = segment.write(seqBase + firstSlot, rows);
+    } catch (IOException iox) {
+      walFailure = iox;
+      synchronized (pendingWrites) {
+        pendingWrites.notifyAll();
+      }
+      throw iox;
+    }
+    final long startOffset = endOffset - WalSegment.frameSize(rowBytes);
+    
+    synchronized (pendingWrites) {
+      walBytes += rowBytes;
+      if (startOffset != writtenOffset) {
+        // an earlier write is still in progress
+        pendingWrites.put(startOffset, endOffset);
+      } else {
+        long end = endOffset;
+        for (Long next; (next = pendingWrites.remove(end)) != null; )
+          end = next;
+        writtenOffset = end;
+        pendingWrites.notifyAll();
+      }
+    }
+    
+    switch (durability.mode()) {
+    case PER_WRITE:
+      awaitWritten(endOffset);
+      segment.force();
+      break;
+    case PER_BATCH:
+      syncThru(endOffset);
+      break;
+    default:
+    }
+  }
+  
+  
+  /**
+   * Makes the rows written so far durable. Concurrent invocations (and group
+   * commits) share the force.
+   */
+  public void sync() throws IOException {
+    syncThru(writtenOffset());
+  }
+  
+  
+  /**
+   * Group commit. Blocks until the WAL is durable thru <tt>endOffset</tt>. If no other
+   * thread is forcing the WAL, then the calling thread does, on behalf of all the
+   * frames written so far; otherwise, it waits for the force in progress to finish (and
+   * if that didn't cover its frame, tries again).
+   */
+  private void syncThru(long endOffset) throws IOException {
+    awaitWritten(endOffset);
+    while (true) {
+      synchronized (syncLock) {
+        while (syncing && durableOffset < endOffset)
+          waitOn(syncLock);
+        if (durableOffset >= endOffset)
+          return;
+        syncing = true;
+      }
+      long offset = -1;
+      try {
+        offset = writtenOffset();
+        segment.force();
+      } catch (IOException iox) {
+        offset = -1;
+        throw iox;
+      } finally {
+        synchronized (syncLock) {
+          syncing = false;
+          if (offset > durableOffset)
+            durableOffset = offset;
+          syncLock.notifyAll();
+        }
+      }
+    }
+  }
+  
+  
+  private long writtenOffset() {
+    synchronized (pendingWrites) {
+      return writtenOffset;
+    }
+  }
+  
+  
+  /**
+   * Waits until the WAL is written (without gaps) thru <tt>endOffset</tt>.
+   */
+  private void awaitWritten(long endOffset) throws IOException {
+    synchronized (pendingWrites) {
+      while (writtenOffset < endOffset) {
+        if (walFailure != null)
+          throw new IoStateException("WAL failed on an earlier write: " + walFailure, walFailure);
+        waitOn(pendingWrites);
+      }
+    }
+  }
+  
+  
+  private void waitOn(Object monitor) throws InterruptedIOException {
+    try {
+      monitor.wait();
+    } catch (InterruptedException ix) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted writing to WAL " + writeAheadFile);
+    }
+  }
+  
+  
+  /**
+   * Returns the time (in nanoseconds) it took to read and replay the WAL's rows into
+   * memory on load; zero, if there were none.
+   */
+  public final long getRecoveryNanos() {
+    return recoveryNanos;
+  }
+  
+  
+  /**
+   * Returns the durability mode.
+   */
+  public final WalDurability getDurability() {
+    return durability;
   }
 
   public final File getWriteAheadFile() {
@@ -84,23 +366,43 @@ public class WriteAheadTableBuilder extends SortedTableBuilder implements Channe
 
   @Override
   public boolean isOpen() {
-    return writeAheadTable.isOpen();
+    return segment.isOpen();
   }
 
+  /**
+   * Forces the WAL (making the rows written durable) and closes it.
+   * The rows remain in memory.
+   */
   @Override
   public void close() throws IOException {
-    writeAheadTable.close();
+    if (segment.isOpen()) {
+      try {
+        segment.force();
+      } finally {
+        segment.close();
+      }
+    }
   }
   
+  /**
+   * Returns the number of row bytes written to the WAL (excluding framing overhead).
+   */
   public long getWalSize() throws IOException {
-    return writeAheadTable.getRowCount() * getRowWidth();
+    synchronized (pendingWrites) {
+      return walBytes;
+    }
   }
   
   
+  /**
+   * Removes the given row from memory, but writes it to the WAL. Must be exclusive
+   * of other writers.
+   */
   public void writeAheadButRemove(ByteBuffer row) throws IOException {
-    if (!sortedView.remove(row))
+    if (!remove(row))
       throw new IllegalArgumentException("attempt to remove nonexistent row " + row);
-    writeAheadTable.append(row);
+    // the row still takes a slot (so that it's sequenced after earlier writes)
+    writeAhead(row, copyIn(row));
   }
 
   /**
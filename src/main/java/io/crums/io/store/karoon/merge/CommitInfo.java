@@ -5,6 +5,7 @@ package io.crums.io.store.karoon.merge;
 
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -13,7 +14,7 @@ import io.crums.io.store.karoon.CommitRecord;
 import io.crums.io.store.karoon.TStore;
 
 /**
- * Encapsulates table file sizes for a given commit.
+ * Encapsulates table file sizes (and key ranges) for a given commit.
  * 
  * @author Babak
  */
@@ -24,7 +25,11 @@ public class CommitInfo {
     List<TableInfo> tableInfos = new ArrayList<>(commit.getTableIds().size());
     for (Long tid : commit.getTableIds()) {
       long tsize = store.getTableFileSize(tid);
-      tableInfos.add(new TableInfo(tid, tsize));
+      ByteBuffer[] range = store.getTableKeyRange(tid);
+      tableInfos.add(
+          range == null ?
+              new TableInfo(tid, tsize) :
+                new TableInfo(tid, tsize, range[0], range[1]));
     }
     tableInfos = Collections.unmodifiableList(tableInfos);
     return new CommitInfo(commit, tableInfos);
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.io.store.karoon.merge;
+
+/**
+ * How a store's tables are merged beyond the young generation.
+ * 
+ * @see MergePolicy#getCompactionStyle()
+ * @author Babak
+ */
+public enum CompactionStyle {
+  
+  /**
+   * Size-tiered (the default). Contiguous tables of about the same size (a
+   * {@linkplain GenerationInfo generation}) are merged together. Each row is
+   * rewritten about once per generation, so this is write-optimized; but a lookup
+   * may have to search every table.
+   */
+  TIERED,
+  
+  /**
+   * Leveled. Tables are organized in {@linkplain LevelInfo levels}, each a sorted run
+   * of tables with non-overlapping key ranges. A merge picks one table from a level
+   * and merges it with the overlapping tables in the level below, writing the output
+   * as new tables of about {@linkplain MergePolicy#getLevelTableSize() fixed size}.
+   * A lookup searches at most one table per level, so this is read-optimized; the
+   * price is more rewriting of the lower levels.
+   */
+  LEVELED;
+
+}
@@ -29,7 +29,12 @@ public final class GenerationInfo {
   public final List<TableInfo> backSetInfos;
 
   
-  private GenerationInfo(int generation, List<TableInfo> srcInfos, List<TableInfo> backSetInfos) {
+  /**
+   * Creates an instance with the given sources and back set. The sources need not
+   * be contiguous in the table stack (see {@linkplain LevelInfo}). Arguments are
+   * not copied.
+   */
+  GenerationInfo(int generation, List<TableInfo> srcInfos, List<TableInfo> backSetInfos) {
     this.generation = generation;
     this.srcInfos = srcInfos;
     this.backSetInfos = backSetInfos;
@@ -0,0 +1,437 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.io.store.karoon.merge;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.crums.io.store.table.order.RowOrder;
+import io.crums.util.CollectionUtils;
+
+/**
+ * A level of tables under {@linkplain CompactionStyle#LEVELED leveled} compaction:
+ * a sorted run of tables whose key ranges don't overlap. Used for deciding which
+ * tables to merge.
+ * <p>
+ * Levels are not recorded anywhere; they're derived from the table stack. Since
+ * the tables in a level don't overlap, their relative order in the stack doesn't
+ * matter, so the stack is partitioned into levels greedily from the bottom (the
+ * oldest table) up: a table that overlaps a table in the level being gathered
+ * begins the next level. Levels are numbered from the top, starting from 1.
+ * </p>
+ * <h3>Merges</h3>
+ * <p>
+ * A leveled merge picks one table from a level and merges it with the tables in
+ * the level below that overlap it. The output (split into tables of about
+ * {@linkplain MergePolicy#getLevelTableSize() fixed size}) takes the place of the
+ * tables from the level below, which is correct since the tables between them and
+ * the picked table in the stack don't overlap the picked table.
+ * </p><p>
+ * The levels are sized relative to the bottom level: each level above it should be
+ * smaller than the one below by the {@linkplain MergePolicy#getGenerationalFactor()
+ * generational factor}. A level that exceeds its target size is merged into the level
+ * below, one table at a time. The table picked is the one whose merge rewrites
+ * the fewest bytes in the level below per byte moved down.
+ * </p>
+ * <h3>Trivial Moves</h3>
+ * <p>
+ * A table that overlaps no table in the level below needn't be merged at all: it's
+ * {@linkplain Move moved} down, by moving it to just above the level below in the
+ * stack. (No bytes are rewritten: only a new commit is written.) With increasing keys,
+ * as in time series, this is the usual case.
+ * </p>
+ *
+ * @see #levels(List, RowOrder)
+ * @see #mergeCandidates(List, MergePolicy, RowOrder)
+ * @see #trivialMoves(List, MergePolicy, RowOrder)
+ * @author Babak
+ */
+public final class LevelInfo {
+
+  /**
+   * A trivial move of a table down a level. The table is moved to just above the
+   * level below in the table stack.
+   */
+  public final static class Move {
+    /**
+     * The level the table is moved from.
+     */
+    public final int level;
+    /**
+     * The table moved.
+     */
+    public final TableInfo tableInfo;
+    /**
+     * The topmost table (in the stack) in the level below. The table is moved to just
+     * above it.
+     */
+    public final TableInfo anchor;
+    
+    private Move(int level, TableInfo tableInfo, TableInfo anchor) {
+      this.level = level;
+      this.tableInfo = tableInfo;
+      this.anchor = anchor;
+    }
+    
+    /**
+     * Returns the IDs of the moved table and the anchor (in stack order).
+     */
+    public List<Long> tableIds() {
+      return Arrays.asList(anchor.tableId, tableInfo.tableId);
+    }
+    
+    @Override
+    public String toString() {
+      return "[move=" + tableInfo.tableId + ", level=" + level + ", anchor=" + anchor.tableId + "]";
+    }
+  }
+  
+  
+  /**
+   * The level number, counting from 1 at the top.
+   */
+  public final int level;
+  /**
+   * The level's tables, in key order.
+   */
+  public final List<TableInfo> tableInfos;
+
+
+  private LevelInfo(int level, List<TableInfo> tableInfos) {
+    this.level = level;
+    this.tableInfos = tableInfos;
+  }
+
+
+  /**
+   * Returns the cumulative byte size of the level's tables.
+   */
+  public long size() {
+    long size = 0;
+    for (int i = tableInfos.size(); i-- > 0; )
+      size += tableInfos.get(i).size;
+    return size;
+  }
+
+
+  /**
+   * Returns the tables in this level that overlap the given table. Tables with no
+   * known key range overlap every table.
+   */
+  public List<TableInfo> overlapping(TableInfo table, RowOrder order) {
+    ArrayList<TableInfo> overlaps = new ArrayList<>();
+    for (TableInfo info : tableInfos)
+      if (overlaps(info, table, order))
+        overlaps.add(info);
+    return overlaps;
+  }
+
+
+  private static boolean overlaps(TableInfo a, TableInfo b, RowOrder order) {
+    return !a.hasKeyRange() || !b.hasKeyRange() || a.overlaps(b, order);
+  }
+
+
+  /**
+   * Partitions the given table stack into levels.
+   *
+   * @param tableStack
+   *        list of tables in increasing order of precedence
+   * @param order
+   *        the row order the tables' key ranges are compared by
+   *
+   * @return the levels, top (level 1) first
+   */
+  public static List<LevelInfo> levels(List<TableInfo> tableStack, RowOrder order) {
+    if (order == null)
+      throw new IllegalArgumentException("null order");
+
+    ArrayList<List<TableInfo>> runs = new ArrayList<>();
+    ArrayList<TableInfo> run = new ArrayList<>();
+    for (TableInfo table : tableStack) {
+      boolean overlaps = false;
+      for (int i = run.size(); !overlaps && i-- > 0; )
+        overlaps = overlaps(run.get(i), table, order);
+      if (overlaps) {
+        runs.add(run);
+        run = new ArrayList<>();
+      }
+      run.add(table);
+    }
+    if (!run.isEmpty())
+      runs.add(run);
+
+    final Comparator<TableInfo> keyOrder = new Comparator<TableInfo>() {
+      @Override
+      public int compare(TableInfo a, TableInfo b) {
+        if (!a.hasKeyRange() || !b.hasKeyRange())
+          return 0;
+        return order.compare(a.firstRow, b.firstRow);
+      }
+    };
+
+    ArrayList<LevelInfo> levels = new ArrayList<>(runs.size());
+    for (int index = runs.size(); index-- > 0; ) {
+      List<TableInfo> tables = runs.get(index);
+      Collections.sort(tables, keyOrder);
+      levels.add(new LevelInfo(levels.size() + 1, Collections.unmodifiableList(tables)));
+    }
+    return levels;
+  }
+
+
+  /**
+   * Returns a possibly empty list of candidate leveled merges, most pressing first.
+   * There's at most one candidate per level. The tables in the young generation (at
+   * the top of the stack) are excluded: they're merged as usual. Each candidate's
+   * {@linkplain GenerationInfo#generation generation} is the level number of the
+   * table moved down. Tables that overlap no table in the level below are not
+   * candidates: they're {@linkplain #trivialMoves(List, MergePolicy, RowOrder) moved}.
+   * Merges that combine small adjacent tables within a level come last.
+   *
+   * @param tableStack
+   *        list of tables in increasing order of precedence. The given list must
+   *        not be modified; o.w. results are undefined.
+   * @param mergePolicy
+   *        used to determine the young generation and the level sizes
+   * @param order
+   *        the row order the tables' key ranges are compared by
+   */
+  public static List<GenerationInfo> mergeCandidates(
+      List<TableInfo> tableStack, MergePolicy mergePolicy, RowOrder order) {
+
+    final List<TableInfo> leveled = leveledTables(tableStack, mergePolicy);
+    final List<LevelInfo> levels = levels(leveled, order);
+    final double[] scores = scores(levels, mergePolicy);
+
+    ArrayList<GenerationInfo> candidates = new ArrayList<>();
+    final Map<GenerationInfo, Double> candidateScores = new IdentityHashMap<>();
+
+    for (int index = 0; index < scores.length; ++index) {
+      double score = scores[index];
+      if (score < 1)
+        continue;
+
+      LevelInfo level = levels.get(index);
+      LevelInfo below = levels.get(index + 1);
+      TableInfo pick = null;
+      List<TableInfo> pickOverlaps = null;
+      double pickRatio = Double.MAX_VALUE;
+      for (TableInfo table : level.tableInfos) {
+        List<TableInfo> overlaps = below.overlapping(table, order);
+        // (tables with no overlaps are moved, not merged)
+        if (overlaps.isEmpty())
+          continue;
+        long overlapSize = 0;
+        for (TableInfo o : overlaps)
+          overlapSize += o.size;
+        double ratio = ((double) overlapSize) / Math.max(1, table.size);
+        if (ratio < pickRatio) {
+          pick = table;
+          pickOverlaps = overlaps;
+          pickRatio = ratio;
+        }
+      }
+      if (pick == null)
+        continue;
+
+      GenerationInfo merge = newMerge(level.level, pick, pickOverlaps, leveled);
+      candidates.add(merge);
+      candidateScores.put(merge, score);
+    }
+
+    // combine small tables that are adjacent in a level (these are concatenations),
+    // lest they pile up when keys increase monotonically (and nothing overlaps)
+    final long maxTableSize = mergePolicy.getLevelTableSize();
+    for (LevelInfo level : levels) {
+      if (hasCandidate(candidates, level.level))
+        continue;
+      List<TableInfo> run = level.smallAdjacentTables(maxTableSize);
+      if (run.size() < 2)
+        continue;
+      GenerationInfo merge = newMerge(level.level, run, leveled);
+      candidates.add(merge);
+      candidateScores.put(merge, 0.0);
+    }
+
+    Collections.sort(candidates, new Comparator<GenerationInfo>() {
+      @Override
+      public int compare(GenerationInfo a, GenerationInfo b) {
+        return Double.compare(candidateScores.get(b), candidateScores.get(a));
+      }
+    });
+    return candidates;
+  }
+
+
+  /**
+   * Returns a possibly empty list of trivial moves, at most one per level. A table
+   * is moved from an overdue level, if it overlaps no table in the level below; if
+   * there are many such tables, the largest is moved. The young generation is
+   * excluded, as in {@linkplain #mergeCandidates(List, MergePolicy, RowOrder)}.
+   *
+   * @param tableStack
+   *        list of tables in increasing order of precedence
+   * @param mergePolicy
+   *        used to determine the young generation and the level sizes
+   * @param order
+   *        the row order the tables' key ranges are compared by
+   */
+  public static List<Move> trivialMoves(
+      List<TableInfo> tableStack, MergePolicy mergePolicy, RowOrder order) {
+
+    final List<TableInfo> leveled = leveledTables(tableStack, mergePolicy);
+    final List<LevelInfo> levels = levels(leveled, order);
+    final double[] scores = scores(levels, mergePolicy);
+
+    ArrayList<Move> moves = new ArrayList<>();
+    for (int index = 0; index < scores.length; ++index) {
+      if (scores[index] < 1)
+        continue;
+      LevelInfo below = levels.get(index + 1);
+      TableInfo pick = null;
+      for (TableInfo table : levels.get(index).tableInfos) {
+        if (!table.hasKeyRange() || (pick != null && pick.size >= table.size))
+          continue;
+        if (below.overlapping(table, order).isEmpty())
+          pick = table;
+      }
+      if (pick == null)
+        continue;
+
+      // the anchor is the level below's topmost table in the stack
+      TableInfo anchor = null;
+      for (int s = leveled.size(); anchor == null && s-- > 0; )
+        if (below.tableInfos.contains(leveled.get(s)))
+          anchor = leveled.get(s);
+      moves.add(new Move(levels.get(index).level, pick, anchor));
+    }
+    return moves;
+  }
+
+
+  /**
+   * Returns the tables in the stack below the young generation.
+   */
+  private static List<TableInfo> leveledTables(
+      List<TableInfo> tableStack, MergePolicy mergePolicy) {
+
+    tableStack = CollectionUtils.readOnlyCopy(tableStack);
+
+    int youngStart = tableStack.size();
+    final long maxYoungSize = mergePolicy.getMaxYoungSize();
+    while (youngStart > 0 && tableStack.get(youngStart - 1).size <= maxYoungSize)
+      --youngStart;
+
+    return tableStack.subList(0, youngStart);
+  }
+
+
+  /**
+   * Returns the size-to-target ratio of every level but the bottom one, by index. A
+   * level whose score is 1 or more is overdue.
+   */
+  private static double[] scores(List<LevelInfo> levels, MergePolicy mergePolicy) {
+    final int count = levels.size();
+    if (count < 2)
+      return new double[0];
+
+    final double factor = mergePolicy.getGenerationalFactor();
+    final double bottomSize = levels.get(count - 1).size();
+
+    double[] scores = new double[count - 1];
+    for (int index = 0; index < count - 1; ++index) {
+      double target = bottomSize / Math.pow(factor, count - 1 - index);
+      scores[index] = levels.get(index).size() / target;
+    }
+    return scores;
+  }
+
+
+  private static boolean hasCandidate(List<GenerationInfo> candidates, int level) {
+    for (GenerationInfo g : candidates)
+      if (g.generation == level)
+        return true;
+    return false;
+  }
+
+
+  /**
+   * Returns the first run of small tables (no greater than half <tt>maxSize</tt>),
+   * adjacent in key order, whose combined size is no greater than <tt>maxSize</tt>;
+   * or an empty list, if there is no such run of at least 2 tables.
+   */
+  private List<TableInfo> smallAdjacentTables(long maxSize) {
+    int start = 0;
+    long runSize = 0;
+    for (int index = 0; index < tableInfos.size(); ++index) {
+      TableInfo table = tableInfos.get(index);
+      if (!table.hasKeyRange() || table.size > maxSize / 2) {
+        if (index - start >= 2)
+          return tableInfos.subList(start, index);
+        start = index + 1;
+        runSize = 0;
+        continue;
+      }
+      runSize += table.size;
+      while (runSize > maxSize) {
+        if (index - start >= 2)
+          return tableInfos.subList(start, index);
+        runSize -= tableInfos.get(start++).size;
+      }
+    }
+    return tableInfos.size() - start >= 2 ?
+        tableInfos.subList(start, tableInfos.size()) : Collections.<TableInfo>emptyList();
+  }
+
+
+  /**
+   * Returns a merge of the given table with the overlapping tables in the
+   * level below.
+   */
+  private static GenerationInfo newMerge(
+      int level, TableInfo pick, List<TableInfo> overlaps, List<TableInfo> tableStack) {
+    ArrayList<TableInfo> members = new ArrayList<>(overlaps.size() + 1);
+    members.addAll(overlaps);
+    members.add(pick);
+    return newMerge(level, members, tableStack);
+  }
+
+
+  /**
+   * Returns a merge of the given tables. The sources are ordered by precedence (as they
+   * are in the stack); the back set is every table below the lowest source.
+   */
+  private static GenerationInfo newMerge(
+      int level, List<TableInfo> members, List<TableInfo> tableStack) {
+
+    ArrayList<TableInfo> srcs = new ArrayList<>(members.size());
+    int backSetSize = tableStack.size();
+    for (int index = 0; index < tableStack.size(); ++index) {
+      TableInfo table = tableStack.get(index);
+      if (members.contains(table)) {
+        if (srcs.isEmpty())
+          backSetSize = index;
+        srcs.add(table);
+      }
+    }
+    return new GenerationInfo(
+        level,
+        Collections.unmodifiableList(srcs),
+        tableStack.subList(0, backSetSize));
+  }
+
+
+  @Override
+  public String toString() {
+    return "[level=" + level + ", tables=" + tableInfos + "]";
+  }
+
+}
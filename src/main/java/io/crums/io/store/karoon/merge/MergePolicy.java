@@ -44,5 +44,94 @@ public abstract class MergePolicy {
   
   
   public abstract int getEngineOverheatTableCount();
+  
+  
+  /**
+   * Returns the maximum number of full write-ahead tables (immutable memtables) queued
+   * for flushing in the background. When the queue is full, writers wait for the
+   * background flusher to catch up. If zero, then the writer that fills the write-ahead
+   * table flushes it itself.
+   * 
+   * @return 2 (the base implementation)
+   */
+  public int getMaxImmutableMemtables() {
+    return 2;
+  }
+  
+  
+  /**
+   * Returns the maximum number of bytes per second merges may read (and, separately,
+   * write). The budget is shared by all of a store's merges. If zero, then merge I/O
+   * is not rate limited.
+   * 
+   * @return 0 (the base implementation)
+   * @see #isMergeRateAutoTuned()
+   */
+  public long getMergeBytesPerSecond() {
+    return 0;
+  }
+  
+  
+  /**
+   * Determines whether the {@linkplain #getMergeBytesPerSecond() merge byte rate} is
+   * tuned at runtime: raised when the merge backlog (the table count, relative to the
+   * {@linkplain #getEngineOverheatTableCount() overheat} count) grows, and lowered when
+   * foreground read latency rises. Ignored if merge I/O is not rate limited.
+   * 
+   * @return <tt>false</tt> (the base implementation)
+   */
+  public boolean isMergeRateAutoTuned() {
+    return false;
+  }
+  
+  
+  /**
+   * Returns how tables beyond the young generation are merged.
+   * 
+   * @return {@linkplain CompactionStyle#TIERED} (the base implementation)
+   */
+  public CompactionStyle getCompactionStyle() {
+    return CompactionStyle.TIERED;
+  }
+  
+  
+  /**
+   * Returns the maximum byte size of the tables output by a {@linkplain
+   * CompactionStyle#LEVELED leveled} merge. (A merge's output is split into as many
+   * tables as necessary.) Successive levels are sized by the {@linkplain
+   * #getGenerationalFactor() generational factor}. Ignored under the
+   * {@linkplain CompactionStyle#TIERED tiered} style.
+   * 
+   * @return 64MB (the base implementation)
+   */
+  public long getLevelTableSize() {
+    return 64 * 1024 * 1024;
+  }
+
+  
+  
+  /**
+   * Returns the maximum number of key ranges a large merge is split into and merged in
+   * parallel (see {@linkplain io.crums.io.store.table.merge.PartitionedMergeSort}).
+   * 1 means merges aren't split. Only merges whose sources add up to at least the
+   * {@linkplain #getMinPartitionedMergeSize() minimum partitioned merge size} are split;
+   * the output of a split {@linkplain CompactionStyle#LEVELED leveled} merge is not.
+   * 
+   * @return 1 (the base implementation)
+   */
+  public int getMergePartitions() {
+    return 1;
+  }
+  
+  
+  /**
+   * Returns the minimum cumulative byte size of a merge's sources for it to be
+   * {@linkplain #getMergePartitions() split} into key ranges merged in parallel.
+   * 
+   * @return 256MB (the base implementation)
+   */
+  public long getMinPartitionedMergeSize() {
+    return 256 * 1024 * 1024;
+  }
 
 }
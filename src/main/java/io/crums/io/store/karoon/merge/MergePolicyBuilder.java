@@ -15,6 +15,13 @@ public class MergePolicyBuilder extends MergePolicy {
   private int maxMergeThreads = 8;
   private int mergeThreadPriority = 3;
   private int engineOverheatTableCount = 64;
+  private int maxImmutableMemtables = 2;
+  private long mergeBytesPerSecond;
+  private boolean mergeRateAutoTuned;
+  private CompactionStyle compactionStyle = CompactionStyle.TIERED;
+  private long levelTableSize = 64 * 1024 * 1024;
+  private int mergePartitions = 1;
+  private long minPartitionedMergeSize = 256 * 1024 * 1024;
 
   
   
@@ -87,6 +94,102 @@ public class MergePolicyBuilder extends MergePolicy {
   }
 
 
+  @Override
+  public int getMaxImmutableMemtables() {
+    return maxImmutableMemtables;
+  }
+
+
+  public MergePolicyBuilder setMaxImmutableMemtables(int maxImmutableMemtables) {
+    if (maxImmutableMemtables < 0)
+      throw new IllegalArgumentException("maxImmutableMemtables: " + maxImmutableMemtables);
+    this.maxImmutableMemtables = maxImmutableMemtables;
+    return this;
+  }
+
+
+  @Override
+  public long getMergeBytesPerSecond() {
+    return mergeBytesPerSecond;
+  }
+
+
+  public MergePolicyBuilder setMergeBytesPerSecond(long mergeBytesPerSecond) {
+    if (mergeBytesPerSecond < 0)
+      throw new IllegalArgumentException("mergeBytesPerSecond: " + mergeBytesPerSecond);
+    this.mergeBytesPerSecond = mergeBytesPerSecond;
+    return this;
+  }
+
+
+  @Override
+  public boolean isMergeRateAutoTuned() {
+    return mergeRateAutoTuned;
+  }
+
+
+  public MergePolicyBuilder setMergeRateAutoTuned(boolean mergeRateAutoTuned) {
+    this.mergeRateAutoTuned = mergeRateAutoTuned;
+    return this;
+  }
+
+
+  @Override
+  public CompactionStyle getCompactionStyle() {
+    return compactionStyle;
+  }
+
+
+  public MergePolicyBuilder setCompactionStyle(CompactionStyle compactionStyle) {
+    if (compactionStyle == null)
+      throw new IllegalArgumentException("null compactionStyle");
+    this.compactionStyle = compactionStyle;
+    return this;
+  }
+
+
+  @Override
+  public long getLevelTableSize() {
+    return levelTableSize;
+  }
+
+
+  public MergePolicyBuilder setLevelTableSize(long levelTableSize) {
+    if (levelTableSize < 1)
+      throw new IllegalArgumentException("levelTableSize: " + levelTableSize);
+    this.levelTableSize = levelTableSize;
+    return this;
+  }
+
+
+  @Override
+  public int getMergePartitions() {
+    return mergePartitions;
+  }
+
+
+  public MergePolicyBuilder setMergePartitions(int mergePartitions) {
+    if (mergePartitions < 1)
+      throw new IllegalArgumentException("mergePartitions: " + mergePartitions);
+    this.mergePartitions = mergePartitions;
+    return this;
+  }
+
+
+  @Override
+  public long getMinPartitionedMergeSize() {
+    return minPartitionedMergeSize;
+  }
+
+
+  public MergePolicyBuilder setMinPartitionedMergeSize(long minPartitionedMergeSize) {
+    if (minPartitionedMergeSize < 0)
+      throw new IllegalArgumentException("minPartitionedMergeSize: " + minPartitionedMergeSize);
+    this.minPartitionedMergeSize = minPartitionedMergeSize;
+    return this;
+  }
+
+
   public MergePolicy snapshot() {
     final int waft = getWriteAheadFlushTrigger();
     final int yt = getMinYoungMergeTableCount();
@@ -94,6 +197,13 @@ public class MergePolicyBuilder extends MergePolicy {
     final int mt = getMaxMergeThreads();
     final int mp = getMergeThreadPriority();
     final int oc = getEngineOverheatTableCount();
+    final int im = getMaxImmutableMemtables();
+    final long mr = getMergeBytesPerSecond();
+    final boolean at = isMergeRateAutoTuned();
+    final CompactionStyle cs = getCompactionStyle();
+    final long lt = getLevelTableSize();
+    final int pp = getMergePartitions();
+    final long pm = getMinPartitionedMergeSize();
     return
         new MergePolicy() {
           @Override
@@ -121,6 +231,34 @@ public class MergePolicyBuilder extends MergePolicy {
             return oc;
           }
           @Override
+          public int getMaxImmutableMemtables() {
+            return im;
+          }
+          @Override
+          public long getMergeBytesPerSecond() {
+            return mr;
+          }
+          @Override
+          public boolean isMergeRateAutoTuned() {
+            return at;
+          }
+          @Override
+          public CompactionStyle getCompactionStyle() {
+            return cs;
+          }
+          @Override
+          public long getLevelTableSize() {
+            return lt;
+          }
+          @Override
+          public int getMergePartitions() {
+            return pp;
+          }
+          @Override
+          public long getMinPartitionedMergeSize() {
+            return pm;
+          }
+          @Override
           public String toString() {
             return
                 "[waft=" + waft +
@@ -129,6 +267,13 @@ public class MergePolicyBuilder extends MergePolicy {
                 ", mt=" + mt +
                 ", mp=" + mp +
                 ", oc=" + oc +
+                ", im=" + im +
+                ", mr=" + mr +
+                ", at=" + at +
+                ", cs=" + cs +
+                ", lt=" + lt +
+                ", pp=" + pp +
+                ", pm=" + pm +
                 "]";
           }
         };
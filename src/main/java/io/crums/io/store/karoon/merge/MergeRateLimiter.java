@@ -0,0 +1,163 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.io.store.karoon.merge;
+
+
+import io.crums.util.cc.throt.TokenBucket;
+
+/**
+ * Rate limits a store's merge I/O. Merges draw from a shared
+ * {@linkplain #readBudget() read} and {@linkplain #writeBudget() write} byte budget,
+ * so that they don't starve foreground reads and writes of disk bandwidth.
+ *
+ * <h3>Auto-Tuning</h3>
+ * <p>
+ * A fixed rate is either too slow (the merge backlog grows without bound) or too fast
+ * (foreground latency suffers). If so configured, the rate is {@linkplain
+ * #tune(double, double) tuned} periodically within a factor of
+ * {@linkplain #MAX_TUNE_FACTOR 4} of the configured base rate: raised when the
+ * merge debt grows, lowered when foreground latency rises above its running baseline.
+ * Merge debt takes precedence: a backlog that isn't worked off eventually throttles
+ * the writers anyway.
+ * </p>
+ *
+ * @see MergePolicy#getMergeBytesPerSecond()
+ * @see MergePolicy#isMergeRateAutoTuned()
+ * @author Babak
+ */
+public class MergeRateLimiter {
+
+  /**
+   * The tuned rate stays within this factor of the base rate (either way).
+   */
+  public final static double MAX_TUNE_FACTOR = 4;
+
+  /**
+   * Foreground latency more than this multiple of its baseline is considered elevated.
+   */
+  public final static double LATENCY_TOLERANCE = 1.5;
+
+  private final static double SPEED_UP = 1.25;
+  private final static double NUDGE_UP = 1.1;
+  private final static double SLOW_DOWN = 0.8;
+
+  /**
+   * Weight of a new sample in the baseline's exponential moving average.
+   */
+  private final static double BASELINE_WEIGHT = 0.05;
+
+  private final long baseRate;
+  private final boolean autoTuned;
+  private final TokenBucket readBudget;
+  private final TokenBucket writeBudget;
+
+  // guarded by this..
+  private double baselineLatency;
+
+
+  /**
+   * Creates an instance with the policy's rate, or returns <tt>null</tt> if the policy
+   * doesn't limit merge I/O.
+   */
+  public static MergeRateLimiter forPolicy(MergePolicy policy) {
+    long rate = policy.getMergeBytesPerSecond();
+    return rate == 0 ? null : new MergeRateLimiter(rate, policy.isMergeRateAutoTuned());
+  }
+
+
+  /**
+   * @param bytesPerSecond the base rate (&gt; 0)
+   * @param autoTuned      if <tt>false</tt>, then {@linkplain #tune(double, double)}
+   *                       has no effect
+   */
+  public MergeRateLimiter(long bytesPerSecond, boolean autoTuned) {
+    if (bytesPerSecond < 1)
+      throw new IllegalArgumentException("bytesPerSecond: " + bytesPerSecond);
+    this.baseRate = bytesPerSecond;
+    this.autoTuned = autoTuned;
+    this.readBudget = new TokenBucket(bytesPerSecond);
+    this.writeBudget = new TokenBucket(bytesPerSecond);
+  }
+
+
+  public final long getBaseRate() {
+    return baseRate;
+  }
+
+
+  public final boolean isAutoTuned() {
+    return autoTuned;
+  }
+
+
+  /**
+   * Returns the current rate (bytes per second).
+   */
+  public long getRate() {
+    return readBudget.getRate();
+  }
+
+
+  public final TokenBucket readBudget() {
+    return readBudget;
+  }
+
+
+  public final TokenBucket writeBudget() {
+    return writeBudget;
+  }
+
+
+  /**
+   * Adjusts the rate, if auto-tuned.
+   *
+   * @param mergeDebt       the merge backlog relative to what's tolerable: 1 or more
+   *                        means the store is overheated
+   * @param latencyNanos    recent average foreground read latency; zero, if unknown
+   *
+   * @return the (possibly new) rate
+   */
+  public synchronized long tune(double mergeDebt, double latencyNanos) {
+    long rate = getRate();
+    if (!autoTuned)
+      return rate;
+
+    boolean latencyElevated = false;
+    if (latencyNanos > 0) {
+      if (baselineLatency == 0)
+        baselineLatency = latencyNanos;
+      latencyElevated = latencyNanos > LATENCY_TOLERANCE * baselineLatency;
+      // (an elevated sample counts less toward the baseline, lest the baseline chase it)
+      double weight = latencyElevated ? BASELINE_WEIGHT / 4 : BASELINE_WEIGHT;
+      baselineLatency += weight * (latencyNanos - baselineLatency);
+    }
+
+    double factor;
+    if (mergeDebt >= 1)
+      factor = SPEED_UP;
+    else if (latencyElevated)
+      factor = SLOW_DOWN;
+    else if (mergeDebt > 0.5)
+      factor = NUDGE_UP;
+    else
+      return rate;
+
+    long min = Math.max(1, (long) (baseRate / MAX_TUNE_FACTOR));
+    long max = (long) Math.min(Long.MAX_VALUE, baseRate * MAX_TUNE_FACTOR);
+    long newRate = Math.max(min, Math.min(max, (long) (rate * factor)));
+    if (newRate != rate) {
+      readBudget.setRate(newRate);
+      writeBudget.setRate(newRate);
+    }
+    return newRate;
+  }
+
+
+  @Override
+  public String toString() {
+    return "[MergeRateLimiter rate=" + getRate() + "/s, base=" + baseRate +
+        (autoTuned ? ", auto]" : "]");
+  }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.io.store.karoon.merge;
+
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import io.crums.util.cc.FixedPriorityThreadFactory;
+
+/**
+ * Runs table merges for any number of stores on a bounded set of threads. Without a
+ * scheduler, each store's {@linkplain TableMergeEngine merge engine} runs its merges
+ * on its own threads; a process with many stores then ends up with many merges
+ * competing for the same disk. Stores configured with the same scheduler instance
+ * (see {@linkplain io.crums.io.store.karoon.TStoreConfig#getMergeScheduler()}) share
+ * its concurrency limit.
+ * <p>
+ * Queued merges are picked fairly across stores: the next merge run is one from the
+ * store with the fewest merges running; among those, the one with the highest
+ * priority (a merge's {@linkplain GenerationInfo#effectToBytesRatio() bang for the
+ * buck}); ties go to the merge queued first.
+ * </p>
+ *
+ * @see #shared()
+ * @author Babak
+ */
+public class MergeScheduler {
+
+  private final static Logger LOG = Logger.getLogger(MergeScheduler.class.getName());
+
+  /**
+   * The default maximum number of concurrent merges: half the available processors,
+   * but at least 2.
+   */
+  public final static int DEFAULT_MAX_CONCURRENT_MERGES =
+      Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+
+  /**
+   * The default merge thread priority. Matches the {@linkplain MergePolicyBuilder}
+   * default.
+   */
+  public final static int DEFAULT_THREAD_PRIORITY = 3;
+
+  private static MergeScheduler shared;
+
+  /**
+   * Returns the process-wide shared instance, with the default concurrency limit and
+   * thread priority. Its threads are daemon threads, and it's never shut down.
+   */
+  public static synchronized MergeScheduler shared() {
+    if (shared == null)
+      shared = new MergeScheduler(DEFAULT_MAX_CONCURRENT_MERGES, DEFAULT_THREAD_PRIORITY);
+    return shared;
+  }
+
+
+  private static class Task {
+    final Object owner;
+    final double priority;
+    final long seq;
+    final Runnable merge;
+
+    Task(Object owner, double priority, long seq, Runnable merge) {
+      this.owner = owner;
+      this.priority = priority;
+      this.seq = seq;
+      this.merge = merge;
+    }
+  }
+
+
+  private final int maxConcurrentMerges;
+
+  private final Object lock = new Object();
+
+  // guarded by lock..
+  private final ArrayList<Task> queue = new ArrayList<>();
+  private final Map<Object, Integer> running = new IdentityHashMap<>();
+  private int runningCount;
+  private long seqCounter;
+  private boolean shutdown;
+
+
+  /**
+   * Creates a new instance and starts its threads.
+   *
+   * @param maxConcurrentMerges the maximum number of merges run at the same time (&ge; 1)
+   * @param threadPriority      the priority of the merge threads
+   */
+  public MergeScheduler(int maxConcurrentMerges, int threadPriority) {
+    if (maxConcurrentMerges < 1)
+      throw new IllegalArgumentException("maxConcurrentMerges: " + maxConcurrentMerges);
+    if (threadPriority < Thread.MIN_PRIORITY || threadPriority > Thread.MAX_PRIORITY)
+      throw new IllegalArgumentException("threadPriority: " + threadPriority);
+    this.maxConcurrentMerges = maxConcurrentMerges;
+    FixedPriorityThreadFactory threadFactory = new FixedPriorityThreadFactory(threadPriority);
+    for (int count = maxConcurrentMerges; count-- > 0; ) {
+      Thread worker = threadFactory.newThread(this::work);
+      worker.setDaemon(true);
+      worker.start();
+    }
+  }
+
+
+  /**
+   * Queues the given <tt>merge</tt> to be run.
+   *
+   * @param owner     the store (or engine) the merge is for. Fairness is by owner
+   *                  instance (identity).
+   * @param priority  higher priority merges are run first
+   * @param merge     the merge
+   *
+   * @throws IllegalStateException if the instance is shut down
+   */
+  public void execute(Object owner, double priority, Runnable merge) {
+    if (owner == null)
+      throw new IllegalArgumentException("null owner");
+    if (merge == null)
+      throw new IllegalArgumentException("null merge");
+    synchronized (lock) {
+      if (shutdown)
+        throw new IllegalStateException("shutdown: " + this);
+      queue.add(new Task(owner, priority, seqCounter++, merge));
+      lock.notify();
+    }
+  }
+
+
+  public final int getMaxConcurrentMerges() {
+    return maxConcurrentMerges;
+  }
+
+
+  /**
+   * Returns the number of merges running.
+   */
+  public int getRunningCount() {
+    synchronized (lock) {
+      return runningCount;
+    }
+  }
+
+
+  /**
+   * Returns the number of merges queued, but not yet running.
+   */
+  public int getQueuedCount() {
+    synchronized (lock) {
+      return queue.size();
+    }
+  }
+
+
+  /**
+   * Stops the instance from accepting new merges. Merges already queued are still run;
+   * the threads exit once the queue is drained.
+   *
+   * @throws IllegalStateException if this is the {@linkplain #shared() shared} instance
+   */
+  public void shutdown() {
+    synchronized (MergeScheduler.class) {
+      if (this == shared)
+        throw new IllegalStateException("attempt to shutdown the shared instance");
+    }
+    synchronized (lock) {
+      shutdown = true;
+      lock.notifyAll();
+    }
+  }
+
+
+  public boolean isShutdown() {
+    synchronized (lock) {
+      return shutdown;
+    }
+  }
+
+
+  private void work() {
+    while (true) {
+      Task task;
+      try {
+        task = take();
+      } catch (InterruptedException ix) {
+        LOG.warning(this + ": worker interrupted. Exiting..");
+        return;
+      }
+      if (task == null)
+        return;
+      try {
+        task.merge.run();
+      } catch (Exception x) {
+        LOG.severe(this + ": uncaught merge error: " + x);
+      } finally {
+        synchronized (lock) {
+          --runningCount;
+          int count = running.get(task.owner) - 1;
+          if (count == 0)
+            running.remove(task.owner);
+          else
+            running.put(task.owner, count);
+          // (a different task may now be the fairest pick)
+          lock.notifyAll();
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Takes the next task, or returns <tt>null</tt> if the instance is shut down and
+   * the queue is drained.
+   */
+  private Task take() throws InterruptedException {
+    synchronized (lock) {
+      while (queue.isEmpty()) {
+        if (shutdown)
+          return null;
+        lock.wait();
+      }
+      int best = 0;
+      int bestRunning = running.getOrDefault(queue.get(0).owner, 0);
+      for (int index = 1; index < queue.size(); ++index) {
+        Task task = queue.get(index);
+        int taskRunning = running.getOrDefault(task.owner, 0);
+        if (taskRunning < bestRunning ||
+            taskRunning == bestRunning && isPreferred(task, queue.get(best))) {
+          best = index;
+          bestRunning = taskRunning;
+        }
+      }
+      Task task = queue.remove(best);
+      running.put(task.owner, bestRunning + 1);
+      ++runningCount;
+      return task;
+    }
+  }
+
+
+  private boolean isPreferred(Task a, Task b) {
+    if (a.priority != b.priority)
+      return a.priority > b.priority;
+    return a.seq < b.seq;
+  }
+
+
+  @Override
+  public String toString() {
+    return "[MergeScheduler max=" + maxConcurrentMerges + "]";
+  }
+
+}
@@ -4,8 +4,13 @@
 package io.crums.io.store.karoon.merge;
 
 
+import java.nio.ByteBuffer;
+
+import io.crums.io.store.table.order.RowOrder;
+
 /**
- * A table's ID and byte size. Used for deciding which tables to merge.
+ * A table's ID and byte size, and if known, its key range. Used for deciding which
+ * tables to merge.
  * 
  * @author Babak
  */
@@ -13,14 +18,51 @@ public final class TableInfo {
   
   public final long tableId;
   public final long size;
+  /**
+   * The table's first row (read-only), or <tt>null</tt> if unknown.
+   */
+  public final ByteBuffer firstRow;
+  /**
+   * The table's last row (read-only), or <tt>null</tt> if unknown.
+   */
+  public final ByteBuffer lastRow;
   
   /**
    * For package-private invocation by {@linkplain TableMergeEngine}.
    * Arguments are not checked.
    */
   TableInfo(long tableId, long size) {
+    this(tableId, size, null, null);
+  }
+  
+  /**
+   * For package-private invocation by {@linkplain TableMergeEngine}.
+   * Arguments are not checked.
+   */
+  TableInfo(long tableId, long size, ByteBuffer firstRow, ByteBuffer lastRow) {
     this.tableId = tableId;
     this.size = size;
+    this.firstRow = firstRow;
+    this.lastRow = lastRow;
+  }
+  
+  
+  /**
+   * Determines whether this table's key range is known.
+   */
+  public boolean hasKeyRange() {
+    return firstRow != null;
+  }
+  
+  
+  /**
+   * Determines whether this table's key range overlaps <tt>other</tt>'s. Both
+   * must have {@linkplain #hasKeyRange() key ranges}.
+   */
+  public boolean overlaps(TableInfo other, RowOrder order) {
+    return
+        order.compare(firstRow, other.lastRow) <= 0 &&
+        order.compare(other.firstRow, lastRow) <= 0;
   }
   
   @Override
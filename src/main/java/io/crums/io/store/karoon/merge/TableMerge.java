@@ -6,15 +6,24 @@ package io.crums.io.store.karoon.merge;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
 import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Logger;
 
 import io.crums.io.store.karoon.SidTable;
+import io.crums.io.store.karoon.TStore.TmeContext;
+import io.crums.io.store.table.BloomFilter;
+import io.crums.io.store.table.SortedTable;
 import io.crums.io.store.table.TableSet;
 import io.crums.io.store.table.del.DeleteCodec;
+import io.crums.io.store.table.merge.BaseMergeSort;
+import io.crums.io.store.table.merge.BaseMergeSort.TargetFactory;
+import io.crums.io.store.table.merge.PartitionedMergeSort;
 import io.crums.io.store.table.merge.SetMergeSort;
 import io.crums.io.store.table.merge.SetMergeSortD;
 import io.crums.io.store.table.order.RowOrder;
@@ -37,9 +46,16 @@ public class TableMerge implements Runnable, Closeable {
   private final TableSet backSet;
   private final File outputFile;
   private final long outTableId;
+  private final int bloomFilterBitsPerKey;
+  private final MergeRateLimiter rateLimiter;
+  private final TmeContext storeContext;
+  private final long maxOutTableSize;
+  private final int partitions;
   private final TaskStack closer;
   private SidTable outTable;
+  private final ArrayList<SidTable> outTables = new ArrayList<>(1);
   private SetMergeSort sorter;
+  private PartitionedMergeSort partitionedSorter;
 
   private RunState state = RunState.INIT;
   private Exception x;
@@ -51,7 +67,12 @@ public class TableMerge implements Runnable, Closeable {
       DeleteCodec deleteCodec,
       TableSet backSet,
       File outputFile,
-      long outTableId) {
+      long outTableId,
+      int bloomFilterBitsPerKey,
+      MergeRateLimiter rateLimiter,
+      TmeContext storeContext,
+      long maxOutTableSize,
+      int partitions) {
     
     this.gInfo = gInfo;
     this.sources = sources;
@@ -59,6 +80,18 @@ public class TableMerge implements Runnable, Closeable {
     this.backSet = backSet;
     this.outputFile = outputFile;
     this.outTableId = outTableId;
+    this.bloomFilterBitsPerKey = bloomFilterBitsPerKey;
+    this.rateLimiter = rateLimiter;
+    this.storeContext = storeContext;
+    this.maxOutTableSize = maxOutTableSize;
+    this.partitions = partitions;
+    if (maxOutTableSize != 0 && storeContext == null)
+      throw new IllegalArgumentException("null storeContext");
+    if (partitions < 1)
+      throw new IllegalArgumentException("partitions: " + partitions);
+    if (partitions > 1 && maxOutTableSize != 0)
+      throw new IllegalArgumentException(
+          "split output (maxOutTableSize " + maxOutTableSize + ") not partitioned");
     this.closer = new TaskStack();
     closer.pushClose(sources);
     if (backSet != null)
@@ -84,35 +117,103 @@ public class TableMerge implements Runnable, Closeable {
     state = RunState.STARTED;
     LOG.info(this.toString());
     boolean failed = true;
-    FileChannel out = null;
     try {
-      out = new RandomAccessFile(outputFile, "rw").getChannel();
-      outTable = new SidTable(out, getRowWidth(), getRowOrder(), outTableId);
+      outTable = newOutTable(outputFile, outTableId);
       
-      if (deleteCodec == null)
-        sorter = new SetMergeSort(outTable, sources);
+      if (partitions > 1)
+        mergePartitioned();
       else
-        sorter = new SetMergeSortD(outTable, sources, deleteCodec, backSet);
-      
-      sorter.mergeToTarget();
+        merge();
       
       failed = false;
     } catch (Exception x) {
       this.x = x;
       LOG.severe(this + " -- " + x);
-      if (out != null)
-        closer.pushClose(out);
+      closer.pushClose(outTables);
     } finally {
-        state = failed || sorter.isAborted() ? RunState.FAILED : RunState.SUCCEEDED;
+        state = failed || isAborted() ? RunState.FAILED : RunState.SUCCEEDED;
         LOG.info(this.toString());
     }
   }
   
   
+  private void merge() throws IOException {
+    sorter = newMergeSort(outTable, sources);
+    sorter.setBloomFilterBitsPerKey(bloomFilterBitsPerKey);
+    if (rateLimiter != null)
+      sorter.setIoBudget(rateLimiter.readBudget(), rateLimiter.writeBudget());
+    if (maxOutTableSize != 0) {
+      long maxRows = Math.max(1, maxOutTableSize / getRowWidth());
+      sorter.setSplitTargets(maxRows, new TargetFactory() {
+        @Override
+        public SortedTable newTarget() throws IOException {
+          long tableId = storeContext.newTableId();
+          return newOutTable(storeContext.newTablePath(tableId), tableId);
+        }
+      });
+    }
+    sorter.mergeToTarget();
+    List<BloomFilter> filters = sorter.getBloomFilters();
+    for (int index = 0; index < filters.size(); ++index)
+      outTables.get(index).setBloomFilter(filters.get(index));
+  }
+  
+  
+  private void mergePartitioned() throws IOException {
+    partitionedSorter = new PartitionedMergeSort(
+        outTable, sources, partitions, outputFile.getAbsoluteFile().getParentFile(),
+        new PartitionedMergeSort.SortFactory() {
+          @Override
+          public BaseMergeSort<?> newMergeSort(SortedTable target, SortedTable[] sources)
+              throws IOException {
+            return TableMerge.this.newMergeSort(target, sources);
+          }
+        });
+    partitionedSorter.setBloomFilterBitsPerKey(bloomFilterBitsPerKey);
+    if (rateLimiter != null)
+      partitionedSorter.setIoBudget(rateLimiter.readBudget(), rateLimiter.writeBudget());
+    partitionedSorter.mergeToTarget();
+    outTable.setBloomFilter(partitionedSorter.getBloomFilter());
+  }
+  
+  
+  private SetMergeSort newMergeSort(SortedTable target, SortedTable[] sources)
+      throws IOException {
+    if (deleteCodec == null)
+      return new SetMergeSort(target, sources);
+    else
+      return new SetMergeSortD(target, sources, deleteCodec, backSet);
+  }
+  
+  
+  @SuppressWarnings("resource")
+  private SidTable newOutTable(File file, long tableId) throws IOException {
+    FileChannel out = new RandomAccessFile(file, "rw").getChannel();
+    SidTable table;
+    try {
+      table = new SidTable(out, getRowWidth(), getRowOrder(), tableId);
+    } catch (IOException iox) {
+      out.close();
+      throw iox;
+    }
+    outTables.add(table);
+    return table;
+  }
+  
+  
   public boolean abort() {
+    if (partitionedSorter != null)
+      return partitionedSorter.abort();
     return sorter != null && sorter.abort();
   }
   
+  
+  private boolean isAborted() {
+    if (partitionedSorter != null)
+      return partitionedSorter.isAborted();
+    return sorter != null && sorter.isAborted();
+  }
+  
   public int getRowWidth() {
     return sources[0].getRowWidth();
   }
@@ -123,24 +224,42 @@ public class TableMerge implements Runnable, Closeable {
 
   
   public final long getStartTime() {
-    return getSorter().getStartTime();
+    return partitionedSorter == null ?
+        getSorter().getStartTime() : partitionedSorter.getStartTime();
   }
 
 
+  /**
+   * Returns the merge sort. If the merge is {@linkplain #getPartitionedSorter()
+   * partitioned}, then there's a sort per key range, and this method throws
+   * <tt>IllegalStateException</tt>.
+   */
   public SetMergeSort getSorter() {
     if (sorter == null)
-      throw new IllegalStateException("not started: " + this);
+      throw new IllegalStateException(
+          (partitionedSorter == null ? "not started: " : "partitioned: ") + this);
     return sorter;
   }
 
 
+  /**
+   * Returns the partitioned merge sort, if the merge is split into key ranges merged
+   * in parallel; <tt>null</tt>, o.w.
+   */
+  public PartitionedMergeSort getPartitionedSorter() {
+    return partitionedSorter;
+  }
+
+
   public final long getEndTime() {
-    return getSorter().getEndTime();
+    return partitionedSorter == null ?
+        getSorter().getEndTime() : partitionedSorter.getEndTime();
   }
 
 
   public final long getTimeTaken() {
-    return getSorter().getTimeTaken();
+    return partitionedSorter == null ?
+        getSorter().getTimeTaken() : partitionedSorter.getTimeTaken();
   }
   
   public List<SidTable> getSources() {
@@ -168,9 +287,21 @@ public class TableMerge implements Runnable, Closeable {
   }
 
 
+  /**
+   * Returns the (first) output table.
+   */
   public SidTable getOutTable() {
     return outTable;
   }
+  
+  
+  /**
+   * Returns the output tables, in key order. Unless the output is split (as under
+   * {@linkplain CompactionStyle#LEVELED leveled} compaction), there's just the one.
+   */
+  public List<SidTable> getOutTables() {
+    return Collections.unmodifiableList(outTables);
+  }
 
 
   public RunState getState() {
@@ -202,6 +333,7 @@ public class TableMerge implements Runnable, Closeable {
         "[srcs=" + getSourceIds() +
         ", bset=" + backSet +
         ", out=" + outputFile.getName() +
+        (partitions > 1 ? ", partitions=" + partitions : "") +
         ", state=" + state +
         ", gen=" + gInfo.generation + "]";
   }
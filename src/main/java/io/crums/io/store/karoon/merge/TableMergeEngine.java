@@ -33,6 +33,18 @@ import io.crums.util.cc.FixedPriorityThreadFactory;
 import io.crums.util.cc.RunState;
 
 /**
+ * Merges a store's tables in the background. The engine's control loops run on
+ * its thread pool; so do its merges, unless the store is configured with a
+ * (typically shared) {@linkplain MergeScheduler}, in which case the merges are
+ * queued there.
+ * <p>
+ * The young generation (freshly flushed tables) is always merged size-tiered. Older
+ * tables are merged according to the policy's {@linkplain CompactionStyle compaction
+ * style}: by {@linkplain GenerationInfo generation}, or by {@linkplain LevelInfo level}.
+ * A large merge may be split into key ranges that are merged in parallel (see
+ * {@linkplain MergePolicy#getMergePartitions()}). Under the leveled style, a table
+ * that overlaps nothing in the level below is moved down without being rewritten.
+ * </p>
  * 
  * @author Babak
  */
@@ -53,6 +65,14 @@ public class TableMergeEngine implements Channel {
   private final TmeContext storeContext;
   private final TStore tableStore;
   private final ExecutorService threadPool;
+  private final MergeScheduler scheduler;
+  private final MergeRateLimiter rateLimiter;
+  
+  /**
+   * The number of merges queued on the {@linkplain #scheduler} that haven't
+   * finished. Guarded by itself.
+   */
+  private final int[] scheduledMerges = { 0 };
   
   
   private volatile boolean stopped;
@@ -106,6 +126,8 @@ public class TableMergeEngine implements Channel {
       throw new IllegalArgumentException("threadPool is shutdown: " + threadPool);
     
     this.threadPool = threadPool;
+    this.scheduler = tableStore.getConfig().getMergeScheduler();
+    this.rateLimiter = MergeRateLimiter.forPolicy(tableStore.getConfig().getMergePolicy());
     
 //    TableLifecycleListener lifecycleListener = new TableLifecycleListener() {
 //      @Override
@@ -124,6 +146,18 @@ public class TableMergeEngine implements Channel {
     this.ymLabel = this + " - Young table merge: ";
   }
   
+  /**
+   * Returns the merge I/O rate limiter, if the {@linkplain MergePolicy merge policy}
+   * calls for one.
+   * 
+   * @return possibly <tt>null</tt>
+   * @see MergePolicy#getMergeBytesPerSecond()
+   */
+  public MergeRateLimiter getRateLimiter() {
+    return rateLimiter;
+  }
+  
+  
   public void notifyFreshMeat() {
     synchronized (freshMeatLock) {
       freshMeatLock.notify();
@@ -156,8 +190,61 @@ public class TableMergeEngine implements Channel {
     };
   }
 
+  /**
+   * Waits for the engine's threads to terminate and its scheduled merges (if any)
+   * to finish, after it's been {@linkplain #stop() stop}ped.
+   * 
+   * @return <tt>true</tt>, if they did within the given time
+   */
   public boolean await(long millis) throws InterruptedException {
-    return threadPool.awaitTermination(millis, TimeUnit.MILLISECONDS);
+    final long deadline = System.currentTimeMillis() + millis;
+    if (!threadPool.awaitTermination(millis, TimeUnit.MILLISECONDS))
+      return false;
+    synchronized (scheduledMerges) {
+      while (scheduledMerges[0] > 0) {
+        long wait = deadline - System.currentTimeMillis();
+        if (wait <= 0)
+          return false;
+        scheduledMerges.wait(wait);
+      }
+    }
+    return true;
+  }
+  
+  
+  /**
+   * Runs the given merge on the {@linkplain MergeScheduler scheduler}, if there is one;
+   * on the engine's thread pool, otherwise.
+   */
+  private void executeMerge(GenerationInfo g, final Runnable merge) {
+    if (scheduler == null) {
+      threadPool.execute(merge);
+      return;
+    }
+    synchronized (scheduledMerges) {
+      ++scheduledMerges[0];
+    }
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          merge.run();
+        } finally {
+          synchronized (scheduledMerges) {
+            --scheduledMerges[0];
+            scheduledMerges.notifyAll();
+          }
+        }
+      }
+    };
+    try {
+      scheduler.execute(this, g.effectToBytesRatio(), task);
+    } catch (RuntimeException rx) {
+      synchronized (scheduledMerges) {
+        --scheduledMerges[0];
+      }
+      throw rx;
+    }
   }
   
   
@@ -233,7 +320,7 @@ public class TableMergeEngine implements Channel {
           
           Runnable mergeTask = newYoungMerge(g, commitInfo);
           if (mergeTask != null)
-            threadPool.execute(mergeTask);
+            executeMerge(g, mergeTask);
         }
         
         
@@ -298,10 +385,20 @@ public class TableMergeEngine implements Channel {
               commitInfo = getCommitInfo();
               
               MergePolicy mergePolicy = tableStore.getConfig().getMergePolicy();
-              mergeCandidates =
-                  GenerationInfo.generationalMergeCandidates(
-                      commitInfo.tableInfos(),
-                      mergePolicy);
+              // trivial moves are cheap commits: if any were made, start over
+              if (isLeveled() && moveTrivially(commitInfo, mergePolicy))
+                continue;
+              if (isLeveled())
+                mergeCandidates =
+                    LevelInfo.mergeCandidates(
+                        commitInfo.tableInfos(),
+                        mergePolicy,
+                        tableStore.getConfig().getRowOrder());
+              else
+                mergeCandidates =
+                    GenerationInfo.generationalMergeCandidates(
+                        commitInfo.tableInfos(),
+                        mergePolicy);
               
               // wait if there are no merge candidates
               if (mergeCandidates.isEmpty()) {
@@ -312,7 +409,9 @@ public class TableMergeEngine implements Channel {
             
             
             
-            Collections.sort(mergeCandidates, MERGE_BANG_4_BUCK_RANK);
+            // (leveled candidates come ranked by how overdue they are)
+            if (!isLeveled())
+              Collections.sort(mergeCandidates, MERGE_BANG_4_BUCK_RANK);
             
             for (
                 Iterator<GenerationInfo> ig = mergeCandidates.iterator();
@@ -325,7 +424,7 @@ public class TableMergeEngine implements Channel {
                 
                 Runnable mergeOp = newGenerationMerge(g, commitInfo);
                 if (mergeOp != null) {
-                  threadPool.execute(mergeOp);
+                  executeMerge(g, mergeOp);
                 }
               } catch (FileNotFoundException fnfx) {
                 // This is a an expected race between the control loop and the merge threads.
@@ -366,6 +465,47 @@ public class TableMergeEngine implements Channel {
   }
   
   
+  /**
+   * Commits the leveled {@linkplain LevelInfo#trivialMoves(List, MergePolicy,
+   * io.crums.io.store.table.order.RowOrder) trivial moves}, if any.
+   * 
+   * @return <tt>true</tt>, if at least one move was committed
+   */
+  private boolean moveTrivially(CommitInfo commitInfo, MergePolicy mergePolicy)
+      throws IOException {
+    List<LevelInfo.Move> moves =
+        LevelInfo.trivialMoves(
+            commitInfo.tableInfos(), mergePolicy, tableStore.getConfig().getRowOrder());
+    boolean moved = false;
+    for (LevelInfo.Move move : moves) {
+      Releaseable checkout = storeContext.tableRegistry().checkOut(
+          move.tableIds(),
+          Collections.<Long>emptyList(),
+          commitInfo.commitRecord());
+      if (checkout == null)
+        continue;
+      try {
+        if (storeContext.tableMoved(move.tableInfo.tableId, move.anchor.tableId)) {
+          LOG.info(gclLabel + "moved " + move);
+          moved = true;
+        }
+      } finally {
+        checkout.close();
+      }
+    }
+    if (moved)
+      storeContext.tableRegistry().advanceCommit(tableStore.getCurrentCommit());
+    return moved;
+  }
+  
+  
+  private boolean isLeveled() {
+    return
+        tableStore.getConfig().getMergePolicy().getCompactionStyle() ==
+        CompactionStyle.LEVELED;
+  }
+  
+  
   private boolean mergeThreadsSaturated() {
     int maxThreads = tableStore.getConfig().getMergePolicy().getMaxMergeThreads();
     return stopped || activeMerges.size() - 1 >= maxThreads;
@@ -381,7 +521,7 @@ public class TableMergeEngine implements Channel {
     if (checkout == null)
       return null;
       
-    final TableMerge tmerge = prepareGenerationalMerge(g);
+    final TableMerge tmerge = prepareGenerationalMerge(g, false);
     final YoungMerge youngMerge = new YoungMerge(g, tmerge);
     youngActiveMerges.add(youngMerge);
     return new Runnable() {
@@ -389,7 +529,9 @@ public class TableMergeEngine implements Channel {
       public void run() {
 
         boolean panick = false;
-        tmerge.run();
+        // (a scheduled merge may only get to run after the engine is stopped)
+        if (!stopped)
+          tmerge.run();
         
         try {
           
@@ -437,7 +579,7 @@ public class TableMergeEngine implements Channel {
     
     if (checkout == null)
       return null;
-    final TableMerge merge = prepareGenerationalMerge(g);
+    final TableMerge merge = prepareGenerationalMerge(g, isLeveled());
     final int generation = g.generation;
     activeMerges.put(generation, merge);
     return new Runnable() {
@@ -445,12 +587,13 @@ public class TableMergeEngine implements Channel {
       public void run() {
         
         boolean panick = false;
-        merge.run();
+        if (!stopped)
+          merge.run();
         
         try {
           
           if (merge.getState().succeeded()) {
-            storeContext.tablesMerged(merge.getSourceIds(), merge.getOutTable());
+            storeContext.tablesMerged(merge.getSourceIds(), merge.getOutTables());
             storeContext.tableRegistry().advanceCommit(tableStore.getCurrentCommit());
           } else if (stopped)
             LOG.info(gmLabel + "aborted generation " + generation + " on stop");
@@ -587,7 +730,12 @@ public class TableMergeEngine implements Channel {
 //  
 
   
-  private TableMerge prepareGenerationalMerge(GenerationInfo g) throws IOException {
+  /**
+   * @param split if <tt>true</tt>, the output is split into tables no larger than
+   *              the {@linkplain MergePolicy#getLevelTableSize() level table size}
+   */
+  private TableMerge prepareGenerationalMerge(GenerationInfo g, boolean split)
+      throws IOException {
     TaskStack closerOnFail = new TaskStack();
     boolean failed = true;
     try {
@@ -602,6 +750,11 @@ public class TableMergeEngine implements Channel {
 
       long mergedTableId = storeContext.newTableId();
       File mergedTableFile = storeContext.newTablePath(mergedTableId);
+      
+      MergePolicy mergePolicy = tableStore.getConfig().getMergePolicy();
+      int partitions =
+          !split && g.cumulativeSourceSize() >= mergePolicy.getMinPartitionedMergeSize() ?
+              mergePolicy.getMergePartitions() : 1;
        
       TableMerge merge = new TableMerge(
           g,
@@ -609,7 +762,12 @@ public class TableMergeEngine implements Channel {
           tableStore.getConfig().getDeleteCodec(),
           backSet,
           mergedTableFile,
-          mergedTableId);;
+          mergedTableId,
+          tableStore.getBloomFilterBitsPerKey(),
+          rateLimiter,
+          storeContext,
+          split ? mergePolicy.getLevelTableSize() : 0,
+          partitions);
       
       failed = false;
       return merge;
@@ -119,6 +119,36 @@ public class TableRegistry {
     };
   }
   
+  /**
+   * Pins the given tables. Pinned tables are not released (and hence not deleted)
+   * until the returned {@linkplain Releaseable} is closed. Unlike {@linkplain
+   * #checkOut(List, List, CommitRecord) checkOut}, this does not involve the merge
+   * sources and always succeeds. It's used to keep the tables of a read snapshot
+   * around while readers are still using it.
+   *
+   * @param tableIds
+   *        the IDs of the tables. The caller agrees not to modify the list.
+   */
+  public Releaseable pin(List<Long> tableIds) {
+    final List<Long> ids = tableIds;
+    synchronized (lock) {
+      addRefs(ids);
+    }
+    return new Releaseable() {
+      private boolean released;
+      @Override
+      public void close() {
+        synchronized (lock) {
+          if (!released) {
+            released = true;
+            releaseRefs(ids);
+          }
+        }
+      }
+    };
+  }
+
+
   private boolean checkOutImpl(List<Long> sourceTableIds, List<Long> backSetTableIds, CommitRecord commit) {
     // sanity check the arguments
 //    {
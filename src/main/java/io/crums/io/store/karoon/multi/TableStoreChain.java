@@ -7,16 +7,21 @@ package io.crums.io.store.karoon.multi;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channel;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Objects;
 import java.util.logging.Logger;
 
 import io.crums.io.buffer.Covenant;
 import io.crums.io.store.karoon.Db;
+import io.crums.io.store.karoon.TableCursor;
 import io.crums.io.store.karoon.TableStore;
 import io.crums.io.store.table.TableSet;
 import io.crums.io.store.table.del.DeleteCodec;
 import io.crums.io.store.table.iter.Direction;
+import io.crums.io.store.table.iter.MergeRowIterator;
+import io.crums.io.store.table.iter.RowIterator;
 import io.crums.io.store.table.order.RowOrder;
 
 /**
@@ -162,6 +167,68 @@ public class TableStoreChain implements TableStore {
   }
 
 
+  /**
+   * Merges the cursors of the chain's tables: if 2 tables return the same row, the one
+   * nearest the end of the chain wins.
+   */
+  @Override
+  public TableCursor scan(ByteBuffer fromKey, ByteBuffer toKey, Direction direction) throws IOException {
+    List<TableCursor> cursors = new ArrayList<>(chain.length);
+    boolean failed = true;
+    try {
+      for (TableStore table : chain)
+        cursors.add(table.scan(fromKey, toKey, direction));
+      TableCursor cursor = new ChainCursor(cursors, rowOrder());
+      failed = false;
+      return cursor;
+    } finally {
+      if (failed)
+        cursors.forEach(TableCursor::close);
+    }
+  }
+
+
+  private static class ChainCursor extends TableCursor {
+
+    private final List<TableCursor> cursors;
+    private final MergeRowIterator merged;
+    private boolean open = true;
+
+    ChainCursor(List<TableCursor> cursors, RowOrder order) throws IOException {
+      this.cursors = cursors;
+      this.merged = new MergeRowIterator(new ArrayList<RowIterator>(cursors), order);
+    }
+
+    @Override
+    public Direction getDirection() {
+      return merged.getDirection();
+    }
+
+    @Override
+    public int getRowWidth() {
+      return merged.getRowWidth();
+    }
+
+    @Override
+    public ByteBuffer next() throws IOException {
+      if (!open)
+        throw new IllegalStateException("closed");
+      return merged.next();
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public void close() {
+      open = false;
+      cursors.forEach(TableCursor::close);
+    }
+  }
+
+
   @Override
   public void setRow(ByteBuffer row, Covenant promise) throws IOException {
     frontier().setRow(row, promise);
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of table blocks, keyed by (table key, block number), with a byte budget.
+ * A single instance is typically shared by all the tables (and stores) in a process.
+ * Tables {@linkplain Table#setBlockCache(BlockCache) attached} to a cache read thru it.
+ * <p>
+ * Eviction is CLOCK (second chance). Admission is TinyLFU: an approximate access
+ * frequency is kept for every block seen (cached or not) in a small count-min sketch,
+ * and when the cache is full, a missed block only displaces the eviction victim if it's
+ * been accessed more often. So a long scan, whose blocks are each seen once, doesn't flush
+ * out the hot blocks of point lookups.
+ * </p><p>
+ * Lookups are lock-free; insertions (on misses) are serialized.
+ * </p>
+ *
+ * @author Babak
+ */
+public class BlockCache {
+
+  /**
+   * Default block size: 8 kB.
+   */
+  public final static int DEFAULT_BLOCK_SIZE = 8 * 1024;
+
+
+  private final static class Key {
+    final long tableKey;
+    final long blockNo;
+
+    Key(long tableKey, long blockNo) {
+      this.tableKey = tableKey;
+      this.blockNo = blockNo;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (o == this)
+        return true;
+      if (!(o instanceof Key))
+        return false;
+      Key other = (Key) o;
+      return tableKey == other.tableKey && blockNo == other.blockNo;
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(tableKey * 0x9e3779b97f4a7c15L + blockNo);
+    }
+  }
+
+
+  private final static class Entry {
+    final Key key;
+    final ByteBuffer data;
+    volatile boolean referenced;
+    /** Index in the clock. Guarded by the cache's lock. */
+    int slot;
+
+    Entry(Key key, ByteBuffer data) {
+      this.key = key;
+      this.data = data;
+    }
+  }
+
+
+  /**
+   * Count-min sketch of 4-bit-ish (saturating at 15) counters, 4 hashes.
+   * Counters are periodically halved, so that the frequencies reflect recent history.
+   */
+  private final static class FrequencySketch {
+
+    private final static int MAX_COUNT = 15;
+
+    private final AtomicIntegerArray table;
+    private final int mask;
+    private final int sampleSize;
+    private final AtomicLong additions = new AtomicLong();
+
+    FrequencySketch(long maxEntries) {
+      int size = Integer.highestOneBit((int) Math.max(64, Math.min(1 << 24, maxEntries * 4)) - 1) << 1;
+      this.table = new AtomicIntegerArray(size);
+      this.mask = size - 1;
+      this.sampleSize = 10 * size;
+    }
+
+    int frequency(long hash) {
+      int min = MAX_COUNT;
+      for (int i = 0; i < 4; ++i)
+        min = Math.min(min, table.get(index(hash, i)));
+      return min;
+    }
+
+    void increment(long hash) {
+      for (int i = 0; i < 4; ++i) {
+        int index = index(hash, i);
+        int count = table.get(index);
+        if (count < MAX_COUNT)
+          table.compareAndSet(index, count, count + 1);
+      }
+      if (additions.incrementAndGet() % sampleSize == 0)
+        age();
+    }
+
+    private void age() {
+      for (int i = table.length(); i-- > 0; )
+        table.set(i, table.get(i) >>> 1);
+    }
+
+    private int index(long hash, int i) {
+      long h = (hash + i) * 0x9e3779b97f4a7c15L;
+      h ^= h >>> 29;
+      return (int) h & mask;
+    }
+  }
+
+
+
+  private final long capacity;
+  private final int blockSize;
+  private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+  /** The clock. Guarded by <tt>this</tt>. */
+  private final ArrayList<Entry> clock = new ArrayList<>();
+  private int hand;
+  private final AtomicLong used = new AtomicLong();
+  private final AtomicLong tableKeys = new AtomicLong();
+  private final FrequencySketch sketch;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder rejections = new LongAdder();
+
+
+  /**
+   * Creates an instance with the {@linkplain #DEFAULT_BLOCK_SIZE default} block size.
+   *
+   * @param capacity the maximum number of bytes cached
+   */
+  public BlockCache(long capacity) {
+    this(capacity, DEFAULT_BLOCK_SIZE);
+  }
+
+
+  /**
+   * @param capacity  the maximum number of bytes cached
+   * @param blockSize the nominal size of a block in bytes. A table's blocks hold
+   *                  as many whole rows as fit (but at least one).
+   */
+  public BlockCache(long capacity, int blockSize) {
+    if (capacity < 0)
+      throw new IllegalArgumentException("capacity: " + capacity);
+    if (blockSize < 1)
+      throw new IllegalArgumentException("blockSize: " + blockSize);
+    this.capacity = capacity;
+    this.blockSize = blockSize;
+    this.sketch = new FrequencySketch(capacity / blockSize);
+  }
+
+
+  /**
+   * Returns a new, process-unique key for a table to use with this cache.
+   */
+  public long newTableKey() {
+    return tableKeys.incrementAndGet();
+  }
+
+
+  /**
+   * Returns the number of rows in a block, given the table's <tt>rowWidth</tt>.
+   */
+  public int rowsPerBlock(int rowWidth) {
+    return Math.max(1, blockSize / rowWidth);
+  }
+
+
+  /**
+   * Returns the cached block, or <tt>null</tt> if not cached. Every lookup counts
+   * as an access toward the block's admission frequency.
+   *
+   * @return a read-only view of the block's data, positioned at zero
+   */
+  public ByteBuffer get(long tableKey, long blockNo) {
+    Key key = new Key(tableKey, blockNo);
+    sketch.increment(key.hashCode());
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    entry.referenced = true;
+    return entry.data.duplicate();
+  }
+
+
+  /**
+   * Offers the given block (usually just read on a miss) to the cache. It's admitted
+   * if there's room, or if it's accessed more frequently than the block it would evict.
+   *
+   * @param data the block's data (positioned at zero). The caller agrees not to modify it.
+   *
+   * @return <tt>true</tt>, if admitted
+   */
+  public boolean put(long tableKey, long blockNo, ByteBuffer data) {
+    final int size = data.capacity();
+    if (size > capacity)
+      return false;
+    final Key key = new Key(tableKey, blockNo);
+    synchronized (this) {
+      if (entries.containsKey(key))
+        return true;
+      while (used.get() + size > capacity) {
+        Entry victim = nextVictim();
+        if (sketch.frequency(key.hashCode()) <= sketch.frequency(victim.key.hashCode())) {
+          rejections.increment();
+          return false;
+        }
+        remove(victim);
+        evictions.increment();
+      }
+      Entry entry = new Entry(key, data.asReadOnlyBuffer());
+      entry.slot = clock.size();
+      clock.add(entry);
+      entries.put(key, entry);
+      used.addAndGet(size);
+      return true;
+    }
+  }
+
+
+  /**
+   * Removes the given table's blocks. Invoked when the table is closed.
+   */
+  public synchronized void invalidate(long tableKey) {
+    Iterator<Entry> iter = entries.values().iterator();
+    while (iter.hasNext()) {
+      Entry entry = iter.next();
+      if (entry.key.tableKey == tableKey)
+        remove(entry);
+    }
+  }
+
+
+  /**
+   * Advances the clock hand past referenced entries (clearing their reference bit)
+   * and returns the first unreferenced one. Invoked with the lock held, and only
+   * when the clock is non-empty.
+   */
+  private Entry nextVictim() {
+    while (true) {
+      if (hand >= clock.size())
+        hand = 0;
+      Entry entry = clock.get(hand);
+      if (!entry.referenced)
+        return entry;
+      entry.referenced = false;
+      ++hand;
+    }
+  }
+
+
+  private void remove(Entry entry) {
+    entries.remove(entry.key);
+    // swap with last
+    int lastIndex = clock.size() - 1;
+    Entry last = clock.remove(lastIndex);
+    if (last != entry) {
+      clock.set(entry.slot, last);
+      last.slot = entry.slot;
+    }
+    used.addAndGet(-entry.data.capacity());
+  }
+
+
+  public final long capacity() {
+    return capacity;
+  }
+
+
+  public final int blockSize() {
+    return blockSize;
+  }
+
+
+  /**
+   * Returns the number of bytes cached.
+   */
+  public long used() {
+    return used.get();
+  }
+
+
+  /**
+   * Returns the number of blocks cached.
+   */
+  public int size() {
+    return entries.size();
+  }
+
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+
+  /**
+   * Returns the number of blocks not admitted because they were accessed less
+   * frequently than the block they would have evicted.
+   */
+  public long getRejections() {
+    return rejections.sum();
+  }
+
+
+  /**
+   * Returns the hit ratio; zero, if there have been no lookups.
+   */
+  public double getHitRatio() {
+    long h = getHits();
+    long total = h + getMisses();
+    return total == 0 ? 0 : ((double) h) / total;
+  }
+
+
+  @Override
+  public String toString() {
+    return
+        "[used=" + used() + "/" + capacity +
+        ", blocks=" + size() +
+        ", hits=" + getHits() +
+        ", misses=" + getMisses() +
+        ", evictions=" + getEvictions() +
+        ", rejections=" + getRejections() + "]";
+  }
+
+}
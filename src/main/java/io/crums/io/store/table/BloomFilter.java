@@ -0,0 +1,339 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.crums.io.channels.ChannelUtils;
+import io.crums.io.store.table.order.RowOrder;
+
+/**
+ * A Bloom filter over the keys of a {@linkplain SortedTable}. A negative answer from
+ * {@linkplain #mightContain(long)} means the table definitely doesn't contain the key,
+ * so the table needn't be searched. The keys are hashed by the table's {@linkplain
+ * RowOrder#keyHash(ByteBuffer) row order}; the <em>k</em> probe positions are derived
+ * from that single 64-bit hash by double hashing.
+ * <p>
+ * Instances are immutable once built, and therefore safe under concurrent access.
+ * They're built either directly from the rows (see {@linkplain
+ * SortedTableBuilder#newBloomFilter(int)}) or by scanning an existing table (see
+ * {@linkplain #build(SortedTable, int)}), and are typically stored in a file beside
+ * the table's own.
+ * </p>
+ *
+ * @see SortedTable#setBloomFilter(BloomFilter)
+ * @author Babak
+ */
+public class BloomFilter {
+
+  /**
+   * Lookup counters. Typically shared by all the filters of a table set.
+   * Thread-safe.
+   */
+  public static class Stats {
+
+    private final LongAdder checks = new LongAdder();
+    private final LongAdder skips = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+
+    /**
+     * Records a check that ruled out the key (the table search was skipped).
+     */
+    public void skipped() {
+      checks.increment();
+      skips.increment();
+    }
+
+    /**
+     * Records a check that let the key thru.
+     */
+    public void passed() {
+      checks.increment();
+    }
+
+    /**
+     * Records a check that let the key thru, but the table search then missed.
+     */
+    public void falsePositive() {
+      falsePositives.increment();
+    }
+
+    /**
+     * Returns the total number of filter checks.
+     */
+    public long getChecks() {
+      return checks.sum();
+    }
+
+    /**
+     * Returns the number of table searches avoided.
+     */
+    public long getSkips() {
+      return skips.sum();
+    }
+
+    /**
+     * Returns the number of table searches that missed even though the filter
+     * let the key thru.
+     */
+    public long getFalsePositives() {
+      return falsePositives.sum();
+    }
+
+    /**
+     * Returns the observed false positive rate. The denominator is the number of
+     * checks on keys the tables didn't contain.
+     */
+    public double getFalsePositiveRate() {
+      long fp = getFalsePositives();
+      long negatives = getSkips() + fp;
+      return negatives == 0 ? 0 : ((double) fp) / negatives;
+    }
+
+    @Override
+    public String toString() {
+      return
+          "[checks=" + getChecks() +
+          ", skips=" + getSkips() +
+          ", falsePositives=" + getFalsePositives() + "]";
+    }
+  }
+
+
+
+  /**
+   * The default number of bits per key: 10. Yields a false positive rate of about 1%.
+   */
+  public final static int DEFAULT_BITS_PER_KEY = 10;
+
+  /**
+   * File extension used by convention.
+   */
+  public final static String FILE_EXT = "bflt";
+
+  private final static int MAGIC = 0x42666c74;
+  private final static int HEADER_SIZE = 16;
+
+
+
+  private final long[] bits;
+  private final long bitCount;
+  private final int hashCount;
+  private volatile Stats stats = new Stats();
+
+
+  /**
+   * Creates an empty instance sized for the given number of keys.
+   *
+   * @param expectedKeys the number of keys that will be {@linkplain #add(long) add}ed
+   * @param bitsPerKey   the number of bits per key (&ge; 1)
+   */
+  public BloomFilter(long expectedKeys, int bitsPerKey) {
+    if (expectedKeys < 0)
+      throw new IllegalArgumentException("expectedKeys: " + expectedKeys);
+    if (bitsPerKey < 1)
+      throw new IllegalArgumentException("bitsPerKey: " + bitsPerKey);
+
+    long words = (Math.max(expectedKeys, 1) * bitsPerKey + 63) / 64;
+    if (words > Integer.MAX_VALUE - 8)
+      throw new IllegalArgumentException(
+          "too many bits: expectedKeys=" + expectedKeys + ", bitsPerKey=" + bitsPerKey);
+    this.bits = new long[(int) words];
+    this.bitCount = words * 64;
+    // optimal number of hash functions is (bits/key) x ln 2
+    this.hashCount = (int) Math.max(1, Math.min(30, Math.round(bitsPerKey * 0.693)));
+  }
+
+
+  private BloomFilter(long[] bits, int hashCount) {
+    this.bits = bits;
+    this.bitCount = bits.length * 64L;
+    this.hashCount = hashCount;
+  }
+
+
+  /**
+   * Adds the given key hash.
+   *
+   * @see RowOrder#keyHash(ByteBuffer)
+   */
+  public void add(long keyHash) {
+    long h1 = keyHash;
+    long h2 = (keyHash >>> 32) | (keyHash << 32) | 1;
+    for (int i = 0; i < hashCount; ++i) {
+      long bit = Long.remainderUnsigned(h1, bitCount);
+      bits[(int) (bit >>> 6)] |= 1L << bit;
+      h1 += h2;
+    }
+  }
+
+
+  /**
+   * Determines whether the key with the given hash might have been {@linkplain #add(long) add}ed.
+   *
+   * @return <tt>false</tt> if the key was definitely not added
+   */
+  public boolean mightContain(long keyHash) {
+    long h1 = keyHash;
+    long h2 = (keyHash >>> 32) | (keyHash << 32) | 1;
+    for (int i = 0; i < hashCount; ++i) {
+      long bit = Long.remainderUnsigned(h1, bitCount);
+      if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+        return false;
+      h1 += h2;
+    }
+    return true;
+  }
+
+
+  /**
+   * Returns the number of hash functions (probes per key).
+   */
+  public final int getHashCount() {
+    return hashCount;
+  }
+
+
+  /**
+   * Returns the size of the filter in bits.
+   */
+  public final long getBitCount() {
+    return bitCount;
+  }
+
+
+  /**
+   * Returns the lookup counters. Unless {@linkplain #setStats(Stats) set}, an instance
+   * has its own.
+   */
+  public Stats getStats() {
+    return stats;
+  }
+
+
+  public void setStats(Stats stats) {
+    if (stats == null)
+      throw new IllegalArgumentException("null stats");
+    this.stats = stats;
+  }
+
+
+  /**
+   * Returns the number of bytes in the instance's serial form.
+   */
+  public long serialSize() {
+    return HEADER_SIZE + bits.length * 8L;
+  }
+
+
+  /**
+   * Writes the instance to the given <tt>file</tt>, overwriting it, if it exists.
+   *
+   * @see #load(File)
+   */
+  public void writeTo(File file) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(serialSize(), 64 * 1024));
+    buffer.putInt(MAGIC).putInt(hashCount).putLong(bits.length);
+    try (FileChannel ch = new FileOutputStream(file).getChannel()) {
+      for (int i = 0; i < bits.length; ++i) {
+        if (buffer.remaining() < 8) {
+          buffer.flip();
+          ChannelUtils.writeRemaining(ch, buffer);
+          buffer.clear();
+        }
+        buffer.putLong(bits[i]);
+      }
+      buffer.flip();
+      ChannelUtils.writeRemaining(ch, buffer);
+    }
+  }
+
+
+  /**
+   * Loads and returns an instance previously {@linkplain #writeTo(File) written} to
+   * the given <tt>file</tt>.
+   */
+  public static BloomFilter load(File file) throws IOException {
+    try (FileChannel ch = new FileInputStream(file).getChannel()) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      ChannelUtils.readRemaining(ch, 0, header);
+      header.flip();
+      if (header.getInt() != MAGIC)
+        throw new IOException("not a bloom filter file: " + file);
+      int hashCount = header.getInt();
+      long words = header.getLong();
+      if (hashCount < 1 || words < 1 || words > Integer.MAX_VALUE - 8 ||
+          ch.size() != HEADER_SIZE + words * 8)
+        throw new IOException(
+            "corrupt bloom filter file " + file + ": hashCount=" + hashCount +
+            ", words=" + words + ", size=" + ch.size());
+
+      long[] bits = new long[(int) words];
+      ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(words * 8, 64 * 1024));
+      long pos = HEADER_SIZE;
+      for (int i = 0; i < bits.length; ) {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), (bits.length - i) * 8L));
+        ChannelUtils.readRemaining(ch, pos, buffer);
+        pos += buffer.flip().remaining();
+        while (buffer.hasRemaining())
+          bits[i++] = buffer.getLong();
+      }
+      return new BloomFilter(bits, hashCount);
+    }
+  }
+
+
+  /**
+   * Builds and returns a new filter over the keys of the given <tt>table</tt> by
+   * reading it sequentially.
+   *
+   * @param bitsPerKey the number of bits per key (&ge; 1)
+   *
+   * @throws UnsupportedOperationException
+   *         if the table's row order doesn't support {@linkplain RowOrder#hasKeyHash()
+   *         key hashing}
+   */
+  public static BloomFilter build(SortedTable table, int bitsPerKey)
+      throws IOException, UnsupportedOperationException {
+
+    final RowOrder order = table.order();
+    if (!order.hasKeyHash())
+      throw new UnsupportedOperationException("key hashing not supported by " + order);
+
+    final long rowCount = table.getRowCount();
+    final int rowWidth = table.getRowWidth();
+    BloomFilter filter = new BloomFilter(rowCount, bitsPerKey);
+
+    int rowsPerRead = Math.max(1, (64 * 1024) / rowWidth);
+    ByteBuffer buffer = ByteBuffer.allocate(rowsPerRead * rowWidth);
+    for (long rowNumber = 0; rowNumber < rowCount; ) {
+      int count = (int) Math.min(rowsPerRead, rowCount - rowNumber);
+      buffer.clear().limit(count * rowWidth);
+      table.read(rowNumber, buffer);
+      buffer.flip();
+      for (int i = 0; i < count; ++i) {
+        ByteBuffer row = buffer.duplicate();
+        row.position(i * rowWidth).limit((i + 1) * rowWidth);
+        filter.add(order.keyHash(row.slice()));
+      }
+      rowNumber += count;
+    }
+    return filter;
+  }
+
+
+  @Override
+  public String toString() {
+    return "[bits=" + bitCount + ", k=" + hashCount + "]";
+  }
+
+}
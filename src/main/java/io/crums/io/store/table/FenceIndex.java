@@ -0,0 +1,253 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.crums.io.Releaseable;
+import io.crums.io.store.table.order.RowOrder;
+import io.crums.util.cc.MemoryBudget;
+
+/**
+ * A sparse, in-memory index over a {@linkplain SortedTable}: a copy of every
+ * <em>N</em><sup>th</sup> row (the <em>fence</em> rows), <em>N</em> being the index's
+ * {@linkplain #getStride() stride}. A lookup first bisects the fences in memory, which
+ * narrows the search to a single run of at most <em>N</em> rows on disk; if a searcher's
+ * buffer holds that many rows, the lookup costs a single read.
+ * <p>
+ * The fences are kept off-heap (in a direct buffer) and are charged against a
+ * {@linkplain MemoryBudget}. Instances are immutable and safe under concurrent access.
+ * </p>
+ *
+ * @see SortedTable#setFenceIndex(FenceIndex)
+ * @author Babak
+ */
+public class FenceIndex implements Releaseable {
+
+  /**
+   * Process-wide default budget: 32 MB.
+   */
+  public final static MemoryBudget DEFAULT_BUDGET = new MemoryBudget(32 * 1024 * 1024);
+
+
+  /**
+   * Returns the default stride for the given row width: the number of rows in a
+   * {@linkplain TableSet#DEFAULT_SEARCH_BUFFER_SIZE default} search buffer.
+   */
+  public static int defaultStride(int rowWidth) {
+    if (rowWidth < 1)
+      throw new IllegalArgumentException("rowWidth: " + rowWidth);
+    return Math.max(SortedTable.Searcher.MIN_BUFFER_ROWS, TableSet.DEFAULT_SEARCH_BUFFER_SIZE / rowWidth);
+  }
+
+
+  /**
+   * Builds and returns an index over the given <tt>table</tt>. If the fences span
+   * many bytes on disk, each fence row is read individually; otherwise, the table is
+   * read sequentially.
+   *
+   * @param stride the number of rows between fences (&ge; 1)
+   * @param budget the budget the index's memory is charged against
+   *
+   * @return the index, or <tt>null</tt> if the <tt>budget</tt> can't afford it
+   */
+  public static FenceIndex build(SortedTable table, int stride, MemoryBudget budget)
+      throws IOException {
+
+    final long rowCount = table.getRowCount();
+    final int rowWidth = table.getRowWidth();
+    final long fenceCount = fenceCount(rowCount, stride);
+    if (!reserve(fenceCount, rowWidth, budget))
+      return null;
+
+    boolean failed = true;
+    try {
+      ByteBuffer fences = ByteBuffer.allocateDirect((int) (fenceCount * rowWidth));
+      final int strideBytes = stride * rowWidth;
+      if (strideBytes >= SEQ_READ_THRESHOLD) {
+        // read just the fence rows
+        for (long f = 0; f < fenceCount; ++f) {
+          fences.limit(fences.position() + rowWidth);
+          table.read(f * stride, fences);
+        }
+      } else {
+        // read (most of) the table sequentially
+        int rowsPerRead = Math.max(stride, (SEQ_READ_THRESHOLD / strideBytes) * stride);
+        ByteBuffer buffer = ByteBuffer.allocate(rowsPerRead * rowWidth);
+        for (long rowNumber = 0; rowNumber < rowCount; rowNumber += rowsPerRead) {
+          int count = (int) Math.min(rowsPerRead, rowCount - rowNumber);
+          buffer.clear().limit(count * rowWidth);
+          table.read(rowNumber, buffer);
+          for (int r = 0; r < count; r += stride) {
+            buffer.limit((r + 1) * rowWidth).position(r * rowWidth);
+            fences.put(buffer);
+          }
+        }
+      }
+      if (fences.hasRemaining())
+        throw new IOException(
+            "assertion failure: " + fences.remaining() + " bytes remaining; table=" + table);
+      FenceIndex index = new FenceIndex(fences, table.order(), rowWidth, stride, rowCount, budget);
+      failed = false;
+      return index;
+    } finally {
+      if (failed)
+        budget.release(fenceCount * rowWidth);
+    }
+  }
+
+
+  /**
+   * Builds and returns an index over the given sorted <tt>rows</tt>.
+   *
+   * @param rows     the rows, in order
+   * @param rowCount the number of <tt>rows</tt>
+   * @param stride   the number of rows between fences (&ge; 1)
+   * @param budget   the budget the index's memory is charged against
+   *
+   * @return the index, or <tt>null</tt> if the <tt>budget</tt> can't afford it
+   *
+   * @see SortedTableBuilder#newFenceIndex(int, MemoryBudget)
+   */
+  static FenceIndex build(
+      Iterator<ByteBuffer> rows, long rowCount, RowOrder order, int rowWidth, int stride,
+      MemoryBudget budget) {
+
+    final long fenceCount = fenceCount(rowCount, stride);
+    if (!reserve(fenceCount, rowWidth, budget))
+      return null;
+
+    ByteBuffer fences = ByteBuffer.allocateDirect((int) (fenceCount * rowWidth));
+    for (long r = 0; r < rowCount; ++r) {
+      ByteBuffer row = rows.next();
+      if (r % stride == 0)
+        fences.put(row.duplicate());
+    }
+    return new FenceIndex(fences, order, rowWidth, stride, rowCount, budget);
+  }
+
+
+  private final static int SEQ_READ_THRESHOLD = 64 * 1024;
+
+
+  private static long fenceCount(long rowCount, int stride) {
+    if (stride < 1)
+      throw new IllegalArgumentException("stride: " + stride);
+    return (rowCount + stride - 1) / stride;
+  }
+
+
+  private static boolean reserve(long fenceCount, int rowWidth, MemoryBudget budget) {
+    if (budget == null)
+      throw new IllegalArgumentException("null budget");
+    long bytes = fenceCount * rowWidth;
+    return bytes <= Integer.MAX_VALUE && budget.tryReserve(bytes);
+  }
+
+
+
+
+  private final ByteBuffer fences;
+  private final RowOrder order;
+  private final int rowWidth;
+  private final int stride;
+  private final int fenceCount;
+  private final long rowCount;
+  private final MemoryBudget budget;
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+
+  private FenceIndex(
+      ByteBuffer fences, RowOrder order, int rowWidth, int stride, long rowCount,
+      MemoryBudget budget) {
+    this.fences = fences.clear().asReadOnlyBuffer();
+    this.order = order;
+    this.rowWidth = rowWidth;
+    this.stride = stride;
+    this.fenceCount = fences.capacity() / rowWidth;
+    this.rowCount = rowCount;
+    this.budget = budget;
+  }
+
+
+  /**
+   * Returns the index of the last fence row that is less than or equal to the given
+   * <tt>key</tt>; -1, if the key is less than the first row.
+   * The key's row, if any, lies in the row range <tt>[f x stride, (f + 1) x stride)</tt>,
+   * where <tt>f</tt> is the returned value.
+   */
+  public int floorFence(ByteBuffer key) {
+    int lo = 0;
+    int hi = fenceCount - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int comp = order.compare(key, fence(mid));
+      if (comp > 0)
+        lo = mid + 1;
+      else if (comp < 0)
+        hi = mid - 1;
+      else
+        return mid;
+    }
+    return hi;
+  }
+
+
+  private ByteBuffer fence(int index) {
+    ByteBuffer fence = fences.duplicate();
+    int pos = index * rowWidth;
+    fence.limit(pos + rowWidth).position(pos);
+    return fence.slice();
+  }
+
+
+  /**
+   * Returns the number of rows between fences.
+   */
+  public final int getStride() {
+    return stride;
+  }
+
+
+  public final int getFenceCount() {
+    return fenceCount;
+  }
+
+
+  /**
+   * Returns the number of rows in the table when the index was built.
+   */
+  public final long getRowCount() {
+    return rowCount;
+  }
+
+
+  /**
+   * Returns the number of (off-heap) bytes the index occupies.
+   */
+  public final long byteSize() {
+    return fences.capacity();
+  }
+
+
+  /**
+   * Releases the index's memory from the budget. Idempotent.
+   */
+  @Override
+  public void close() {
+    if (closed.compareAndSet(false, true))
+      budget.release(byteSize());
+  }
+
+
+  @Override
+  public String toString() {
+    return "[fences=" + fenceCount + ", stride=" + stride + ", rows=" + rowCount + "]";
+  }
+
+}
@@ -0,0 +1,663 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import io.crums.io.store.table.order.RowOrder;
+
+/**
+ * A sorted map of fixed-width rows (keyed by {@linkplain RowOrder}) with no per-row
+ * objects. The rows are packed in an off-heap (direct memory) arena in the order their
+ * <em>slots</em> are reserved, and are sorted by a skip list whose nodes are packed in
+ * <tt>int</tt> arrays. A node is a run of <tt>int</tt>s: the row's slot number in the
+ * arena, the node's height, and its <em>next</em> pointers (one per level).
+ * <p>
+ * A row written to the arena is never modified: overwriting a row appends the new
+ * row to the arena and swings the node's slot to it. So views of the rows (which are
+ * what's returned) remain stable. The superseded rows (and removed nodes) aren't
+ * reclaimed until the instance is {@linkplain #clear() clear}ed. When rows with the
+ * same key race, the row in the higher numbered slot wins, no matter which is
+ * linked first.
+ * </p>
+ * <h3>Concurrency</h3>
+ * <p>
+ * Rows are inserted in 2 steps: they're {@linkplain #copyIn(ByteBuffer) copied in}
+ * (which atomically reserves their slots), then {@linkplain #link(int) link}ed into
+ * the list. Both steps are lock-free and safe under concurrent access by any number
+ * of writers and readers. Readers don't lock; a row (or node) is fully written before
+ * it's linked into the list thru a volatile write (or CAS), and iterators are weakly
+ * consistent. {@linkplain #remove(ByteBuffer) Removal} and {@linkplain #clear()
+ * clear}ing however must be exclusive of other writers (but not readers).
+ * </p><p>
+ * The arena's chunks never move: the first few chunks grow geometrically (so small
+ * instances stay small), the rest are full size.
+ * </p><p>
+ * An empty list may also be built in {@linkplain #linkAll() bulk}: the rows copied in
+ * are sorted in parallel and linked in a single pass.
+ * </p>
+ *
+ * @author Babak
+ */
+final class RowSkipList {
+
+  private final static int MAX_LEVEL = 16;
+
+  // node layout
+  private final static int SLOT = 0;
+  private final static int HEIGHT = 1;
+  private final static int NEXT = 2;
+
+  /** The head node (also doubles as the <em>nil</em> reference: nothing links to the head). */
+  private final static int HEAD = 0;
+  private final static int NIL = 0;
+
+  private final static int NODE_CHUNK_SHIFT = 14;
+  private final static int NODE_CHUNK_SIZE = 1 << NODE_CHUNK_SHIFT;
+  private final static int NODE_CHUNK_MASK = NODE_CHUNK_SIZE - 1;
+
+  private final static int ROW_CHUNK_BYTES = 1024 * 1024;
+  private final static int INIT_ROWS = 64;
+
+  /** Slot ranges no larger than this are sorted sequentially. */
+  private final static int PARALLEL_SORT_THRESHOLD = 8192;
+  private final static int INSERTION_SORT_THRESHOLD = 16;
+
+
+  private final int rowWidth;
+  private final RowOrder order;
+
+  /** log<sub>2</sub> of the number of rows in the first chunk. */
+  private final int initShift;
+  /** log<sub>2</sub> of the number of rows in a full size chunk. */
+  private final int fullShift;
+  /** The number of growing chunks (chunk <em>k</em> has 2<sup>initShift + k</sup> rows). */
+  private final int growingChunks;
+  /** The number of slots in the growing chunks. */
+  private final int growingSlots;
+
+  private final Object growLock = new Object();
+
+  // the chunk directories are copy-on-write (under the growLock);
+  // the chunks themselves never move
+  private volatile ByteBuffer[] rowChunks;
+  private volatile AtomicIntegerArray[] nodeChunks;
+
+  private final AtomicInteger nextSlot = new AtomicInteger();
+  private final AtomicInteger nextNode = new AtomicInteger();
+
+
+  RowSkipList(int rowWidth, RowOrder order) {
+    this.rowWidth = rowWidth;
+    this.order = order;
+    int chunkRows = Integer.highestOneBit(Math.max(1, ROW_CHUNK_BYTES / rowWidth));
+    this.fullShift = Integer.numberOfTrailingZeros(chunkRows);
+    this.initShift = Math.min(Integer.numberOfTrailingZeros(INIT_ROWS), fullShift);
+    this.growingChunks = fullShift - initShift;
+    this.growingSlots = ((1 << growingChunks) - 1) << initShift;
+    clear();
+  }
+
+
+  /**
+   * Discards all rows. Not safe under concurrent writes.
+   */
+  void clear() {
+    synchronized (growLock) {
+      this.rowChunks = new ByteBuffer[0];
+      this.nodeChunks = new AtomicIntegerArray[0];
+      this.nextSlot.set(0);
+      this.nextNode.set(0);
+    }
+    // the head node
+    int head = allocNode(MAX_LEVEL);
+    assert head == HEAD;
+    setField(head, SLOT, -1);
+  }
+
+
+  /**
+   * Copies the given <tt>row</tt> in, replacing the existing row with the same key, if any.
+   * Shorthand for <tt>link(copyIn(row))</tt>.
+   *
+   * @param row the row (its remaining bytes). Not modified.
+   *
+   * @return <tt>true</tt>, if an existing row was replaced
+   */
+  boolean put(ByteBuffer row) {
+    return link(copyIn(row));
+  }
+
+
+  /**
+   * Reserves the next slots in the arena and copies the given <tt>rows</tt> into them.
+   * The rows are not yet visible (they're not linked).
+   *
+   * @param rows one or more rows (the remaining bytes). Not modified.
+   *
+   * @return the first slot number. The rows occupy consecutive slots.
+   */
+  int copyIn(ByteBuffer rows) {
+    int count = rows.remaining() / rowWidth;
+    int first = nextSlot.getAndAdd(count);
+    if (first + count < first)
+      throw new IllegalStateException("arena slots exhausted");
+    ByteBuffer src = rows.duplicate();
+    int slot = first;
+    for (int left = count; left > 0; ) {
+      int chunk = chunkOf(slot);
+      int run = Math.min(left, chunkStart(chunk) + chunkRows(chunk) - slot);
+      ByteBuffer dest = rowChunk(chunk).duplicate();
+      int offset = (slot - chunkStart(chunk)) * rowWidth;
+      dest.limit(offset + run * rowWidth).position(offset);
+      src.limit(src.position() + run * rowWidth);
+      dest.put(src);
+      slot += run;
+      left -= run;
+    }
+    return first;
+  }
+
+
+  /**
+   * Links the row in the given (copied in) <tt>slot</tt> into the list. If a row with
+   * the same key is already linked, then the row in the higher numbered slot wins.
+   *
+   * @return <tt>true</tt>, if a row with the same key was already linked
+   */
+  boolean link(int slot) {
+    ByteBuffer row = slice(rowChunks, slot, 1);
+    int[] preds = new int[MAX_LEVEL];
+    int[] succs = new int[MAX_LEVEL];
+    int node = NIL;
+    int height = 0;
+    while (true) {
+      int match = find(row, preds, succs);
+      if (match != NIL) {
+        swingSlot(match, slot);
+        return true;
+      }
+      if (node == NIL) {
+        height = randomHeight();
+        node = allocNode(height);
+        setField(node, SLOT, slot);
+      }
+      setField(node, NEXT, succs[0]);
+      if (casField(preds[0], NEXT, succs[0], node))
+        break;
+      // lost a race: search again
+    }
+    // linked at the bottom level (so the key is now taken);
+    // link the levels above
+    for (int level = 1; level < height; ++level) {
+      while (true) {
+        setField(node, NEXT + level, succs[level]);
+        if (casField(preds[level], NEXT + level, succs[level], node))
+          break;
+        find(row, preds, succs);
+      }
+    }
+    return false;
+  }
+
+
+  /**
+   * Links all the rows copied in into the list, which must be empty. The slots are
+   * sorted in parallel, and the list is then built bottom up in one pass (instead of
+   * one search per row). Of the rows with the same key, the one in the highest
+   * numbered slot wins. Not safe under concurrent access.
+   *
+   * @return the number of rows linked (the number of distinct keys)
+   */
+  int linkAll() {
+    if (next(HEAD, 0) != NIL)
+      throw new IllegalStateException("not empty");
+    final int count = nextSlot.get();
+    int[] slots = new int[count];
+    for (int index = 0; index < count; ++index)
+      slots[index] = index;
+    int[] work = new int[count];
+    if (count > PARALLEL_SORT_THRESHOLD)
+      ForkJoinPool.commonPool().invoke(new SlotSort(slots, work, 0, count));
+    else
+      sortSlots(slots, work, 0, count);
+
+    ByteBuffer[] chunks = rowChunks;
+    int[] tails = new int[MAX_LEVEL];   // all HEAD
+    int linked = 0;
+    for (int index = 0; index < count; ++index) {
+      int slot = slots[index];
+      // ties are in slot order: skip all but the last
+      if (index + 1 < count &&
+          order.compare(slice(chunks, slot, 1), slice(chunks, slots[index + 1], 1)) == 0)
+        continue;
+      int height = randomHeight();
+      int node = allocNode(height);
+      setField(node, SLOT, slot);
+      for (int level = 0; level < height; ++level) {
+        setField(tails[level], NEXT + level, node);
+        tails[level] = node;
+      }
+      ++linked;
+    }
+    return linked;
+  }
+
+
+  /**
+   * Orders slots by their rows' keys, then by slot number.
+   */
+  private int compareSlots(int a, int b) {
+    ByteBuffer[] chunks = rowChunks;
+    int comp = order.compare(slice(chunks, a, 1), slice(chunks, b, 1));
+    return comp == 0 ? Integer.compare(a, b) : comp;
+  }
+
+
+  /**
+   * Merge sorts the given range of <tt>slots</tt>, using the same range of
+   * <tt>work</tt> as scratch.
+   */
+  private void sortSlots(int[] slots, int[] work, int lo, int hi) {
+    if (hi - lo <= INSERTION_SORT_THRESHOLD) {
+      for (int i = lo + 1; i < hi; ++i) {
+        int slot = slots[i];
+        int j = i;
+        for (; j > lo && compareSlots(slots[j - 1], slot) > 0; --j)
+          slots[j] = slots[j - 1];
+        slots[j] = slot;
+      }
+      return;
+    }
+    int mid = (lo + hi) >>> 1;
+    sortSlots(slots, work, lo, mid);
+    sortSlots(slots, work, mid, hi);
+    mergeSlots(slots, work, lo, mid, hi);
+  }
+
+
+  private void mergeSlots(int[] slots, int[] work, int lo, int mid, int hi) {
+    if (compareSlots(slots[mid - 1], slots[mid]) < 0)
+      return;
+    System.arraycopy(slots, lo, work, lo, hi - lo);
+    int i = lo, j = mid, k = lo;
+    while (i < mid && j < hi)
+      slots[k++] = compareSlots(work[i], work[j]) < 0 ? work[i++] : work[j++];
+    while (i < mid)
+      slots[k++] = work[i++];
+    while (j < hi)
+      slots[k++] = work[j++];
+  }
+
+
+  @SuppressWarnings("serial")
+  private class SlotSort extends RecursiveAction {
+
+    private final int[] slots;
+    private final int[] work;
+    private final int lo;
+    private final int hi;
+
+    SlotSort(int[] slots, int[] work, int lo, int hi) {
+      this.slots = slots;
+      this.work = work;
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    @Override
+    protected void compute() {
+      if (hi - lo <= PARALLEL_SORT_THRESHOLD) {
+        sortSlots(slots, work, lo, hi);
+        return;
+      }
+      int mid = (lo + hi) >>> 1;
+      invokeAll(new SlotSort(slots, work, lo, mid), new SlotSort(slots, work, mid, hi));
+      mergeSlots(slots, work, lo, mid, hi);
+    }
+  }
+
+
+  private void swingSlot(int node, int slot) {
+    while (true) {
+      int current = field(node, SLOT);
+      if (current >= slot || casField(node, SLOT, current, slot))
+        return;
+    }
+  }
+
+
+  /**
+   * Removes the row with the given key, if any. Must be exclusive of other writers.
+   *
+   * @return <tt>true</tt>, if a row was removed
+   */
+  boolean remove(ByteBuffer key) {
+    int[] preds = new int[MAX_LEVEL];
+    int match = find(key, preds, null);
+    if (match == NIL)
+      return false;
+    // unlink top down, leaving the node's own pointers intact
+    // for readers that may be visiting it
+    for (int level = height(match); level-- > 0; )
+      setField(preds[level], NEXT + level, next(match, level));
+    return true;
+  }
+
+
+  /**
+   * Returns a read-only view of the row with the given key, or <tt>null</tt>, if not found.
+   */
+  ByteBuffer get(ByteBuffer key) {
+    int match = find(key, null, null);
+    return match == NIL ? null : row(match);
+  }
+
+
+  /**
+   * Returns the rows in order.
+   */
+  Iterator<ByteBuffer> iterator() {
+    return new Forward(next(HEAD, 0));
+  }
+
+
+  /**
+   * Returns the rows in ascending order, starting from the given <tt>key</tt>.
+   */
+  Iterator<ByteBuffer> ascending(ByteBuffer key, boolean inclusive) {
+    int node = next(lower(key, !inclusive), 0);
+    return new Forward(node);
+  }
+
+
+  /**
+   * Returns the rows in descending order, starting from the given <tt>key</tt>.
+   */
+  Iterator<ByteBuffer> descending(ByteBuffer key, boolean inclusive) {
+    return new Reverse(lower(key, inclusive));
+  }
+
+
+  /**
+   * Returns views of the rows in order, with rows that are adjacent in the arena
+   * coalesced into a single buffer. Suitable for a gathering write.
+   */
+  ByteBuffer[] sortedRuns() {
+    ArrayList<ByteBuffer> runs = new ArrayList<>();
+    ByteBuffer[] chunks = rowChunks;
+    int runStart = -1;
+    int runEnd = -1;
+    for (int node = next(HEAD, 0); node != NIL; node = next(node, 0)) {
+      int slot = field(node, SLOT);
+      // (runs don't cross chunk boundaries)
+      if (slot == runEnd && chunkOf(slot) == chunkOf(runStart)) {
+        ++runEnd;
+        continue;
+      }
+      if (runStart != -1)
+        runs.add(slice(chunks, runStart, runEnd - runStart));
+      runStart = slot;
+      runEnd = slot + 1;
+    }
+    if (runStart != -1)
+      runs.add(slice(chunks, runStart, runEnd - runStart));
+    return runs.toArray(new ByteBuffer[runs.size()]);
+  }
+
+
+  /**
+   * Returns the number of bytes allocated off-heap.
+   */
+  long arenaSize() {
+    long bytes = 0;
+    for (ByteBuffer chunk : rowChunks)
+      bytes += chunk.capacity();
+    return bytes;
+  }
+
+
+
+  /**
+   * Returns the last node whose row is less than the given <tt>key</tt> (or equal
+   * to it, if <tt>orEqual</tt> is <tt>true</tt>); {@linkplain #HEAD}, if none.
+   */
+  private int lower(ByteBuffer key, boolean orEqual) {
+    int x = HEAD;
+    for (int level = MAX_LEVEL; level-- > 0; ) {
+      while (true) {
+        int n = next(x, level);
+        if (n == NIL)
+          break;
+        int comp = order.compare(key, row(n));
+        if (comp > 0 || comp == 0 && orEqual)
+          x = n;
+        else
+          break;
+      }
+    }
+    return x;
+  }
+
+
+  /**
+   * Returns the node with the given key, or {@linkplain #NIL}, if not found.
+   *
+   * @param preds if not <tt>null</tt>, then filled with the last node before the
+   *              key at each level
+   * @param succs if not <tt>null</tt>, then filled with the node following
+   *              <tt>preds</tt> at each level
+   */
+  private int find(ByteBuffer key, int[] preds, int[] succs) {
+    int x = HEAD;
+    int match = NIL;
+    for (int level = MAX_LEVEL; level-- > 0; ) {
+      int n;
+      while (true) {
+        n = next(x, level);
+        if (n == NIL)
+          break;
+        int comp = match == n ? 0 : order.compare(key, row(n));
+        if (comp > 0)
+          x = n;
+        else {
+          if (comp == 0) {
+            if (preds == null)
+              return n;
+            match = n;
+          }
+          break;
+        }
+      }
+      if (preds != null)
+        preds[level] = x;
+      if (succs != null)
+        succs[level] = n;
+    }
+    return match;
+  }
+
+
+  private int randomHeight() {
+    // p = 1/4
+    long x = ThreadLocalRandom.current().nextLong();
+    return 1 + Long.numberOfTrailingZeros(x | (1L << (2 * (MAX_LEVEL - 1)))) / 2;
+  }
+
+
+  private int chunkOf(int slot) {
+    if (slot < growingSlots)
+      return 31 - Integer.numberOfLeadingZeros((slot >>> initShift) + 1);
+    return growingChunks + ((slot - growingSlots) >>> fullShift);
+  }
+
+
+  private int chunkStart(int chunk) {
+    if (chunk <= growingChunks)
+      return ((1 << chunk) - 1) << initShift;
+    return growingSlots + ((chunk - growingChunks) << fullShift);
+  }
+
+
+  private int chunkRows(int chunk) {
+    return 1 << (chunk < growingChunks ? initShift + chunk : fullShift);
+  }
+
+
+  private ByteBuffer rowChunk(int chunk) {
+    ByteBuffer[] chunks = rowChunks;
+    if (chunk < chunks.length)
+      return chunks[chunk];
+    synchronized (growLock) {
+      chunks = rowChunks;
+      if (chunk >= chunks.length) {
+        int count = chunks.length;
+        chunks = Arrays.copyOf(chunks, chunk + 1);
+        for (int index = count; index <= chunk; ++index)
+          chunks[index] = ByteBuffer.allocateDirect(chunkRows(index) * rowWidth);
+        rowChunks = chunks;
+      }
+      return chunks[chunk];
+    }
+  }
+
+
+  private AtomicIntegerArray nodeChunk(int chunk) {
+    AtomicIntegerArray[] chunks = nodeChunks;
+    if (chunk < chunks.length)
+      return chunks[chunk];
+    synchronized (growLock) {
+      chunks = nodeChunks;
+      if (chunk >= chunks.length) {
+        int count = chunks.length;
+        chunks = Arrays.copyOf(chunks, chunk + 1);
+        for (int index = count; index <= chunk; ++index)
+          chunks[index] = new AtomicIntegerArray(NODE_CHUNK_SIZE);
+        nodeChunks = chunks;
+      }
+      return chunks[chunk];
+    }
+  }
+
+
+  private int allocNode(int height) {
+    final int size = NEXT + height;
+    int node;
+    while (true) {
+      int next = nextNode.get();
+      node = next;
+      if ((node & NODE_CHUNK_MASK) + size > NODE_CHUNK_SIZE)
+        // doesn't fit: start a new chunk
+        node = ((node >>> NODE_CHUNK_SHIFT) + 1) << NODE_CHUNK_SHIFT;
+      if (nextNode.compareAndSet(next, node + size))
+        break;
+    }
+    nodeChunk(node >>> NODE_CHUNK_SHIFT).set((node & NODE_CHUNK_MASK) + HEIGHT, height);
+    return node;
+  }
+
+
+  private int field(int node, int index) {
+    return nodeChunks[node >>> NODE_CHUNK_SHIFT].get((node & NODE_CHUNK_MASK) + index);
+  }
+
+
+  private void setField(int node, int index, int value) {
+    nodeChunks[node >>> NODE_CHUNK_SHIFT].set((node & NODE_CHUNK_MASK) + index, value);
+  }
+
+
+  private boolean casField(int node, int index, int expect, int value) {
+    return nodeChunks[node >>> NODE_CHUNK_SHIFT].compareAndSet(
+        (node & NODE_CHUNK_MASK) + index, expect, value);
+  }
+
+
+  private int next(int node, int level) {
+    return field(node, NEXT + level);
+  }
+
+
+  private int height(int node) {
+    return field(node, HEIGHT);
+  }
+
+
+  /**
+   * Returns a read-only view of the node's row (positioned at zero).
+   */
+  private ByteBuffer row(int node) {
+    return slice(rowChunks, field(node, SLOT), 1);
+  }
+
+
+  private ByteBuffer slice(ByteBuffer[] chunks, int slot, int count) {
+    int chunk = chunkOf(slot);
+    ByteBuffer view = chunks[chunk].asReadOnlyBuffer();
+    int offset = (slot - chunkStart(chunk)) * rowWidth;
+    view.limit(offset + count * rowWidth).position(offset);
+    return view.slice();
+  }
+
+
+
+  private class Forward implements Iterator<ByteBuffer> {
+
+    private int node;
+
+    Forward(int node) {
+      this.node = node;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return node != NIL;
+    }
+
+    @Override
+    public ByteBuffer next() {
+      if (node == NIL)
+        throw new NoSuchElementException();
+      ByteBuffer row = row(node);
+      node = RowSkipList.this.next(node, 0);
+      return row;
+    }
+  }
+
+
+  private class Reverse implements Iterator<ByteBuffer> {
+
+    private int node;
+
+    Reverse(int node) {
+      this.node = node;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return node != HEAD;
+    }
+
+    @Override
+    public ByteBuffer next() {
+      if (node == HEAD)
+        throw new NoSuchElementException();
+      ByteBuffer row = row(node);
+      // no back pointers: search for the predecessor
+      node = lower(row, false);
+      return row;
+    }
+  }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import io.crums.io.Releaseable;
+import io.crums.io.store.table.SortedTable.Searcher;
+import io.crums.util.cc.MemoryBudget;
+
+/**
+ * A pool of {@linkplain Searcher}s on a {@linkplain SortedTable}. A searcher's block
+ * buffer is mutable state, so it can't be shared across concurrent lookups; this
+ * pool lets many threads search the same table without sharing a searcher and without
+ * allocating a new one on every lookup. Borrowing and returning are lock-free.
+ * <p>
+ * The memory retained by the pool is bounded by a {@linkplain MemoryBudget}, typically
+ * shared by many pools. When the budget is exhausted, the pool hands out transient
+ * searchers that are dropped (garbage collected) when returned.
+ * </p>
+ *
+ * @see SortedTable#searcherPool()
+ * @author Babak
+ */
+public class SearcherPool implements Releaseable {
+
+  /**
+   * Process-wide default budget: 32 MB.
+   */
+  public final static MemoryBudget DEFAULT_BUDGET = new MemoryBudget(32 * 1024 * 1024);
+
+
+  private final SortedTable table;
+  private final int rowsInBuffer;
+  private final MemoryBudget budget;
+  private final long searcherBytes;
+
+  private final ConcurrentLinkedQueue<Searcher> idle = new ConcurrentLinkedQueue<>();
+  private final Set<Searcher> pooled = ConcurrentHashMap.newKeySet();
+
+  private volatile boolean closed;
+
+
+  /**
+   * Creates a new instance.
+   *
+   * @param table        the table searched
+   * @param rowsInBuffer the number of rows in each searcher's buffer
+   * @param budget       the budget pooled searchers' buffers are charged against
+   */
+  public SearcherPool(SortedTable table, int rowsInBuffer, MemoryBudget budget) throws IOException {
+    if (table == null)
+      throw new IllegalArgumentException("null table");
+    if (budget == null)
+      throw new IllegalArgumentException("null budget");
+    this.table = table;
+    this.rowsInBuffer = (int) Math.max(
+        Searcher.MIN_BUFFER_ROWS,
+        Math.min(table.getRowCount(), rowsInBuffer));
+    this.budget = budget;
+    this.searcherBytes = ((long) this.rowsInBuffer) * table.getRowWidth();
+  }
+
+
+  /**
+   * Returns an idle searcher, or a new one if none is idle. The caller agrees to
+   * {@linkplain #giveBack(Searcher) give} it {@linkplain #giveBack(Searcher) back}
+   * when done, and not to use it after that.
+   */
+  public Searcher borrow() throws IOException {
+    Searcher searcher = idle.poll();
+    if (searcher != null)
+      return searcher;
+
+    searcher = table.newSearcher(rowsInBuffer);
+    // (the pool only grows up to the number of concurrent users, so this is rare)
+    synchronized (this) {
+      if (!closed && budget.tryReserve(searcherBytes))
+        pooled.add(searcher);
+    }
+    return searcher;
+  }
+
+
+  /**
+   * Returns the given <tt>searcher</tt> to the pool. Searchers created over budget
+   * are just dropped.
+   */
+  public void giveBack(Searcher searcher) {
+    if (searcher.getTable() != table)
+      throw new IllegalArgumentException("searcher from another table: " + searcher.getTable());
+    if (!closed && pooled.contains(searcher))
+      idle.offer(searcher);
+  }
+
+
+  /**
+   * Returns the number of rows in each searcher's buffer.
+   */
+  public final int getRowsInBuffer() {
+    return rowsInBuffer;
+  }
+
+
+  /**
+   * Returns the number of searchers owned by the pool (whether idle or borrowed).
+   */
+  public int getPooledCount() {
+    return pooled.size();
+  }
+
+
+  public final MemoryBudget getBudget() {
+    return budget;
+  }
+
+
+  /**
+   * Drops the pooled searchers and releases their memory from the budget. Invoked
+   * when the table is closed.
+   */
+  @Override
+  public synchronized void close() {
+    if (closed)
+      return;
+    closed = true;
+    idle.clear();
+    budget.release(pooled.size() * searcherBytes);
+    pooled.clear();
+  }
+
+}
@@ -10,6 +10,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.logging.Logger;
 
+import io.crums.io.buffer.PrefixedSortedBlock;
 import io.crums.io.buffer.SortedBlock;
 import io.crums.io.store.Sorted;
 import io.crums.io.store.ks.Keystone;
@@ -18,6 +19,7 @@ import io.crums.io.store.table.order.NaturalRowOrder;
 import io.crums.io.store.table.order.RowOrder;
 import io.crums.math.stats.SimpleSampler;
 import io.crums.test.PerfProf;
+import io.crums.util.cc.MemoryBudget;
 
 /**
  * Marker class for a sorted table.
@@ -36,6 +38,11 @@ public class SortedTable extends Table implements Sorted {
   
   
   private final RowOrder order;
+  
+  private MemoryBudget searcherBudget = SearcherPool.DEFAULT_BUDGET;
+  private SearcherPool searcherPool;
+  private volatile BloomFilter bloomFilter;
+  private volatile FenceIndex fenceIndex;
 
   /**
    * Creates and returns a new instance. The instance's row count is inferred
@@ -106,11 +113,29 @@ public class SortedTable extends Table implements Sorted {
   
 
   
+  /**
+   * Slice constructor. The rows of a slice of a sorted table are of course also sorted.
+   *
+   * @see #slice(long, long)
+   */
+  protected SortedTable(SortedTable copy, long firstRow, long count) throws IOException {
+    super(copy, firstRow, count);
+    this.order = copy.order;
+  }
+
+
+
   @Override
   public SortedTable clone() {
     return new SortedTable(this);
   }
-  
+
+
+  @Override
+  public SortedTable slice(long firstRow, long count) throws IOException {
+    return new SortedTable(this, firstRow, count);
+  }
+
   public final RowOrder order() {
     return order;
   }
@@ -141,6 +166,120 @@ public class SortedTable extends Table implements Sorted {
   
   
   
+  /**
+   * Returns this instance's searcher pool. Use this for lookups from multiple threads.
+   * The pool is created on first access; its searchers' buffers hold the entire table,
+   * if it's small (&le; 2 x {@linkplain TableSet#DEFAULT_SEARCH_BUFFER_SIZE}),
+   * or {@linkplain TableSet#DEFAULT_SEARCH_BUFFER_SIZE} bytes (but no fewer than the
+   * {@linkplain #getFenceIndex() fence index}'s stride), otherwise.
+   * 
+   * @see #setSearcherBudget(MemoryBudget)
+   */
+  public synchronized SearcherPool searcherPool() throws IOException {
+    if (searcherPool == null) {
+      if (!isOpen())
+        throw new IllegalStateException("closed table: " + this);
+      long byteSize = getRowCount() * getRowWidth();
+      int rowsInBuffer;
+      if (byteSize <= 2 * TableSet.DEFAULT_SEARCH_BUFFER_SIZE)
+        rowsInBuffer = (int) getRowCount();
+      else
+        rowsInBuffer = TableSet.DEFAULT_SEARCH_BUFFER_SIZE / getRowWidth();
+      rowsInBuffer = Math.max(rowsInBuffer, 8);
+      // if indexed, a stride's worth of rows should fit in the buffer
+      FenceIndex index = fenceIndex;
+      if (index != null)
+        rowsInBuffer = Math.max(rowsInBuffer, index.getStride());
+      searcherPool = new SearcherPool(this, rowsInBuffer, searcherBudget);
+    }
+    return searcherPool;
+  }
+  
+  
+  /**
+   * Sets the memory budget the {@linkplain #searcherPool() searcher pool} is charged
+   * against. Defaults to {@linkplain SearcherPool#DEFAULT_BUDGET}.
+   * 
+   * @throws IllegalStateException if the pool has already been created
+   */
+  public synchronized void setSearcherBudget(MemoryBudget budget) throws IllegalStateException {
+    if (budget == null)
+      throw new IllegalArgumentException("null budget");
+    if (searcherPool != null)
+      throw new IllegalStateException("searcher pool already created");
+    this.searcherBudget = budget;
+  }
+  
+  
+  /**
+   * Returns the Bloom filter over this table's keys, if any.
+   * 
+   * @return possibly <tt>null</tt>
+   */
+  public BloomFilter getBloomFilter() {
+    return bloomFilter;
+  }
+  
+  
+  /**
+   * Sets the Bloom filter over this table's keys. {@linkplain TableSet#getRow(ByteBuffer)
+   * Lookups} consult the filter before searching the table. The caller is responsible
+   * for the filter actually matching the table's contents.
+   * 
+   * @param filter the filter, or <tt>null</tt> to remove it
+   * 
+   * @see BloomFilter#build(SortedTable, int)
+   */
+  public void setBloomFilter(BloomFilter filter) {
+    this.bloomFilter = filter;
+  }
+  
+  
+  /**
+   * Returns the sparse in-memory index over this table, if any.
+   * 
+   * @return possibly <tt>null</tt>
+   */
+  public FenceIndex getFenceIndex() {
+    return fenceIndex;
+  }
+  
+  
+  /**
+   * Sets the sparse in-memory index over this table. {@linkplain Searcher Searches}
+   * then bisect the index's fences in memory, instead of bisecting the file.
+   * The instance takes ownership of the index: it's closed when this table is closed.
+   * The caller is responsible for the index actually matching the table's contents.
+   * 
+   * @param index the index, or <tt>null</tt> to remove it
+   * 
+   * @see FenceIndex#build(SortedTable, int, MemoryBudget)
+   */
+  public void setFenceIndex(FenceIndex index) {
+    FenceIndex old = this.fenceIndex;
+    this.fenceIndex = index;
+    if (old != null && old != index)
+      old.close();
+  }
+  
+  
+  /**
+   * Releases the searcher pool's and the fence index's memory, if any, and closes the instance.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (searcherPool != null)
+        searcherPool.close();
+    }
+    FenceIndex index = fenceIndex;
+    if (index != null)
+      index.close();
+    super.close();
+  }
+  
+  
+  
   /**
    * Override to customize the {@linkplain Searcher} implementation. Called by
    * {@linkplain #newSearcher(int)}.
@@ -182,6 +321,10 @@ public class SortedTable extends Table implements Sorted {
     public final static int MIN_BUFFER_ROWS = 4;
 
     private final SortedBlock block;
+    /**
+     * The {@linkplain #block}, if it keeps key prefixes; <tt>null</tt>, o.w.
+     */
+    private final PrefixedSortedBlock prefixedBlock;
     private long firstRowNumberInBlock;
     private ByteBuffer readOnlyBlockBufferView;
     
@@ -209,6 +352,11 @@ public class SortedTable extends Table implements Sorted {
      * Creates a new instance with the given backing buffer. The buffer must be
      * at least {@linkplain #MIN_BUFFER_ROWS} rows wide. Also, if the buffer's capacity
      * is not a multiple of the the table's row width, it logs nagging warnings.
+     * <p>
+     * If the <tt>order</tt> {@linkplain RowOrder#hasKeyPrefix() supports} key prefixes,
+     * then the rows retrieved are searched by prefix first (see {@linkplain
+     * PrefixedSortedBlock}).
+     * </p>
      */
     protected Searcher(ByteBuffer buffer, int rowWidth, RowOrder order) {
       if (buffer.isReadOnly())
@@ -217,7 +365,13 @@ public class SortedTable extends Table implements Sorted {
       if (buffer.capacity() / rowWidth < MIN_BUFFER_ROWS)
         throw new IllegalArgumentException(
             "buffer too small: rowWidth=" + rowWidth + "; buffer capacity=" + buffer.capacity());
-      this.block = new SortedBlock(buffer, rowWidth, order, true);
+      if (order.hasKeyPrefix()) {
+        this.prefixedBlock = new PrefixedSortedBlock(buffer, rowWidth, order, true);
+        this.block = prefixedBlock;
+      } else {
+        this.prefixedBlock = null;
+        this.block = new SortedBlock(buffer, rowWidth, order, true);
+      }
       profiler = new PerfProf();
       blockSearchProfiler = new PerfProf();
       readOpStats = new SimpleSampler();
@@ -226,11 +380,66 @@ public class SortedTable extends Table implements Sorted {
     
     public boolean search(ByteBuffer key) throws IOException {
       profiler.begin();
-      boolean result = searchImpl(key);
+      boolean result = searchImpl(key, 0);
       profiler.end();
       readOpStats.observe(reads);
       return result;
     }
+
+
+    /**
+     * Searches for the given <tt>key</tt> among the rows numbered <tt>fromRowNumber</tt>
+     * and above. Designed for looking up a batch of keys in ascending order: pass in
+     * the hit row number (plus one) or insertion point of the previous key. If the key
+     * falls within the rows retrieved by the last search, no I/O is performed.
+     *
+     * @param fromRowNumber the lower bound of the search (inclusive, &ge; 0)
+     *
+     * @return <tt>true</tt>, if found
+     * @see #getHitRowNumber()
+     */
+    public boolean search(ByteBuffer key, long fromRowNumber) throws IOException {
+      if (fromRowNumber < 0)
+        throw new IllegalArgumentException("fromRowNumber: " + fromRowNumber);
+      profiler.begin();
+      reads = 0;
+      boolean result;
+      if (searchRetrieved(key))
+        result = hitRowNumber >= 0;
+      else
+        result = searchImpl(key, fromRowNumber);
+      profiler.end();
+      readOpStats.observe(reads);
+      return result;
+    }
+
+
+    /**
+     * Attempts to resolve the search from the rows retrieved by the last search.
+     * (The table's rows are assumed not to have changed in the meantime.)
+     *
+     * @return <tt>true</tt>, if resolved (either a hit or a miss)
+     */
+    private boolean searchRetrieved(ByteBuffer key) {
+      final int count = retrievedRowCount;
+      if (count == 0)
+        return false;
+      int index = block.binarySearch(key, 0, count);
+      if (index >= 0) {
+        hitRowNumber = firstRowNumberInBlock + index;
+        return true;
+      }
+      int insertion = -index - 1;
+      long insertionRow = firstRowNumberInBlock + insertion;
+      // a miss is only conclusive if the key falls between retrieved rows
+      // (or beyond an end of the table)
+      boolean resolved =
+          (insertion > 0 || firstRowNumberInBlock == 0) &&
+          (insertion < count || insertionRow == rowCount);
+      if (resolved)
+        hitRowNumber = -insertionRow - 1;
+      return resolved;
+    }
     
     
     
@@ -258,16 +467,17 @@ public class SortedTable extends Table implements Sorted {
     }
 
 
-    private boolean searchImpl(ByteBuffer key) throws IOException {
+    private boolean searchImpl(ByteBuffer key, long fromRowNumber) throws IOException {
       // TODO: the row may already be loaded in memory.. check the
       //       block first.. This may also gives us an opportunity to
       //       set a tighter boundary (excLo, excHi) -- although that
       //       has it drawbacks 
       excHi = firstRowNumberInBlock = hitRowNumber = rowCount = getRowCount();
-      excLo = -1L;
+      excLo = fromRowNumber - 1;
       retrievedRowCount = reads = 0;
-      if (rowCount == 0) {
-        hitRowNumber = -1;
+      loadPrefixes(0);
+      if (fromRowNumber >= rowCount) {
+        hitRowNumber = -rowCount - 1;
         return false;
       }
       
@@ -275,6 +485,27 @@ public class SortedTable extends Table implements Sorted {
       ByteBuffer rowData = block.buffer();
       rowData.clear().limit(getRowWidth());
       
+      FenceIndex index = fenceIndex;
+      if (index != null && index.getRowCount() <= rowCount) {
+        // narrow the range to a single stride in memory
+        int fence = index.floorFence(key);
+        if (fence == -1) {
+          // key is less than the first row
+          hitRowNumber = -fromRowNumber - 1;
+          firstRowNumberInBlock = fromRowNumber;
+          return false;
+        }
+        long fenceRow = ((long) fence) * index.getStride();
+        excLo = Math.max(excLo, fenceRow - 1);
+        excHi = Math.min(rowCount, fenceRow + index.getStride());
+        if (excHi <= excLo + 1) {
+          // key is less than the row at fromRowNumber
+          hitRowNumber = -fromRowNumber - 1;
+          firstRowNumberInBlock = fromRowNumber;
+          return false;
+        }
+      }
+      
       while (true) {
         
         long range = excHi - excLo - 1;
@@ -289,12 +520,17 @@ public class SortedTable extends Table implements Sorted {
         
         // pick a pivot
         long pivot = (excHi + excLo) / 2;
-        read(pivot, rowData);
-        if (rowData.hasRemaining())
-          throw new RuntimeException("assertion failure: rowData.hasRemaining(); " + rowData);
-        rowData.flip();
+        // if mapped, compare in place
+        ByteBuffer pivotRow = mappedRow(pivot);
+        if (pivotRow == null) {
+          read(pivot, rowData);
+          if (rowData.hasRemaining())
+            throw new RuntimeException("assertion failure: rowData.hasRemaining(); " + rowData);
+          rowData.flip();
+          pivotRow = rowData;
+        }
         
-        int comp = order.compare(key, rowData);
+        int comp = order.compare(key, pivotRow);
         
         if (comp < 0)
           excHi = pivot;
@@ -302,8 +538,14 @@ public class SortedTable extends Table implements Sorted {
           excLo = pivot;
         else {
           // we have a hit..
+          if (pivotRow != rowData) {
+            // the hit row is served from the block: copy it in
+            rowData.clear().limit(getRowWidth());
+            rowData.put(pivotRow).flip();
+          }
           hitRowNumber = firstRowNumberInBlock = pivot;
           retrievedRowCount = 1;
+          loadPrefixes(1);
           return true;
         }
       }
@@ -320,6 +562,7 @@ public class SortedTable extends Table implements Sorted {
       resultData.clear().limit(range * getRowWidth());
       
       read(firstRowNumberInBlock, resultData);
+      loadPrefixes(range);
       
       int rowInBuffer = block.binarySearch(key, 0, range);
       if (rowInBuffer < 0)
@@ -332,6 +575,12 @@ public class SortedTable extends Table implements Sorted {
     }
 
 
+    private void loadPrefixes(int count) {
+      if (prefixedBlock != null)
+        prefixedBlock.loadPrefixes(count);
+    }
+
+
     /**
      * Returns the row count snapshot at the time the search was started.
      */
@@ -10,27 +10,42 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.GatheringByteChannel;
-import java.util.NavigableSet;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import io.crums.io.buffer.BufferOp;
 import io.crums.io.buffer.Covenant;
 import io.crums.io.channels.ChannelUtils;
 import io.crums.io.store.table.iter.Direction;
 import io.crums.io.store.table.iter.RowIterator;
 import io.crums.io.store.table.iter.SortedBufferIterator;
 import io.crums.io.store.table.order.RowOrder;
+import io.crums.util.cc.MemoryBudget;
 
 
 /**
+ * An in-memory, sorted table under construction. Rows are copied into an off-heap
+ * arena and sorted by a skip list over their arena offsets (so there's no per-row
+ * object overhead). Once inserted, a row is never modified: overwriting a row inserts
+ * a new copy.
+ * <h3>Concurrency</h3>
+ * <p>
+ * Any number of threads may {@linkplain #putRow(ByteBuffer, Covenant) put} rows
+ * concurrently, and readers may access the instance at the same time, without locking.
+ * Each inserted row is assigned the next <em>slot</em> in the arena (slots are numbered
+ * from zero, in the order they're reserved); if the same row is put concurrently, the
+ * one in the higher numbered slot wins. Removing rows, {@linkplain #clear() clear}ing
+ * and {@linkplain #flush(GatheringByteChannel, boolean) flush}ing, on the other hand,
+ * must be exclusive of writers.
+ * </p>
  * 
  * @author Babak
  */
 public class SortedTableBuilder {
 
   private final int rowWidth;
-  protected final TreeSet<ByteBuffer> sortedView;
+  private final RowOrder order;
+  private final RowSkipList rows;
+  private final AtomicInteger rowCount = new AtomicInteger();
   
   
   
@@ -41,7 +56,8 @@ public class SortedTableBuilder {
       throw new IllegalArgumentException("null row order");
     
     this.rowWidth = rowWidth;
-    this.sortedView = new TreeSet<>(order);
+    this.order = order;
+    this.rows = new RowSkipList(rowWidth, order);
   }
   
   
@@ -51,6 +67,12 @@ public class SortedTableBuilder {
   }
   
   
+  /**
+   * Inserts or updates the given <tt>row</tt>. The row is copied into the instance's
+   * arena; the <tt>promise</tt> only matters to the insertion hooks.
+   * 
+   * @return <tt>true</tt>, if an existing row was overwritten
+   */
   public boolean putRow(ByteBuffer row, Covenant promise) throws IOException {
     if (row == null)
       throw new IllegalArgumentException("null row");
@@ -59,27 +81,10 @@ public class SortedTableBuilder {
           "row does not contain required remaining bytes (rowWidth=" + rowWidth +
           "): " + row);
     
-    if (promise == null)
-      promise = Covenant.NONE;
-    
-    ByteBuffer tableRow;
-    if (promise.wontModify()) {
-      if (row.position() == 0)
-        tableRow = row;
-      else 
-        tableRow = row.slice();
-    } else if (promise.wontModifyContents()) {
-      tableRow = row.slice();
-    } else {
-      tableRow = allocateRow();
-      tableRow.clear();
-      tableRow.put(row).flip();
-    }
-    
-    
-
-    preInsertion(tableRow);
-    boolean overwrite = overwrite(tableRow);
+    ByteBuffer tableRow = row.slice();
+    int slot = rows.copyIn(tableRow);
+    preInsertion(tableRow, slot);
+    boolean overwrite = link(slot);
     postInsertion(tableRow);
     return overwrite;
   }
@@ -91,32 +96,75 @@ public class SortedTableBuilder {
     if (key == null || !key.hasRemaining())
       throw new IllegalArgumentException("key: " + key);
     
-    NavigableSet<ByteBuffer> subset;
+    Iterator<ByteBuffer> iter;
     if (direction == FORWARD)
-      subset = sortedView.tailSet(key, includeKey);
+      iter = rows.ascending(key, includeKey);
     else
-      subset = sortedView.headSet(key, includeKey);
-    return new SortedBufferIterator(subset, direction, rowWidth);
+      iter = rows.descending(key, includeKey);
+    return new SortedBufferIterator(iter, direction, rowWidth);
   }
   
   
   protected final boolean overwrite(ByteBuffer tableRow) {
-    boolean overwrite = !sortedView.add(tableRow);
-    if (overwrite) {
-      if ( !sortedView.remove(tableRow) )
-        throw new RuntimeException("assertion failure on remove. Bad set implementation?");
-      if ( !sortedView.add(tableRow) )
-        throw new RuntimeException("assertion failure on add. Bad set implementation?");
-    }
+    return link(rows.copyIn(tableRow));
+  }
+  
+  
+  /**
+   * Copies the given <tt>rows</tt> into the next slots in the arena, without inserting
+   * them.
+   * 
+   * @param rows a nonzero multiple of {@linkplain #getRowWidth() rowWidth} remaining bytes
+   * 
+   * @return the slot number of the first row
+   */
+  protected final int copyIn(ByteBuffer rows) {
+    return this.rows.copyIn(rows);
+  }
+  
+  
+  /**
+   * Links all the rows {@linkplain #copyIn(ByteBuffer) copied in} into the instance,
+   * which must be empty, in bulk (a parallel sort, instead of an insertion per row).
+   * Of the rows with the same key, the one copied in last wins. Not safe under
+   * concurrent access.
+   */
+  protected final void linkAll() {
+    rowCount.set(rows.linkAll());
+  }
+  
+  
+  private boolean link(int slot) {
+    boolean overwrite = rows.link(slot);
+    if (!overwrite)
+      rowCount.incrementAndGet();
     return overwrite;
   }
   
   
   /**
-   * Pre insertion hook. <em>Remember, on return, the argument shouldn't be modified
-   * in <strong>any</strong> way!</em>
+   * Removes the row with the given key, if any. Must be exclusive of other writers.
+   * 
+   * @return <tt>true</tt> if a row was removed
+   */
+  protected final boolean remove(ByteBuffer rowKey) {
+    boolean removed = this.rows.remove(rowKey);
+    if (removed)
+      rowCount.decrementAndGet();
+    return removed;
+  }
+  
+  
+  /**
+   * Pre insertion hook. Invoked after the <tt>rows</tt> are copied into the arena,
+   * but before they're visible. <em>Remember, on return, the argument shouldn't be
+   * modified in <strong>any</strong> way!</em>
+   * 
+   * @param rows      the rows being inserted
+   * @param firstSlot the arena slot number of the first row (the rows occupy
+   *                  consecutive slots)
    */
-  protected void preInsertion(ByteBuffer rows) throws IOException {
+  protected void preInsertion(ByteBuffer rows, int firstSlot) throws IOException {
     
   }
   
@@ -138,31 +186,18 @@ public class SortedTableBuilder {
       throw new IllegalArgumentException(
           "rows must contain a nonzero mulitiple of rowWidth (" + rowWidth +
           ") remaining bytes: " + rows);
-    if (promise == null)
-      promise = Covenant.NONE;
     
-    final int initPos = rows.position();
-    int pos = initPos;
-    
-    final int limit = rows.limit();
-    // if the caller says they'll reuse the buffer
-    if (!promise.wontModifyContents()) {
-      rows = ByteBuffer.allocate(limit - pos).put(rows);
-      rows.flip();
-    }
-    preInsertion(rows);
+    // (each row is copied into the arena, so there's no need to copy
+    // the argument, even if the caller might later modify it)
+    rows = rows.slice();
+    int firstSlot = this.rows.copyIn(rows);
+    preInsertion(rows, firstSlot);
     int overwrites = 0;
-    while (pos < limit) {
-      int runlimit = pos + rowWidth;
-      rows.limit(runlimit);
-      ByteBuffer row = rows.slice();
-      
-      if (overwrite(row))
+    // link in slot order, so the last occurrence of a row wins
+    for (int index = 0; index < count; ++index) {
+      if (link(firstSlot + index))
         ++overwrites;
-      pos = runlimit;
-      rows.position(pos);
     }
-    rows.position(initPos);
     postInsertion(rows);
     
     return overwrites;
@@ -177,12 +212,12 @@ public class SortedTableBuilder {
   
   
   public boolean isEmpty() {
-    return sortedView.isEmpty();
+    return getRowCount() == 0;
   }
   
   
   public int getRowCount() {
-    return sortedView.size();
+    return rowCount.get();
   }
   
   
@@ -191,7 +226,8 @@ public class SortedTableBuilder {
   }
   
   public void clear() {
-    sortedView.clear();
+    rows.clear();
+    rowCount.set(0);
   }
   
   
@@ -205,14 +241,7 @@ public class SortedTableBuilder {
   
   
   private ByteBuffer getImpl(ByteBuffer rowKey) {
-    SortedSet<ByteBuffer> tailSet = sortedView.tailSet(rowKey);
-    if (tailSet.isEmpty())
-      return null;
-    ByteBuffer out = tailSet.first();
-    if (sortedView.comparator().compare(rowKey, out) == 0)
-      return out;
-    else
-      return null;
+    return rows.get(rowKey);
   }
   
   
@@ -224,19 +253,8 @@ public class SortedTableBuilder {
     if (match == null)
       return false;
     
-    match.mark();
-    // Observation: if we fail below, our data structure may get corrupted. If.
-    // Because the position of the matched buffer is modified below,
-    // if the row order is relative, then the sortedView's state may be f%#ked
-    // if accessed while this operation is in progress--particularly if
-    // its later written to. If the row order is absolute, however, since the
-    // buffer's limit is not modified there's no problem.
-    // When could this happen?
-    // If another thread concurrently modified any offset of _out_
-    // (mark, clear, reset, position, limit, flip) in a way that caused
-    // it to overflow.
-    out.put(match);
-    match.reset();
+    // (don't touch the matched buffer's position: it may be concurrently read)
+    out.put(match.duplicate());
     return true;
   }
   
@@ -246,7 +264,7 @@ public class SortedTableBuilder {
    * table will take.
    */
   public long byteSize() {
-    return sortedView.size() * (long) rowWidth;
+    return getRowCount() * (long) rowWidth;
   }
   
   
@@ -265,21 +283,50 @@ public class SortedTableBuilder {
       throw new IllegalArgumentException("null file");
     if (isEmpty())
       return;
-    ByteBuffer[] rowBufs = sortedView.toArray(new ByteBuffer[sortedView.size()]);
-    if (!clear)
-      BufferOp.MARK.opAll(rowBufs);
-    ChannelUtils.writeRemaining(file, rowBufs);
+    // a single gathering write: rows adjacent in the arena are
+    // written as one buffer
+    ChannelUtils.writeRemaining(file, rows.sortedRuns());
     if (clear)
-      sortedView.clear();
-    else
-      BufferOp.RESET.opAll(rowBufs);
+      clear();
   }
   
   
-  private ByteBuffer allocateRow() {
-    return allocateRows(1);
+  /**
+   * Returns a new Bloom filter over the keys of the rows in this instance. Invoke
+   * this alongside {@linkplain #flush(GatheringByteChannel, boolean) flush}ing (before
+   * clearing) to build the flushed table's filter without reading it back.
+   * 
+   * @param bitsPerKey the number of bits per key (&ge; 1)
+   * 
+   * @throws UnsupportedOperationException
+   *         if the row order doesn't support {@linkplain RowOrder#hasKeyHash() key hashing}
+   */
+  public BloomFilter newBloomFilter(int bitsPerKey) throws UnsupportedOperationException {
+    if (!order.hasKeyHash())
+      throw new UnsupportedOperationException("key hashing not supported by " + order);
+    BloomFilter filter = new BloomFilter(getRowCount(), bitsPerKey);
+    for (Iterator<ByteBuffer> i = rows.iterator(); i.hasNext(); )
+      filter.add(order.keyHash(i.next()));
+    return filter;
+  }
+  
+  
+  /**
+   * Returns a new sparse index over the rows in this instance. Invoke this alongside
+   * {@linkplain #flush(GatheringByteChannel, boolean) flush}ing (before clearing) to
+   * index the flushed table without reading it back.
+   * 
+   * @param stride the number of rows between fences
+   * @param budget the budget the index's memory is charged against
+   * 
+   * @return the index, or <tt>null</tt> if the <tt>budget</tt> can't afford it
+   */
+  public FenceIndex newFenceIndex(int stride, MemoryBudget budget) {
+    return FenceIndex.build(
+        rows.iterator(), getRowCount(), order, rowWidth, stride, budget);
   }
   
+  
   protected ByteBuffer allocateRows(int count) {
     return ByteBuffer.allocate(rowWidth * count);
   }
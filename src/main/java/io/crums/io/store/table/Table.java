@@ -53,6 +53,17 @@ import io.crums.util.Lists;
  * every user agrees to do the right thing: namely close their instance when they're done using
  * it.
  * 
+ * <h3>Memory-mapped Reads</h3>
+ * 
+ * The rows of an immutable table may be {@linkplain #mapRows() mapped} into memory.
+ * Reads of mapped rows are then served from the mapping, without a system call,
+ * and {@linkplain #mappedRow(long) individual rows} can be compared in place. Copies
+ * share the mapping.
+ * 
+ * <h3>Block Cache</h3>
+ * 
+ * Alternatively, an instance may read thru a shared {@linkplain BlockCache}. See
+ * {@linkplain #setBlockCache(BlockCache)}.
  * 
  * @author Babak
  */
@@ -67,6 +78,11 @@ public class Table implements Channel {
   private final SharedChannel sharedFile;
   private final long zeroRowFileOffset;
   private final int rowSize;
+  
+  private volatile RowMap rowMap;
+  
+  /** Guarded by <tt>this</tt> on write. */
+  private volatile CacheKey blockCacheKey;
 
 
   /**
@@ -114,10 +130,46 @@ public class Table implements Channel {
     this.sharedFile = new SharedChannel(copy.sharedFile);
     this.zeroRowFileOffset = copy.zeroRowFileOffset;
     this.rowSize = copy.rowSize;
+    this.rowMap = copy.rowMap;
+    synchronized (copy) {
+      CacheKey key = copy.blockCacheKey;
+      if (key != null && key.acquire())
+        this.blockCacheKey = key;
+    }
   }
   
   
   
+  /**
+   * Slice constructor. Creates a read-only view of a contiguous block of rows in
+   * the given table. Like the copy constructor, the underlying file is shared (reference
+   * counted). Neither the {@linkplain #mapRows() row mapping} nor the {@linkplain
+   * #setBlockCache(BlockCache) block cache} carry over.
+   *
+   * @param copy
+   *        the table sliced
+   * @param firstRow
+   *        the first row number in <tt>copy</tt>
+   * @param count
+   *        the number of rows in the slice
+   *
+   * @see #slice(long, long)
+   */
+  protected Table(Table copy, long firstRow, long count) throws IOException {
+    if (firstRow < 0 || count < 0 || firstRow + count > copy.getRowCount())
+      throw new IllegalArgumentException(
+          "firstRow/count: " + firstRow + "/" + count + "; table row count is " +
+          copy.getRowCount());
+    this.filePositionLock = copy.filePositionLock;
+    this.rowCount = new VolatileKeystone(count);
+    this.file = copy.file;
+    this.sharedFile = new SharedChannel(copy.sharedFile);
+    this.zeroRowFileOffset = copy.rowOffset(firstRow);
+    this.rowSize = copy.rowSize;
+  }
+
+
+
   /**
    * Returns a new reference counted view of this instance. The caller agrees to close it
    * immediately when done.
@@ -126,7 +178,21 @@ public class Table implements Channel {
   public Table clone() {
     return new Table(this);
   }
-  
+
+
+  /**
+   * Returns a new reference counted, read-only view of the given block of rows. The
+   * caller agrees to close it when done.
+   *
+   * @param firstRow
+   *        the row number the slice starts at (row zero in the slice)
+   * @param count
+   *        the number of rows in the slice
+   */
+  public Table slice(long firstRow, long count) throws IOException {
+    return new Table(this, firstRow, count);
+  }
+
 
 
   /**
@@ -155,6 +221,45 @@ public class Table implements Channel {
   }
 
 
+  /**
+   * Writes one or more rows starting at the given <tt>row</tt> number, <em>without</em>
+   * updating the row count. Rows written past the row count are neither readable nor
+   * recovered until the row count is {@linkplain #advanceRowCount(long) advanced} over
+   * them. Safe under concurrent writes to disjoint rows.
+   *
+   * @param row
+   *          the zero-based row number (may be past the row count)
+   * @param rowData
+   *          buffer having 1 or multiple rows of data ready for writing
+   */
+  public void write(long row, ByteBuffer rowData) throws IOException {
+    checkOpen();
+    if (row < 0)
+      throw new IllegalArgumentException("row: " + row);
+    numRowsInBuffer(rowData);
+    ChannelUtils.writeRemaining(file, rowOffset(row), rowData);
+  }
+
+
+  /**
+   * Advances the row count to the given value, if it's greater than the current
+   * row count. Typically used to commit rows {@linkplain #write(long, ByteBuffer) written}
+   * past the row count.
+   *
+   * @return the row count on return
+   */
+  public long advanceRowCount(long newRowCount) throws IOException {
+    checkOpen();
+    synchronized (rowCount) {
+      long currentCount = rowCount.get();
+      if (newRowCount <= currentCount)
+        return currentCount;
+      rowCount.set(newRowCount);
+      return newRowCount;
+    }
+  }
+
+
   /**
    * Appends one or more rows to the table and returns the index (row number) of
    * the first row appended.
@@ -235,12 +340,60 @@ public class Table implements Channel {
           "Overflow: read request beyond end of table. " + "Row number is " + row +
           "; number of rows to copy into rawData buffer is " + rows +
           "; current row count is " + rowCount.get());
-    long fileOffset = rowOffset(row);
     checkOpen();
+    RowMap map = rowMap;
+    if (map != null && row + rows <= map.rowCount) {
+      map.copy(row, rows, rowData);
+      return;
+    }
+    CacheKey cacheKey = blockCacheKey;
+    if (cacheKey != null) {
+      readThru(cacheKey, row, rows, rowData);
+      return;
+    }
+    long fileOffset = rowOffset(row);
     ChannelUtils.readRemaining(file, fileOffset, rowData);
   }
   
   
+  /**
+   * Reads the given rows thru the block cache. Only whole blocks are cached: rows in
+   * the trailing partial block (if any) are read directly from the file.
+   */
+  private void readThru(CacheKey key, long row, int rows, ByteBuffer rowData)
+      throws IOException {
+    
+    final int rowsPerBlock = key.cache.rowsPerBlock(rowSize);
+    final long wholeBlocks = rowCount.get() / rowsPerBlock;
+    
+    while (rows > 0) {
+      long blockNo = row / rowsPerBlock;
+      int indexInBlock = (int) (row % rowsPerBlock);
+      int count = Math.min(rows, rowsPerBlock - indexInBlock);
+      
+      if (blockNo >= wholeBlocks) {
+        // the rest is in the partial block
+        ChannelUtils.readRemaining(file, rowOffset(row), rowData);
+        return;
+      }
+      
+      ByteBuffer block = key.get(blockNo);
+      if (block == null) {
+        block = ByteBuffer.allocate(rowsPerBlock * rowSize);
+        ChannelUtils.readRemaining(file, rowOffset(blockNo * rowsPerBlock), block);
+        block.flip();
+        key.put(blockNo, block);
+        block = block.duplicate();
+      }
+      block.limit((indexInBlock + count) * rowSize).position(indexInBlock * rowSize);
+      rowData.put(block);
+      
+      row += count;
+      rows -= count;
+    }
+  }
+  
+  
   /**
    * Transfers (copies) a block of rows to the given <tt>target</tt>. This should
    * be far more efficient than using a secondary work buffer to first read and
@@ -352,6 +505,9 @@ public class Table implements Channel {
       throw new IllegalArgumentException("newRowCount " + newRowCount + " > rowCount " + rowCount);
     
     this.rowCount.set(newRowCount);
+    // don't let reads touch unmapped pages, or stale blocks
+    rowMap = null;
+    retireBlockCache();
     
     trimToSize();
   }
@@ -401,6 +557,213 @@ public class Table implements Channel {
   }
   
   
+  /**
+   * Sets the block cache this instance reads thru. The instance gets its own
+   * (new) key in the cache, shared with its {@linkplain #Table(Table) copies};
+   * the key's blocks are invalidated when the last of these is closed.
+   * Only use this on a table whose existing rows won't change (appending is OK).
+   * {@linkplain #mapRows() Mapped} rows are read from the mapping, not the cache.
+   * 
+   * @param cache the cache, or <tt>null</tt> to stop using one
+   */
+  public synchronized void setBlockCache(BlockCache cache) {
+    CacheKey old = blockCacheKey;
+    blockCacheKey = cache == null ? null : new CacheKey(cache);
+    if (old != null)
+      old.release();
+  }
+  
+  
+  /**
+   * Returns the block cache this instance reads thru, if any.
+   * 
+   * @return possibly <tt>null</tt>
+   */
+  public BlockCache getBlockCache() {
+    CacheKey key = blockCacheKey;
+    return key == null ? null : key.cache;
+  }
+  
+  
+  /**
+   * Stops reading thru the block cache, and invalidates the blocks cached under
+   * this instance's key, whether or not the key is still shared with copies. Invoked
+   * when existing rows change.
+   */
+  private synchronized void retireBlockCache() {
+    CacheKey key = blockCacheKey;
+    if (key != null) {
+      blockCacheKey = null;
+      key.retire();
+    }
+  }
+  
+  
+  /**
+   * A table's key in its block cache, shared (reference counted) among the table's
+   * copies. The key's blocks are invalidated when either the last reference is
+   * released, or the key is retired outright. No blocks are cached under the key
+   * thereafter: reads thru a retired key go to the file.
+   */
+  private final static class CacheKey {
+    
+    final BlockCache cache;
+    final long key;
+    /** Guarded by <tt>this</tt>. */
+    private int refs = 1;
+    private volatile boolean retired;
+    
+    CacheKey(BlockCache cache) {
+      this.cache = cache;
+      this.key = cache.newTableKey();
+    }
+    
+    /**
+     * Acquires a reference, unless the key is already retired.
+     * 
+     * @return <tt>false</tt>, if retired
+     */
+    synchronized boolean acquire() {
+      if (retired)
+        return false;
+      ++refs;
+      return true;
+    }
+    
+    synchronized void release() {
+      if (--refs == 0)
+        retire();
+    }
+    
+    synchronized void retire() {
+      if (!retired) {
+        retired = true;
+        cache.invalidate(key);
+      }
+    }
+    
+    ByteBuffer get(long blockNo) {
+      return retired ? null : cache.get(key, blockNo);
+    }
+    
+    /**
+     * Offers the block to the cache, if the key is not retired. (Synchronized so
+     * that no block slips in after the key's blocks are invalidated.)
+     */
+    synchronized void put(long blockNo, ByteBuffer block) {
+      if (!retired)
+        cache.put(key, blockNo, block);
+    }
+  }
+  
+  
+  /**
+   * Maximum size of a single mapped region. (A <tt>MappedByteBuffer</tt> is
+   * int-indexed.)
+   */
+  public final static int MAX_MAP_CHUNK_SIZE = Integer.MAX_VALUE;
+  
+  
+  /**
+   * Maps the table's current rows into memory (read-only). Subsequent reads of those
+   * rows are served from memory. Tables bigger than 2 GB are mapped in multiple chunks.
+   * Only use this on a table whose existing rows won't change (appending is OK: new rows
+   * are read from the file, as usual).
+   * <p>
+   * Note the mapping is only released when it's garbage collected, not when the
+   * instance is closed.
+   * </p>
+   * 
+   * @see #mapRows(int)
+   */
+  public void mapRows() throws IOException {
+    mapRows(MAX_MAP_CHUNK_SIZE);
+  }
+  
+  
+  /**
+   * Maps the table's current rows into memory in chunks of at most <tt>maxChunkSize</tt>
+   * bytes. Each chunk holds a whole number of rows.
+   * 
+   * @see #mapRows()
+   */
+  public void mapRows(int maxChunkSize) throws IOException {
+    if (maxChunkSize < rowSize)
+      throw new IllegalArgumentException("maxChunkSize " + maxChunkSize + " < row width " + rowSize);
+    checkOpen();
+    long rows = getRowCount();
+    int rowsPerChunk = maxChunkSize / rowSize;
+    int chunkCount = (int) ((rows + rowsPerChunk - 1) / rowsPerChunk);
+    ByteBuffer[] chunks = new ByteBuffer[chunkCount];
+    for (int i = 0; i < chunkCount; ++i) {
+      long firstRow = ((long) i) * rowsPerChunk;
+      long chunkRows = Math.min(rowsPerChunk, rows - firstRow);
+      chunks[i] = file.map(FileChannel.MapMode.READ_ONLY, rowOffset(firstRow), chunkRows * rowSize);
+    }
+    rowMap = new RowMap(chunks, rowsPerChunk, rows, rowSize);
+  }
+  
+  
+  /**
+   * Determines whether the table's rows are (at least partially) mapped into memory.
+   */
+  public boolean isMapped() {
+    return rowMap != null;
+  }
+  
+  
+  /**
+   * Returns a read-only view of the given mapped row, or <tt>null</tt> if the row is not
+   * mapped. The returned buffer's position is zero and its limit is the row width.
+   * No data is copied.
+   * 
+   * @see #mapRows()
+   */
+  public ByteBuffer mappedRow(long row) {
+    RowMap map = rowMap;
+    return map == null || row < 0 || row >= map.rowCount ? null : map.row(row);
+  }
+  
+  
+  /**
+   * The mapped rows. Chunks hold a whole number of rows. Safe under concurrent access:
+   * the chunks' positional state is never touched.
+   */
+  private static class RowMap {
+    
+    final ByteBuffer[] chunks;
+    final int rowsPerChunk;
+    final long rowCount;
+    final int rowSize;
+    
+    RowMap(ByteBuffer[] chunks, int rowsPerChunk, long rowCount, int rowSize) {
+      this.chunks = chunks;
+      this.rowsPerChunk = rowsPerChunk;
+      this.rowCount = rowCount;
+      this.rowSize = rowSize;
+    }
+    
+    ByteBuffer row(long row) {
+      ByteBuffer chunk = chunks[(int) (row / rowsPerChunk)].asReadOnlyBuffer();
+      int pos = (int) (row % rowsPerChunk) * rowSize;
+      chunk.limit(pos + rowSize).position(pos);
+      return chunk.slice();
+    }
+    
+    void copy(long row, int rows, ByteBuffer out) {
+      while (rows > 0) {
+        ByteBuffer chunk = chunks[(int) (row / rowsPerChunk)].duplicate();
+        int index = (int) (row % rowsPerChunk);
+        int count = Math.min(rows, rowsPerChunk - index);
+        chunk.limit((index + count) * rowSize).position(index * rowSize);
+        out.put(chunk);
+        row += count;
+        rows -= count;
+      }
+    }
+  }
+  
+  
   protected final void checkOpen() throws ClosedChannelException {
     if (!sharedFile.isOpen())
       throw new ClosedChannelException();
@@ -417,6 +780,13 @@ public class Table implements Channel {
   public void close() throws IOException {
     rowCount.commit();
     sharedFile.close();
+    synchronized (this) {
+      CacheKey key = blockCacheKey;
+      if (key != null) {
+        blockCacheKey = null;
+        key.release();
+      }
+    }
   }
   
 
@@ -6,6 +6,7 @@ package io.crums.io.store.table;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.BitSet;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -164,17 +165,120 @@ public class TableSet implements Sorted, Closeable {
   }
   
   
+  /**
+   * Returns the row with the given <tt>key</tt>, or <tt>null</tt> if not found.
+   * Safe under concurrent access: searchers are borrowed from each table's
+   * {@linkplain SortedTable#searcherPool() pool}. Tables with a {@linkplain
+   * SortedTable#getBloomFilter() Bloom filter} that rules out the key are skipped.
+   */
   public ByteBuffer getRow(ByteBuffer key) throws IOException {
+    boolean hashed = false;
+    long keyHash = 0;
     for (int i = tables.length; i-- > 0; ) {
-      Searcher searcher = getSearcher(tables[i]);
-      if (searcher.search(key)) {
-        return searcher.getHitRow();
+      BloomFilter filter = tables[i].getBloomFilter();
+      if (filter != null) {
+        if (!hashed) {
+          keyHash = order.keyHash(key);
+          hashed = true;
+        }
+        if (!filter.mightContain(keyHash)) {
+          filter.getStats().skipped();
+          continue;
+        }
+        filter.getStats().passed();
+      }
+      SearcherPool pool = tables[i].searcherPool();
+      Searcher searcher = pool.borrow();
+      try {
+        if (searcher.search(key)) {
+          // the hit row is a view into the searcher's buffer: copy it
+          // before the searcher is returned to the pool
+          ByteBuffer row = ByteBuffer.allocate(rowWidth);
+          searcher.copyRowInto(searcher.getHitRowNumber(), row);
+          return row.flip().asReadOnlyBuffer();
+        }
+      } finally {
+        pool.giveBack(searcher);
       }
+      if (filter != null)
+        filter.getStats().falsePositive();
     }
     return null;
   }
   
   
+  /**
+   * Looks up the rows with the given <tt>keys</tt>, walking each table once. Since the keys
+   * are sorted, each table's search for a key starts where the search for the previous
+   * key left off, and often resolves from rows already read; once a key falls past a
+   * table's last row, the table's remaining keys are skipped. Bloom filters are consulted
+   * as in {@linkplain #getRow(ByteBuffer)}.
+   *
+   * @param keys  the keys, sorted and distinct
+   * @param rows  the output buffer: the row found for <tt>keys[i]</tt> is written at
+   *              position <tt>i</tt> &times; {@linkplain #getRowWidth() rowWidth}. Its
+   *              capacity must be at least <tt>keys.length</tt> &times; <tt>rowWidth</tt>.
+   *              On return, the buffer is cleared.
+   * @param found on input, the indexes of the keys already resolved (these are skipped);
+   *              on return, also includes the indexes of the keys found
+   *
+   * @return the number of keys found
+   */
+  public int getRows(ByteBuffer[] keys, ByteBuffer rows, BitSet found) throws IOException {
+    if (keys.length * (long) rowWidth > rows.capacity())
+      throw new IllegalArgumentException(
+          "rows buffer too small for " + keys.length + " keys: " + rows);
+    if (found == null)
+      throw new IllegalArgumentException("null found");
+
+    long[] keyHashes = null;
+    int hits = 0;
+    for (int i = tables.length; i-- > 0; ) {
+      if (found.nextClearBit(0) >= keys.length)
+        break;
+      BloomFilter filter = tables[i].getBloomFilter();
+      if (filter != null && keyHashes == null) {
+        keyHashes = new long[keys.length];
+        for (int k = 0; k < keys.length; ++k)
+          keyHashes[k] = order.keyHash(keys[k]);
+      }
+      final long rowCount = tables[i].getRowCount();
+      SearcherPool pool = tables[i].searcherPool();
+      Searcher searcher = pool.borrow();
+      try {
+        long fromRow = 0;
+        for (int k = found.nextClearBit(0); k < keys.length; k = found.nextClearBit(k + 1)) {
+          if (filter != null) {
+            if (!filter.mightContain(keyHashes[k])) {
+              filter.getStats().skipped();
+              continue;
+            }
+            filter.getStats().passed();
+          }
+          if (searcher.search(keys[k], fromRow)) {
+            rows.limit((k + 1) * rowWidth).position(k * rowWidth);
+            searcher.copyRowInto(searcher.getHitRowNumber(), rows);
+            found.set(k);
+            ++hits;
+            fromRow = searcher.getHitRowNumber() + 1;
+          } else {
+            if (filter != null)
+              filter.getStats().falsePositive();
+            fromRow = -searcher.getHitRowNumber() - 1;
+          }
+          if (fromRow >= rowCount)
+            // the remaining keys are beyond the last row
+            break;
+        }
+      } finally {
+        pool.giveBack(searcher);
+      }
+    }
+    rows.clear();
+    return hits;
+  }
+  
+  
   public List<SortedTable> tables() {
     return CollectionUtils.asReadOnlyList(tables);
   }
@@ -186,12 +290,6 @@ public class TableSet implements Sorted, Closeable {
 
   public final static int DEFAULT_SEARCH_BUFFER_SIZE = 8192;
 
-  
-  
-  protected Searcher getSearcher(SortedTable table) throws IOException {
-    return table.newSearcher(DEFAULT_SEARCH_BUFFER_SIZE / getRowWidth());
-  }
-
 
   /**
    * Closes the underlying tables. The base implementation does not throw
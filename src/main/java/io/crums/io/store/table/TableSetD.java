@@ -6,6 +6,7 @@ package io.crums.io.store.table;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.BitSet;
 
 import io.crums.io.store.table.del.DeleteCodec;
 import io.crums.io.store.table.iter.TableSetDIterator;
@@ -64,6 +65,35 @@ public class TableSetD extends TableSet {
   }
   
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Rows found deleted are unmarked in <tt>found</tt> (and are not counted). The
+   * keys already marked on input are left alone.
+   * </p>
+   */
+  @Override
+  public int getRows(ByteBuffer[] keys, ByteBuffer rows, BitSet found) throws IOException {
+    if (!hasDc())
+      return super.getRows(keys, rows, found);
+    
+    BitSet resolved = (BitSet) found.clone();
+    int hits = super.getRows(keys, rows, found);
+    final int rowWidth = getRowWidth();
+    ByteBuffer row = rows.duplicate();
+    for (int k = found.nextSetBit(0); k != -1; k = found.nextSetBit(k + 1)) {
+      if (resolved.get(k))
+        continue;
+      row.limit((k + 1) * rowWidth).position(k * rowWidth);
+      if (deleteCodec.isDeleted(row.slice())) {
+        found.clear(k);
+        --hits;
+      }
+    }
+    return hits;
+  }
+  
+
   @Override
   public TableSetIterator iterator() throws IOException {
     return hasDc() ? new TableSetDIterator(this) : new TableSetIterator(this);
@@ -6,15 +6,38 @@ package io.crums.io.store.table;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Logger;
 
 import io.crums.io.FileUtils;
 import io.crums.io.buffer.SortedViewBlock;
+import io.crums.io.channels.ChannelUtils;
 import io.crums.io.store.table.order.RowOrder;
+import io.crums.util.TaskStack;
 
 /**
+ * Sorts the rows of an unsorted table into a new file. There are 2 paths:
+ * <ol>
+ * <li>{@linkplain #sort(Table, File)}. The whole table is loaded into the memory
+ * buffer and sorted there, in one thread.</li>
+ * <li>{@linkplain #sortExternal(Table, File, File, boolean)}. For tables larger
+ * than the memory buffer. The table is read in runs the size of the memory buffer.
+ * Each run is divided into slices, one per thread of the {@linkplain #getPool()
+ * fork/join pool}; the slices are sorted in parallel, then merged in memory. If the
+ * table fits in a single run, the merged run is the output; o.w., the runs are spilled
+ * to temp files, and then k-way merged into the output, each run read thru its own
+ * window of the memory buffer.</li>
+ * </ol>
+ * Either way, the output is a headerless file of sorted rows (as in
+ * {@linkplain Table#newSansKeystoneInstance(FileChannel, int)}).
+ * <p>
+ * Not safe under concurrent access.
+ * </p>
  * 
  * @author Babak
  */
@@ -26,6 +49,10 @@ public class TableSorter {
   
   private final RowOrder order;
   
+  private ForkJoinPool pool = ForkJoinPool.commonPool();
+  
+  private int runCount;
+  
 
   public TableSorter(ByteBuffer memoryBuffer, RowOrder order) throws IOException {
     this.memoryBuffer = memoryBuffer;
@@ -44,6 +71,36 @@ public class TableSorter {
   }
   
   
+  /**
+   * Returns the pool the runs of an {@linkplain #sortExternal(Table, File, File, boolean)
+   * external sort} are sorted on. Defaults to the common pool.
+   */
+  public ForkJoinPool getPool() {
+    return pool;
+  }
+  
+  
+  /**
+   * Sets the pool the runs of an external sort are sorted on. Its parallelism
+   * determines the number of slices each run is divided into.
+   */
+  public void setPool(ForkJoinPool pool) {
+    if (pool == null)
+      throw new IllegalArgumentException("null pool");
+    this.pool = pool;
+  }
+  
+  
+  /**
+   * Returns the number of sorted runs the last external sort spilled; zero, if
+   * none was run, or if there was only one run (which is written directly to the
+   * output).
+   */
+  public int getRunCount() {
+    return runCount;
+  }
+  
+  
   public void sort(Table table, File output) throws IOException {
     if (table == null)
       throw new IllegalArgumentException("null table");
@@ -71,4 +128,408 @@ public class TableSorter {
     }
   }
 
+  
+  
+  /**
+   * Sorts the given table into the <tt>output</tt> file. The table may be larger than
+   * the memory buffer. The runs spilled to <tt>workDir</tt> (if any) are deleted on return.
+   * <p>
+   * Each spilled run is merged thru an equal share of the memory buffer, so the number of
+   * rows the buffer holds bounds the number of runs (the table's row count is bounded by
+   * roughly the square of the buffer's row capacity).
+   * </p>
+   * 
+   * @param table
+   *        the unsorted table
+   * @param output
+   *        the path to the output file (must not exist)
+   * @param workDir
+   *        the directory the sorted runs are spilled to. Best on the same file system
+   *        as the output.
+   * @param dedup
+   *        if <tt>true</tt>, then of the rows that compare equal only the one that
+   *        comes last in the table is written
+   * 
+   * @return the number of rows written
+   */
+  public long sortExternal(Table table, File output, File workDir, boolean dedup)
+      throws IOException {
+    
+    if (table == null)
+      throw new IllegalArgumentException("null table");
+    if (workDir == null)
+      throw new IllegalArgumentException("null workDir");
+    FileUtils.assertDoesntExist(output);
+    if (table.isEmpty())
+      throw new IllegalArgumentException(
+          "empty table " + table + " with output path " + output);
+    
+    final int rowWidth = table.getRowWidth();
+    final long rows = table.getRowCount();
+    final int maxRunRows = memoryBuffer.capacity() / rowWidth;
+    if (maxRunRows == 0)
+      throw new IllegalArgumentException(
+          "memory buffer smaller than row width (" + memoryBuffer.capacity() +
+          " < " + rowWidth + ")");
+    
+    final int runRows = (int) Math.min(rows, maxRunRows);
+    final long runs = (rows + runRows - 1) / runRows;
+    if (runs > maxRunRows)
+      throw new IllegalArgumentException(
+          "memory buffer too small to merge " + runs + " runs (" + memoryBuffer.capacity() +
+          " bytes; " + rows + " rows of width " + rowWidth + ")");
+    runCount = 0;
+    
+    final ByteBuffer outBuffer =
+        ByteBuffer.allocate(Math.max(1, OUTPUT_BUFFER_SIZE / rowWidth) * rowWidth);
+    
+    // a single run is written directly to the output
+    if (runs == 1) {
+      try (
+          @SuppressWarnings("resource")
+          FileChannel out = new FileOutputStream(output).getChannel()) {
+        return sortRun(table, 0, runRows, new RowWriter(out, outBuffer, rowWidth), dedup);
+      }
+    }
+    
+    try (TaskStack closer = new TaskStack()) {
+      
+      File[] spills = new File[(int) runs];
+      for (int run = 0; run < runs; ++run) {
+        long firstRow = run * (long) runRows;
+        int count = (int) Math.min(runRows, rows - firstRow);
+        spills[run] = spillFile(workDir, closer);
+        try (
+            @SuppressWarnings("resource")
+            FileChannel out = new FileOutputStream(spills[run]).getChannel()) {
+          sortRun(table, firstRow, count, new RowWriter(out, outBuffer, rowWidth), dedup);
+        }
+      }
+      runCount = spills.length;
+      
+      // the memory buffer is free again: divide it into read windows, one per run
+      final int windowBytes = (maxRunRows / spills.length) * rowWidth;
+      RowCursor[] cursors = new RowCursor[spills.length];
+      for (int run = 0; run < spills.length; ++run) {
+        @SuppressWarnings("resource")
+        FileChannel channel = new RandomAccessFile(spills[run], "r").getChannel();
+        closer.pushClose(channel);
+        cursors[run] = new WindowCursor(
+            run, channel, slice(run * windowBytes, windowBytes), rowWidth);
+      }
+      
+      // the runs are in table order, so with dedup the last row written wins
+      try (
+          @SuppressWarnings("resource")
+          FileChannel out = new FileOutputStream(output).getChannel()) {
+        return merge(cursors, new RowWriter(out, outBuffer, rowWidth), dedup);
+      }
+    }
+  }
+  
+  
+  /**
+   * Size of the buffer rows are written thru in an external sort. It's allocated
+   * in addition to the memory buffer.
+   */
+  private final static int OUTPUT_BUFFER_SIZE = 64 * 1024;
+  
+  /**
+   * A run is only divided into slices (for parallel sorting) if each slice has at
+   * least this many rows.
+   */
+  private final static int MIN_SLICE_ROWS = 128;
+  
+  
+  /**
+   * Loads the given run of rows into the memory buffer, sorts it, and writes it out.
+   * The run is divided into slices which are sorted in parallel on the pool, and then
+   * merged.
+   * 
+   * @return the number of rows written
+   */
+  private long sortRun(Table table, long firstRow, int rows, RowWriter out, boolean dedup)
+      throws IOException {
+    
+    final int rowWidth = table.getRowWidth();
+    ByteBuffer block = slice(0, rows * rowWidth);
+    table.read(firstRow, block);
+    block.flip();
+    
+    final int slices = Math.max(1, Math.min(pool.getParallelism(), rows / MIN_SLICE_ROWS));
+    SliceSort[] tasks = new SliceSort[slices];
+    for (int s = 0; s < slices; ++s) {
+      int from = (int) ((long) rows * s / slices);
+      int to = (int) ((long) rows * (s + 1) / slices);
+      block.limit(to * rowWidth).position(from * rowWidth);
+      tasks[s] = new SliceSort(block.slice(), rowWidth);
+    }
+    if (slices == 1)
+      tasks[0].compute();
+    else {
+      for (SliceSort task : tasks)
+        pool.execute(task);
+      for (SliceSort task : tasks)
+        task.join();
+    }
+    
+    // the slices are in table order (and their sorts are stable), so with
+    // dedup the last row written wins
+    RowCursor[] cursors = new RowCursor[slices];
+    for (int s = 0; s < slices; ++s)
+      cursors[s] = new CellCursor(s, tasks[s].cells);
+    return merge(cursors, out, dedup);
+  }
+  
+  
+  /**
+   * K-way merges the rows of the given cursors into <tt>out</tt>. Rows that compare
+   * equal are ordered by their cursors' indexes.
+   * 
+   * @param dedup
+   *        if <tt>true</tt>, then of the rows that compare equal only the last one
+   *        is written
+   * 
+   * @return the number of rows written
+   */
+  private long merge(RowCursor[] cursors, RowWriter out, boolean dedup) throws IOException {
+    final boolean prefixed = order.hasKeyPrefix();
+    RowCursor[] heap = new RowCursor[cursors.length];
+    int size = 0;
+    for (RowCursor cursor : cursors) {
+      if (advance(cursor, prefixed))
+        heap[size++] = cursor;
+    }
+    for (int index = size / 2 - 1; index >= 0; --index)
+      siftDown(heap, index, size, prefixed);
+    
+    final ByteBuffer last = dedup ? ByteBuffer.allocate(out.rowWidth) : null;
+    boolean hasLast = false;
+    long count = 0;
+    while (size > 0) {
+      RowCursor top = heap[0];
+      ByteBuffer row = top.row;
+      if (hasLast && order.compareRows(last, row) == 0)
+        out.replaceLast(row);
+      else {
+        out.append(row);
+        ++count;
+      }
+      if (dedup) {
+        last.clear();
+        last.put(row);
+        last.flip();
+        row.rewind();
+        hasLast = true;
+      }
+      if (!advance(top, prefixed))
+        heap[0] = heap[--size];
+      siftDown(heap, 0, size, prefixed);
+    }
+    out.flush();
+    return count;
+  }
+  
+  
+  private boolean advance(RowCursor cursor, boolean prefixed) throws IOException {
+    if (!cursor.advance())
+      return false;
+    if (prefixed)
+      cursor.prefix = order.keyPrefix(cursor.row);
+    return true;
+  }
+  
+  
+  private void siftDown(RowCursor[] heap, int index, int size, boolean prefixed) {
+    RowCursor cursor = heap[index];
+    while (true) {
+      int child = 2 * index + 1;
+      if (child >= size)
+        break;
+      if (child + 1 < size && compare(heap[child + 1], heap[child], prefixed) < 0)
+        ++child;
+      if (compare(cursor, heap[child], prefixed) <= 0)
+        break;
+      heap[index] = heap[child];
+      index = child;
+    }
+    heap[index] = cursor;
+  }
+  
+  
+  private int compare(RowCursor a, RowCursor b, boolean prefixed) {
+    if (prefixed && a.prefix != b.prefix)
+      return a.prefix < b.prefix ? -1 : 1;
+    int comp = order.compareRows(a.row, b.row);
+    return comp == 0 ? Integer.compare(a.index, b.index) : comp;
+  }
+  
+  
+  private ByteBuffer slice(int offset, int bytes) {
+    ByteBuffer slice = memoryBuffer.duplicate();
+    slice.clear().position(offset).limit(offset + bytes);
+    return slice.slice();
+  }
+  
+  
+  private File spillFile(File workDir, TaskStack closer) throws IOException {
+    final File spill = File.createTempFile("xsort", ".tmp", workDir);
+    closer.pushRun(new Runnable() {
+      @Override
+      public void run() {
+        if (!spill.delete())
+          LOG.warning("failed to delete temp file " + spill);
+      }
+    });
+    return spill;
+  }
+  
+  
+  /**
+   * Sorts a slice of a run in place (that is, its cell views). The sort is stable.
+   */
+  @SuppressWarnings("serial")
+  private class SliceSort extends RecursiveAction {
+    
+    private final ByteBuffer[] cells;
+    
+    SliceSort(ByteBuffer block, int rowWidth) {
+      this.cells = new ByteBuffer[block.remaining() / rowWidth];
+      for (int index = 0; index < cells.length; ++index) {
+        block.limit((index + 1) * rowWidth).position(index * rowWidth);
+        cells[index] = block.slice();
+      }
+    }
+    
+    @Override
+    protected void compute() {
+      Arrays.sort(cells, order);
+    }
+  }
+  
+  
+  /**
+   * A sorted sequence of rows, positioned at its current row. Initially positioned
+   * before the first row.
+   */
+  private static abstract class RowCursor {
+    
+    /** Breaks ties among rows that compare equal. */
+    final int index;
+    /** The current row (positioned at zero). */
+    ByteBuffer row;
+    /** The current row's key prefix, if the order supports prefixes. */
+    long prefix;
+    
+    RowCursor(int index) {
+      this.index = index;
+    }
+    
+    /**
+     * Advances to the next row.
+     * 
+     * @return <tt>false</tt>, if there are no more rows
+     */
+    abstract boolean advance() throws IOException;
+  }
+  
+  
+  /**
+   * Cursor over the sorted cells of an in-memory slice.
+   */
+  private static class CellCursor extends RowCursor {
+    
+    private final ByteBuffer[] cells;
+    private int next;
+    
+    CellCursor(int index, ByteBuffer[] cells) {
+      super(index);
+      this.cells = cells;
+    }
+    
+    @Override
+    boolean advance() {
+      if (next == cells.length)
+        return false;
+      row = cells[next++];
+      return true;
+    }
+  }
+  
+  
+  /**
+   * Cursor over a spilled run, read sequentially thru a window of the memory buffer.
+   * The current row is a copy, so that the window may be refilled.
+   */
+  private static class WindowCursor extends RowCursor {
+    
+    private final FileChannel file;
+    private final ByteBuffer window;
+    private final long size;
+    private long position;
+    
+    WindowCursor(int index, FileChannel file, ByteBuffer window, int rowWidth)
+        throws IOException {
+      super(index);
+      this.file = file;
+      this.window = window;
+      this.size = file.size();
+      this.row = ByteBuffer.allocate(rowWidth);
+      window.limit(0);
+    }
+    
+    @Override
+    boolean advance() throws IOException {
+      if (!window.hasRemaining()) {
+        if (position == size)
+          return false;
+        window.clear();
+        if (size - position < window.capacity())
+          window.limit((int) (size - position));
+        ChannelUtils.readRemaining(file, position, window);
+        position += window.flip().limit();
+      }
+      window.get(row.array());
+      return true;
+    }
+  }
+  
+  
+  /**
+   * Writes rows thru a buffer. The last row appended stays in the buffer until
+   * another is appended, so that it can be replaced.
+   */
+  private static class RowWriter {
+    
+    private final FileChannel out;
+    private final ByteBuffer buffer;
+    private final int rowWidth;
+    
+    RowWriter(FileChannel out, ByteBuffer buffer, int rowWidth) {
+      this.out = out;
+      this.buffer = buffer;
+      this.rowWidth = rowWidth;
+      buffer.clear();
+    }
+    
+    void append(ByteBuffer row) throws IOException {
+      if (buffer.remaining() < rowWidth)
+        flush();
+      buffer.put(row);
+      row.rewind();
+    }
+    
+    void replaceLast(ByteBuffer row) {
+      buffer.position(buffer.position() - rowWidth);
+      buffer.put(row);
+      row.rewind();
+    }
+    
+    void flush() throws IOException {
+      buffer.flip();
+      ChannelUtils.writeRemaining(out, buffer);
+      buffer.clear();
+    }
+  }
+
 }
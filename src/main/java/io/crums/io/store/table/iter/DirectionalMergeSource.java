@@ -93,6 +93,16 @@ public class DirectionalMergeSource extends PrecedenceMergeSource {
   }
 
   
+  /**
+   * The read-ahead window extends backward iff the {@linkplain #getDirection() direction}
+   * is <tt>REVERSE</tt>.
+   */
+  @Override
+  protected boolean isReadingBackward(long rowNum) {
+    return direction == REVERSE;
+  }
+
+  
   /**
    * Sets the current row to one matching the given <tt>key</tt> row, if found;
    * otherwise the current row is set to one immediately following the given
@@ -43,7 +43,9 @@ public class MergeRowIterator extends RowIterator {
       if (pIter.getRowWidth() != rowWidth)
         throw new IllegalArgumentException(
             "rowWidth mistmatch at [" + i + "]: expected " + rowWidth + " but actual was " + pIter.getRowWidth());
-      this.subs.add(pIter);
+      // invariant: none of the subs is exhausted
+      if (pIter.hasNext())
+        this.subs.add(pIter);
     }
     Collections.sort(this.subs);
   }
@@ -46,6 +46,33 @@ public class SortedBufferIterator extends RowIterator {
     this.direction = direction;
     this.rowWidth = rowWidth;
   }
+  
+  
+  /**
+   * Creates an instance using the given <tt>iterator</tt> over buffers already ordered
+   * in the given <tt>direction</tt>.
+   * 
+   * @param iter
+   *        iterates over buffers with <tt>rowWidth</tt> remaining bytes each, in
+   *        <tt>direction</tt> order. Neither condition is validated.
+   * @param direction
+   *        {@linkplain Direction#FORWARD FORWARD} or {@linkplain Direction#REVERSE REVERSE}
+   * @param rowWidth
+   *        the number of bytes in a row
+   */
+  public SortedBufferIterator(Iterator<ByteBuffer> iter, Direction direction, int rowWidth) {
+    
+    if (iter == null)
+      throw new IllegalArgumentException("null iterator");
+    if (direction == null)
+      throw new IllegalArgumentException("null direction");
+    if (rowWidth < 1)
+      throw new IllegalArgumentException("rowWidth: " + rowWidth);
+    
+    this.iter = iter;
+    this.direction = direction;
+    this.rowWidth = rowWidth;
+  }
 
 
   @Override
@@ -75,11 +102,9 @@ public class SortedBufferIterator extends RowIterator {
     if (!iter.hasNext())
       return null;
     ByteBuffer next = iter.next();
-    // (concurrent access failure points below..)
     buffer.clear();
-    next.mark();
-    buffer.put(next);
-    next.reset();
+    // (the source buffer may be concurrently accessed: leave its position alone)
+    buffer.put(next.duplicate());
     buffer.flip();
     return buffer;
   }
@@ -11,11 +11,14 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import io.crums.io.store.NotSortedException;
+import io.crums.io.store.table.FenceIndex;
 import io.crums.io.store.table.SortedTable;
 import io.crums.io.store.table.TableSet;
 import io.crums.io.store.table.SortedTable.Searcher;
+import io.crums.io.store.table.merge.BaseMergeSource;
 
 /**
  * 
@@ -25,6 +28,10 @@ public class TableSetIterator extends RowIterator {
   
   protected final ArrayList<DirectionalMergeSource> activeSources;
   protected final List<DirectionalMergeSource> sources;
+  /**
+   * Scratch list of the sources advanced in a {@linkplain #nextImpl(ByteBuffer)} step.
+   */
+  private final ArrayList<DirectionalMergeSource> moved = new ArrayList<>();
   
   private final int rowWidth;
 
@@ -52,8 +59,12 @@ public class TableSetIterator extends RowIterator {
   
   protected Searcher newSearcher(List<SortedTable> stack, int index) throws IOException {
     SortedTable table = stack.get(index);
-    int bufferRowCount = (int) Math.min(
-        table.getRowCount(), SEARCH_BUFFER_SIZE / table.getRowWidth());
+    int bufferRowCount = SEARCH_BUFFER_SIZE / table.getRowWidth();
+    // if indexed, a stride's worth of rows fits in the buffer (single read per search)
+    FenceIndex fences = table.getFenceIndex();
+    if (fences != null)
+      bufferRowCount = Math.max(bufferRowCount, fences.getStride());
+    bufferRowCount = (int) Math.min(table.getRowCount(), bufferRowCount);
     return table.newSearcher(bufferRowCount);
   }
   
@@ -87,6 +98,35 @@ public class TableSetIterator extends RowIterator {
   public final int getRowWidth() {
     return rowWidth;
   }
+  
+  
+  /**
+   * Sets the executor the table sources prefetch their next read-ahead windows on,
+   * during sequential scans. Pass <tt>null</tt> (the default) to turn off prefetching.
+   * 
+   * @see BaseMergeSource#setPrefetcher(Executor)
+   */
+  public void setPrefetcher(Executor prefetcher) {
+    for (DirectionalMergeSource source : sources)
+      source.setPrefetcher(prefetcher);
+  }
+  
+  
+  /**
+   * Returns the average number of rows the table sources loaded per read (syscall)
+   * they issued.
+   * 
+   * @see BaseMergeSource#getRowsPerRead()
+   */
+  public double getRowsPerRead() {
+    long rowLoads = 0;
+    long reads = 0;
+    for (DirectionalMergeSource source : sources) {
+      rowLoads += source.getRowLoads();
+      reads += source.getReadCount();
+    }
+    return BaseMergeSource.rowsPerRead(rowLoads, reads);
+  }
 
   
   @Override
@@ -155,8 +195,18 @@ public class TableSetIterator extends RowIterator {
         // at the lower indices
         activeSources.remove(index);
     }
-    // maintain the post-condition invariant
-    Collections.sort(activeSources);
+    // maintain the post-condition invariant: only the sources above index
+    // were advanced, so re-insert just those into the (still sorted) rest
+    int advanced = activeSources.size() - index - 1;
+    if (advanced == 1)
+      BaseMergeSource.resort(activeSources, index + 1);
+    else if (advanced > 1) {
+      moved.clear();
+      while (advanced-- > 0)
+        moved.add(activeSources.remove(activeSources.size() - 1));
+      for (DirectionalMergeSource source : moved)
+        BaseMergeSource.insertSorted(activeSources, source);
+    }
     return next;
     
   }
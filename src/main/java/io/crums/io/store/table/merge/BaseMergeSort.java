@@ -4,10 +4,16 @@
 package io.crums.io.store.table.merge;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 
+import io.crums.io.store.table.BloomFilter;
 import io.crums.io.store.table.SortedTable;
+import io.crums.util.cc.throt.TokenBucket;
 
 /**
  * 
@@ -18,11 +24,32 @@ public abstract class BaseMergeSort<M extends BaseMergeSource<M>> {
 
   public final static int DEFAULT_ROWS_PER_SEARCH_BUFFER = 64;
   
+  /**
+   * When {@linkplain #setIoBudget(TokenBucket, TokenBucket) rate limited}, block copies
+   * are broken up into chunks of about this many bytes.
+   */
+  public final static int RATE_LIMITED_CHUNK_BYTES = 1024 * 1024;
+  
+  
   
   
   
   
+  /**
+   * Supplies the targets a {@linkplain BaseMergeSort#setSplitTargets(long, TargetFactory)
+   * split} merge's output continues on.
+   */
+  public interface TargetFactory {
+    /**
+     * Returns a new, empty target table.
+     */
+    SortedTable newTarget() throws IOException;
+  }
+  
   
+  /**
+   * The (first) target.
+   */
   protected final SortedTable target;
   
   /**
@@ -41,6 +68,19 @@ public abstract class BaseMergeSort<M extends BaseMergeSource<M>> {
   
   private boolean abort;
   
+  private int bloomFilterBitsPerKey;
+  private BloomFilter bloomFilter;
+  
+  private TokenBucket readBudget;
+  private TokenBucket writeBudget;
+  
+  private long maxRowsPerTarget;
+  private TargetFactory targetFactory;
+  private final ArrayList<SortedTable> targets = new ArrayList<>(1);
+  private final ArrayList<BloomFilter> bloomFilters = new ArrayList<>(1);
+  
+  private boolean concatenated;
+  
   
   public BaseMergeSort(
       SortedTable target, SortedTable[] sources, int searchBufferRowsPerTable)
@@ -50,6 +90,7 @@ public abstract class BaseMergeSort<M extends BaseMergeSource<M>> {
     
     if (target == null)
       throw new IllegalArgumentException("null target");
+    targets.add(target);
     if (sources == null)
       throw new IllegalArgumentException("null merge tables array");
     if (!target.isOpen())
@@ -117,6 +158,38 @@ public abstract class BaseMergeSort<M extends BaseMergeSource<M>> {
   }
   
   
+  /**
+   * Returns the target tables, in key order. Unless the output is
+   * {@linkplain #setSplitTargets(long, TargetFactory) split}, this is just the
+   * {@linkplain #getTarget() target}.
+   */
+  public List<SortedTable> getTargets() {
+    return Collections.unmodifiableList(targets);
+  }
+  
+  
+  /**
+   * Splits the merge output across as many targets as necessary, so that no target
+   * has more than the given number of rows. The first target is the one the instance
+   * was constructed with; the rest are supplied by the given <tt>factory</tt> as
+   * needed. Since the merged rows are unique, the targets' key ranges don't overlap.
+   * 
+   * @throws IllegalStateException
+   *         if the merge has already started
+   * @see #getTargets()
+   */
+  public void setSplitTargets(long maxRowsPerTarget, TargetFactory factory) {
+    if (maxRowsPerTarget < 1)
+      throw new IllegalArgumentException("maxRowsPerTarget: " + maxRowsPerTarget);
+    if (factory == null)
+      throw new IllegalArgumentException("null factory");
+    if (startTime != 0)
+      throw new IllegalStateException("already started");
+    this.maxRowsPerTarget = maxRowsPerTarget;
+    this.targetFactory = factory;
+  }
+  
+  
   public boolean isFinished() {
     return endTime != 0;
   }
@@ -152,11 +225,133 @@ public abstract class BaseMergeSort<M extends BaseMergeSource<M>> {
     return endMillis - startTime;
   }
   
+  
+  /**
+   * Returns the average number of rows the merge sources loaded per read (syscall)
+   * they issued. Block copies and searches are not counted.
+   * 
+   * @see BaseMergeSource#getRowsPerRead()
+   */
+  public double getRowsPerRead() {
+    long rowLoads = 0;
+    long reads = 0;
+    for (List<M> list : Arrays.asList(sources, finishedSources)) {
+      for (M source : list) {
+        rowLoads += source.getRowLoads();
+        reads += source.getReadCount();
+      }
+    }
+    return BaseMergeSource.rowsPerRead(rowLoads, reads);
+  }
+  
+  
+  /**
+   * Tests whether the sources' key ranges turned out not to overlap, in which case
+   * the merge was a simple concatenation of the sources, in key order.
+   * 
+   * @see #mergeToTarget()
+   */
+  public final boolean isConcatenated() {
+    return concatenated;
+  }
+  
 
   
   
   /**
-   * Merges the sources to the target table.
+   * Sets the number of bits per key of the Bloom filter built over the target once
+   * the merge completes. Zero (the default) means no filter is built.
+   * 
+   * @throws IllegalArgumentException
+   *         if <tt>bitsPerKey</tt> is negative, or if it's positive and the target's row
+   *         order doesn't support {@linkplain io.crums.io.store.table.order.RowOrder#hasKeyHash()
+   *         key hashing}
+   * @throws IllegalStateException
+   *         if the merge has already started
+   * 
+   * @see #getBloomFilter()
+   */
+  public void setBloomFilterBitsPerKey(int bitsPerKey) {
+    if (bitsPerKey < 0)
+      throw new IllegalArgumentException("bitsPerKey: " + bitsPerKey);
+    if (bitsPerKey > 0 && !target.order().hasKeyHash())
+      throw new IllegalArgumentException("key hashing not supported by " + target.order());
+    if (startTime != 0)
+      throw new IllegalStateException("already started");
+    this.bloomFilterBitsPerKey = bitsPerKey;
+  }
+  
+  
+  public final int getBloomFilterBitsPerKey() {
+    return bloomFilterBitsPerKey;
+  }
+  
+  
+  /**
+   * Sets the byte budgets the merge draws from as it copies rows from the sources
+   * to the target. Either argument may be <tt>null</tt> (no limit). A budget may be
+   * shared across merges, in which case they share its rate.
+   * 
+   * @throws IllegalStateException
+   *         if the merge has already started
+   */
+  public void setIoBudget(TokenBucket readBudget, TokenBucket writeBudget) {
+    if (startTime != 0)
+      throw new IllegalStateException("already started");
+    this.readBudget = readBudget;
+    this.writeBudget = writeBudget;
+  }
+  
+  
+  /**
+   * Returns the read budget, if any.
+   */
+  public final TokenBucket getReadBudget() {
+    return readBudget;
+  }
+  
+  
+  /**
+   * Returns the write budget, if any.
+   */
+  public final TokenBucket getWriteBudget() {
+    return writeBudget;
+  }
+  
+  
+  /**
+   * Returns the Bloom filter over the target, if one was built.
+   * 
+   * @return <tt>null</tt>, if the merge hasn't (successfully) finished, or if no
+   *         filter was configured
+   * 
+   * @see #setBloomFilterBitsPerKey(int)
+   */
+  public BloomFilter getBloomFilter() {
+    return bloomFilter;
+  }
+  
+  
+  /**
+   * Returns the Bloom filters over the {@linkplain #getTargets() targets}, in the same
+   * order, if they were built; an empty list, o.w.
+   */
+  public List<BloomFilter> getBloomFilters() {
+    return Collections.unmodifiableList(bloomFilters);
+  }
+  
+  
+  
+  /**
+   * Merges the sources to the target table. If so {@linkplain #setBloomFilterBitsPerKey(int)
+   * configured}, a Bloom filter is then built by scanning the target. (The last source's
+   * tail is appended in bulk without passing thru memory, so the filter can't be built
+   * along the way.)
+   * <p>
+   * If the sources' key ranges don't overlap (as often with time series, or otherwise
+   * increasing keys), then they're just {@linkplain #isConcatenated() concatenated}:
+   * each is appended to the target in bulk, with no row comparisons.
+   * </p>
    */
   public void mergeToTarget() throws IOException {
     
@@ -166,6 +361,16 @@ public abstract class BaseMergeSort<M extends BaseMergeSource<M>> {
       startTime = System.currentTimeMillis();
     }
     
+    if (sourcesDisjoint()) {
+      concatenated = true;
+      // (sources are in reverse order)
+      while (!sources.isEmpty() && !abort) {
+        M first = sources.remove(sources.size() - 1);
+        concatenate(first);
+        finishedSources.add(first);
+      }
+    }
+    
     while (sources.size() > 1 && !abort) {
       // assumed invariant: sources are sorted
       processTop();
@@ -173,14 +378,119 @@ public abstract class BaseMergeSort<M extends BaseMergeSource<M>> {
     
     if (!abort && !sources.isEmpty()) {
       M last = sources.get(0);
-      target.appendRows(
-          last.table(), last.rowNumber(), last.rowCount() - last.rowNumber());
+      appendBlock(last.table(), last.rowNumber(), last.rowCount() - last.rowNumber());
+    }
+    
+    if (!abort && bloomFilterBitsPerKey > 0) {
+      for (SortedTable table : targets)
+        bloomFilters.add(BloomFilter.build(table, bloomFilterBitsPerKey));
+      bloomFilter = bloomFilters.get(0);
     }
     
     endTime = System.currentTimeMillis();
   }
   
   
+  /**
+   * Appends the remaining rows of the given source to the target, when the sources
+   * are {@linkplain #isConcatenated() concatenated}. The base implementation appends
+   * them in one block.
+   */
+  protected void concatenate(M source) throws IOException {
+    appendBlock(source.table(), source.rowNumber(), source.rowCount() - source.rowNumber());
+  }
+  
+  
+  /**
+   * Tests whether the (unfinished) sources' remaining rows have non-overlapping key
+   * ranges. Costs a row read per source.
+   */
+  private boolean sourcesDisjoint() throws IOException {
+    // invariant: sources are sorted (in reverse order) by their current rows
+    ByteBuffer lastRow = ByteBuffer.allocate(target.getRowWidth());
+    for (int index = sources.size(); index-- > 1; ) {
+      M source = sources.get(index);
+      lastRow.clear();
+      source.table().read(source.rowCount() - 1, lastRow);
+      lastRow.flip();
+      if (target.order().compare(lastRow, sources.get(index - 1).row()) >= 0)
+        return false;
+    }
+    return true;
+  }
+  
+  
+  /**
+   * Appends the given block of rows from <tt>source</tt> to the current target (see
+   * {@linkplain #setSplitTargets(long, TargetFactory)}). If there's an
+   * {@linkplain #setIoBudget(TokenBucket, TokenBucket) I/O budget}, then the block is
+   * copied in {@linkplain #RATE_LIMITED_CHUNK_BYTES chunks}, each paid for (in bytes)
+   * before it's copied.
+   */
+  protected void appendBlock(SortedTable source, long firstRow, long count)
+      throws IOException {
+    SortedTable current = targets.get(targets.size() - 1);
+    if (targetFactory == null) {
+      copyBlock(current, source, firstRow, count);
+      return;
+    }
+    while (count > 0 && !abort) {
+      long room = maxRowsPerTarget - current.getRowCount();
+      if (room <= 0) {
+        current = targetFactory.newTarget();
+        targets.add(current);
+        room = maxRowsPerTarget;
+      }
+      long rows = Math.min(count, room);
+      copyBlock(current, source, firstRow, rows);
+      firstRow += rows;
+      count -= rows;
+    }
+  }
+  
+  
+  private void copyBlock(SortedTable current, SortedTable source, long firstRow, long count)
+      throws IOException {
+    if (readBudget == null && writeBudget == null) {
+      current.appendRows(source, firstRow, count);
+      return;
+    }
+    final int rowWidth = target.getRowWidth();
+    final long chunkRows = Math.max(1, RATE_LIMITED_CHUNK_BYTES / rowWidth);
+    while (count > 0 && !abort) {
+      long rows = Math.min(count, chunkRows);
+      long bytes = rows * rowWidth;
+      try {
+        if (readBudget != null)
+          readBudget.acquire(bytes);
+        if (writeBudget != null)
+          writeBudget.acquire(bytes);
+      } catch (InterruptedException ix) {
+        throw new InterruptedIOException("interrupted while rate limited: " + ix.getMessage());
+      }
+      current.appendRows(source, firstRow, rows);
+      firstRow += rows;
+      count -= rows;
+    }
+  }
+  
+  
+  /**
+   * Restores the post-condition of {@linkplain #processTop()} after the current row
+   * of the source at the given <tt>index</tt> has been advanced: if the source is
+   * then finished, it's moved to {@linkplain #finishedSources}; o.w. it's
+   * {@linkplain BaseMergeSource#resort(List, int) resorted} into place.
+   */
+  protected final void resort(int index) {
+    M source = sources.get(index);
+    if (source.finished()) {
+      sources.remove(index);
+      finishedSources.add(source);
+    } else
+      BaseMergeSource.resort(sources, index);
+  }
+  
+  
   /**
    * Processes the top of the <tt>MergeSource</tt> stack. If any of the merge
    * {@linkplain #sources} is {@linkplain BaseMergeSource#finished() finished}
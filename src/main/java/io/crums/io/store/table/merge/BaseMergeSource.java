@@ -5,7 +5,15 @@ package io.crums.io.store.table.merge;
 
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import io.crums.io.store.table.SortedTable;
 import io.crums.io.store.table.SortedTable.Searcher;
@@ -121,6 +129,18 @@ import io.crums.io.store.table.SortedTable.Searcher;
  * Finally, when there's only one merge source remaining in the list of merge sources,
  * the remaining rows in that merge source are appended to the output file.
  * 
+ * <h3>Read-ahead</h3>
+ * Rows not already in the {@linkplain #searcher() searcher}'s buffer are loaded thru a
+ * read-ahead window of about {@linkplain #getReadAheadBytes()} bytes, extending from the
+ * missed row in the direction rows are being visited. So stepping thru rows (in either
+ * direction) costs a read per window's worth of rows, not a read per row. See
+ * {@linkplain #getRowsPerRead()}.
+ * <p/>
+ * If a {@linkplain #setPrefetcher(Executor) prefetcher} is set, then once rows are
+ * stepped thru sequentially, the window beyond the current one is read ahead of time
+ * on the prefetcher's threads (the window is double buffered). A scan over many tables
+ * then doesn't stall on each table's reads in turn.
+ * 
  * <h3>Don't access concurrently</h3>
  * Designed for single threaded access (not even concurrent reads).
  * <p/>
@@ -133,11 +153,41 @@ import io.crums.io.store.table.SortedTable.Searcher;
 public abstract class BaseMergeSource<S extends BaseMergeSource<?>> implements Comparable<S> {
 
 
+  /**
+   * The default size of the read-ahead window in bytes.
+   * 
+   * @see #setReadAheadBytes(int)
+   */
+  public final static int DEFAULT_READ_AHEAD_BYTES = 32 * 1024;
+  
+
   private final Searcher searcher;
   private final long rowCount;
   private final ByteBuffer row;
   private long rowCursor;
   
+  private int readAheadBytes = DEFAULT_READ_AHEAD_BYTES;
+  /**
+   * Lazily allocated read-ahead window. Its contents are rows
+   * [<tt>windowFirstRow</tt>, <tt>windowFirstRow + windowRows</tt>).
+   */
+  private ByteBuffer window;
+  private long windowFirstRow;
+  private int windowRows;
+  
+  private long rowLoads;
+  private long reads;
+  
+  private Executor prefetcher;
+  /**
+   * The window's double. Owned by the pending {@linkplain #prefetch}, if any.
+   */
+  private ByteBuffer spare;
+  private FutureTask<ByteBuffer> prefetch;
+  private long prefetchFirstRow;
+  private int prefetchRows;
+  private long prefetchHits;
+  
   public BaseMergeSource(SortedTable.Searcher searcher) throws IOException {
     this(searcher, 0);
   }
@@ -192,17 +242,287 @@ public abstract class BaseMergeSource<S extends BaseMergeSource<?>> implements C
       throw new IndexOutOfBoundsException("rowNum/rowCount: " + rowNum + "/" + rowCount);
     }
     row.clear();
-    // if the row is already loaded in the search buffer
-    if (searcher.isRowInBuffer(rowNum))
-      searcher.copyRowInto(rowNum, row);
-    // o.w. hit the file system
-    else
-      searcher.getTable().read(rowNum, row);
+    boolean sequential = rowNum == rowCursor + 1 || rowNum == rowCursor - 1;
+    copyRowInto(rowNum, row, isReadingBackward(rowNum), sequential);
     row.flip();
     rowCursor = rowNum;
   }
   
   
+  /**
+   * Copies the contents of the given row into the given <tt>buffer</tt>, without
+   * changing the current {@linkplain #rowNumber() row number}. Rows are served from the
+   * search buffer, or the read-ahead window (which is moved forward, if necessary).
+   * This is for peeking at rows ahead of the current one.
+   * 
+   * @param rowNum
+   *        in the range [0, {@linkplain #rowCount()})
+   */
+  public void readRow(long rowNum, ByteBuffer buffer) throws IOException {
+    if (rowNum < 0 || rowNum >= rowCount)
+      throw new IndexOutOfBoundsException("rowNum/rowCount: " + rowNum + "/" + rowCount);
+    copyRowInto(rowNum, buffer, false, false);
+  }
+  
+  
+  private void copyRowInto(long rowNum, ByteBuffer buffer, boolean backward, boolean sequential)
+      throws IOException {
+    ++rowLoads;
+    // if the row is already loaded in the search buffer
+    if (searcher.isRowInBuffer(rowNum)) {
+      searcher.copyRowInto(rowNum, buffer);
+      return;
+    }
+    // o.w. hit the file system, unless it's in the read-ahead window
+    if (rowNum < windowFirstRow || rowNum >= windowFirstRow + windowRows)
+      fillWindow(rowNum, backward, sequential);
+    
+    final int rowWidth = row.capacity();
+    int offset = (int) (rowNum - windowFirstRow) * rowWidth;
+    ByteBuffer cell = window.duplicate();
+    cell.limit(offset + rowWidth).position(offset);
+    buffer.put(cell);
+  }
+  
+  
+  /**
+   * Loads the read-ahead window with the given row and as many of its neighbors as
+   * fit, in the given direction. The window is swapped with its prefetched double,
+   * if that contains the row. If access is sequential (and there's a prefetcher),
+   * the next window is then prefetched.
+   */
+  private void fillWindow(long rowNum, boolean backward, boolean sequential)
+      throws IOException {
+    
+    if (prefetch != null) {
+      if (rowNum >= prefetchFirstRow && rowNum < prefetchFirstRow + prefetchRows) {
+        ByteBuffer fetched = awaitPrefetch();
+        spare = window;
+        window = fetched;
+        windowFirstRow = prefetchFirstRow;
+        windowRows = prefetchRows;
+        ++reads;
+        ++prefetchHits;
+        prefetchNext(backward);
+        return;
+      }
+      cancelPrefetch();
+    }
+    
+    final int rowWidth = row.capacity();
+    final int maxRows = Math.max(1, readAheadBytes / rowWidth);
+    
+    long firstRow;
+    int count;
+    if (backward) {
+      firstRow = Math.max(0, rowNum - maxRows + 1);
+      count = (int) (rowNum - firstRow + 1);
+    } else {
+      firstRow = rowNum;
+      count = (int) Math.min(maxRows, rowCount - rowNum);
+    }
+    
+    if (window == null || window.capacity() < count * rowWidth)
+      window = ByteBuffer.allocate(maxRows * rowWidth);
+    // invalidate the window, in case the read fails
+    windowRows = 0;
+    window.clear().limit(count * rowWidth);
+    searcher.getTable().read(firstRow, window);
+    ++reads;
+    windowFirstRow = firstRow;
+    windowRows = count;
+    
+    if (sequential && prefetcher != null)
+      prefetchNext(backward);
+  }
+  
+  
+  /**
+   * Starts reading the window adjacent to the current one, in the given direction,
+   * into the {@linkplain #spare}.
+   */
+  private void prefetchNext(boolean backward) {
+    if (prefetcher == null)
+      return;
+    final int rowWidth = row.capacity();
+    final int maxRows = Math.max(1, readAheadBytes / rowWidth);
+    
+    final long firstRow;
+    final int count;
+    if (backward) {
+      if (windowFirstRow == 0)
+        return;
+      firstRow = Math.max(0, windowFirstRow - maxRows);
+      count = (int) (windowFirstRow - firstRow);
+    } else {
+      long end = windowFirstRow + windowRows;
+      if (end >= rowCount)
+        return;
+      firstRow = end;
+      count = (int) Math.min(maxRows, rowCount - end);
+    }
+    
+    if (spare == null || spare.capacity() < count * rowWidth)
+      spare = ByteBuffer.allocate(maxRows * rowWidth);
+    final ByteBuffer buffer = spare;
+    final SortedTable table = table();
+    FutureTask<ByteBuffer> task = new FutureTask<>(new Callable<ByteBuffer>() {
+      @Override
+      public ByteBuffer call() throws IOException {
+        buffer.clear().limit(count * rowWidth);
+        table.read(firstRow, buffer);
+        return buffer;
+      }
+    });
+    try {
+      prefetcher.execute(task);
+    } catch (RejectedExecutionException rx) {
+      // not a problem: the window will be read when needed
+      return;
+    }
+    // the spare now belongs to the task
+    spare = null;
+    prefetch = task;
+    prefetchFirstRow = firstRow;
+    prefetchRows = count;
+  }
+  
+  
+  private ByteBuffer awaitPrefetch() throws IOException {
+    FutureTask<ByteBuffer> task = prefetch;
+    prefetch = null;
+    try {
+      return task.get();
+    } catch (InterruptedException ix) {
+      task.cancel(true);
+      throw new InterruptedIOException("interrupted while awaiting prefetch: " + ix.getMessage());
+    } catch (ExecutionException xx) {
+      Throwable cause = xx.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      throw new IOException("prefetch failed: " + cause, cause);
+    }
+  }
+  
+  
+  /**
+   * Cancels the pending prefetch, if any. Its buffer is abandoned (it may still be
+   * in use).
+   */
+  private void cancelPrefetch() {
+    if (prefetch != null) {
+      prefetch.cancel(false);
+      prefetch = null;
+    }
+  }
+  
+  
+  /**
+   * Sets the executor the next read-ahead window is prefetched on, once rows are
+   * being stepped thru sequentially. Pass <tt>null</tt> (the default) to turn off
+   * prefetching. A single executor (with a few threads) is meant to be shared by
+   * many sources: all their next windows are then read concurrently.
+   */
+  public void setPrefetcher(Executor prefetcher) {
+    cancelPrefetch();
+    this.prefetcher = prefetcher;
+  }
+  
+  
+  /**
+   * Returns the executor the read-ahead window is prefetched on, if any.
+   */
+  public final Executor getPrefetcher() {
+    return prefetcher;
+  }
+  
+  
+  /**
+   * Returns the number of read-ahead windows that were served by a prefetch.
+   * These are included in the {@linkplain #getReadCount() read count}.
+   */
+  public final long getPrefetchHits() {
+    return prefetchHits;
+  }
+  
+  
+  /**
+   * Tests whether rows are being visited in reverse order. This determines which
+   * way the read-ahead window extends from a row that is not already in memory.
+   * The base implementation guesses from the row number the instance is moving to.
+   * 
+   * @param rowNum
+   *        the row number the instance is moving to
+   */
+  protected boolean isReadingBackward(long rowNum) {
+    return rowNum < rowCursor;
+  }
+  
+  
+  /**
+   * Returns the size of the read-ahead window in bytes. The window holds at
+   * least one row.
+   */
+  public final int getReadAheadBytes() {
+    return readAheadBytes;
+  }
+  
+  
+  /**
+   * Sets the size of the read-ahead window in bytes. A value smaller than the
+   * row width means rows not in the searcher's buffer are read one at a time.
+   * 
+   * @see #DEFAULT_READ_AHEAD_BYTES
+   */
+  public void setReadAheadBytes(int bytes) {
+    if (bytes < 0)
+      throw new IllegalArgumentException("bytes: " + bytes);
+    cancelPrefetch();
+    this.readAheadBytes = bytes;
+    this.window = null;
+    this.windowRows = 0;
+  }
+  
+  
+  /**
+   * Returns the number of rows loaded so far (whether by moving the
+   * {@linkplain #rowNumber() row number}, or by {@linkplain #readRow(long, ByteBuffer)}).
+   */
+  public final long getRowLoads() {
+    return rowLoads;
+  }
+  
+  
+  /**
+   * Returns the number of reads (syscalls) this instance has issued to load rows.
+   * Reads issued by {@linkplain #searcher() searches} are not counted.
+   */
+  public final long getReadCount() {
+    return reads;
+  }
+  
+  
+  /**
+   * Returns the average number of rows loaded per read issued.
+   * 
+   * @return <tt>{@linkplain #getRowLoads()} / {@linkplain #getReadCount()}</tt>, or the
+   *         number of rows loaded, if no reads were issued
+   */
+  public final double getRowsPerRead() {
+    return rowsPerRead(rowLoads, reads);
+  }
+  
+  
+  /**
+   * Returns the ratio of the given row loads to reads.
+   */
+  public static double rowsPerRead(long rowLoads, long reads) {
+    return reads == 0 ? rowLoads : ((double) rowLoads) / reads;
+  }
+  
+  
 
   /**
    * Advances to the next row, unless already at the end of this merge source.
@@ -336,5 +656,37 @@ public abstract class BaseMergeSource<S extends BaseMergeSource<?>> implements C
   public final int compareOtherWithRow(ByteBuffer otherRow) {
     return -compareRowWithOther(otherRow);
   }
+  
+  
+  
+  /**
+   * Restores the order of a sorted list of merge sources after the current row of
+   * the source at the given <tt>index</tt> has moved. Only that source is repositioned:
+   * it's removed and re-inserted at its binary-searched position. This costs
+   * <b>O</b>(log <em>k</em>) comparisons (<em>k</em> being the number of sources),
+   * instead of the <b>O</b>(<em>k</em> log <em>k</em>) of a full sort at every merge
+   * step.
+   * 
+   * @param sources
+   *        sorted, except possibly at <tt>index</tt>. No source may be
+   *        {@linkplain #finished() finished}
+   */
+  public static <T extends Comparable<? super T>> void resort(List<T> sources, int index) {
+    insertSorted(sources, sources.remove(index));
+  }
+  
+  
+  /**
+   * Inserts the given <tt>source</tt> into the sorted list of <tt>sources</tt>
+   * at its binary-searched position.
+   * 
+   * @see #resort(List, int)
+   */
+  public static <T extends Comparable<? super T>> void insertSorted(List<T> sources, T source) {
+    int pos = Collections.binarySearch(sources, source);
+    if (pos < 0)
+      pos = -pos - 1;
+    sources.add(pos, source);
+  }
 
 }
@@ -90,7 +90,7 @@ public class ListMergeSort extends BaseMergeSort<ListMergeSource> {
         while (rowNumberCursor < top.rowCount()) {
           
           sampleRow.clear();
-          top.table().read(rowNumberCursor, sampleRow);
+          top.readRow(rowNumberCursor, sampleRow);
           sampleRow.flip();
           
           int comp = top.table().order().compareRows(next.row(), sampleRow);
@@ -114,7 +114,7 @@ public class ListMergeSort extends BaseMergeSort<ListMergeSource> {
     if (count < 1)
       throw new IoStateException("assertion failure: count=" + count);
     
-    target.appendRows(top.table(), top.rowNumber(), count);
+    appendBlock(top.table(), top.rowNumber(), count);
     
     // advance top's row number to the end of the block we just copied
     top.setRow(blockEndRowNumber);
@@ -0,0 +1,537 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.io.store.table.merge;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import io.crums.io.store.table.BloomFilter;
+import io.crums.io.store.table.SortedTable;
+import io.crums.io.store.table.order.RowOrder;
+import io.crums.util.TaskStack;
+import io.crums.util.cc.throt.TokenBucket;
+
+/**
+ * A merge sort split into key ranges that are merged in parallel. The key ranges are
+ * delimited by pivot rows {@linkplain #samplePivots(SortedTable[], int) sampled} from
+ * the sources. Each range is merged (by an ordinary {@linkplain BaseMergeSort} over
+ * {@linkplain SortedTable#slice(long, long) slices} of the sources) into its own temp
+ * file; the temp files are then concatenated, in key order, onto the target. The
+ * concatenation is a block transfer (<tt>FileChannel.transferTo</tt>), so it costs
+ * little beyond the I/O itself.
+ * <p>
+ * Since the rows of any given key fall in the same range in every source, the result
+ * is the same as that of a single merge over the whole sources. A range with rows in
+ * fewer than 2 sources is folded into the next one; if there's only one range left,
+ * then the sources are merged directly onto the target, as usual.
+ * </p>
+ * <h3>Don't access concurrently</h3>
+ * Excepting the {@linkplain #abort()} method, designed for single threaded access.
+ *
+ * @author Babak
+ */
+public class PartitionedMergeSort {
+
+  private final static Logger LOG = Logger.getLogger(PartitionedMergeSort.class.getName());
+
+  /**
+   * The number of rows sampled (across the sources) per partition when choosing
+   * pivots.
+   */
+  public final static int SAMPLES_PER_PARTITION = 64;
+
+
+  /**
+   * Creates the merge sort of each key range.
+   */
+  public interface SortFactory {
+    /**
+     * Returns a new merge sort of the given <tt>sources</tt> onto the given
+     * <tt>target</tt>.
+     *
+     * @param sources
+     *        at least 2 source tables, in increasing order of precedence
+     */
+    BaseMergeSort<?> newMergeSort(SortedTable target, SortedTable[] sources)
+        throws IOException;
+  }
+
+
+  private final SortedTable target;
+  private final SortedTable[] sources;
+  private final int partitions;
+  private final File workDir;
+  private final SortFactory sortFactory;
+
+  private final ArrayList<BaseMergeSort<?>> sorts = new ArrayList<>();
+
+  private int bloomFilterBitsPerKey;
+  private BloomFilter bloomFilter;
+
+  private TokenBucket readBudget;
+  private TokenBucket writeBudget;
+
+  private int rangeCount;
+
+  private long startTime;
+  private long endTime;
+
+  private volatile boolean abort;
+
+
+  /**
+   * @param target
+   *        the (typically empty) target table merged to
+   * @param sources
+   *        at least 2 source tables, in increasing order of precedence
+   * @param partitions
+   *        the maximum number of key ranges merged in parallel (&ge; 1)
+   * @param workDir
+   *        the directory the temp files are created in. Best on the same file system
+   *        as the target.
+   * @param sortFactory
+   *        creates the merge sort of each range
+   */
+  public PartitionedMergeSort(
+      SortedTable target, SortedTable[] sources, int partitions,
+      File workDir, SortFactory sortFactory) {
+
+    this.target = target;
+    this.sources = sources;
+    this.partitions = partitions;
+    this.workDir = workDir;
+    this.sortFactory = sortFactory;
+
+    if (target == null)
+      throw new IllegalArgumentException("null target");
+    if (sources == null)
+      throw new IllegalArgumentException("null sources");
+    if (sources.length < 2)
+      throw new IllegalArgumentException("too few tables in array: " + sources.length);
+    if (partitions < 1)
+      throw new IllegalArgumentException("partitions: " + partitions);
+    if (workDir == null)
+      throw new IllegalArgumentException("null workDir");
+    if (sortFactory == null)
+      throw new IllegalArgumentException("null sortFactory");
+  }
+
+
+
+  /**
+   * Returns the pivot rows that divide the given sorted tables into (roughly) equal sized
+   * key ranges. The pivots are chosen from rows sampled at even intervals in each table
+   * (so each table is sampled in proportion to its size).
+   *
+   * @param tables
+   *        non-empty array of tables with the same row order
+   * @param partitions
+   *        the number of key ranges sought
+   *
+   * @return at most <tt>partitions - 1</tt> distinct rows, in sorted order. May be
+   *         fewer, if there aren't enough distinct keys.
+   */
+  public static List<ByteBuffer> samplePivots(SortedTable[] tables, int partitions)
+      throws IOException {
+    if (partitions < 1)
+      throw new IllegalArgumentException("partitions: " + partitions);
+
+    final RowOrder order = tables[0].order();
+    long totalRows = 0;
+    for (SortedTable table : tables)
+      totalRows += table.getRowCount();
+    if (partitions == 1 || totalRows == 0)
+      return Collections.emptyList();
+
+    final long totalSamples = (long) partitions * SAMPLES_PER_PARTITION;
+    ArrayList<ByteBuffer> samples = new ArrayList<>((int) totalSamples + tables.length);
+    for (SortedTable table : tables) {
+      long rows = table.getRowCount();
+      if (rows == 0)
+        continue;
+      long count = Math.max(1, Math.min(rows, rows * totalSamples / totalRows));
+      for (long index = 0; index < count; ++index) {
+        ByteBuffer row = ByteBuffer.allocate(table.getRowWidth());
+        table.read(index * rows / count, row);
+        samples.add(row.flip().asReadOnlyBuffer());
+      }
+    }
+    Collections.sort(samples, order);
+
+    ArrayList<ByteBuffer> pivots = new ArrayList<>(partitions - 1);
+    for (int p = 1; p < partitions; ++p) {
+      ByteBuffer pivot = samples.get(p * samples.size() / partitions);
+      if (pivots.isEmpty() || order.compare(pivots.get(pivots.size() - 1), pivot) < 0)
+        pivots.add(pivot);
+    }
+    return pivots;
+  }
+
+
+
+  /**
+   * Sets the number of bits per key of the Bloom filter built over the target once
+   * the merge completes. Zero (the default) means no filter is built.
+   *
+   * @see BaseMergeSort#setBloomFilterBitsPerKey(int)
+   */
+  public void setBloomFilterBitsPerKey(int bitsPerKey) {
+    if (bitsPerKey < 0)
+      throw new IllegalArgumentException("bitsPerKey: " + bitsPerKey);
+    if (bitsPerKey > 0 && !target.order().hasKeyHash())
+      throw new IllegalArgumentException("key hashing not supported by " + target.order());
+    if (startTime != 0)
+      throw new IllegalStateException("already started");
+    this.bloomFilterBitsPerKey = bitsPerKey;
+  }
+
+
+  /**
+   * Sets the byte budgets the merge draws from. The budgets are shared by the ranges'
+   * merges, and by the concatenation.
+   *
+   * @see BaseMergeSort#setIoBudget(TokenBucket, TokenBucket)
+   */
+  public void setIoBudget(TokenBucket readBudget, TokenBucket writeBudget) {
+    if (startTime != 0)
+      throw new IllegalStateException("already started");
+    this.readBudget = readBudget;
+    this.writeBudget = writeBudget;
+  }
+
+
+
+  public final SortedTable getTarget() {
+    return target;
+  }
+
+
+  /**
+   * Returns the Bloom filter over the target, if one was built.
+   */
+  public BloomFilter getBloomFilter() {
+    return bloomFilter;
+  }
+
+
+  /**
+   * Returns the number of key ranges actually merged (in parallel); zero, if not
+   * started. 1 means the sources were merged directly.
+   */
+  public int getRangeCount() {
+    return rangeCount;
+  }
+
+
+  public boolean isAborted() {
+    return abort;
+  }
+
+
+  /**
+   * Aborts a merge, unless of course no merge is in progress.
+   *
+   * @return <tt>true</tt>, if aborted an in-progress merge; <tt>false</tt>, o.w.
+   */
+  public boolean abort() {
+    if (startTime == 0 || endTime != 0)
+      return false;
+    abort = true;
+    synchronized (sorts) {
+      for (BaseMergeSort<?> sort : sorts)
+        sort.abort();
+    }
+    return true;
+  }
+
+
+  public boolean isStarted() {
+    return startTime != 0;
+  }
+
+
+  public boolean isFinished() {
+    return endTime != 0;
+  }
+
+
+  /**
+   * Returns the time (UTC millis) the merge started; zero, if not started.
+   */
+  public final long getStartTime() {
+    return startTime;
+  }
+
+
+  /**
+   * Returns the time (UTC millis) the merge finished; zero, if not finished.
+   */
+  public final long getEndTime() {
+    return endTime;
+  }
+
+
+  /**
+   * Returns the total time elapsed for the merge; zero, if not started.
+   */
+  public final long getTimeTaken() {
+    if (startTime == 0)
+      return 0;
+    long endMillis = endTime == 0 ? System.currentTimeMillis() : endTime;
+    return endMillis - startTime;
+  }
+
+
+
+  /**
+   * Merges the sources to the target. The first key range is merged in the calling
+   * thread; the others, each in a new thread.
+   */
+  public void mergeToTarget() throws IOException {
+    synchronized (sorts) {
+      if (startTime != 0)
+        throw new IllegalStateException("already run");
+      startTime = System.currentTimeMillis();
+    }
+    try (TaskStack closer = new TaskStack()) {
+      List<long[]> ranges = ranges(samplePivots(sources, partitions));
+      rangeCount = ranges.size();
+      if (rangeCount == 1)
+        mergeDirect();
+      else
+        mergeRanges(ranges, closer);
+    } finally {
+      endTime = System.currentTimeMillis();
+    }
+  }
+
+
+  private void mergeDirect() throws IOException {
+    BaseMergeSort<?> sort = sortFactory.newMergeSort(target, sources);
+    sort.setBloomFilterBitsPerKey(bloomFilterBitsPerKey);
+    sort.setIoBudget(readBudget, writeBudget);
+    addSort(sort);
+    sort.mergeToTarget();
+    bloomFilter = sort.getBloomFilter();
+  }
+
+
+  private void addSort(BaseMergeSort<?> sort) {
+    synchronized (sorts) {
+      sorts.add(sort);
+    }
+  }
+
+
+  /**
+   * Returns the row number boundaries of each key range in each source. Each element is
+   * an array of <tt>sources.length + 1</tt> pairs: the first and end row numbers of
+   * the range in each source. Ranges with rows in fewer than 2 sources are folded into
+   * their successor (or, if last, their predecessor).
+   */
+  private List<long[]> ranges(List<ByteBuffer> pivots) throws IOException {
+    final int count = sources.length;
+
+    // bounds[p][i]: the first row number in source i of range p
+    long[][] bounds = new long[pivots.size() + 2][count];
+    for (int i = 0; i < count; ++i) {
+      long rows = sources[i].getRowCount();
+      bounds[pivots.size() + 1][i] = rows;
+      if (pivots.isEmpty())
+        continue;
+      SortedTable.Searcher searcher =
+          sources[i].newSearcher(BaseMergeSort.DEFAULT_ROWS_PER_SEARCH_BUFFER);
+      for (int p = 0; p < pivots.size(); ++p) {
+        long rowNumber;
+        if (searcher.search(pivots.get(p)))
+          rowNumber = searcher.getHitRowNumber();
+        else
+          rowNumber = -searcher.getHitRowNumber() - 1;
+        bounds[p + 1][i] = rowNumber;
+      }
+    }
+
+    ArrayList<long[]> ranges = new ArrayList<>(pivots.size() + 1);
+    long[] range = null;
+    for (int p = 0; p <= pivots.size(); ++p) {
+      if (range == null) {
+        range = new long[2 * count];
+        for (int i = 0; i < count; ++i)
+          range[2 * i] = bounds[p][i];
+      }
+      int nonEmpty = 0;
+      for (int i = 0; i < count; ++i) {
+        range[2 * i + 1] = bounds[p + 1][i];
+        if (range[2 * i + 1] > range[2 * i])
+          ++nonEmpty;
+      }
+      if (nonEmpty >= 2) {
+        ranges.add(range);
+        range = null;
+      }
+    }
+    if (range != null) {
+      if (ranges.isEmpty())
+        ranges.add(range);
+      else {
+        // fold the tail into the last range
+        long[] last = ranges.get(ranges.size() - 1);
+        for (int i = 0; i < count; ++i)
+          last[2 * i + 1] = range[2 * i + 1];
+      }
+    }
+    return ranges;
+  }
+
+
+
+  private void mergeRanges(List<long[]> ranges, TaskStack closer) throws IOException {
+    final int rowWidth = target.getRowWidth();
+    final RowOrder order = target.order();
+    final int count = ranges.size();
+
+    // set up the merges (and their temp tables) first, so that
+    // any error happens here, and not in a worker thread
+    SortedTable[] temps = new SortedTable[count];
+    final BaseMergeSort<?>[] rangeSorts = new BaseMergeSort<?>[count];
+    for (int r = 0; r < count; ++r) {
+      final File tempFile = File.createTempFile("pmerge", ".tmp", workDir);
+      closer.pushRun(new Runnable() {
+        @Override
+        public void run() {
+          if (!tempFile.delete())
+            LOG.warning("failed to delete temp file " + tempFile);
+        }
+      });
+      @SuppressWarnings("resource")
+      FileChannel channel = new RandomAccessFile(tempFile, "rw").getChannel();
+      closer.pushClose(channel);
+      temps[r] = new SortedTable(channel, 0, rowWidth, order);
+      closer.pushClose(temps[r]);
+
+      long[] range = ranges.get(r);
+      ArrayList<SortedTable> slices = new ArrayList<>(sources.length);
+      for (int i = 0; i < sources.length; ++i) {
+        long rows = range[2 * i + 1] - range[2 * i];
+        if (rows > 0) {
+          SortedTable slice = sources[i].slice(range[2 * i], rows);
+          closer.pushClose(slice);
+          slices.add(slice);
+        }
+      }
+      rangeSorts[r] = sortFactory.newMergeSort(temps[r], slices.toArray(new SortedTable[slices.size()]));
+      rangeSorts[r].setIoBudget(readBudget, writeBudget);
+      addSort(rangeSorts[r]);
+    }
+
+    final IOException[] errors = new IOException[count];
+    Thread[] workers = new Thread[count];
+    final int priority = Thread.currentThread().getPriority();
+    for (int r = 1; r < count; ++r) {
+      final int index = r;
+      workers[r] = new Thread(
+          new Runnable() {
+            @Override
+            public void run() {
+              errors[index] = runSort(rangeSorts[index]);
+            }
+          },
+          "pmerge-" + r + "/" + count);
+      workers[r].setDaemon(true);
+      workers[r].setPriority(priority);
+      workers[r].start();
+    }
+    errors[0] = runSort(rangeSorts[0]);
+
+    boolean interrupted = false;
+    for (int r = 1; r < count; ++r) {
+      while (workers[r].isAlive()) {
+        try {
+          workers[r].join();
+        } catch (InterruptedException ix) {
+          interrupted = true;
+          abort();
+        }
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+
+    for (IOException iox : errors)
+      if (iox != null)
+        throw iox;
+
+    if (abort)
+      return;
+
+    for (SortedTable temp : temps)
+      concat(temp);
+
+    if (!abort && bloomFilterBitsPerKey > 0)
+      bloomFilter = BloomFilter.build(target, bloomFilterBitsPerKey);
+  }
+
+
+  private IOException runSort(BaseMergeSort<?> sort) {
+    if (abort)
+      return null;
+    try {
+      sort.mergeToTarget();
+      return null;
+    } catch (IOException iox) {
+      abort();
+      return iox;
+    } catch (RuntimeException rx) {
+      abort();
+      return new IOException("range merge failed: " + rx, rx);
+    }
+  }
+
+
+  /**
+   * Appends the given temp table to the target, paying for the transfer from the
+   * I/O budget, if any.
+   */
+  private void concat(SortedTable temp) throws IOException {
+    long rows = temp.getRowCount();
+    if (readBudget == null && writeBudget == null) {
+      target.appendRows(temp, 0, rows);
+      return;
+    }
+    final int rowWidth = target.getRowWidth();
+    final long chunkRows = Math.max(1, BaseMergeSort.RATE_LIMITED_CHUNK_BYTES / rowWidth);
+    for (long row = 0; row < rows && !abort; ) {
+      long count = Math.min(rows - row, chunkRows);
+      long bytes = count * rowWidth;
+      try {
+        if (readBudget != null)
+          readBudget.acquire(bytes);
+        if (writeBudget != null)
+          writeBudget.acquire(bytes);
+      } catch (InterruptedException ix) {
+        throw new InterruptedIOException("interrupted while rate limited: " + ix.getMessage());
+      }
+      target.appendRows(temp, row, count);
+      row += count;
+    }
+  }
+
+
+  @Override
+  public String toString() {
+    return
+        "[PartitionedMergeSort partitions=" + partitions + ", ranges=" + rangeCount +
+        ", target=" + target + "]";
+  }
+
+}
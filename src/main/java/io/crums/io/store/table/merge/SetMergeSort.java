@@ -5,7 +5,6 @@ package io.crums.io.store.table.merge;
 
 
 import java.io.IOException;
-import java.util.Collections;
 
 import io.crums.io.IoStateException;
 import io.crums.io.store.table.SortedTable;
@@ -81,10 +80,7 @@ public class SetMergeSort extends BaseMergeSort<PrecedenceMergeSource> {
       if (top.precedence() > next.precedence()) {
         // skip next's row and if it's then finished, removed it
         next.setRow(next.rowNumber() + 1);
-        if (next.finished()) {
-          sources.remove(sources.size() - 2);
-          finishedSources.add(next);
-        }
+        resort(sources.size() - 2);
         // we wont be block copying
         blockEndRowNumber = postTopRowNumber = 0;
         
@@ -113,20 +109,16 @@ public class SetMergeSort extends BaseMergeSort<PrecedenceMergeSource> {
       if (count < 1)
         throw new IoStateException("assertion failure: count=" + count);
       
-      target.appendRows(top.table(), top.rowNumber(), count);
+      appendBlock(top.table(), top.rowNumber(), count);
       
       top.setRow(postTopRowNumber);
       
-      // if top is finished
-      if (top.finished()) {
-        sources.remove(sources.size() - 1);
-        finishedSources.add(top);
-      }
+      // re-position top (or discard it, if finished)
+      resort(sources.size() - 1);
     }
     
-    // Sort the sources (we messed with sources)
-    // and satisfy the required post-condition for this method
-    Collections.sort(sources);
+    // only one source moved per step: the post-condition (sources sorted)
+    // is maintained by resort(int), without a full sort
   }
   
 
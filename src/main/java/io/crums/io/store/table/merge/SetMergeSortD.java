@@ -4,7 +4,7 @@
 package io.crums.io.store.table.merge;
 
 import java.io.IOException;
-import java.util.Collections;
+import java.nio.ByteBuffer;
 
 import io.crums.io.IoStateException;
 import io.crums.io.store.table.SortedTable;
@@ -23,6 +23,12 @@ import io.crums.io.store.table.del.DeleteCodec;
 public class SetMergeSortD extends SetMergeSort {
 
 
+  /**
+   * The buffer size used to scan a concatenated source for deletion entries.
+   */
+  private final static int PURGE_SCAN_BUFFER_SIZE = 64 * 1024;
+
+
   protected final DeleteCodec deleteCodec;
   protected final TableSet backSet;
   
@@ -116,10 +122,7 @@ public class SetMergeSortD extends SetMergeSort {
       if (top.precedence() > next.precedence()) {
         // skip next's row and if it's then finished, removed it
         next.setRow(next.rowNumber() + 1);
-        if (next.finished()) {
-          sources.remove(sources.size() - 2);
-          finishedSources.add(next);
-        }
+        resort(sources.size() - 2);
         // we wont be block copying
         blockEndRowNumber = postTopRowNumber = 0;
         
@@ -137,10 +140,7 @@ public class SetMergeSortD extends SetMergeSort {
     } else if (deleteCodec.isDeleted(top.row()) && (backSet == null || backSet.getRow(top.row()) == null) ) {
       
       top.setRow(top.rowNumber() + 1);
-      if (top.finished()) {
-        sources.remove(sources.size() - 1);
-        finishedSources.add(top);
-      }
+      resort(sources.size() - 1);
       // we wont be block copying
       blockEndRowNumber = postTopRowNumber = 0;
       
@@ -158,20 +158,49 @@ public class SetMergeSortD extends SetMergeSort {
       if (count < 1)
         throw new IoStateException("assertion failure: count=" + count);
       
-      target.appendRows(top.table(), top.rowNumber(), count);
+      appendBlock(top.table(), top.rowNumber(), count);
       
       top.setRow(postTopRowNumber);
       
-      // if top is finished
-      if (top.finished()) {
-        sources.remove(sources.size() - 1);
-        finishedSources.add(top);
-      }
+      // re-position top (or discard it, if finished)
+      resort(sources.size() - 1);
     }
     
-    // Sort the sources (we messed with sources)
-    // and satisfy the required post-condition for this method
-    Collections.sort(sources);
+    // only one source moved per step: the post-condition (sources sorted)
+    // is maintained by resort(int), without a full sort
+  }
+  
+  
+  /**
+   * Appends the source's remaining rows in blocks, skipping the deletion entries
+   * that would be purged in an ordinary merge (those with nothing to override in the
+   * back-set).
+   */
+  @Override
+  protected void concatenate(PrecedenceMergeSource source) throws IOException {
+    final SortedTable table = source.table();
+    final int rowWidth = table.getRowWidth();
+    final long endRowNumber = source.rowCount();
+    final int chunkRows = Math.max(1, PURGE_SCAN_BUFFER_SIZE / rowWidth);
+    ByteBuffer chunk = ByteBuffer.allocate(chunkRows * rowWidth);
+    
+    long blockRowNumber = source.rowNumber();
+    for (long rowNumber = blockRowNumber; rowNumber < endRowNumber && !isAborted(); ) {
+      int rows = (int) Math.min(chunkRows, endRowNumber - rowNumber);
+      chunk.clear().limit(rows * rowWidth);
+      table.read(rowNumber, chunk);
+      for (int index = 0; index < rows; ++index, ++rowNumber) {
+        chunk.limit((index + 1) * rowWidth).position(index * rowWidth);
+        ByteBuffer row = chunk.slice();
+        if (deleteCodec.isDeleted(row) && (backSet == null || backSet.getRow(row) == null)) {
+          if (rowNumber > blockRowNumber)
+            appendBlock(table, blockRowNumber, rowNumber - blockRowNumber);
+          blockRowNumber = rowNumber + 1;
+        }
+      }
+    }
+    if (endRowNumber > blockRowNumber && !isAborted())
+      appendBlock(table, blockRowNumber, endRowNumber - blockRowNumber);
   }
   
 
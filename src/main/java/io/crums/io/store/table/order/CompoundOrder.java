@@ -53,6 +53,49 @@ public final class CompoundOrder extends RowOrder {
   }
   
   
+  /**
+   * Returns <tt>true</tt> iff every component order supports key hashing.
+   */
+  @Override
+  public boolean hasKeyHash() {
+    for (RowOrder order : orders)
+      if (!order.hasKeyHash())
+        return false;
+    return true;
+  }
+  
+  
+  /**
+   * Combines the key hashes of the component orders.
+   */
+  @Override
+  public long keyHash(ByteBuffer row) {
+    long hash = 0;
+    for (int i = orders.length; i-- > 0; )
+      hash = mix64(hash * 31 + orders[i].keyHash(row));
+    return hash;
+  }
+  
+  
+  /**
+   * Returns <tt>true</tt> iff the first (highest precedence) component order supports
+   * key prefixes.
+   */
+  @Override
+  public boolean hasKeyPrefix() {
+    return orders[orders.length - 1].hasKeyPrefix();
+  }
+  
+  
+  /**
+   * Returns the key prefix of the first (highest precedence) component order.
+   */
+  @Override
+  public long keyPrefix(ByteBuffer row) {
+    return orders[orders.length - 1].keyPrefix(row);
+  }
+  
+  
   @Override
   public boolean equals(Object other) {
     if (other == this)
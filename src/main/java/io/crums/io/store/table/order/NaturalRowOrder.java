@@ -24,5 +24,46 @@ public final class NaturalRowOrder extends RowOrder {
   public int compareRows(ByteBuffer rowA, ByteBuffer rowB) {
     return rowA.compareTo(rowB);
   }
+  
+  @Override
+  public boolean hasKeyHash() {
+    return true;
+  }
+  
+  /**
+   * Hashes the remaining bytes in the given row.
+   */
+  @Override
+  public long keyHash(ByteBuffer row) {
+    long hash = row.remaining();
+    int index = row.position();
+    for (int longs = row.remaining() / 8; longs-- > 0; index += 8)
+      hash = mix64(hash ^ row.getLong(index));
+    for (; index < row.limit(); ++index)
+      hash = hash * 31 + row.get(index);
+    return mix64(hash);
+  }
+  
+  @Override
+  public boolean hasKeyPrefix() {
+    return true;
+  }
+  
+  /**
+   * Returns the first 8 remaining bytes of the given row, each offset to unsigned
+   * (the bytes compare as signed), packed big endian, and then offset to signed.
+   * Shorter rows are zero padded.
+   */
+  @Override
+  public long keyPrefix(ByteBuffer row) {
+    long prefix = 0;
+    int index = row.position();
+    for (int count = 0; count < 8; ++count, ++index) {
+      prefix <<= 8;
+      if (index < row.limit())
+        prefix |= (row.get(index) + 128) & 0xff;
+    }
+    return prefix ^ Long.MIN_VALUE;
+  }
 
 }
@@ -55,5 +55,70 @@ public abstract class RowOrder extends ClassEquivalent implements Comparator<Byt
   public final int compare(ByteBuffer rowA, ByteBuffer rowB) {
     return compareRows(rowA, rowB);
   }
+  
+  
+  /**
+   * Determines whether this instance supports {@linkplain #keyHash(ByteBuffer) key hashing}.
+   * The base implementation returns <tt>false</tt>.
+   */
+  public boolean hasKeyHash() {
+    return false;
+  }
+  
+  
+  /**
+   * Returns a 64-bit hash of the given row's <em>key</em> (its examined region). Rows
+   * that compare equal must hash the same; rows that don't, should (with high probability)
+   * hash differently. As with {@linkplain #compareRows(ByteBuffer, ByteBuffer)}, this is a
+   * read-only operation, and the argument may be a key instead of a row.
+   * <p/>
+   * The base implementation throws <tt>UnsupportedOperationException</tt>.
+   * 
+   * @see #hasKeyHash()
+   */
+  public long keyHash(ByteBuffer row) throws UnsupportedOperationException {
+    throw new UnsupportedOperationException("keyHash: " + this);
+  }
+  
+  
+  /**
+   * Determines whether this instance supports {@linkplain #keyPrefix(ByteBuffer) key
+   * prefixes}. The base implementation returns <tt>false</tt>.
+   */
+  public boolean hasKeyPrefix() {
+    return false;
+  }
+  
+  
+  /**
+   * Returns the given row's 64-bit <em>normalized key prefix</em>: a value whose signed
+   * order is consistent with this row order. That is, if <tt>keyPrefix(a) &lt; keyPrefix(b)</tt>,
+   * then <tt>compareRows(a, b) &lt; 0</tt>. Rows with equal prefixes may still compare
+   * unequal (the prefix may be lossy), so ties must be broken with
+   * {@linkplain #compareRows(ByteBuffer, ByteBuffer)}. As with that method, this is a
+   * read-only operation, and the argument may be a key instead of a row.
+   * <p/>
+   * The base implementation throws <tt>UnsupportedOperationException</tt>.
+   * 
+   * @see #hasKeyPrefix()
+   */
+  public long keyPrefix(ByteBuffer row) throws UnsupportedOperationException {
+    throw new UnsupportedOperationException("keyPrefix: " + this);
+  }
+  
+  
+  /**
+   * Returns a well-mixed version of the given 64-bit <tt>value</tt>. (This is the
+   * finalizer step in MurmurHash3.) Building block for {@linkplain #keyHash(ByteBuffer)}
+   * implementations.
+   */
+  protected static long mix64(long value) {
+    value ^= value >>> 33;
+    value *= 0xff51afd7ed558ccdL;
+    value ^= value >>> 33;
+    value *= 0xc4ceb9fe1a85ec53L;
+    value ^= value >>> 33;
+    return value;
+  }
 
 }
@@ -15,6 +15,9 @@ import java.nio.ByteBuffer;
  * the ordering relative to the buffer's current position. On the plus side,
  * with such orderings, you don't at least need to worry a buffer's positional
  * state.
+ * <p/>
+ * The orderings here all support {@linkplain RowOrder#keyHash(ByteBuffer) key hashing}
+ * and (exact) {@linkplain RowOrder#keyPrefix(ByteBuffer) key prefixes}.
  * 
  * @author Babak
  */
@@ -56,6 +59,22 @@ public class RowOrders {
           return -1;
       }
       @Override
+      public boolean hasKeyHash() {
+        return true;
+      }
+      @Override
+      public long keyHash(ByteBuffer row) {
+        return mix64(row.getInt(offset));
+      }
+      @Override
+      public boolean hasKeyPrefix() {
+        return true;
+      }
+      @Override
+      public long keyPrefix(ByteBuffer row) {
+        return row.getInt(offset);
+      }
+      @Override
       public String toString() {
         return "[INT_ORDER, off=" + offset + "]";
       }
@@ -80,6 +99,22 @@ public class RowOrders {
           return -1;
       }
       @Override
+      public boolean hasKeyHash() {
+        return true;
+      }
+      @Override
+      public long keyHash(ByteBuffer row) {
+        return mix64(row.getLong(offset));
+      }
+      @Override
+      public boolean hasKeyPrefix() {
+        return true;
+      }
+      @Override
+      public long keyPrefix(ByteBuffer row) {
+        return row.getLong(offset);
+      }
+      @Override
       public String toString() {
         return "[LONG_ORDER, off=" + offset + "]";
       }
@@ -99,6 +134,22 @@ public class RowOrders {
         return a - b;
       }
       @Override
+      public boolean hasKeyHash() {
+        return true;
+      }
+      @Override
+      public long keyHash(ByteBuffer row) {
+        return mix64(row.getShort(offset));
+      }
+      @Override
+      public boolean hasKeyPrefix() {
+        return true;
+      }
+      @Override
+      public long keyPrefix(ByteBuffer row) {
+        return row.getShort(offset);
+      }
+      @Override
       public String toString() {
         return "[SHORT_ORDER, off=" + offset + "]";
       }
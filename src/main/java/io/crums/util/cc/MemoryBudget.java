@@ -0,0 +1,92 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.util.cc;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe byte budget. Users {@linkplain #tryReserve(long) reserve} bytes before
+ * retaining memory (typically buffers) and {@linkplain #release(long) release} them when
+ * they let go. The budget itself doesn't allocate anything: it's just bookkeeping.
+ *
+ * @author Babak
+ */
+public class MemoryBudget {
+
+  private final long capacity;
+  private final AtomicLong used = new AtomicLong();
+
+
+  /**
+   * Creates a new instance with the given <tt>capacity</tt>.
+   *
+   * @param capacity the maximum number of bytes that may be reserved (&ge; 0)
+   */
+  public MemoryBudget(long capacity) {
+    if (capacity < 0)
+      throw new IllegalArgumentException("capacity: " + capacity);
+    this.capacity = capacity;
+  }
+
+
+  /**
+   * Attempts to reserve the given number of <tt>bytes</tt>.
+   *
+   * @return <tt>true</tt> if reserved; <tt>false</tt> if doing so would exceed the
+   *         {@linkplain #capacity() capacity}
+   */
+  public boolean tryReserve(long bytes) {
+    if (bytes < 0)
+      throw new IllegalArgumentException("bytes: " + bytes);
+    while (true) {
+      long u = used.get();
+      long next = u + bytes;
+      if (next > capacity)
+        return false;
+      if (used.compareAndSet(u, next))
+        return true;
+    }
+  }
+
+
+  /**
+   * Releases the given number of previously reserved <tt>bytes</tt>.
+   */
+  public void release(long bytes) {
+    if (bytes < 0)
+      throw new IllegalArgumentException("bytes: " + bytes);
+    long u = used.addAndGet(-bytes);
+    if (u < 0)
+      throw new IllegalStateException("released more than reserved: " + u);
+  }
+
+
+  public final long capacity() {
+    return capacity;
+  }
+
+
+  /**
+   * Returns the number of bytes currently reserved.
+   */
+  public long used() {
+    return used.get();
+  }
+
+
+  /**
+   * Returns the number of bytes still available.
+   */
+  public long available() {
+    return capacity - used.get();
+  }
+
+
+  @Override
+  public String toString() {
+    return "[used=" + used() + ", capacity=" + capacity + "]";
+  }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.util.cc.throt;
+
+
+import io.crums.util.cc.ThreadUtils;
+
+/**
+ * A token bucket rate limiter. Tokens (typically bytes) accrue at a settable
+ * {@linkplain #getRate() rate}, up to a burst capacity of a tenth of a second's worth.
+ * A request larger than what's available is granted right away, but the bucket goes
+ * into debt, and the caller sleeps until the debt would have been paid off. So large
+ * and small requests are paced alike.
+ *
+ * <h3>Concurrent Access OK</h3>
+ *
+ * Concurrent callers share the rate.
+ *
+ * @author Babak
+ */
+public class TokenBucket {
+
+  private final static long NANOS_PER_SEC = 1_000_000_000L;
+
+  private long rate;
+  private double available;
+  private long lastRefill = System.nanoTime();
+
+
+  /**
+   * @param rate tokens per second. Zero means unlimited.
+   */
+  public TokenBucket(long rate) {
+    setRate(rate);
+  }
+
+
+  /**
+   * Returns the number of tokens per second. Zero means unlimited.
+   */
+  public synchronized long getRate() {
+    return rate;
+  }
+
+
+  /**
+   * Sets the number of tokens per second. Zero means unlimited.
+   */
+  public synchronized void setRate(long rate) {
+    if (rate < 0)
+      throw new IllegalArgumentException("rate: " + rate);
+    refill();
+    this.rate = rate;
+    available = Math.min(available, capacity());
+  }
+
+
+  /**
+   * Takes the given number of tokens, sleeping as long as necessary to stay within the
+   * rate.
+   *
+   * @param tokens &ge; 0
+   */
+  public void acquire(long tokens) throws InterruptedException {
+    long sleepNanos = reserve(tokens);
+    if (sleepNanos > 0)
+      ThreadUtils.ensureSleepNanos(sleepNanos);
+  }
+
+
+  /**
+   * Takes the given number of tokens without waiting, and returns the number of
+   * nanoseconds the caller should wait to stay within the rate.
+   */
+  public synchronized long reserve(long tokens) {
+    if (tokens < 0)
+      throw new IllegalArgumentException("tokens: " + tokens);
+    if (rate == 0)
+      return 0;
+    refill();
+    available -= tokens;
+    return available >= 0 ? 0 : (long) (-available * NANOS_PER_SEC / rate);
+  }
+
+
+  private void refill() {
+    long now = System.nanoTime();
+    if (rate != 0)
+      available = Math.min(
+          capacity(), available + (double) (now - lastRefill) * rate / NANOS_PER_SEC);
+    lastRefill = now;
+  }
+
+
+  private double capacity() {
+    return Math.max(1, rate / 10.0);
+  }
+
+
+  @Override
+  public String toString() {
+    return "[TokenBucket rate=" + getRate() + "/s]";
+  }
+
+}
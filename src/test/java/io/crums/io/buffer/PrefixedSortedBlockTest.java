@@ -0,0 +1,195 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.io.buffer;
+
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import io.crums.io.store.table.order.NaturalRowOrder;
+import io.crums.io.store.table.order.RowOrder;
+import io.crums.io.store.table.order.RowOrders;
+import io.crums.test.TestMethodHarness;
+
+/**
+ *
+ * @author Babak
+ */
+public class PrefixedSortedBlockTest extends TestMethodHarness {
+
+
+  @Test
+  public void testIntOrder() {
+    initUnitTestDir(new Object() { });
+    final int rows = 1000;
+    ByteBuffer buffer = ByteBuffer.allocate(rows * 8);
+    Random random = new Random(rows);
+    int value = -500;
+    for (int i = 0; i < rows; ++i) {
+      value += random.nextInt(3);   // with duplicates
+      buffer.putInt(value).putInt(i);
+    }
+    PrefixedSortedBlock block = newBlock(buffer, 8, RowOrders.INT_ORDER);
+
+    ByteBuffer key = ByteBuffer.allocate(4);
+    for (int k = -502; k <= value + 2; ++k) {
+      key.clear();
+      key.putInt(k).flip();
+      assertSearch(block, key, 0, rows);
+      assertSearch(block, key, 17, rows - 31);
+    }
+  }
+
+
+  @Test
+  public void testPrefixTies() {
+    initUnitTestDir(new Object() { });
+    // 12 byte rows, whose first 8 bytes fall into a few groups
+    final int rows = 1024;
+    final int width = 12;
+    ByteBuffer buffer = ByteBuffer.allocate(rows * width);
+    Random random = new Random(rows);
+    for (int i = 0; i < rows; ++i)
+      buffer.putLong(random.nextInt(8) - 4).putInt(random.nextInt());
+    buffer.flip();
+    ByteBuffer[] cells = new ByteBuffer[rows];
+    for (int i = 0; i < rows; ++i) {
+      buffer.limit((i + 1) * width).position(i * width);
+      cells[i] = buffer.slice();
+    }
+    Arrays.sort(cells, NaturalRowOrder.INSTANCE);
+    ByteBuffer sorted = ByteBuffer.allocate(rows * width);
+    for (ByteBuffer cell : cells)
+      sorted.put(cell);
+
+    PrefixedSortedBlock block = newBlock(sorted, width, NaturalRowOrder.INSTANCE);
+    ByteBuffer key = ByteBuffer.allocate(width);
+    for (int i = 0; i < rows; ++i) {
+      ByteBuffer row = block.cell(i);
+      assertTrue(block.binarySearch(row) >= 0);
+      // a miss, in between rows (or beyond the last)
+      key.clear();
+      key.putLong(row.getLong(0)).putInt(row.getInt(8) + 1).flip();
+      assertSearch(block, key, 0, rows);
+    }
+  }
+
+
+  @Test
+  public void testPartialLoad() {
+    initUnitTestDir(new Object() { });
+    final int rows = 64;
+    ByteBuffer buffer = ByteBuffer.allocate(rows * 4);
+    for (int i = 0; i < rows; ++i)
+      buffer.putInt(2 * i);
+    PrefixedSortedBlock block = new PrefixedSortedBlock(buffer, 4, RowOrders.INT_ORDER, true);
+    block.loadPrefixes(rows / 2);
+    ByteBuffer key = ByteBuffer.allocate(4);
+    for (int k = -1; k <= 2 * rows; ++k) {
+      key.clear();
+      key.putInt(k).flip();
+      assertSearch(block, key, 0, rows);
+      assertSearch(block, key, 0, rows / 2);
+    }
+    block.clearPrefixes();
+    assertEquals(0, block.getPrefixCount());
+    key.clear();
+    key.putInt(10).flip();
+    assertEquals(5, block.binarySearch(key, 0, rows));
+  }
+
+
+  @Test
+  public void testNaturalKeyPrefix() {
+    initUnitTestDir(new Object() { });
+    RowOrder order = NaturalRowOrder.INSTANCE;
+    Random random = new Random(11);
+    ByteBuffer[] rows = new ByteBuffer[200];
+    for (int i = 0; i < rows.length; ++i) {
+      byte[] bytes = new byte[random.nextInt(12)];
+      // few distinct values, so there are many common prefixes
+      for (int j = 0; j < bytes.length; ++j)
+        bytes[j] = (byte) (random.nextInt(3) * 127 - 127);
+      rows[i] = ByteBuffer.wrap(bytes);
+    }
+    for (ByteBuffer a : rows) {
+      for (ByteBuffer b : rows) {
+        int prefixComp = Long.compare(order.keyPrefix(a), order.keyPrefix(b));
+        if (prefixComp != 0)
+          assertEquals(prefixComp, Integer.signum(order.compare(a, b)));
+      }
+    }
+  }
+
+
+  @Test
+  public void testPerfSearch() {
+    initUnitTestDir(new Object() { });
+    if (skipPerfTest())
+      return;
+    log.info("*** Benchmarking " + getMethod() + " ***");
+    final int rows = 64 * 1024;
+    final int width = 16;
+    final int searches = 4 * 1024 * 1024;
+    ByteBuffer buffer = ByteBuffer.allocate(rows * width);
+    for (int i = 0; i < rows; ++i)
+      buffer.putLong(3L * i).putLong(i);
+    SortedBlock plain = new SortedBlock(buffer, width, RowOrders.LONG_ORDER, true);
+    PrefixedSortedBlock prefixed = newBlock(buffer, width, RowOrders.LONG_ORDER);
+
+    ByteBuffer[] keys = new ByteBuffer[1024];
+    Random random = new Random(rows);
+    for (int i = 0; i < keys.length; ++i) {
+      keys[i] = ByteBuffer.allocate(8);
+      keys[i].putLong(random.nextInt(3 * rows)).flip();
+    }
+    for (int round = 0; round < 3; ++round) {
+      benchmark("SortedBlock", plain, keys, searches);
+      benchmark("PrefixedSortedBlock", prefixed, keys, searches);
+    }
+  }
+
+
+  private void benchmark(String label, SortedBlock block, ByteBuffer[] keys, int searches) {
+    long hits = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < searches; ++i)
+      if (block.binarySearch(keys[i & (keys.length - 1)]) >= 0)
+        ++hits;
+    long nanos = System.nanoTime() - start;
+    log.info(
+        label + ": " + searches + " searches (" + hits + " hits) in " + nanos / 1000000 +
+        " msec (" + (nanos / searches) + " nanos per search)");
+  }
+
+
+  private PrefixedSortedBlock newBlock(ByteBuffer buffer, int width, RowOrder order) {
+    PrefixedSortedBlock block = new PrefixedSortedBlock(buffer, width, order, true);
+    block.loadPrefixes(block.cellCount());
+    return block;
+  }
+
+
+  /**
+   * Asserts the prefixed search agrees with the ordinary one (up to which of equal
+   * cells is hit).
+   */
+  private void assertSearch(PrefixedSortedBlock block, ByteBuffer key, int from, int to) {
+    ByteBuffer[] cells = block.cells();
+    int expected = Arrays.binarySearch(cells, from, to, key, block.order());
+    int actual = block.binarySearch(key, from, to);
+    if (expected < 0)
+      assertEquals(expected, actual);
+    else {
+      assertTrue(actual >= from && actual < to);
+      assertEquals(0, block.compareToCell(key, actual));
+    }
+  }
+
+}
@@ -8,19 +8,36 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Test;
 
+import io.crums.io.buffer.Covenant;
+import io.crums.io.store.NotSortedException;
 import io.crums.io.store.karoon.TStoreConfig.Builder;
+import io.crums.io.store.karoon.merge.CommitInfo;
+import io.crums.io.store.karoon.merge.CompactionStyle;
+import io.crums.io.store.karoon.merge.LevelInfo;
 import io.crums.io.store.karoon.merge.MergePolicy;
 import io.crums.io.store.karoon.merge.MergePolicyBuilder;
+import io.crums.io.store.karoon.merge.MergeScheduler;
 import io.crums.io.store.table.del.DeleteCodec;
 import io.crums.io.store.table.del.MagicNumDeleteCodec;
+import io.crums.io.store.table.iter.Direction;
 import io.crums.io.store.table.order.RowOrder;
 import io.crums.io.store.table.order.RowOrders;
 import io.crums.test.TestMethodHarness;
@@ -336,6 +353,759 @@ public class TStoreTest extends TestMethodHarness {
   
   
   
+  @Test
+  public void testConcurrentReads() throws Exception {
+    initUnitTestDir(new Object() { });
+    
+    final int rowCount = 20000;
+    final int readerCount = 4;
+    
+    int rowWidth = 8;
+    RowOrder order = RowOrders.INT_ORDER;
+    DeleteCodec deleteCodec = getDeleteCodec();
+    // flush often so the readers see many commits (and merges) go by
+    MergePolicy mergePolicy = new MergePolicyBuilder().setWriteAheadFlushTrigger(2048).snapshot();
+    File rootDir = unitTestDir();
+    
+    TStoreConfig config = new Builder()
+        .setRowWidth(rowWidth)
+        .setDeleteCodec(deleteCodec)
+        .setRowOrder(order)
+        .setRootDir(rootDir)
+        .setMergePolicy(mergePolicy)
+        .toConfig();
+    
+    final TStore tableStore = new TStore(config, true);
+    
+    // keys [1, written] have been written
+    final AtomicInteger written = new AtomicInteger();
+    final AtomicReference<Throwable> error = new AtomicReference<>();
+    final AtomicLong reads = new AtomicLong();
+    
+    Thread[] readers = new Thread[readerCount];
+    for (int i = 0; i < readerCount; ++i) {
+      final long seed = i;
+      readers[i] = new Thread() {
+        @Override
+        public void run() {
+          Random random = new Random(seed);
+          ByteBuffer key = ByteBuffer.allocate(rowWidth);
+          try {
+            while (error.get() == null) {
+              int w = written.get();
+              if (w == rowCount)
+                break;
+              if (w == 0)
+                continue;
+              int k = random.nextInt(w) + 1;
+              key.clear();
+              key.putInt(k).rewind();
+              ByteBuffer row = tableStore.getRow(key);
+              assertNotNull("key " + k, row);
+              assertEquals(k, row.getInt());
+              assertEquals(-k, row.getInt());
+              reads.incrementAndGet();
+            }
+          } catch (Throwable t) {
+            error.compareAndSet(null, t);
+          }
+        }
+      };
+      readers[i].start();
+    }
+    
+    ByteBuffer rowBuffer = ByteBuffer.allocate(rowWidth);
+    for (int k = 1; k <= rowCount && error.get() == null; ++k) {
+      rowBuffer.clear();
+      rowBuffer.putInt(k).putInt(-k).rewind();
+      tableStore.setRow(rowBuffer);
+      written.set(k);
+    }
+    
+    for (Thread reader : readers)
+      reader.join();
+    
+    log.info(tableStore + ": " + reads.get() + " concurrent reads");
+    log.info("bloom filters: " + tableStore.getBloomFilterStats());
+    assertTrue(tableStore.getBloomFilterBitsPerKey() > 0);
+    assertTrue(tableStore.getBloomFilterStats().getChecks() > 0);
+    tableStore.close();
+    
+    if (error.get() != null)
+      throw new AssertionError(error.get());
+  }
+
+
+
+
+  @Test
+  public void testConcurrentWrites() throws Exception {
+    initUnitTestDir(new Object() { });
+    testConcurrentWritesImpl(WalDurability.PER_WRITE);
+  }
+
+
+  @Test
+  public void testConcurrentWritesGroupCommit() throws Exception {
+    initUnitTestDir(new Object() { });
+    testConcurrentWritesImpl(WalDurability.PER_BATCH);
+  }
+
+
+  @Test
+  public void testConcurrentWritesPeriodicSync() throws Exception {
+    initUnitTestDir(new Object() { });
+    testConcurrentWritesImpl(WalDurability.periodic(5));
+  }
+
+
+  @Test
+  public void testConcurrentWritesNoSync() throws Exception {
+    initUnitTestDir(new Object() { });
+    testConcurrentWritesImpl(WalDurability.NONE);
+  }
+
+
+  private void testConcurrentWritesImpl(WalDurability durability) throws Exception {
+
+    final int rowsPerWriter = 4000;
+    final int writerCount = 6;
+
+    int rowWidth = 8;
+    RowOrder order = RowOrders.INT_ORDER;
+    DeleteCodec deleteCodec = getDeleteCodec();
+    // rotate the write-ahead table often, so the writers get stopped a few times
+    MergePolicy mergePolicy = new MergePolicyBuilder().setWriteAheadFlushTrigger(4096).snapshot();
+    File rootDir = unitTestDir();
+
+    TStoreConfig config = new Builder()
+        .setRowWidth(rowWidth)
+        .setDeleteCodec(deleteCodec)
+        .setRowOrder(order)
+        .setRootDir(rootDir)
+        .setMergePolicy(mergePolicy)
+        .setWalDurability(durability)
+        .toConfig();
+
+    final TStore tableStore = new TStore(config, true);
+
+    final AtomicReference<Throwable> error = new AtomicReference<>();
+
+    // writer w writes keys w + 1, w + 1 + writerCount, w + 1 + 2 * writerCount, ..
+    // the even ones singly, the odd ones in pairs; each key twice (the last value wins)
+    Thread[] writers = new Thread[writerCount];
+    for (int i = 0; i < writerCount; ++i) {
+      final int w = i;
+      writers[i] = new Thread() {
+        @Override
+        public void run() {
+          ByteBuffer rows = ByteBuffer.allocate(2 * rowWidth);
+          try {
+            for (int r = 0; r < rowsPerWriter && error.get() == null; ++r) {
+              int k = w + 1 + r * writerCount;
+              rows.clear();
+              if ((r & 1) == 0) {
+                rows.putInt(k).putInt(k).flip();
+                tableStore.setRow(rows);
+                rows.clear();
+                rows.putInt(k).putInt(-k).flip();
+                tableStore.setRow(rows);
+              } else {
+                rows.putInt(k).putInt(k).putInt(k).putInt(-k).flip();
+                tableStore.setRows(rows, Covenant.NONE);
+              }
+            }
+          } catch (Throwable t) {
+            error.compareAndSet(null, t);
+          }
+        }
+      };
+    }
+    for (Thread writer : writers)
+      writer.start();
+    for (Thread writer : writers)
+      writer.join();
+
+    if (error.get() != null)
+      throw new AssertionError(error.get());
+
+    HashMap<Integer, Integer> expected = new HashMap<>();
+    for (int k = 1; k <= rowsPerWriter * writerCount; ++k)
+      expected.put(k, -k);
+
+    log.info("testing " + tableStore + " (" + expected.size() + " rows)");
+    assertContainsExpected(tableStore, expected);
+
+    // reload (recovers the last write-ahead table)
+    tableStore.close();
+    TStore reloaded = new TStore(config, false);
+
+    assertContainsExpected(reloaded, expected);
+    reloaded.close();
+  }
+
+
+
+
+  @Test
+  public void testSharedMergeScheduler() throws IOException {
+    initUnitTestDir(new Object() { });
+    final int storeCount = 3;
+    final int rowCount = 12000;
+    final int keySpace = 8000;
+    
+    MergeScheduler scheduler = new MergeScheduler(1, Thread.NORM_PRIORITY);
+    MergePolicy mergePolicy = new MergePolicyBuilder().setWriteAheadFlushTrigger(1024).snapshot();
+    TStore[] stores = new TStore[storeCount];
+    List<HashMap<Integer, Integer>> expected = new ArrayList<>();
+    for (int s = 0; s < storeCount; ++s) {
+      File rootDir = new File(unitTestDir(), "store" + s);
+      TStoreConfig config = new Builder()
+          .setRowWidth(8)
+          .setDeleteCodec(getDeleteCodec())
+          .setRowOrder(RowOrders.INT_ORDER)
+          .setRootDir(rootDir)
+          .setMergePolicy(mergePolicy)
+          .setMergeScheduler(scheduler)
+          .toConfig();
+      stores[s] = new TStore(config, true);
+      expected.add(new HashMap<>());
+    }
+    
+    Random random = new Random(7);
+    ByteBuffer row = ByteBuffer.allocate(8);
+    for (int i = 0; i < rowCount; ++i) {
+      for (int s = 0; s < storeCount; ++s) {
+        int key = random.nextInt(keySpace);
+        int val = random.nextInt(1000) + 1;
+        expected.get(s).put(key, val);
+        row.clear();
+        row.putInt(key).putInt(val).flip();
+        stores[s].setRow(row);
+      }
+    }
+    
+    for (int s = 0; s < storeCount; ++s) {
+      log.info("testing " + stores[s] + " (" + expected.get(s).size() + " rows)");
+      assertContainsExpected(stores[s], expected.get(s));
+      stores[s].close();
+    }
+    scheduler.shutdown();
+  }
+
+
+  @Test
+  public void testMergeRateLimited() throws IOException {
+    initUnitTestDir(new Object() { });
+    final int rowCount = 12000;
+    final int keySpace = 8000;
+    
+    MergePolicy mergePolicy = new MergePolicyBuilder()
+        .setWriteAheadFlushTrigger(1024)
+        .setMergeBytesPerSecond(256 * 1024)
+        .setMergeRateAutoTuned(true)
+        .snapshot();
+    TStoreConfig config = new Builder()
+        .setRowWidth(8)
+        .setDeleteCodec(getDeleteCodec())
+        .setRowOrder(RowOrders.INT_ORDER)
+        .setRootDir(unitTestDir())
+        .setMergePolicy(mergePolicy)
+        .toConfig();
+    TStore tableStore = new TStore(config, true);
+    
+    Random random = new Random(11);
+    HashMap<Integer, Integer> expected = new HashMap<>();
+    ByteBuffer row = ByteBuffer.allocate(8);
+    for (int i = 0; i < rowCount; ++i) {
+      int key = random.nextInt(keySpace);
+      int val = random.nextInt(1000) + 1;
+      expected.put(key, val);
+      row.clear();
+      row.putInt(key).putInt(val).flip();
+      tableStore.setRow(row);
+      // exercise the read latency measurement
+      if (i % 13 == 0) {
+        row.clear();
+        row.putInt(key).flip();
+        assertEquals(val, tableStore.getRow(row).getInt(4));
+      }
+    }
+    assertContainsExpected(tableStore, expected);
+    tableStore.close();
+  }
+
+  @Test
+  public void testLeveledCompaction() throws IOException, InterruptedException {
+    initUnitTestDir(new Object() { });
+    final int rowCount = 40000;
+    final int keySpace = 30000;
+    
+    MergePolicy mergePolicy = new MergePolicyBuilder()
+        .setWriteAheadFlushTrigger(1024)
+        .setCompactionStyle(CompactionStyle.LEVELED)
+        .setLevelTableSize(16 * 1024)
+        .snapshot();
+    TStoreConfig config = new Builder()
+        .setRowWidth(8)
+        .setDeleteCodec(getDeleteCodec())
+        .setRowOrder(RowOrders.INT_ORDER)
+        .setRootDir(unitTestDir())
+        .setMergePolicy(mergePolicy)
+        .toConfig();
+    TStore tableStore = new TStore(config, true);
+    
+    Random random = new Random(17);
+    HashMap<Integer, Integer> expected = new HashMap<>();
+    ByteBuffer row = ByteBuffer.allocate(8);
+    for (int i = 0; i < rowCount; ++i) {
+      int key = random.nextInt(keySpace);
+      int val = random.nextInt(1000) + 1;
+      expected.put(key, val);
+      row.clear();
+      row.putInt(key).putInt(val).flip();
+      tableStore.setRow(row);
+    }
+    assertContainsExpected(tableStore, expected);
+    
+    // give the merges some time to settle
+    Thread.sleep(500);
+    CommitInfo commitInfo = CommitInfo.getCommitInfo(tableStore.getCurrentCommit(), tableStore);
+    List<LevelInfo> levels = LevelInfo.levels(commitInfo.tableInfos(), config.getRowOrder());
+    log.info(getMethod() + ": " + levels.size() + " levels: " + levels);
+    tableStore.close();
+    
+    // the (non-contiguous) merges must have been committed consistently
+    tableStore = new TStore(config, false);
+    assertContainsExpected(tableStore, expected);
+    tableStore.close();
+  }
+
+  @Test
+  public void testLeveledTrivialMoves() throws IOException, InterruptedException {
+    initUnitTestDir(new Object() { });
+    final int rowCount = 40000;
+    
+    MergePolicy mergePolicy = new MergePolicyBuilder()
+        .setWriteAheadFlushTrigger(1024)
+        .setCompactionStyle(CompactionStyle.LEVELED)
+        .setLevelTableSize(16 * 1024)
+        .snapshot();
+    TStoreConfig config = new Builder()
+        .setRowWidth(8)
+        .setDeleteCodec(getDeleteCodec())
+        .setRowOrder(RowOrders.INT_ORDER)
+        .setRootDir(unitTestDir())
+        .setMergePolicy(mergePolicy)
+        .toConfig();
+    TStore tableStore = new TStore(config, true);
+    
+    // increasing keys (as in a time series): the tables' key ranges
+    // don't overlap, so they're moved down the levels, not merged
+    HashMap<Integer, Integer> expected = new HashMap<>();
+    ByteBuffer row = ByteBuffer.allocate(8);
+    for (int key = 0; key < rowCount; ++key) {
+      int val = key % 1000 + 1;
+      expected.put(key, val);
+      row.clear();
+      row.putInt(key).putInt(val).flip();
+      tableStore.setRow(row);
+    }
+    assertContainsExpected(tableStore, expected);
+    
+    Thread.sleep(500);
+    CommitInfo commitInfo = CommitInfo.getCommitInfo(tableStore.getCurrentCommit(), tableStore);
+    List<LevelInfo> levels = LevelInfo.levels(commitInfo.tableInfos(), config.getRowOrder());
+    log.info(getMethod() + ": " + levels.size() + " levels: " + levels);
+    tableStore.close();
+    
+    tableStore = new TStore(config, false);
+    assertContainsExpected(tableStore, expected);
+    tableStore.close();
+  }
+
+  @Test
+  public void testPartitionedMerges() throws IOException {
+    initUnitTestDir(new Object() { });
+    final int rowCount = 40000;
+    final int keySpace = 30000;
+    
+    MergePolicy mergePolicy = new MergePolicyBuilder()
+        .setWriteAheadFlushTrigger(1024)
+        .setMergePartitions(4)
+        .setMinPartitionedMergeSize(16 * 1024)
+        .snapshot();
+    TStoreConfig config = new Builder()
+        .setRowWidth(8)
+        .setDeleteCodec(getDeleteCodec())
+        .setRowOrder(RowOrders.INT_ORDER)
+        .setRootDir(unitTestDir())
+        .setMergePolicy(mergePolicy)
+        .toConfig();
+    TStore tableStore = new TStore(config, true);
+    
+    Random random = new Random(18);
+    HashMap<Integer, Integer> expected = new HashMap<>();
+    ByteBuffer row = ByteBuffer.allocate(8);
+    for (int i = 0; i < rowCount; ++i) {
+      int key = random.nextInt(keySpace);
+      int val = random.nextInt(1000) + 1;
+      expected.put(key, val);
+      row.clear();
+      row.putInt(key).putInt(val).flip();
+      tableStore.setRow(row);
+    }
+    assertContainsExpected(tableStore, expected);
+    tableStore.close();
+    
+    tableStore = new TStore(config, false);
+    assertContainsExpected(tableStore, expected);
+    tableStore.close();
+  }
+
+  @Test
+  public void testBackgroundFlush() throws IOException {
+    initUnitTestDir(new Object() { });
+    testFlushImpl(3);
+  }
+
+
+  @Test
+  public void testInlineFlush() throws IOException {
+    initUnitTestDir(new Object() { });
+    testFlushImpl(0);
+  }
+
+
+  private void testFlushImpl(int maxImmutableMemtables) throws IOException {
+
+    final int rowCount = 12000;
+    final int keySpace = 8000;
+
+    int rowWidth = 8;
+    RowOrder order = RowOrders.INT_ORDER;
+    DeleteCodec deleteCodec = getDeleteCodec();
+    MergePolicy mergePolicy = new MergePolicyBuilder()
+        .setWriteAheadFlushTrigger(1024)
+        .setMaxImmutableMemtables(maxImmutableMemtables)
+        .snapshot();
+    File rootDir = unitTestDir();
+
+    TStoreConfig config = new Builder()
+        .setRowWidth(rowWidth)
+        .setDeleteCodec(deleteCodec)
+        .setRowOrder(order)
+        .setRootDir(rootDir)
+        .setMergePolicy(mergePolicy)
+        .toConfig();
+
+    TStore tableStore = new TStore(config, true);
+
+    Random random = new Random(maxImmutableMemtables);
+    HashMap<Integer, Integer> expected = new HashMap<>();
+    ByteBuffer rowBuffer = ByteBuffer.allocate(rowWidth);
+    for (int count = 0; count < rowCount; ++count) {
+      int key = random.nextInt(keySpace);
+      int val = random.nextInt() | 1;
+      expected.put(key, val);
+      rowBuffer.clear();
+      rowBuffer.putInt(key).putInt(val).flip();
+      tableStore.setRow(rowBuffer);
+      // read back a recent write (maybe from an immutable memtable)
+      if (count % 97 == 0) {
+        rowBuffer.clear();
+        rowBuffer.putInt(key).flip();
+        ByteBuffer row = tableStore.getRow(rowBuffer);
+        assertEquals(key, row.getInt());
+        assertEquals(val, row.getInt());
+      }
+    }
+
+    assertContainsExpected(tableStore, expected);
+
+    // close right away (some immutable memtables may not be flushed yet)
+    // and reload
+    tableStore.close();
+    tableStore = new TStore(config, false);
+
+    assertContainsExpected(tableStore, expected);
+    tableStore.close();
+  }
+
+
+
+
+  @Test
+  public void testIngest() throws IOException {
+    initUnitTestDir(new Object() { });
+
+    final int rowWidth = 8;
+    MergePolicy mergePolicy = new MergePolicyBuilder().setWriteAheadFlushTrigger(1024).snapshot();
+    TStoreConfig config = new Builder()
+        .setRowWidth(rowWidth)
+        .setDeleteCodec(getDeleteCodec())
+        .setRowOrder(RowOrders.INT_ORDER)
+        .setRootDir(unitTestDir())
+        .setMergePolicy(mergePolicy)
+        .toConfig();
+
+    TStore tableStore = new TStore(config, true);
+
+    // even keys written thru the WAL (some flushed, some not)..
+    ByteBuffer rowBuffer = ByteBuffer.allocate(rowWidth);
+    for (int key = 0; key < 2000; key += 2) {
+      rowBuffer.clear();
+      rowBuffer.putInt(key).putInt(1).rewind();
+      tableStore.setRow(rowBuffer);
+    }
+
+    // ..overridden by every 4th key, ingested
+    final int ingestCount = 1000;
+    File ingestFile = new File(unitTestDir(), "ingest.dat");
+    ByteBuffer rows = ByteBuffer.allocate(ingestCount * rowWidth);
+    for (int i = 0; i < ingestCount; ++i)
+      rows.putInt(4 * i).putInt(2);
+    rows.flip();
+    try (FileOutputStream out = new FileOutputStream(ingestFile)) {
+      out.getChannel().write(rows);
+    }
+
+    // (the ingested table may be merged away right after it's committed)
+    long tableId = tableStore.ingest(ingestFile);
+    assertTrue(tableId > 0);
+    // (moved into the store)
+    assertFalse(ingestFile.exists());
+
+    // out of order files are rejected
+    File unsorted = new File(unitTestDir(), "unsorted.dat");
+    rows.clear();
+    rows.putInt(5).putInt(3).putInt(3).putInt(3).flip();
+    try (FileOutputStream out = new FileOutputStream(unsorted)) {
+      out.getChannel().write(rows);
+    }
+    try {
+      tableStore.ingest(unsorted);
+      fail();
+    } catch (NotSortedException expected) { }
+    assertTrue(unsorted.exists());
+
+    assertIngested(tableStore, ingestCount);
+    tableStore.close();
+
+    tableStore = new TStore(config, false);
+    assertIngested(tableStore, ingestCount);
+    tableStore.close();
+  }
+
+
+  private void assertIngested(TStore tableStore, int ingestCount) throws IOException {
+    ByteBuffer key = ByteBuffer.allocate(4);
+    for (int k = 0; k < 4 * ingestCount; ++k) {
+      key.clear();
+      key.putInt(k).flip();
+      ByteBuffer row = tableStore.getRow(key);
+      if (k % 4 == 0) {
+        assertNotNull(row);
+        assertEquals(2, row.getInt(4));
+      } else if (k % 2 == 0 && k < 2000) {
+        assertNotNull(row);
+        assertEquals(1, row.getInt(4));
+      } else
+        assertNull(row);
+    }
+  }
+
+
+  @Test
+  public void testScan() throws IOException {
+    initUnitTestDir(new Object() { });
+    testScan(null);
+  }
+
+
+  @Test
+  public void testScanPrefetched() throws IOException {
+    initUnitTestDir(new Object() { });
+    ExecutorService prefetcher = Executors.newFixedThreadPool(2);
+    try {
+      testScan(prefetcher);
+    } finally {
+      prefetcher.shutdown();
+    }
+  }
+
+
+  private void testScan(Executor prefetcher) throws IOException {
+
+    final int rowCount = 5000;
+
+    int rowWidth = 8;
+    RowOrder order = RowOrders.INT_ORDER;
+    DeleteCodec deleteCodec = getDeleteCodec();
+    // flush often, so the rows are spread over many tables
+    MergePolicy mergePolicy = new MergePolicyBuilder().setWriteAheadFlushTrigger(2048).snapshot();
+    File rootDir = unitTestDir();
+
+    TStoreConfig config = new Builder()
+        .setRowWidth(rowWidth)
+        .setDeleteCodec(deleteCodec)
+        .setRowOrder(order)
+        .setRootDir(rootDir)
+        .setMergePolicy(mergePolicy)
+        .setScanPrefetcher(prefetcher)
+        .toConfig();
+
+    TStore tableStore = new TStore(config, true);
+
+    Random random = new Random(getMethod().hashCode());
+    TreeMap<Integer, Integer> expected = new TreeMap<>();
+    ByteBuffer rowBuffer = ByteBuffer.allocate(rowWidth);
+    for (int count = rowCount; count-- > 0; ) {
+      int key = random.nextInt(rowCount * 2);
+      int val = random.nextInt(1000) + 1;
+      rowBuffer.clear();
+      rowBuffer.putInt(key).putInt(val).rewind();
+      tableStore.setRow(rowBuffer);
+      expected.put(key, val);
+      if (deleteCodec != null && count % 7 == 0) {
+        key = random.nextInt(rowCount * 2);
+        rowBuffer.clear();
+        rowBuffer.putInt(key).rewind();
+        tableStore.deleteRow(rowBuffer);
+        expected.remove(key);
+      }
+    }
+
+    ByteBuffer from = ByteBuffer.allocate(rowWidth);
+    ByteBuffer to = ByteBuffer.allocate(rowWidth);
+    for (int trial = 0; trial < 20; ++trial) {
+      int fromKey = random.nextInt(rowCount * 2);
+      int toKey = fromKey + random.nextInt(rowCount / 2);
+      from.clear();
+      from.putInt(fromKey).rewind();
+      to.clear();
+      to.putInt(toKey).rewind();
+
+      assertScan(
+          expected.subMap(fromKey, true, toKey, false),
+          tableStore.scan(from, to, Direction.FORWARD));
+      assertScan(
+          expected.descendingMap().subMap(toKey, true, fromKey, false),
+          tableStore.scan(to, from, Direction.REVERSE));
+      assertScan(
+          expected.tailMap(fromKey, true),
+          tableStore.scan(from, null, Direction.FORWARD));
+    }
+
+    // empty and out-of-range scans (every sub-iterator starts out empty)
+    from.clear();
+    from.putInt(rowCount * 4).rewind();
+    assertScan(new TreeMap<Integer, Integer>(), tableStore.scan(from, null, Direction.FORWARD));
+    from.clear();
+    from.putInt(-1).rewind();
+    assertScan(new TreeMap<Integer, Integer>(), tableStore.scan(from, null, Direction.REVERSE));
+    to.clear();
+    to.putInt(-1).rewind();
+    assertScan(new TreeMap<Integer, Integer>(), tableStore.scan(from, to, Direction.FORWARD));
+
+    // a cursor's view of the back set is unaffected by later writes
+    from.clear();
+    from.putInt(0).rewind();
+    TableCursor cursor = tableStore.scan(from, null, Direction.FORWARD);
+    for (int k = rowCount * 2; k < rowCount * 3; ++k) {
+      rowBuffer.clear();
+      rowBuffer.putInt(k).putInt(1).rewind();
+      tableStore.setRow(rowBuffer);
+    }
+    int count = 0;
+    for (ByteBuffer row = cursor.next(); row != null; row = cursor.next())
+      ++count;
+    assertTrue(count >= expected.size());
+    cursor.close();
+    assertFalse(cursor.isOpen());
+
+    tableStore.close();
+  }
+
+
+  @Test
+  public void testGetRows() throws IOException {
+    initUnitTestDir(new Object() { });
+
+    final int rowCount = 5000;
+
+    int rowWidth = 8;
+    RowOrder order = RowOrders.INT_ORDER;
+    DeleteCodec deleteCodec = getDeleteCodec();
+    MergePolicy mergePolicy = new MergePolicyBuilder().setWriteAheadFlushTrigger(2048).snapshot();
+    File rootDir = unitTestDir();
+
+    TStoreConfig config = new Builder()
+        .setRowWidth(rowWidth)
+        .setDeleteCodec(deleteCodec)
+        .setRowOrder(order)
+        .setRootDir(rootDir)
+        .setMergePolicy(mergePolicy)
+        .toConfig();
+
+    TStore tableStore = new TStore(config, true);
+
+    Random random = new Random(getMethod().hashCode());
+    TreeMap<Integer, Integer> expected = new TreeMap<>();
+    ByteBuffer rowBuffer = ByteBuffer.allocate(rowWidth);
+    for (int count = rowCount; count-- > 0; ) {
+      int key = random.nextInt(rowCount * 2);
+      int val = random.nextInt(1000) + 1;
+      rowBuffer.clear();
+      rowBuffer.putInt(key).putInt(val).rewind();
+      tableStore.setRow(rowBuffer);
+      expected.put(key, val);
+      if (deleteCodec != null && count % 7 == 0) {
+        key = random.nextInt(rowCount * 2);
+        rowBuffer.clear();
+        rowBuffer.putInt(key).rewind();
+        tableStore.deleteRow(rowBuffer);
+        expected.remove(key);
+      }
+    }
+
+    // random keys, in random order, with duplicates
+    List<ByteBuffer> keys = new ArrayList<>();
+    TreeMap<Integer, Integer> expectedHits = new TreeMap<>();
+    for (int i = 0; i < 2000; ++i) {
+      int key = random.nextInt(rowCount * 2);
+      ByteBuffer keyBuffer = ByteBuffer.allocate(4);
+      keyBuffer.putInt(key).flip();
+      keys.add(keyBuffer);
+      if (expected.containsKey(key))
+        expectedHits.put(key, expected.get(key));
+    }
+
+    ByteBuffer rows = tableStore.getRows(keys);
+    assertEquals(expectedHits.size() * rowWidth, rows.remaining());
+    for (Map.Entry<Integer, Integer> entry : expectedHits.entrySet()) {
+      assertEquals(entry.getKey().intValue(), rows.getInt());
+      assertEquals(entry.getValue().intValue(), rows.getInt());
+    }
+    tableStore.close();
+  }
+
+
+  private void assertScan(Map<Integer, Integer> expected, TableCursor cursor) throws IOException {
+    for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+      ByteBuffer row = cursor.next();
+      assertNotNull("key " + entry.getKey(), row);
+      assertEquals(entry.getKey().intValue(), row.getInt());
+      assertEquals(entry.getValue().intValue(), row.getInt());
+    }
+    assertNull(cursor.next());
+    assertTrue(cursor.isOpen());
+    cursor.close();
+  }
+
+
+
+
   protected DeleteCodec getDeleteCodec() {
     return MagicNumDeleteCodec.newIntInstance(4, 0);
   }
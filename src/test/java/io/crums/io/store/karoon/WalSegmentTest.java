@@ -0,0 +1,155 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.io.store.karoon;
+
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import io.crums.io.store.table.Table;
+import io.crums.io.store.table.order.RowOrders;
+import io.crums.test.TestHelper;
+import io.crums.test.TestMethodHarness;
+
+/**
+ *
+ * @author Babak
+ */
+public class WalSegmentTest extends TestMethodHarness {
+
+  private final static int ROW_WIDTH = 8;
+
+  @Test
+  public void testRoundtrip() throws IOException {
+    File file = newFile(new Object() { });
+    writeFrames(file, 5);
+
+    List<WalSegment.Frame> frames = new ArrayList<>();
+    try (WalSegment segment = WalSegment.loadInstance(open(file), ROW_WIDTH, frames)) {
+      assertEquals(file.length(), segment.size());
+    }
+    assertFrames(frames, 5);
+  }
+
+  @Test
+  public void testTornTail() throws IOException {
+    File file = newFile(new Object() { });
+    writeFrames(file, 5);
+    long goodSize = file.length();
+    writeFrames(file, 1);
+    // tear the last frame
+    try (FileChannel ch = open(file)) {
+      ch.truncate(ch.size() - 3);
+    }
+
+    List<WalSegment.Frame> frames = new ArrayList<>();
+    try (WalSegment segment = WalSegment.loadInstance(open(file), ROW_WIDTH, frames)) {
+      assertEquals(goodSize, segment.size());
+    }
+    assertEquals(goodSize, file.length());
+    assertFrames(frames, 5);
+  }
+
+  @Test
+  public void testCorruptFrame() throws IOException {
+    File file = newFile(new Object() { });
+    writeFrames(file, 2);
+    long goodSize = file.length();
+    writeFrames(file, 3);
+    // flip a byte in the 3rd frame's rows
+    try (FileChannel ch = open(file)) {
+      ByteBuffer b = ByteBuffer.allocate(1);
+      long pos = goodSize + WalSegment.FRAME_HEADER_SIZE;
+      ch.read(b, pos);
+      b.flip();
+      byte flipped = (byte) ~b.get(0);
+      ch.write(ByteBuffer.wrap(new byte[] { flipped }), pos);
+    }
+
+    List<WalSegment.Frame> frames = new ArrayList<>();
+    try (WalSegment segment = WalSegment.loadInstance(open(file), ROW_WIDTH, frames)) {
+      assertEquals(goodSize, segment.size());
+    }
+    assertFrames(frames, 2);
+  }
+
+  @Test
+  public void testLegacyConversion() throws IOException {
+    File file = newFile(new Object() { });
+    try (Table legacy = Table.newEmptyInstance(open(file), ROW_WIDTH)) {
+      ByteBuffer row = ByteBuffer.allocate(ROW_WIDTH);
+      for (int k = 3; k-- > 0; ) {
+        row.clear();
+        row.putInt(k).putInt(-k).flip();
+        legacy.append(row);
+      }
+    }
+    try (WriteAheadTableBuilder wal =
+        new WriteAheadTableBuilder(ROW_WIDTH, RowOrders.INT_ORDER, file)) {
+      assertEquals(3, wal.getRowCount());
+      ByteBuffer key = ByteBuffer.allocate(4);
+      key.putInt(2).flip();
+      assertEquals(-2, wal.getRow(key).getInt(4));
+    }
+    try (FileChannel ch = open(file)) {
+      assertTrue(WalSegment.isSegment(ch));
+    }
+  }
+
+
+  private File newFile(Object methodObj) {
+    return new File(testDir, TestHelper.method(methodObj));
+  }
+
+  @SuppressWarnings("resource")
+  private FileChannel open(File file) throws IOException {
+    return new RandomAccessFile(file, "rw").getChannel();
+  }
+
+  /**
+   * Appends <tt>count</tt> more frames. Frame <tt>i</tt> has <tt>i + 1</tt> rows
+   * and sequence number <tt>10 * i</tt>.
+   */
+  private void writeFrames(File file, int count) throws IOException {
+    List<WalSegment.Frame> existing = new ArrayList<>();
+    WalSegment segment = file.exists() ?
+        WalSegment.loadInstance(open(file), ROW_WIDTH, existing) :
+          WalSegment.newInstance(open(file), ROW_WIDTH);
+    try {
+      for (int i = existing.size(), end = i + count; i < end; ++i) {
+        ByteBuffer rows = ByteBuffer.allocate((i + 1) * ROW_WIDTH);
+        while (rows.hasRemaining())
+          rows.putLong(i);
+        rows.flip();
+        segment.write(10 * i, rows);
+        assertEquals(0, rows.position());
+      }
+    } finally {
+      segment.close();
+    }
+  }
+
+
+  private void assertFrames(List<WalSegment.Frame> frames, int count) {
+    assertEquals(count, frames.size());
+    for (int i = 0; i < count; ++i) {
+      WalSegment.Frame frame = frames.get(i);
+      assertEquals(10 * i, frame.firstSeq());
+      ByteBuffer rows = frame.rows();
+      assertEquals((i + 1) * ROW_WIDTH, rows.remaining());
+      while (rows.hasRemaining())
+        assertEquals(i, rows.getLong());
+    }
+  }
+
+}
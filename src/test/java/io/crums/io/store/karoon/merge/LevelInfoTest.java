@@ -0,0 +1,213 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.io.store.karoon.merge;
+
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import io.crums.io.store.table.order.RowOrder;
+import io.crums.io.store.table.order.RowOrders;
+
+/**
+ *
+ * @author Babak
+ */
+public class LevelInfoTest {
+
+  private final static RowOrder ORDER = RowOrders.INT_ORDER;
+
+  /**
+   * Young tables are no larger than this.
+   */
+  private final static long Y = 1024;
+
+  private final static MergePolicy POLICY = new MergePolicyBuilder()
+      .setWriteAheadFlushTrigger((int) (Y / 2))
+      .setGenerationalFactor(2)
+      .setCompactionStyle(CompactionStyle.LEVELED)
+      .setLevelTableSize(4 * Y)
+      .snapshot();
+
+
+  @Test
+  public void testLevels() {
+    List<TableInfo> stack = Arrays.asList(
+        table(1, 10 * Y, 0, 99),
+        table(2, 10 * Y, 100, 199),   // level 3 (bottom)
+        table(3, 4 * Y, 50, 60),
+        table(4, 4 * Y, 150, 160),    // level 2
+        table(5, 2 * Y, 55, 155));    // level 1
+
+    List<LevelInfo> levels = LevelInfo.levels(stack, ORDER);
+    assertEquals(3, levels.size());
+    assertEquals(1, levels.get(0).level);
+    assertEquals(ids(5), ids(levels.get(0).tableInfos));
+    assertEquals(ids(3, 4), ids(levels.get(1).tableInfos));
+    assertEquals(ids(1, 2), ids(levels.get(2).tableInfos));
+    assertEquals(20 * Y, levels.get(2).size());
+  }
+
+
+  @Test
+  public void testLevelKeyOrder() {
+    List<TableInfo> stack = Arrays.asList(
+        table(1, 10 * Y, 200, 299),
+        table(2, 10 * Y, 0, 99),
+        table(3, 10 * Y, 100, 199));
+    List<LevelInfo> levels = LevelInfo.levels(stack, ORDER);
+    assertEquals(1, levels.size());
+    assertEquals(ids(2, 3, 1), ids(levels.get(0).tableInfos));
+  }
+
+
+  @Test
+  public void testNoCandidates() {
+    // a single level
+    List<TableInfo> stack = Arrays.asList(
+        table(1, 10 * Y, 0, 99),
+        table(2, 10 * Y, 100, 199));
+    assertTrue(LevelInfo.mergeCandidates(stack, POLICY, ORDER).isEmpty());
+
+    // level 1 within its target size (half the bottom's)
+    stack = Arrays.asList(
+        table(1, 10 * Y, 0, 99),
+        table(2, 10 * Y, 100, 199),
+        table(3, 9 * Y, 50, 150));
+    assertTrue(LevelInfo.mergeCandidates(stack, POLICY, ORDER).isEmpty());
+  }
+
+
+  @Test
+  public void testYoungExcluded() {
+    List<TableInfo> stack = Arrays.asList(
+        table(1, 10 * Y, 0, 99),
+        table(2, Y, 0, 99),
+        table(3, Y, 0, 99));
+    assertTrue(LevelInfo.mergeCandidates(stack, POLICY, ORDER).isEmpty());
+  }
+
+
+  @Test
+  public void testCandidate() {
+    List<TableInfo> stack = Arrays.asList(
+        table(1, 10 * Y, 0, 99),
+        table(2, 10 * Y, 100, 199),
+        table(3, 10 * Y, 200, 299),   // level 2 (bottom)
+        table(4, 8 * Y, 90, 110),     // overlaps 1 and 2
+        table(5, 8 * Y, 210, 220),    // overlaps 3 only: pick
+        table(6, Y, 0, 299));         // young
+
+    List<GenerationInfo> candidates = LevelInfo.mergeCandidates(stack, POLICY, ORDER);
+    assertEquals(1, candidates.size());
+    GenerationInfo g = candidates.get(0);
+    assertEquals(1, g.generation);
+    assertEquals(ids(3, 5), g.srcIds());
+    assertEquals(ids(1, 2), g.backSetIds());
+  }
+
+
+  @Test
+  public void testCandidatesRanked() {
+    List<TableInfo> stack = Arrays.asList(
+        table(1, 32 * Y, 0, 999),     // level 3 (bottom)
+        table(2, 20 * Y, 0, 499),     // level 2: score 1.25
+        table(3, 16 * Y, 400, 599));  // level 1: score 2
+
+    List<GenerationInfo> candidates = LevelInfo.mergeCandidates(stack, POLICY, ORDER);
+    assertEquals(2, candidates.size());
+    assertEquals(1, candidates.get(0).generation);
+    assertEquals(ids(2, 3), candidates.get(0).srcIds());
+    assertEquals(ids(1), candidates.get(0).backSetIds());
+    assertEquals(2, candidates.get(1).generation);
+    assertEquals(ids(1, 2), candidates.get(1).srcIds());
+    assertTrue(candidates.get(1).backSetIds().isEmpty());
+  }
+
+
+
+  @Test
+  public void testTrivialMoves() {
+    List<TableInfo> stack = Arrays.asList(
+        table(1, 10 * Y, 0, 99),
+        table(2, 10 * Y, 100, 199),   // level 2 (bottom)
+        table(3, 4 * Y, 90, 110),     // overlaps 1 and 2
+        table(4, 6 * Y, 200, 299),    // overlaps nothing: moved
+        table(5, 2 * Y, 300, 399),    // overlaps nothing, but smaller
+        table(6, Y, 0, 299));         // young
+
+    List<LevelInfo.Move> moves = LevelInfo.trivialMoves(stack, POLICY, ORDER);
+    assertEquals(1, moves.size());
+    LevelInfo.Move move = moves.get(0);
+    assertEquals(1, move.level);
+    assertEquals(4, move.tableInfo.tableId);
+    assertEquals(2, move.anchor.tableId);
+    assertEquals(ids(2, 4), move.tableIds());
+
+    // the table that overlaps is merged
+    List<GenerationInfo> candidates = LevelInfo.mergeCandidates(stack, POLICY, ORDER);
+    assertEquals(1, candidates.size());
+    assertEquals(ids(1, 2, 3), candidates.get(0).srcIds());
+
+    // not overdue: no moves
+    stack = Arrays.asList(
+        table(1, 10 * Y, 0, 99),
+        table(2, 10 * Y, 100, 199),
+        table(3, 4 * Y, 200, 299));
+    assertTrue(LevelInfo.trivialMoves(stack, POLICY, ORDER).isEmpty());
+  }
+
+
+
+  @Test
+  public void testCombineSmallTables() {
+    List<TableInfo> stack = Arrays.asList(
+        table(1, 10 * Y, 0, 99),
+        table(2, Y + 1, 300, 399),
+        table(3, Y + 1, 100, 199),     // (adjacent to 2 in key order)
+        table(4, 2 * Y + 1, 400, 499), // too big to combine
+        table(5, Y + 1, 500, 599),
+        table(6, Y + 1, 600, 699));
+
+    // level table size is 4Y; a table no greater than 2Y is small
+    List<GenerationInfo> candidates = LevelInfo.mergeCandidates(stack, POLICY, ORDER);
+    assertEquals(1, candidates.size());
+    assertEquals(ids(2, 3), candidates.get(0).srcIds());
+    assertEquals(ids(1), candidates.get(0).backSetIds());
+  }
+
+
+
+  private TableInfo table(long id, long size, int firstKey, int lastKey) {
+    return new TableInfo(id, size, row(firstKey), row(lastKey));
+  }
+
+  private ByteBuffer row(int key) {
+    ByteBuffer row = ByteBuffer.allocate(8);
+    row.putInt(key).putInt(0).flip();
+    return row.asReadOnlyBuffer();
+  }
+
+  private List<Long> ids(long... ids) {
+    ArrayList<Long> list = new ArrayList<>(ids.length);
+    for (long id : ids)
+      list.add(id);
+    return list;
+  }
+
+  private List<Long> ids(List<TableInfo> infos) {
+    ArrayList<Long> list = new ArrayList<>(infos.size());
+    for (TableInfo info : infos)
+      list.add(info.tableId);
+    return Collections.unmodifiableList(list);
+  }
+
+}
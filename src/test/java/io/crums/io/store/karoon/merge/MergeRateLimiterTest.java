@@ -0,0 +1,65 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.io.store.karoon.merge;
+
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author Babak
+ */
+public class MergeRateLimiterTest {
+
+  private final static long BASE = 1024 * 1024;
+
+  @Test
+  public void testForPolicy() {
+    assertNull(MergeRateLimiter.forPolicy(new MergePolicyBuilder().snapshot()));
+    MergeRateLimiter limiter = MergeRateLimiter.forPolicy(
+        new MergePolicyBuilder().setMergeBytesPerSecond(BASE).setMergeRateAutoTuned(true));
+    assertEquals(BASE, limiter.getRate());
+    assertEquals(BASE, limiter.writeBudget().getRate());
+    assertTrue(limiter.isAutoTuned());
+  }
+
+  @Test
+  public void testNotTuned() {
+    MergeRateLimiter limiter = new MergeRateLimiter(BASE, false);
+    assertEquals(BASE, limiter.tune(2, 1000));
+    assertEquals(BASE, limiter.getRate());
+  }
+
+  @Test
+  public void testDebtRaisesRate() {
+    MergeRateLimiter limiter = new MergeRateLimiter(BASE, true);
+    long rate = limiter.tune(1.5, 1000);
+    assertTrue(rate > BASE);
+    // even if latency is elevated
+    assertTrue(limiter.tune(1.5, 10_000) > rate);
+    for (int i = 0; i < 100; ++i)
+      rate = limiter.tune(2, 1000);
+    assertEquals((long) (BASE * MergeRateLimiter.MAX_TUNE_FACTOR), rate);
+    assertEquals(rate, limiter.readBudget().getRate());
+    assertEquals(rate, limiter.writeBudget().getRate());
+  }
+
+  @Test
+  public void testLatencyLowersRate() {
+    MergeRateLimiter limiter = new MergeRateLimiter(BASE, true);
+    // establish the baseline
+    for (int i = 0; i < 10; ++i)
+      assertEquals(BASE, limiter.tune(0.1, 1000));
+    long rate = limiter.tune(0.1, 2000);
+    assertTrue(rate < BASE);
+    for (int i = 0; i < 100; ++i)
+      rate = limiter.tune(0.1, 5000);
+    assertEquals((long) (BASE / MergeRateLimiter.MAX_TUNE_FACTOR), rate);
+    // latency back to normal, but a growing backlog
+    assertTrue(limiter.tune(0.75, 1000) > rate);
+  }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.io.store.karoon.merge;
+
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author Babak
+ */
+public class MergeSchedulerTest {
+
+  @Test
+  public void testConcurrencyLimit() throws Exception {
+    final int max = 3;
+    MergeScheduler scheduler = new MergeScheduler(max, Thread.NORM_PRIORITY);
+    final AtomicInteger concurrent = new AtomicInteger();
+    final AtomicInteger peak = new AtomicInteger();
+    final int taskCount = 20;
+    final CountDownLatch done = new CountDownLatch(taskCount);
+    for (int i = 0; i < taskCount; ++i) {
+      Object owner = i % 2 == 0 ? "a" : "b";
+      scheduler.execute(owner, i, new Runnable() {
+        @Override
+        public void run() {
+          int now = concurrent.incrementAndGet();
+          peak.accumulateAndGet(now, Math::max);
+          try {
+            Thread.sleep(5);
+          } catch (InterruptedException ix) {
+            throw new RuntimeException(ix);
+          } finally {
+            concurrent.decrementAndGet();
+            done.countDown();
+          }
+        }
+      });
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertTrue(peak.get() <= max);
+    scheduler.shutdown();
+    try {
+      scheduler.execute("a", 0, () -> { });
+      fail();
+    } catch (IllegalStateException expected) {  }
+  }
+
+
+  @Test
+  public void testPriority() throws Exception {
+    MergeScheduler scheduler = new MergeScheduler(1, Thread.NORM_PRIORITY);
+    final CountDownLatch release = new CountDownLatch(1);
+    scheduler.execute("a", 0, blocker(release));
+    
+    final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch done = new CountDownLatch(3);
+    scheduler.execute("a", 0.5, recorder("low", order, done));
+    scheduler.execute("a", 2.0, recorder("high", order, done));
+    scheduler.execute("b", 1.0, recorder("mid", order, done));
+    
+    release.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(List.of("high", "mid", "low"), order);
+    scheduler.shutdown();
+  }
+
+
+  @Test
+  public void testFairness() throws Exception {
+    MergeScheduler scheduler = new MergeScheduler(2, Thread.NORM_PRIORITY);
+    final CountDownLatch releaseFirst = new CountDownLatch(1);
+    final CountDownLatch releaseSecond = new CountDownLatch(1);
+    // "a" occupies both threads
+    scheduler.execute("a", 0, blocker(releaseFirst));
+    scheduler.execute("a", 0, blocker(releaseSecond));
+    while (scheduler.getRunningCount() < 2)
+      Thread.sleep(1);
+    
+    final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch done = new CountDownLatch(2);
+    scheduler.execute("a", 9, recorder("a", order, done));
+    scheduler.execute("b", 1, recorder("b", order, done));
+    
+    // with a thread freed up, "b" (running none) goes before "a" (still running one),
+    // despite its lower priority
+    releaseFirst.countDown();
+    while (order.isEmpty())
+      Thread.sleep(1);
+    assertEquals("b", order.get(0));
+    
+    releaseSecond.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(List.of("b", "a"), order);
+    scheduler.shutdown();
+  }
+
+
+  @Test
+  public void testSharedInstance() {
+    MergeScheduler shared = MergeScheduler.shared();
+    assertSame(shared, MergeScheduler.shared());
+    try {
+      shared.shutdown();
+      fail();
+    } catch (IllegalStateException expected) {  }
+  }
+
+
+  private Runnable blocker(final CountDownLatch release) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException ix) {
+          throw new RuntimeException(ix);
+        }
+      }
+    };
+  }
+
+
+  private Runnable recorder(final String label, final List<String> order, final CountDownLatch done) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        order.add(label);
+        done.countDown();
+      }
+    };
+  }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import io.crums.io.store.table.SortedTable.Searcher;
+import io.crums.io.store.table.order.RowOrders;
+
+/**
+ *
+ * @author Babak
+ */
+public class BlockCacheTest extends TableTestHarness {
+
+
+  @Test
+  public void testCapacity() {
+    final int blockSize = 100;
+    BlockCache cache = new BlockCache(10 * blockSize, blockSize);
+    for (int b = 0; b < 50; ++b) {
+      assertNull(cache.get(1, b));
+      cache.put(1, b, ByteBuffer.allocate(blockSize));
+      assertTrue(cache.used() <= cache.capacity());
+    }
+    assertEquals(10, cache.size());
+    assertEquals(50, cache.getMisses());
+    cache.invalidate(1);
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.used());
+  }
+
+
+  @Test
+  public void testScanResistance() {
+    final int blockSize = 100;
+    final int hotBlocks = 8;
+    BlockCache cache = new BlockCache(10 * blockSize, blockSize);
+
+    // the hot blocks (table 1) are looked up repeatedly
+    for (int round = 0; round < 5; ++round) {
+      for (int b = 0; b < hotBlocks; ++b) {
+        if (cache.get(1, b) == null)
+          cache.put(1, b, block(blockSize, b));
+      }
+    }
+    long hits = cache.getHits();
+
+    // a long scan over table 2
+    for (int b = 0; b < 1000; ++b) {
+      if (cache.get(2, b) == null)
+        cache.put(2, b, block(blockSize, b));
+    }
+
+    // the hot blocks survived
+    for (int b = 0; b < hotBlocks; ++b) {
+      ByteBuffer block = cache.get(1, b);
+      assertNotNull("hot block " + b, block);
+      assertEquals(b, block.getInt(0));
+    }
+    assertEquals(hits + hotBlocks, cache.getHits());
+    assertTrue(cache.getRejections() > 0);
+    log.info(cache.toString());
+  }
+
+
+  @Test
+  public void testSearchThruCache() throws IOException {
+    initUnitTestDir(new Object() { });
+    final int rowSize = 8;
+    final int rows = 1001;
+    int[] values = new int[rows];
+    for (int i = 0; i < rows; ++i)
+      values[i] = i * 2;
+    SortedTable table = initIntTable(rowSize, RowOrders.INT_ORDER, values, 0);
+
+    // 10 rows per block, room for 20 blocks
+    BlockCache cache = new BlockCache(20 * 80, 80);
+    table.setBlockCache(cache);
+
+    Searcher searcher = table.newSearcher(Searcher.MIN_BUFFER_ROWS);
+    ByteBuffer key = ByteBuffer.allocate(rowSize);
+    for (int round = 0; round < 2; ++round) {
+      for (int k = -1; k <= rows * 2; ++k) {
+        key.clear();
+        key.putInt(k).flip();
+        boolean hit = searcher.search(key);
+        assertEquals(k >= 0 && k % 2 == 0 && k < rows * 2, hit);
+        if (hit)
+          assertEquals(k, searcher.getHitRow().getInt(0));
+      }
+    }
+    assertTrue(cache.getHits() > 0);
+    assertTrue(cache.used() <= cache.capacity());
+
+    // multi-block reads, including the partial last block
+    ByteBuffer buffer = ByteBuffer.allocate(25 * rowSize);
+    for (int r = 0; r + 25 <= rows; r += 7) {
+      buffer.clear();
+      table.read(r, buffer);
+      for (int i = 0; i < 25; ++i)
+        assertEquals((r + i) * 2, buffer.getInt(i * rowSize));
+    }
+
+    log.info(cache.toString());
+    table.close();
+    assertEquals(0, cache.size());
+  }
+
+
+  @Test
+  public void testCopiesShareKey() throws IOException {
+    initUnitTestDir(new Object() { });
+    final int rowSize = 8;
+    final int rows = 100;
+    int[] values = new int[rows];
+    for (int i = 0; i < rows; ++i)
+      values[i] = i * 2;
+    SortedTable table = initIntTable(rowSize, RowOrders.INT_ORDER, values, 0);
+
+    // 10 rows per block, room for all
+    BlockCache cache = new BlockCache(10 * 80, 80);
+    table.setBlockCache(cache);
+    Table copy = new Table(table);
+    assertSame(cache, copy.getBlockCache());
+
+    ByteBuffer row = ByteBuffer.allocate(rowSize);
+    table.read(5, row);
+    assertEquals(1, cache.size());
+
+    // the copy keeps the key alive after the original is closed..
+    table.close();
+    assertEquals(1, cache.size());
+    for (int r = 0; r < rows; r += 10) {
+      row.clear();
+      copy.read(r, row);
+      assertEquals(r * 2, row.getInt(0));
+    }
+    assertEquals(10, cache.size());
+
+    // ..and the last one closed invalidates it
+    copy.close();
+    assertEquals(0, cache.size());
+    assertNull(copy.getBlockCache());
+  }
+
+
+  private ByteBuffer block(int size, int value) {
+    ByteBuffer block = ByteBuffer.allocate(size);
+    block.putInt(0, value);
+    return block;
+  }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import io.crums.io.store.table.order.RowOrder;
+import io.crums.io.store.table.order.RowOrders;
+
+/**
+ *
+ * @author Babak
+ */
+public class BloomFilterTest extends TableTestHarness {
+
+
+  @Test
+  public void testNoFalseNegatives() {
+    RowOrder order = RowOrders.INT_ORDER;
+    final int keys = 10000;
+    BloomFilter filter = new BloomFilter(keys, BloomFilter.DEFAULT_BITS_PER_KEY);
+    ByteBuffer key = ByteBuffer.allocate(4);
+    for (int k = 0; k < keys; ++k) {
+      key.clear();
+      key.putInt(k * 2).flip();
+      filter.add(order.keyHash(key));
+    }
+    int falsePositives = 0;
+    for (int k = 0; k < keys; ++k) {
+      key.clear();
+      key.putInt(k * 2).flip();
+      assertTrue(filter.mightContain(order.keyHash(key)));
+      key.clear();
+      key.putInt(k * 2 + 1).flip();
+      if (filter.mightContain(order.keyHash(key)))
+        ++falsePositives;
+    }
+    double fpRate = ((double) falsePositives) / keys;
+    log.info(filter + ": false positive rate " + fpRate);
+    // nominally ~ 1%
+    assertTrue("fp rate " + fpRate, fpRate < 0.03);
+  }
+
+
+  @Test
+  public void testKeyHashIgnoresValue() {
+    RowOrder order = RowOrders.intOrderAtOffset(4);
+    ByteBuffer a = ByteBuffer.allocate(12);
+    ByteBuffer b = ByteBuffer.allocate(12);
+    a.putInt(1).putInt(77).putInt(2).flip();
+    b.putInt(3).putInt(77).putInt(4).flip();
+    assertEquals(0, order.compare(a, b));
+    assertEquals(order.keyHash(a), order.keyHash(b));
+  }
+
+
+  @Test
+  public void testBuildAndLoad() throws IOException {
+    initUnitTestDir(new Object() { });
+    RowOrder order = RowOrders.INT_ORDER;
+    final int rowSize = 8;
+    int[] values = new int[5000];
+    for (int i = 0; i < values.length; ++i)
+      values[i] = i * 3;
+    SortedTable table = initIntTable(rowSize, order, values, 0);
+
+    BloomFilter filter = BloomFilter.build(table, BloomFilter.DEFAULT_BITS_PER_KEY);
+    File file = new File(unitTestDir(), "table_0." + BloomFilter.FILE_EXT);
+    filter.writeTo(file);
+    assertEquals(filter.serialSize(), file.length());
+
+    BloomFilter loaded = BloomFilter.load(file);
+    assertEquals(filter.getBitCount(), loaded.getBitCount());
+    assertEquals(filter.getHashCount(), loaded.getHashCount());
+
+    ByteBuffer key = ByteBuffer.allocate(rowSize);
+    for (int k = -10; k < values.length * 3 + 10; ++k) {
+      key.clear();
+      key.putInt(k).rewind();
+      long hash = order.keyHash(key);
+      assertEquals(filter.mightContain(hash), loaded.mightContain(hash));
+      if (k >= 0 && k % 3 == 0 && k < values.length * 3)
+        assertTrue(loaded.mightContain(hash));
+    }
+    table.close();
+  }
+
+
+  @Test
+  public void testBuilderFilter() throws IOException {
+    RowOrder order = RowOrders.INT_ORDER;
+    SortedTableBuilder builder = new SortedTableBuilder(8, order);
+    ByteBuffer row = ByteBuffer.allocate(8);
+    for (int k = 0; k < 1000; ++k) {
+      row.clear();
+      row.putInt(k).putInt(-k).flip();
+      builder.putRow(row);
+    }
+    BloomFilter filter = builder.newBloomFilter(BloomFilter.DEFAULT_BITS_PER_KEY);
+    for (int k = 0; k < 1000; ++k) {
+      row.clear();
+      row.putInt(k).flip();
+      assertTrue(filter.mightContain(order.keyHash(row)));
+    }
+  }
+
+
+  @Test
+  public void testTableSetSkips() throws IOException {
+    initUnitTestDir(new Object() { });
+    final int rowSize = 8;
+    int[][] tableValues = {
+        { 1, 3, 5, 7, 9, 11, 13, },
+        { 2, 4, 6, 8, 10, 12, },
+        { 100, 200, 300, },
+    };
+    Map<Integer, Integer> expected = new HashMap<>();
+    SortedTable[] tables = createIntTableSet(rowSize, tableValues, expected);
+    BloomFilter.Stats stats = new BloomFilter.Stats();
+    for (SortedTable table : tables) {
+      BloomFilter filter = BloomFilter.build(table, BloomFilter.DEFAULT_BITS_PER_KEY);
+      filter.setStats(stats);
+      table.setBloomFilter(filter);
+    }
+    TableSet tableSet = new TableSet(tables);
+
+    ByteBuffer key = ByteBuffer.allocate(rowSize);
+    for (int k : expected.keySet()) {
+      key.clear();
+      key.putInt(k).rewind();
+      ByteBuffer row = tableSet.getRow(key);
+      assertNotNull(row);
+      assertEquals(k, row.getInt());
+    }
+    for (int k = 1000; k < 1100; ++k) {
+      key.clear();
+      key.putInt(k).rewind();
+      assertNull(tableSet.getRow(key));
+    }
+
+    log.info(stats.toString());
+    assertTrue(stats.getSkips() > 0);
+    assertTrue(stats.getChecks() >= stats.getSkips() + stats.getFalsePositives());
+    tableSet.close();
+  }
+
+}
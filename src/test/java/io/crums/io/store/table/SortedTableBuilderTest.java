@@ -11,10 +11,17 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
+import org.junit.Test;
+
 import io.crums.io.buffer.Covenant;
 import io.crums.io.store.table.SortedTable.Searcher;
+import io.crums.io.store.table.iter.Direction;
+import io.crums.io.store.table.iter.RowIterator;
 import io.crums.util.MinMaxObserver;
 
 /**
@@ -75,4 +82,119 @@ public class SortedTableBuilderTest extends TableSorterTest {
     sortedTable.close();
   }
 
+
+  @Test
+  public void testOverwriteRemoveAndIterate() throws IOException {
+    initUnitTestDir(new Object() { });
+    final int rowWidth = 8;
+    final int keySpace = 20000;
+    Random random = new Random(11);
+    TreeMap<Integer, Integer> expected = new TreeMap<>();
+    SortedTableBuilder builder = new SortedTableBuilder(rowWidth, ORDER);
+    ByteBuffer row = ByteBuffer.allocate(rowWidth);
+    for (int i = 0; i < 30000; ++i) {
+      int key = random.nextInt(keySpace);
+      int val = random.nextInt();
+      row.clear();
+      row.putInt(key).putInt(val).flip();
+      assertEquals(expected.put(key, val) != null, builder.putRow(row));
+      if (i % 5 == 0) {
+        key = random.nextInt(keySpace);
+        row.clear();
+        row.putInt(key).flip();
+        assertEquals(expected.remove(key) != null, builder.remove(row));
+      }
+    }
+    assertEquals(expected.size(), builder.getRowCount());
+
+    for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+      row.clear();
+      row.putInt(entry.getKey()).flip();
+      ByteBuffer out = builder.getRow(row);
+      assertEquals(entry.getKey().intValue(), out.getInt());
+      assertEquals(entry.getValue().intValue(), out.getInt());
+    }
+
+    for (int trial = 0; trial < 50; ++trial) {
+      int key = random.nextInt(keySpace);
+      boolean includeKey = trial % 2 == 0;
+      row.clear();
+      row.putInt(key).flip();
+      assertIteration(
+          expected.tailMap(key, includeKey), builder.iterator(row, Direction.FORWARD, includeKey));
+      assertIteration(
+          expected.headMap(key, includeKey).descendingMap(),
+          builder.iterator(row, Direction.REVERSE, includeKey));
+    }
+
+    File sortedFile = new File(unitTestDir(), "sorted");
+    @SuppressWarnings("resource")
+    FileChannel file = new RandomAccessFile(sortedFile, "rw").getChannel();
+    builder.flush(file, true);
+    assertTrue(builder.isEmpty());
+    SortedTable sortedTable = new SortedTable(file, 0, rowWidth, ORDER);
+    assertEquals(expected.size(), sortedTable.getRowCount());
+    ByteBuffer rows = ByteBuffer.allocate(expected.size() * rowWidth);
+    sortedTable.read(0, rows);
+    rows.flip();
+    for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+      assertEquals(entry.getKey().intValue(), rows.getInt());
+      assertEquals(entry.getValue().intValue(), rows.getInt());
+    }
+    sortedTable.close();
+  }
+
+
+  @Test
+  public void testLinkAll() throws IOException {
+    final int rowWidth = 8;
+    final int keySpace = 40000;
+    Random random = new Random(13);
+    TreeMap<Integer, Integer> expected = new TreeMap<>();
+    SortedTableBuilder builder = new SortedTableBuilder(rowWidth, ORDER);
+    // copy in batches of rows with many duplicate keys (the last wins)
+    for (int batch = 0; batch < 100; ++batch) {
+      ByteBuffer rows = ByteBuffer.allocate(1000 * rowWidth);
+      while (rows.hasRemaining()) {
+        int key = random.nextInt(keySpace);
+        int val = random.nextInt();
+        expected.put(key, val);
+        rows.putInt(key).putInt(val);
+      }
+      rows.flip();
+      builder.copyIn(rows);
+    }
+    builder.linkAll();
+    assertEquals(expected.size(), builder.getRowCount());
+
+    ByteBuffer row = ByteBuffer.allocate(rowWidth);
+    row.putInt(Integer.MIN_VALUE).flip();
+    assertIteration(expected, builder.iterator(row, Direction.FORWARD, true));
+    for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+      row.clear();
+      row.putInt(entry.getKey()).flip();
+      ByteBuffer out = builder.getRow(row);
+      assertEquals(entry.getValue().intValue(), out.getInt(4));
+    }
+
+    // the list is fully functional afterward
+    row.clear();
+    row.putInt(keySpace).putInt(1).flip();
+    assertFalse(builder.putRow(row));
+    assertEquals(expected.size() + 1, builder.getRowCount());
+  }
+
+
+  private void assertIteration(Map<Integer, Integer> expected, RowIterator iter) throws IOException {
+    int count = 0;
+    for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+      ByteBuffer row = iter.next();
+      assertEquals(entry.getKey().intValue(), row.getInt());
+      assertEquals(entry.getValue().intValue(), row.getInt());
+      if (++count == 100)
+        return;
+    }
+    assertNull(iter.next());
+  }
+
 }
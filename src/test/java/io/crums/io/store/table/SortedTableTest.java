@@ -25,6 +25,7 @@ import io.crums.io.store.table.order.RowOrders;
 import io.crums.math.stats.SimpleSampler;
 import io.crums.test.PerfProf;
 import io.crums.test.TestDirs;
+import io.crums.util.cc.MemoryBudget;
 
 public class SortedTableTest {
   
@@ -311,6 +312,90 @@ public class SortedTableTest {
     showSearchStats(searcher);
   }
   
+  @Test
+  public void testWith10KRowsIndexed() throws IOException {
+    // boiler plate file setup..
+    String method = method(new Object() { });
+    setup(method);
+
+    final int rowSize = 4;
+    RowOrder order = RowOrders.INT_ORDER;
+    int[] values = generateValues(10 * 1000);
+    
+    int[][] testKeyResults = generateTestKeysAndExpectedResults(values);
+    int[] searchKeys = testKeyResults[0];
+    int[] expectedSearchResults = testKeyResults[1];
+
+    final int stride = 16;
+    
+    SortedTable table = initIntTable(rowSize, order, values);
+    table = reload(table, method);
+    
+    MemoryBudget budget = new MemoryBudget(1024 * 1024);
+    FenceIndex index = FenceIndex.build(table, stride, budget);
+    assertNotNull(index);
+    assertEquals((values.length + stride - 1) / stride, index.getFenceCount());
+    assertEquals(index.byteSize(), budget.used());
+    table.setFenceIndex(index);
+
+    // test the searcher..
+    Searcher searcher = table.newSearcher(stride);
+    doSearchTest(searcher, values, searchKeys, expectedSearchResults);
+    
+    // every search is a single read
+    assertEquals(1, (int) searcher.getReadOpStats().getMax());
+    
+    table.close();
+    assertEquals(0, budget.used());
+  }
+  
+  
+  @Test
+  public void testWith10KRowsMapped() throws IOException {
+    String method = method(new Object() { });
+    setup(method);
+
+    final int rowSize = 4;
+    RowOrder order = RowOrders.INT_ORDER;
+    int[] values = generateValues(10 * 1000);
+    
+    int[][] testKeyResults = generateTestKeysAndExpectedResults(values);
+    
+    SortedTable table = initIntTable(rowSize, order, values);
+    table = reload(table, method);
+    // small chunks, to exercise chunk boundaries
+    table.mapRows(1000 * rowSize);
+    assertTrue(table.isMapped());
+
+    Searcher searcher = table.newSearcher(Searcher.MIN_BUFFER_ROWS);
+    doSearchTest(searcher, values, testKeyResults[0], testKeyResults[1]);
+    table.close();
+  }
+  
+  
+  @Test
+  public void testIndexOverBudget() throws IOException {
+    String method = method(new Object() { });
+    setup(method);
+
+    final int rowSize = 4;
+    int[] values = generateValues(1000);
+    SortedTable table = initIntTable(rowSize, RowOrders.INT_ORDER, values);
+    
+    MemoryBudget budget = new MemoryBudget(100);
+    assertNull(FenceIndex.build(table, 8, budget));
+    assertEquals(0, budget.used());
+    
+    FenceIndex index = FenceIndex.build(table, 64, budget);
+    assertNotNull(index);
+    assertEquals(16 * rowSize, budget.used());
+    index.close();
+    index.close();
+    assertEquals(0, budget.used());
+    table.close();
+  }
+  
+  
   private void showSearchStats(Searcher searcher) {
     log.info("Profiler stats.. (in microseconds)");
     showProf(searcher.getProfiler());
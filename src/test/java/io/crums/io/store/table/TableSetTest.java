@@ -8,16 +8,22 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Test;
 
+import io.crums.io.store.table.iter.Direction;
+import io.crums.io.store.table.iter.TableSetIterator;
 import io.crums.io.store.table.order.RowOrder;
 import io.crums.io.store.table.order.RowOrders;
+import io.crums.util.cc.MemoryBudget;
 
 /**
  * 
@@ -118,6 +124,142 @@ public class TableSetTest extends TableTestHarness {
   }
   
   
+  @Test
+  public void testIterateMany() throws IOException {
+    initUnitTestDir(new Object() { });
+    Random rand = new Random(1);
+    final int tableCount = 16;
+    int[][] tableValues = new int[tableCount][];
+    for (int i = 0; i < tableCount; ++i)
+      tableValues[i] = generateValues(rand.nextInt(50), rand, 8, 200 + rand.nextInt(300));
+    Map<Integer, Integer> expected = new HashMap<>();
+    TableSet tableSet = new TableSet(createIntTableSet(8, tableValues, expected));
+    
+    TreeMap<Integer, Integer> sorted = new TreeMap<>(expected);
+    TableSetIterator iter = tableSet.iterator();
+    ByteBuffer key = ByteBuffer.allocate(4);
+    for (Direction direction : Direction.values()) {
+      int first = direction == Direction.FORWARD ? sorted.firstKey() : sorted.lastKey();
+      key.clear();
+      key.putInt(first).flip();
+      iter.init(key, direction);
+      Map<Integer, Integer> expectedIteration =
+          direction == Direction.FORWARD ? sorted : sorted.descendingMap();
+      for (Map.Entry<Integer, Integer> entry : expectedIteration.entrySet()) {
+        ByteBuffer row = iter.next();
+        assertNotNull(row);
+        assertEquals(entry.getKey().intValue(), row.getInt(0));
+        assertEquals(entry.getValue().intValue(), guessIntTableIndexFromRow(row));
+      }
+      assertNull(iter.next());
+    }
+    tableSet.close();
+  }
+  
+  
+  @Test
+  public void testConcurrentGetRow() throws Exception {
+    initUnitTestDir(new Object() { });
+    Random rand = new Random(0);
+    final int tableCount = 4;
+    final int threadCount = 6;
+    int[][] tableValues = new int[tableCount][];
+    for (int i = 0; i < tableCount; ++i)
+      tableValues[i] = generateValues(0, rand, 3, (int) Math.pow(6, 1 + tableCount - i));
+    
+    final Map<Integer, Integer> expected = new HashMap<>();
+    SortedTable[] tables = createIntTableSet(8, tableValues, expected);
+    
+    // room for (a little more than) 2 searchers per table
+    final MemoryBudget budget = new MemoryBudget(tableCount * 2 * TableSet.DEFAULT_SEARCH_BUFFER_SIZE + 64);
+    for (SortedTable table : tables)
+      table.setSearcherBudget(budget);
+    
+    final TableSet tableSet = new TableSet(tables);
+    final AtomicReference<Throwable> error = new AtomicReference<>();
+    Thread[] threads = new Thread[threadCount];
+    for (int t = 0; t < threadCount; ++t) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          ByteBuffer key = ByteBuffer.allocate(4);
+          try {
+            for (int pass = 0; pass < 3; ++pass) {
+              for (Map.Entry<Integer, Integer> expectedEntry : expected.entrySet()) {
+                key.clear();
+                key.putInt(expectedEntry.getKey()).flip();
+                ByteBuffer row = tableSet.getRow(key);
+                assertNotNull(row);
+                assertEquals(expectedEntry.getKey().intValue(), row.getInt(row.position()));
+                assertEquals(expectedEntry.getValue().intValue(), guessIntTableIndexFromRow(row));
+              }
+            }
+          } catch (Throwable x) {
+            error.compareAndSet(null, x);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+    
+    if (error.get() != null)
+      throw new AssertionError(error.get());
+    
+    assertTrue(budget.used() > 0);
+    assertTrue(budget.used() <= budget.capacity());
+    tableSet.close();
+    assertEquals(0, budget.used());
+  }
+  
+  
+  @Test
+  public void testGetRows() throws IOException {
+    initUnitTestDir(new Object() { });
+    Random rand = new Random(0);
+    final int tableCount = 4;
+    final int rowSize = 8;
+    int[][] tableValues = new int[tableCount][];
+    for (int i = 0; i < tableCount; ++i)
+      tableValues[i] = generateValues(rand.nextInt(100), rand, 3, (int) Math.pow(6, 1 + tableCount - i));
+
+    Map<Integer, Integer> expected = new HashMap<>();
+    SortedTable[] tables = createIntTableSet(rowSize, tableValues, expected);
+    // index one of the tables, so the fence index is exercised too
+    tables[0].setFenceIndex(FenceIndex.build(tables[0], 16, new MemoryBudget(1024 * 1024)));
+    TableSet tableSet = new TableSet(tables);
+
+    // every 3rd key in the key space (and then some, past the last row)
+    int maxKey = 0;
+    for (int key : expected.keySet())
+      maxKey = Math.max(maxKey, key);
+    ByteBuffer[] keys = new ByteBuffer[(maxKey + 100) / 3];
+    for (int k = 0; k < keys.length; ++k) {
+      keys[k] = ByteBuffer.allocate(4);
+      keys[k].putInt(k * 3).flip();
+    }
+    ByteBuffer rows = ByteBuffer.allocate(keys.length * rowSize);
+    BitSet found = new BitSet(keys.length);
+    int hits = tableSet.getRows(keys, rows, found);
+    assertEquals(hits, found.cardinality());
+
+    int expectedHits = 0;
+    for (int k = 0; k < keys.length; ++k) {
+      Integer tableIndex = expected.get(k * 3);
+      assertEquals("key " + k * 3, tableIndex != null, found.get(k));
+      if (tableIndex == null)
+        continue;
+      ++expectedHits;
+      rows.limit((k + 1) * rowSize).position(k * rowSize);
+      assertEquals(k * 3, rows.getInt(rows.position()));
+      assertEquals(tableIndex.intValue(), guessIntTableIndexFromRow(rows));
+    }
+    assertEquals(expectedHits, hits);
+    tableSet.close();
+  }
+  
+  
   private int[] generateValues(int next, Random rand, int unit, int count) {
     int[] values = new int[count];
     for (int i = 0; i < count; ++i) {
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.io.store.table;
+
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import io.crums.io.store.table.order.RowOrder;
+import io.crums.io.store.table.order.RowOrders;
+
+/**
+ * Tests {@linkplain TableSorter#sortExternal(Table, File, File, boolean)}. The rows are
+ * 8 bytes wide: a 4 byte key (the sort order), followed by the row's index in the
+ * unsorted table.
+ *
+ * @author Babak
+ */
+public class TableSorterExternalTest extends TableTestHarness {
+
+  private final static int ROW_WIDTH = 8;
+
+  private final static RowOrder ORDER = RowOrders.INT_ORDER;
+
+
+  @Test
+  public void testSingleRun() throws IOException {
+    initUnitTestDir(new Object() { });
+    int[] keys = keys(1000, 1000);
+    TableSorter sorter = testImpl(keys, keys.length * ROW_WIDTH, 1, false);
+    assertEquals(0, sorter.getRunCount());
+  }
+
+
+  @Test
+  public void testSingleRunSliced() throws IOException {
+    initUnitTestDir(new Object() { });
+    int[] keys = keys(20000, 5000);
+    // fits in memory: sorted in 4 slices, merged without spilling
+    assertEquals(0, testImpl(keys, keys.length * ROW_WIDTH, 4, false).getRunCount());
+    assertEquals(0, testImpl(keys, keys.length * ROW_WIDTH, 4, true).getRunCount());
+  }
+
+
+  @Test
+  public void testManyRuns() throws IOException {
+    initUnitTestDir(new Object() { });
+    TableSorter sorter = testImpl(keys(20000, 5000), 4096, 4, false);
+    // runs of 512 rows, each sorted in 4 slices
+    assertEquals((20000 + 511) / 512, sorter.getRunCount());
+  }
+
+
+  @Test
+  public void testManyRunsDedup() throws IOException {
+    initUnitTestDir(new Object() { });
+    TableSorter sorter = testImpl(keys(20000, 5000), 4096, 4, true);
+    assertEquals((20000 + 511) / 512, sorter.getRunCount());
+  }
+
+
+  @Test
+  public void testTooManyRuns() throws IOException {
+    initUnitTestDir(new Object() { });
+    // 8 rows per run: 13 runs can't be merged thru 8 rows of memory
+    try {
+      testImpl(keys(100, 100), 8 * ROW_WIDTH, 1, false);
+      fail();
+    } catch (IllegalArgumentException expected) {
+      log.info("expected: " + expected);
+    }
+  }
+
+
+  @Test
+  public void testUnevenRuns() throws IOException {
+    initUnitTestDir(new Object() { });
+    testImpl(keys(3001, 100), 1000, 3, true);
+    testImpl(keys(3001, 100_000), 1000, 3, false);
+  }
+
+
+  @Test
+  public void testPerfSort() throws IOException {
+    initUnitTestDir(new Object() { });
+    String method = getMethod();
+    if (!"true".equalsIgnoreCase(System.getProperty(SortedTableTest.PERF_TEST_PROPERTY))) {
+      log.info("Skipping " + method + "(): to activate -D" + SortedTableTest.PERF_TEST_PROPERTY + "=true");
+      return;
+    }
+    log.info("*** Benchmarking " + method + " ***");
+    final int rows = 1024 * 1024;
+    final int bytes = rows * ROW_WIDTH;
+    Table table = newTable(keys(rows, Integer.MAX_VALUE));
+
+    // (the first round warms up the JIT)
+    for (int round = 0; round < 2; ++round) {
+      log.info("round " + round);
+      TableSorter inMemory = new TableSorter(ByteBuffer.allocateDirect(bytes), ORDER);
+      File output = new File(unitTestDir(), "sorted-in-memory");
+      long start = System.nanoTime();
+      inMemory.sort(table, output);
+      logRate("in-memory (" + (bytes >> 10) + "kB buffer)", rows, start);
+      output.delete();
+
+      for (int parallelism : new int[] { 1, 4 }) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+          for (int memory = bytes; memory >= bytes / 16; memory /= 4) {
+            for (boolean dedup : new boolean[] { false, true }) {
+              TableSorter external = new TableSorter(ByteBuffer.allocateDirect(memory), ORDER);
+              external.setPool(pool);
+              output = new File(unitTestDir(), "sorted-external");
+              start = System.nanoTime();
+              external.sortExternal(table, output, unitTestDir(), dedup);
+              logRate(
+                  "external (" + (memory >> 10) + "kB buffer, " + external.getRunCount() +
+                  " runs spilled, parallelism " + parallelism + (dedup ? ", dedup)" : ")"),
+                  rows, start);
+              output.delete();
+            }
+          }
+        } finally {
+          pool.shutdown();
+        }
+      }
+    }
+    table.close();
+  }
+
+
+  private void logRate(String label, int rows, long startNanos) {
+    long nanos = System.nanoTime() - startNanos;
+    long rowsPerMilli = (long) (((double) rows) / nanos * 1000000);
+    log.info(label + ": " + rows + " rows in " + nanos / 1000000 + " msec (" + rowsPerMilli + " rows per msec)");
+  }
+
+
+  private TableSorter testImpl(int[] keys, int memory, int parallelism, boolean dedup)
+      throws IOException {
+
+    Table table = newTable(keys);
+    TableSorter sorter = new TableSorter(ByteBuffer.allocate(memory), ORDER);
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    File output = new File(unitTestDir(), "sorted");
+    output.delete();
+    try {
+      sorter.setPool(pool);
+      long count = sorter.sortExternal(table, output, unitTestDir(), dedup);
+
+      @SuppressWarnings("resource")
+      Table sorted = Table.newSansKeystoneInstance(
+          new RandomAccessFile(output, "r").getChannel(), ROW_WIDTH);
+      assertEquals(count, sorted.getRowCount());
+      ByteBuffer row = ByteBuffer.allocate(ROW_WIDTH);
+
+      if (dedup) {
+        // the last row with a given key wins
+        TreeMap<Integer, Integer> expected = new TreeMap<>();
+        for (int index = 0; index < keys.length; ++index)
+          expected.put(keys[index], index);
+        assertEquals(expected.size(), count);
+        long rowNum = 0;
+        for (Integer key : expected.keySet()) {
+          row.clear();
+          sorted.read(rowNum++, row);
+          assertEquals(key.intValue(), row.getInt(0));
+          assertEquals(expected.get(key).intValue(), row.getInt(4));
+        }
+      } else {
+        int[] expected = keys.clone();
+        Arrays.sort(expected);
+        assertEquals(expected.length, count);
+        for (int index = 0; index < expected.length; ++index) {
+          row.clear();
+          sorted.read(index, row);
+          assertEquals(expected[index], row.getInt(0));
+          assertEquals(expected[index], keys[row.getInt(4)]);
+        }
+      }
+      sorted.close();
+    } finally {
+      pool.shutdown();
+      table.close();
+    }
+    for (String name : unitTestDir().list())
+      assertFalse(name, name.endsWith(".tmp"));
+    return sorter;
+  }
+
+
+  private int[] keys(int count, int range) {
+    Random random = new Random(count + range);
+    int[] keys = new int[count];
+    for (int index = 0; index < count; ++index)
+      keys[index] = random.nextInt(range);
+    return keys;
+  }
+
+
+  private int tableIndex;
+
+  private Table newTable(int[] keys) throws IOException {
+    Table table = Table.newSansKeystoneInstance(openFile(tableIndex++, false), ROW_WIDTH);
+    ByteBuffer rows = ByteBuffer.allocate(keys.length * ROW_WIDTH);
+    for (int index = 0; index < keys.length; ++index)
+      rows.putInt(keys[index]).putInt(index);
+    table.append(rows.flip());
+    return table;
+  }
+
+}
@@ -477,7 +477,52 @@ public class TableTest {
     
     target.close();
   }
-  
 
-}
 
+  @Test
+  public void testMappedChunks() throws IOException {
+    setup(method(new Object() { }));
+    final int rowSize = 6;
+    final int rows = 100;
+    Table table = new Table(new VolatileKeystone(0), file, 0, rowSize);
+    ByteBuffer rowData = ByteBuffer.allocate(rowSize * rows);
+    for (int r = 0; r < rows; ++r)
+      rowData.putInt(r).putShort((short) -r);
+    rowData.flip();
+    table.append(rowData);
+    
+    // 7 rows per chunk
+    table.mapRows(7 * rowSize + 3);
+    assertTrue(table.isMapped());
+    
+    for (int r = 0; r < rows; ++r) {
+      ByteBuffer row = table.mappedRow(r);
+      assertEquals(rowSize, row.remaining());
+      assertEquals(r, row.getInt(0));
+      assertEquals(-r, row.getShort(4));
+    }
+    assertNull(table.mappedRow(rows));
+    
+    // multi-row reads straddle chunks
+    ByteBuffer block = ByteBuffer.allocate(20 * rowSize);
+    for (int r = 0; r + 20 <= rows; r += 9) {
+      block.clear();
+      table.read(r, block);
+      assertFalse(block.hasRemaining());
+      for (int i = 0; i < 20; ++i)
+        assertEquals(r + i, block.getInt(i * rowSize));
+    }
+    
+    // appended rows are read from the file
+    ByteBuffer extra = ByteBuffer.allocate(rowSize);
+    extra.putInt(rows).putShort((short) -rows).flip();
+    table.append(extra);
+    assertNull(table.mappedRow(rows));
+    block.clear().limit(2 * rowSize);
+    table.read(rows - 1, block);
+    assertEquals(rows, block.getInt(rowSize));
+    
+    table.close();
+  }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.io.store.table.merge;
+
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import io.crums.io.store.table.SortedTable;
+import io.crums.io.store.table.TableTestHarness;
+import io.crums.io.store.table.iter.Direction;
+import io.crums.io.store.table.iter.DirectionalMergeSource;
+import io.crums.io.store.table.order.RowOrders;
+
+/**
+ *
+ * @author Babak
+ */
+public class BaseMergeSourceTest extends TableTestHarness {
+
+  private final static int ROW_SIZE = 8;
+
+  private final static int ROWS = 10000;
+
+
+  @Test
+  public void testReadAheadForward() throws IOException {
+    initUnitTestDir(new Object() { });
+    int[] values = values();
+    PrecedenceMergeSource source = newSource(values);
+    int windowRows = source.getReadAheadBytes() / ROW_SIZE;
+
+    for (int i = 0; i < values.length; ++i) {
+      assertEquals(i, source.rowNumber());
+      assertEquals(values[i], source.row().getInt(0));
+      assertEquals(i + 1 < values.length, source.advanceRow());
+    }
+    assertTrue(source.finished());
+    assertEquals((ROWS + windowRows - 1) / windowRows, source.getReadCount());
+    assertTrue(source.getRowsPerRead() >= windowRows / 2);
+  }
+
+
+  @Test
+  public void testReadAheadReverse() throws IOException {
+    initUnitTestDir(new Object() { });
+    int[] values = values();
+    DirectionalMergeSource source = new DirectionalMergeSource(
+        newTable(values).newSearcher(SortedTable.Searcher.MIN_BUFFER_ROWS), 0);
+    source.setDirection(Direction.REVERSE);
+    int windowRows = source.getReadAheadBytes() / ROW_SIZE;
+
+    ByteBuffer key = ByteBuffer.allocate(4);
+    key.putInt(values[values.length - 1] + 1).flip();
+    assertTrue(source.setRow(key));
+    long readsBefore = source.getReadCount();
+
+    for (int i = values.length; i-- > 0; ) {
+      assertEquals(i, source.rowNumber());
+      assertEquals(values[i], source.row().getInt(0));
+      assertEquals(i > 0, source.advanceRow());
+    }
+    assertTrue(source.finished());
+    assertTrue(
+        source.getReadCount() - readsBefore <= (ROWS + windowRows - 1) / windowRows + 1);
+  }
+
+
+  @Test
+  public void testReadAheadOff() throws IOException {
+    initUnitTestDir(new Object() { });
+    int[] values = values();
+    PrecedenceMergeSource source = newSource(values);
+    source.setReadAheadBytes(0);
+    long readsBefore = source.getReadCount();
+    long loadsBefore = source.getRowLoads();
+    while (source.advanceRow());
+    assertEquals(source.getRowLoads() - loadsBefore, source.getReadCount() - readsBefore);
+  }
+
+
+  @Test
+  public void testReadRow() throws IOException {
+    initUnitTestDir(new Object() { });
+    int[] values = values();
+    PrecedenceMergeSource source = newSource(values);
+    ByteBuffer row = ByteBuffer.allocate(ROW_SIZE);
+    for (int i = 0; i < values.length; i += 7) {
+      row.clear();
+      source.readRow(i, row);
+      assertEquals(values[i], row.flip().getInt(0));
+    }
+    assertEquals(0, source.rowNumber());
+  }
+
+
+
+  @Test
+  public void testPrefetchForward() throws IOException {
+    initUnitTestDir(new Object() { });
+    int[] values = values();
+    PrecedenceMergeSource source = newSource(values);
+    ExecutorService prefetcher = Executors.newSingleThreadExecutor();
+    try {
+      source.setPrefetcher(prefetcher);
+      source.setReadAheadBytes(1024);
+      for (int i = 0; i < values.length; ++i) {
+        assertEquals(values[i], source.row().getInt(0));
+        source.advanceRow();
+      }
+    } finally {
+      prefetcher.shutdown();
+    }
+    assertTrue(source.finished());
+    // (the constructor loaded row 0 thru the default-sized window)
+    long windows = (ROWS - 1 + 127) / 128;
+    assertEquals(windows + 1, source.getReadCount());
+    // all but the first 1K window are prefetched
+    assertEquals(windows - 1, source.getPrefetchHits());
+  }
+
+
+  @Test
+  public void testPrefetchReverse() throws IOException {
+    initUnitTestDir(new Object() { });
+    int[] values = values();
+    DirectionalMergeSource source = new DirectionalMergeSource(
+        newTable(values).newSearcher(SortedTable.Searcher.MIN_BUFFER_ROWS), 0);
+    source.setDirection(Direction.REVERSE);
+    ExecutorService prefetcher = Executors.newSingleThreadExecutor();
+    try {
+      source.setPrefetcher(prefetcher);
+      source.setReadAheadBytes(1024);
+      source.setRow(values.length - 1);
+      for (int i = values.length; i-- > 0; ) {
+        assertEquals(values[i], source.row().getInt(0));
+        source.advanceRow();
+      }
+    } finally {
+      prefetcher.shutdown();
+    }
+    assertTrue(source.finished());
+    assertTrue(source.getPrefetchHits() > ROWS / 128 - 3);
+  }
+
+
+
+  private int[] values() {
+    IntGenerator gen = new IntGenerator(0, 0, 5);
+    int[] values = new int[ROWS];
+    for (int i = 0; i < ROWS; ++i)
+      values[i] = gen.next();
+    return values;
+  }
+
+
+  private SortedTable newTable(int[] values) throws IOException {
+    return initIntTable(ROW_SIZE, RowOrders.INT_ORDER, values, 0);
+  }
+
+
+  private PrecedenceMergeSource newSource(int[] values) throws IOException {
+    return new PrecedenceMergeSource(
+        newTable(values).newSearcher(SortedTable.Searcher.MIN_BUFFER_ROWS), 0);
+  }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.io.store.table.merge;
+
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import io.crums.io.store.table.SortedTable;
+import io.crums.io.store.table.SortedTableTest;
+import io.crums.io.store.table.TableTestHarness;
+import io.crums.io.store.table.order.RowOrders;
+
+/**
+ *
+ * @author Babak
+ */
+public class PartitionedMergeSortTest extends TableTestHarness {
+
+  private final static int ROW_SIZE = 8;
+
+
+  @Test
+  public void testSlice() throws IOException {
+    initUnitTestDir(new Object() { });
+    int[][] tableValues = { { 1, 3, 5, 7, 9, 11 } };
+    SortedTable table = createIntTableSet(ROW_SIZE, tableValues, new HashMap<>())[0];
+    SortedTable slice = table.slice(2, 3);
+    assertEquals(3, slice.getRowCount());
+    ByteBuffer row = ByteBuffer.allocate(ROW_SIZE);
+    slice.read(0, row);
+    assertEquals(5, row.getInt(0));
+    ByteBuffer key = ByteBuffer.allocate(4);
+    key.putInt(9).flip();
+    assertNotNull(slice.search(key));
+    key.clear();
+    key.putInt(11).flip();
+    assertNull(slice.search(key));
+    slice.close();
+    assertTrue(table.isOpen());
+  }
+
+
+  @Test
+  public void testSamplePivots() throws IOException {
+    initUnitTestDir(new Object() { });
+    SortedTable[] stack = createIntTableSet(ROW_SIZE, values(20000, 5000), new HashMap<>());
+    List<ByteBuffer> pivots = PartitionedMergeSort.samplePivots(stack, 4);
+    assertEquals(3, pivots.size());
+    for (int i = 1; i < pivots.size(); ++i)
+      assertTrue(pivots.get(i - 1).getInt(0) < pivots.get(i).getInt(0));
+    assertTrue(PartitionedMergeSort.samplePivots(stack, 1).isEmpty());
+  }
+
+
+  @Test
+  public void testMerge() throws IOException {
+    initUnitTestDir(new Object() { });
+    testAgainstSingleMerge(values(50000, 20000, 3000), 4, 4);
+  }
+
+
+  @Test
+  public void testMergeCollapsedRanges() throws IOException {
+    initUnitTestDir(new Object() { });
+    // the small table's rows fall in one range: the others are folded into it
+    int[][] tableValues = {
+        { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 },
+        { 15, 16 },
+    };
+    testAgainstSingleMerge(tableValues, 8, 1);
+  }
+
+
+  @Test
+  public void testPerfParallelMerge() throws IOException {
+    initUnitTestDir(new Object() { });
+    String method = getMethod();
+    if (!"true".equalsIgnoreCase(System.getProperty(SortedTableTest.PERF_TEST_PROPERTY))) {
+      log.info("Skipping " + method + "(): to activate -D" + SortedTableTest.PERF_TEST_PROPERTY + "=true");
+      return;
+    }
+    log.info("*** Benchmarking " + method + " ***");
+    int[][] tableValues = values(4000000, 2000000, 1000000, 500000);
+    SortedTable[] stack = createIntTableSet(ROW_SIZE, tableValues, new HashMap<>());
+
+    int partitions = Runtime.getRuntime().availableProcessors();
+    for (int p = 1, run = 0; p <= partitions; p *= 2, ++run) {
+      SortedTable target = newTable(tableValues.length + run);
+      PartitionedMergeSort sorter = new PartitionedMergeSort(
+          target, stack, p, unitTestDir(), SET_SORT);
+      long start = System.nanoTime();
+      sorter.mergeToTarget();
+      long micros = (System.nanoTime() - start) / 1000;
+      log.info(
+          "partitions=" + p + " (ranges=" + sorter.getRangeCount() + "): " +
+          target.getRowCount() + " rows in " + micros + " microseconds");
+      target.close();
+    }
+  }
+
+
+
+  private final static PartitionedMergeSort.SortFactory SET_SORT =
+      new PartitionedMergeSort.SortFactory() {
+        @Override
+        public BaseMergeSort<?> newMergeSort(SortedTable target, SortedTable[] sources)
+            throws IOException {
+          return new SetMergeSort(target, sources);
+        }
+      };
+
+
+  private void testAgainstSingleMerge(int[][] tableValues, int partitions, int expectedRanges)
+      throws IOException {
+    Map<Integer, Integer> expected = new HashMap<>();
+    SortedTable[] stack = createIntTableSet(ROW_SIZE, tableValues, expected);
+
+    SortedTable single = newTable(tableValues.length);
+    new SetMergeSort(single, stack).mergeToTarget();
+
+    SortedTable target = newTable(tableValues.length + 1);
+    PartitionedMergeSort sorter = new PartitionedMergeSort(
+        target, stack, partitions, unitTestDir(), SET_SORT);
+    sorter.setBloomFilterBitsPerKey(10);
+    sorter.mergeToTarget();
+
+    assertEquals(expectedRanges, sorter.getRangeCount());
+    assertTrue(sorter.isFinished());
+    assertNotNull(sorter.getBloomFilter());
+    assertEquals(expected.size(), target.getRowCount());
+    assertEquals(single.getRowCount(), target.getRowCount());
+    ByteBuffer a = ByteBuffer.allocate(ROW_SIZE);
+    ByteBuffer b = ByteBuffer.allocate(ROW_SIZE);
+    for (long row = 0; row < target.getRowCount(); ++row) {
+      a.clear();
+      b.clear();
+      single.read(row, a);
+      target.read(row, b);
+      assertEquals(a.flip(), b.flip());
+    }
+    assertTempsDeleted();
+  }
+
+
+  static void assertTempsDeleted(File dir) {
+    for (String name : dir.list())
+      assertFalse(name, name.endsWith(".tmp"));
+  }
+
+
+  private void assertTempsDeleted() {
+    assertTempsDeleted(unitTestDir());
+  }
+
+
+  private SortedTable newTable(int index) throws IOException {
+    return new SortedTable(openFile(index, false), ROW_SIZE, RowOrders.INT_ORDER);
+  }
+
+
+  /**
+   * Returns random table values, all spanning about the same key range.
+   */
+  private int[][] values(int... tableCounts) {
+    int[][] tableValues = new int[tableCounts.length][];
+    for (int i = 0; i < tableCounts.length; ++i) {
+      int maxSeparation = Math.max(2, 4 * tableCounts[0] / tableCounts[i]);
+      IntGenerator gen = new IntGenerator(i, i, maxSeparation);
+      tableValues[i] = new int[tableCounts[i]];
+      for (int j = 0; j < tableCounts[i]; ++j)
+        tableValues[i][j] = gen.next();
+    }
+    return tableValues;
+  }
+
+}
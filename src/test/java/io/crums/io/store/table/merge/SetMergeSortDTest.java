@@ -12,6 +12,7 @@ import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -86,6 +87,98 @@ public class SetMergeSortDTest extends TableTestDHarness {
     testImpl(tableValues);
   }
   
+  @Test
+  public void testConcatenatedPurgesDeletes() throws IOException {
+    initUnitTestDir(new Object() { });
+    // disjoint key ranges, each with a delete (-k - 1 deletes k)
+    int[][] tableValues = {
+        { 0, 1, -3 },
+        { 3, -5, 5 },
+        { -7, 7 },
+    };
+    SortedTable[] stack = createIntTableSet(tableValues, new HashMap<>());
+    SortedTable target = new SortedTable(openFile(tableValues.length, false), ROW_WIDTH, ORDER);
+    SetMergeSortD sorter = new SetMergeSortD(target, stack, DELETE_CODEC, null);
+    sorter.mergeToTarget();
+    assertTrue(sorter.isConcatenated());
+    // with no back set, all the deletes are purged
+    assertEquals(5, target.getRowCount());
+    assertEquals(5, liveRows(target).size());
+    
+    // with a back set, only the deletes that override a row in it survive
+    stack = new SortedTable[tableValues.length];
+    for (int i = 0; i < tableValues.length; ++i)
+      stack[i] = new SortedTable(openFile(i, true), ROW_WIDTH, ORDER);
+    SortedTable backTable = initIntTable(new int[] { 4 }, tableValues.length + 1);
+    TableSet backSet = new TableSetD(backTable, DELETE_CODEC);
+    target = new SortedTable(openFile(tableValues.length + 2, false), ROW_WIDTH, ORDER);
+    sorter = new SetMergeSortD(target, stack, DELETE_CODEC, backSet);
+    sorter.mergeToTarget();
+    assertTrue(sorter.isConcatenated());
+    assertEquals(6, target.getRowCount());
+    assertEquals(5, liveRows(target).size());
+    ByteBuffer row = ByteBuffer.allocate(ROW_WIDTH);
+    target.read(3, row);
+    row.flip();
+    assertEquals(4, row.getInt(0));
+    assertTrue(DELETE_CODEC.isDeleted(row));
+    backSet.close();
+  }
+  
+  @Test
+  public void testPartitioned() throws IOException {
+    initUnitTestDir(new Object() { });
+    int[] tableCounts = { 20000, 8000, 2000 };
+    int[][] tableValues = new int[tableCounts.length][];
+    for (int i = 0; i < tableCounts.length; ++i) {
+      // (the tables span about the same key range)
+      IntGenerator gen = new IntGenerator(i, i, 4 * tableCounts[0] / tableCounts[i]);
+      tableValues[i] = new int[tableCounts[i]];
+      for (int j = 0; j < tableCounts[i]; ++j) {
+        int v = gen.next();
+        // every 7th row in the younger tables is a delete
+        tableValues[i][j] = i > 0 && j % 7 == 0 ? -v - 1 : v;
+      }
+    }
+    Map<Integer, Integer> expected = new HashMap<>();
+    SortedTable[] stack = createIntTableSet(tableValues, expected, null);
+    
+    SortedTable single = new SortedTable(openFile(tableValues.length, false), ROW_WIDTH, ORDER);
+    new SetMergeSortD(single, stack, DELETE_CODEC, null).mergeToTarget();
+    
+    SortedTable target = new SortedTable(openFile(tableValues.length + 1, false), ROW_WIDTH, ORDER);
+    PartitionedMergeSort sorter = new PartitionedMergeSort(
+        target, stack, 4, unitTestDir(),
+        new PartitionedMergeSort.SortFactory() {
+          @Override
+          public BaseMergeSort<?> newMergeSort(SortedTable target, SortedTable[] sources)
+              throws IOException {
+            return new SetMergeSortD(target, sources, DELETE_CODEC, null);
+          }
+        });
+    sorter.mergeToTarget();
+    assertEquals(4, sorter.getRangeCount());
+    
+    // Not all deletes are purged (neither merge purges its last source's tail, and
+    // each range has its own tail), so compare only the live rows
+    List<ByteBuffer> expectedRows = liveRows(single);
+    assertEquals(expected.size(), expectedRows.size());
+    assertEquals(expectedRows, liveRows(target));
+    PartitionedMergeSortTest.assertTempsDeleted(unitTestDir());
+  }
+  
+  private List<ByteBuffer> liveRows(SortedTable table) throws IOException {
+    ArrayList<ByteBuffer> rows = new ArrayList<>();
+    for (long index = 0; index < table.getRowCount(); ++index) {
+      ByteBuffer row = ByteBuffer.allocate(ROW_WIDTH);
+      table.read(index, row);
+      row.flip();
+      if (!DELETE_CODEC.isDeleted(row))
+        rows.add(row);
+    }
+    return rows;
+  }
+  
   private void testImpl(int[][] tableValues) throws IOException {
     testImpl(tableValues, -1);
   }
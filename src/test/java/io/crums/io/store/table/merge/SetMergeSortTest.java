@@ -11,13 +11,16 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.junit.Test;
 
 import io.crums.io.store.table.SortedTable;
+import io.crums.io.store.table.SortedTableTest;
 import io.crums.io.store.table.TableTestHarness;
 import io.crums.io.store.table.SortedTable.Searcher;
+import io.crums.io.store.table.order.RowOrders;
 
 /**
  * 
@@ -162,6 +165,168 @@ public class SetMergeSortTest extends TableTestHarness {
   }
   
   
+  @Test
+  public void testManySources() throws IOException {
+    initUnitTestDir(new Object() { });
+    final int numTables = 48;
+    int[][] tableValues = new int[numTables][];
+    for (int i = 0; i < numTables; ++i) {
+      IntGenerator gen = new IntGenerator(i, i % 5, 3 + i % 11);
+      tableValues[i] = new int[500 + 37 * i];
+      for (int j = 0; j < tableValues[i].length; ++j)
+        tableValues[i][j] = gen.next();
+    }
+    testWithTableProvenance(tableValues);
+  }
+  
+  
+  @Test
+  public void testPerfManySources() throws IOException {
+    initUnitTestDir(new Object() { });
+    String method = getMethod();
+    if (!"true".equalsIgnoreCase(System.getProperty(SortedTableTest.PERF_TEST_PROPERTY))) {
+      log.info("Skipping " + method + "(): to activate -D" + SortedTableTest.PERF_TEST_PROPERTY + "=true");
+      return;
+    }
+    log.info("*** Benchmarking " + method + " ***");
+    final int rowSize = 8;
+    final int totalRows = 500000;
+    int run = 0;
+    for (int k = 2; k <= 64; k *= 2) {
+      // each run's tables are numbered from base
+      final int base = run * 65;
+      SortedTable[] stack = new SortedTable[k];
+      for (int i = 0; i < k; ++i) {
+        // interleaved keys: every merge step moves a short block
+        IntGenerator gen = new IntGenerator(base + i, i, 2 * k);
+        int[] values = new int[totalRows / k];
+        for (int j = 0; j < values.length; ++j)
+          values[j] = gen.next();
+        stack[i] = initIntTable(rowSize, RowOrders.INT_ORDER, values, base + i);
+      }
+      SortedTable target = new SortedTable(openFile(base + k, false), rowSize, stack[0].order());
+      SetMergeSort sorter = new SetMergeSort(target, stack);
+      long start = System.nanoTime();
+      sorter.mergeToTarget();
+      long micros = (System.nanoTime() - start) / 1000;
+      log.info(
+          "k=" + k + ": " + target.getRowCount() + " rows in " + micros + " microseconds (" +
+          (micros * 1000 / Math.max(1, target.getRowCount())) + " ns/row); rows/read: " +
+          sorter.getRowsPerRead());
+      target.close();
+      ++run;
+    }
+  }
+  
+  
+  @Test
+  public void testSplitTargets() throws IOException {
+    initUnitTestDir(new Object() { });
+    final int rowSize = 8;
+    final int maxRowsPerTarget = 1000;
+    int[] tableCounts = { 5000, 2000, 300 };
+    int[][] tableValues = new int[tableCounts.length][];
+    for (int i = 0; i < tableCounts.length; ++i) {
+      IntGenerator gen = new IntGenerator(i, i, 7);
+      tableValues[i] = new int[tableCounts[i]];
+      for (int j = 0; j < tableCounts[i]; ++j)
+        tableValues[i][j] = gen.next();
+    }
+    Map<Integer, Integer> expected = new HashMap<>();
+    final SortedTable[] stack = createIntTableSet(rowSize, tableValues, expected);
+    SortedTable target = new SortedTable(openFile(tableValues.length, false), rowSize, stack[0].order());
+    SetMergeSort sorter = new SetMergeSort(target, stack);
+    sorter.setSplitTargets(maxRowsPerTarget, new BaseMergeSort.TargetFactory() {
+      int index = stack.length;
+      @Override
+      public SortedTable newTarget() throws IOException {
+        return new SortedTable(openFile(++index, false), rowSize, stack[0].order());
+      }
+    });
+    sorter.mergeToTarget();
+    
+    List<SortedTable> targets = sorter.getTargets();
+    assertEquals((expected.size() + maxRowsPerTarget - 1) / maxRowsPerTarget, targets.size());
+    assertSame(target, targets.get(0));
+    
+    long rowCount = 0;
+    ByteBuffer prevLast = null;
+    ByteBuffer key = ByteBuffer.allocate(4);
+    for (SortedTable split : targets) {
+      long count = split.getRowCount();
+      assertTrue(count > 0 && count <= maxRowsPerTarget);
+      rowCount += count;
+      ByteBuffer first = ByteBuffer.allocate(rowSize);
+      split.read(0, first);
+      first.flip();
+      if (prevLast != null)
+        assertTrue(prevLast.getInt(0) < first.getInt(0));
+      prevLast = ByteBuffer.allocate(rowSize);
+      split.read(count - 1, prevLast);
+      prevLast.flip();
+      
+      Searcher searcher = split.newSearcher(8);
+      for (long row = 0; row < count; row += 97) {
+        ByteBuffer r = ByteBuffer.allocate(rowSize);
+        split.read(row, r);
+        int k = r.getInt(0);
+        key.clear();
+        key.putInt(k).flip();
+        assertTrue(searcher.search(key));
+        assertEquals(expected.get(k).intValue(), guessIntTableIndexFromRow(searcher.getHitRow()));
+      }
+    }
+    assertEquals(expected.size(), rowCount);
+  }
+  
+  
+  @Test
+  public void testConcatenated() throws IOException {
+    initUnitTestDir(new Object() { });
+    final int rowSize = 8;
+    int[][] tableValues = {
+        { 20, 21, 22, 25 },
+        { 1, 3, 5 },
+        { 30, 40 },
+        { 10, 11, 19 },
+    };
+    Map<Integer, Integer> expected = new HashMap<>();
+    SortedTable[] stack = createIntTableSet(rowSize, tableValues, expected);
+    SortedTable target = new SortedTable(openFile(tableValues.length, false), rowSize, stack[0].order());
+    SetMergeSort sorter = new SetMergeSort(target, stack);
+    sorter.mergeToTarget();
+    assertTrue(sorter.isConcatenated());
+    assertEquals(expected.size(), target.getRowCount());
+    ByteBuffer row = ByteBuffer.allocate(rowSize);
+    int prev = Integer.MIN_VALUE;
+    for (long index = 0; index < target.getRowCount(); ++index) {
+      row.clear();
+      target.read(index, row);
+      int key = row.getInt(0);
+      assertTrue(prev < key);
+      assertEquals(expected.get(key).intValue(), guessIntTableIndexFromRow(row.flip()));
+      prev = key;
+    }
+  }
+  
+  
+  @Test
+  public void testTouchingNotConcatenated() throws IOException {
+    initUnitTestDir(new Object() { });
+    final int rowSize = 8;
+    int[][] tableValues = {
+        { 1, 3, 5 },
+        { 5, 7 },
+    };
+    SortedTable[] stack = createIntTableSet(rowSize, tableValues, new HashMap<>());
+    SortedTable target = new SortedTable(openFile(tableValues.length, false), rowSize, stack[0].order());
+    SetMergeSort sorter = new SetMergeSort(target, stack);
+    sorter.mergeToTarget();
+    assertFalse(sorter.isConcatenated());
+    assertEquals(4, target.getRowCount());
+  }
+  
+  
   private void testWithTableProvenance(int[][] tableValues) throws IOException {
     testWithTableProvenance(tableValues, false, Integer.MAX_VALUE);
   }
@@ -197,6 +362,7 @@ public class SetMergeSortTest extends TableTestHarness {
       log.info("TableSizes: " + tableSizes);
       log.info("Collisions: " + (totalSize - expectedValuesWithTableIds.size()) + "/" + totalSize);
       log.info("Total time taken to merge: " + (end - start) / 1000 + " microseconds");
+      log.info("Rows per read: " + sorter.getRowsPerRead());
     }
 
     
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2020 Babak Farhang
+ */
+package io.crums.util.cc.throt;
+
+
+import static org.junit.Assert.*;
+
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import io.crums.test.TestHelper;
+
+/**
+ * 
+ * @author Babak
+ */
+public class TokenBucketTest {
+  
+  private final static Logger LOG = Logger.getLogger(TokenBucketTest.class.getName());
+
+  @Test
+  public void testUnlimited() throws InterruptedException {
+    TokenBucket bucket = new TokenBucket(0);
+    assertEquals(0, bucket.reserve(Long.MAX_VALUE / 2));
+    bucket.acquire(1L << 40);
+  }
+
+  @Test
+  public void testReserve() {
+    TokenBucket bucket = new TokenBucket(1000);
+    // burst capacity is a 10th of a second's worth, but the bucket starts empty
+    long waitNanos = bucket.reserve(1000);
+    assertTrue(waitNanos > 900_000_000L);
+    assertTrue(waitNanos <= 1_000_000_000L);
+    // debt accumulates
+    assertTrue(bucket.reserve(1000) > waitNanos + 900_000_000L);
+  }
+
+  @Test
+  public void testRate() throws InterruptedException {
+    String method = TestHelper.method(new Object() { });
+    final long rate = 1024 * 1024;
+    final int chunk = 32 * 1024;
+    final int count = 16;
+    TokenBucket bucket = new TokenBucket(rate);
+    
+    long now = System.nanoTime();
+    for (int i = count; i-- > 0; )
+      bucket.acquire(chunk);
+    long elapsedNanos = System.nanoTime() - now;
+    
+    long expectedNanos = count * chunk * 1_000_000_000L / rate;
+    LOG.info("[" + method + "] expected/actual millis: " +
+        expectedNanos / 1_000_000 + "/" + elapsedNanos / 1_000_000);
+    assertTrue(elapsedNanos >= expectedNanos * 9 / 10);
+  }
+
+  @Test
+  public void testSetRate() {
+    TokenBucket bucket = new TokenBucket(1000);
+    bucket.setRate(0);
+    assertEquals(0, bucket.reserve(1_000_000));
+    bucket.setRate(500);
+    assertEquals(500, bucket.getRate());
+    assertTrue(bucket.reserve(500) > 900_000_000L);
+  }
+
+}